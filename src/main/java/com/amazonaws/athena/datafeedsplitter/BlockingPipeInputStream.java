@@ -0,0 +1,166 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockingPipeInputStream connects two pipeline stages running on different threads.
+ *
+ * A producer stage hands over whole chunks of bytes, which the consumer stage reads as an InputStream.
+ * The queue between them is bounded, so a producer that runs ahead of its consumer blocks instead of
+ * buffering without limit. Unlike java.io.PipedInputStream, chunks are handed over without copying. Once a chunk
+ * has been read in full, it is released to the buffer pool, if any, for the producer to fill again.
+ */
+class BlockingPipeInputStream extends InputStream {
+    private static final Chunk END = new Chunk(new byte[0], 0, null);
+
+    private final BlockingQueue<Chunk> queue;
+    private final StageStats consumerStats;
+    private final BufferPool pool;
+
+    private Chunk current;
+    private int position;
+    private boolean finished;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity      The number of chunks that may wait in the pipe
+     * @param consumerStats The statistics of the stage reading from the pipe, used to record the queue depth
+     * @param pool          The pool chunks are released to once read, may be null
+     */
+    BlockingPipeInputStream(final int capacity, final StageStats consumerStats, final BufferPool pool) {
+        this.queue = new ArrayBlockingQueue<Chunk>(capacity);
+        this.consumerStats = consumerStats;
+        this.pool = pool;
+    }
+
+    /**
+     * @param data   The chunk to hand over. Ownership passes to the pipe.
+     * @param length The number of valid bytes in data
+     * @throws IOException when the consumer closed the pipe or the producer was interrupted
+     */
+    public void send(final byte[] data, final int length) throws IOException {
+        if (length > 0) {
+            put(new Chunk(data, length, null));
+        }
+    }
+
+    /**
+     * Signal the end of the data to the consumer.
+     */
+    public void finish() throws IOException {
+        put(END);
+    }
+
+    /**
+     * @param cause The error that stopped the producer. It is rethrown to the consumer on its next read.
+     */
+    public void fail(final Throwable cause) {
+        try {
+            put(new Chunk(null, 0, cause));
+        } catch (IOException e) {
+            // The consumer is gone, so there is nobody to report to
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, buf, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * Stop consuming. A producer blocked on a full pipe is released and will fail on its next send.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private boolean ensureData() throws IOException {
+        while (current == null || position == current.length) {
+            if (finished) {
+                return false;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            consumerStats.sampleQueueDepth(queue.size());
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data", e);
+            }
+
+            if (chunk.error != null) {
+                throw new IOException("Error in upstream pipeline stage", chunk.error);
+            }
+            if (chunk == END) {
+                finished = true;
+                return false;
+            }
+            if (current != null && pool != null) {
+                pool.release(current.data);
+            }
+            current = chunk;
+            position = 0;
+        }
+        return true;
+    }
+
+    private void put(final Chunk chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new IOException("Pipe closed by consumer");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while handing over data", e);
+        }
+    }
+
+    /**
+     * A chunk of bytes, or an error raised by the producer.
+     */
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+        private final Throwable error;
+
+        Chunk(final byte[] data, final int length, final Throwable error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
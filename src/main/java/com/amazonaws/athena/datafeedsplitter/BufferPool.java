@@ -0,0 +1,93 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool recycles the large byte arrays that carry data between pipeline stages: pipeline chunks, gzip
+ * blocks and multipart parts.
+ *
+ * A stage that is done with an array releases it, and the next stage that needs an array of the same size takes
+ * it back instead of allocating a new one. Arrays are kept per size, up to a total number of free bytes beyond
+ * which released arrays are left to the garbage collector. The shared pool lives as long as the Lambda container,
+ * so warm invocations start with the arrays of the previous ones.
+ *
+ * Releasing an array is optional, an array that is never released is simply collected. An array must not be used
+ * by its previous owner once released.
+ */
+class BufferPool {
+    private static BufferPool shared;
+
+    private final long maxPooledBytes;
+    private final Map<Integer, Queue<byte[]>> free = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes The number of bytes of free arrays kept for reuse
+     */
+    BufferPool(final long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @param config The splitter configuration providing the pool size
+     * @return the pool shared by every invocation in this container
+     */
+    static synchronized BufferPool shared(final SplitterConfig config) {
+        if (shared == null || shared.maxPooledBytes != config.getBufferPoolSize()) {
+            shared = new BufferPool(config.getBufferPoolSize());
+        }
+        return shared;
+    }
+
+    /**
+     * @param size The length of the array
+     * @return a free array of the given length from the pool, or a new one. Its contents are undefined.
+     */
+    public byte[] acquire(final int size) {
+        Queue<byte[]> arrays = free.get(size);
+        byte[] array = arrays == null ? null : arrays.poll();
+        if (array == null) {
+            allocations.incrementAndGet();
+            return new byte[size];
+        }
+        pooledBytes.addAndGet(-size);
+        return array;
+    }
+
+    /**
+     * @param array An array that is no longer used, may be null
+     */
+    public void release(final byte[] array) {
+        if (array == null || pooledBytes.addAndGet(array.length) > maxPooledBytes) {
+            if (array != null) {
+                pooledBytes.addAndGet(-array.length);
+            }
+            return;
+        }
+        Queue<byte[]> arrays = free.get(array.length);
+        if (arrays == null) {
+            free.putIfAbsent(array.length, new ConcurrentLinkedQueue<byte[]>());
+            arrays = free.get(array.length);
+        }
+        arrays.offer(array);
+    }
+
+    /**
+     * @return the number of arrays the pool had to allocate because none of the right size was free
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of bytes of free arrays in the pool
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+}
@@ -0,0 +1,48 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * CapturingEntryOutput passes an entry through to another output while keeping a copy of its bytes,
+ * which are handed to a callback once the entry is complete. It is meant for small entries such as
+ * column_headers.tsv whose contents drive how later entries are written.
+ */
+class CapturingEntryOutput extends EntryOutput {
+    private final EntryOutput delegate;
+    private final Consumer<byte[]> onComplete;
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+    /**
+     * @param delegate   The output the entry is written to
+     * @param onComplete Receives the full contents of the entry once the delegate has been closed
+     */
+    CapturingEntryOutput(final EntryOutput delegate, final Consumer<byte[]> onComplete) {
+        this.delegate = delegate;
+        this.onComplete = onComplete;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        delegate.write(b);
+        captured.write(b);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        delegate.write(buf, offset, length);
+        captured.write(buf, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        onComplete.accept(captured.toByteArray());
+    }
+
+    @Override
+    public void abort() {
+        delegate.abort();
+    }
+}
@@ -7,6 +7,8 @@ import com.amazonaws.services.lambda.invoke.LambdaInvokerFactoryConfig;
 import com.amazonaws.services.lambda.model.InvocationType;
 
 import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
 
 /**
  * CatalogManagerInput
@@ -25,6 +27,15 @@ class CatalogManagerInput {
     /** The date of the report in YYYY-mm-dd format. */
     private String reportDate;
 
+    /** The format hit_data was written in, rawtsv, parquet or orc. */
+    private String hitDataFormat;
+
+    /** The Name and Type of every hit_data column, or null if every column is a string. */
+    private List<Map<String, String>> hitDataColumns;
+
+    /** The hr partitions hit_data was written to, or null if it is only partitioned by dt. */
+    private List<String> hitDataHours;
+
     /** getter for s3ReportBase. */
     public String getReportBase() { return s3ReportBase; }
 
@@ -43,6 +54,24 @@ class CatalogManagerInput {
     /** setter for reportDate. **/
     public void setReportDate(final String value) { reportDate = value; }
 
+    /** getter for hitDataFormat. **/
+    public String getHitDataFormat() { return hitDataFormat; }
+
+    /** setter for hitDataFormat. **/
+    public void setHitDataFormat(final String value) { hitDataFormat = value; }
+
+    /** getter for hitDataColumns. **/
+    public List<Map<String, String>> getHitDataColumns() { return hitDataColumns; }
+
+    /** setter for hitDataColumns. **/
+    public void setHitDataColumns(final List<Map<String, String>> value) { hitDataColumns = value; }
+
+    /** getter for hitDataHours. **/
+    public List<String> getHitDataHours() { return hitDataHours; }
+
+    /** setter for hitDataHours. **/
+    public void setHitDataHours(final List<String> value) { hitDataHours = value; }
+
 }
 
 /**
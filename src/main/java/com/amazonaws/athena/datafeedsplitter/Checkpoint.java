@@ -0,0 +1,132 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checkpoint records how far an invocation got through a chunked entry before running out of time, so that a
+ * continuation invocation can carry on from there instead of starting over.
+ *
+ * Progress is only recorded where nothing is in flight: at the end of a chunk, which is cut at a row boundary and
+ * fully uploaded, so the checkpoint holds no deflate state or multipart upload. The continuation reads the archive
+ * from the start again, but skips the converted part of the entry instead of compressing and uploading it.
+ *
+ * The checkpoint is stored as one "name\tvalue" line per field, with a "completed\tkey" line per object written.
+ */
+class Checkpoint {
+    private final String sourceETag;
+    private final String runId;
+    private final String entry;
+    private final long entryOffset;
+    private final int nextChunk;
+    private final List<String> completedKeys;
+
+    /**
+     * @param sourceETag    The ETag of the archive, so a checkpoint is not applied to a different upload
+     * @param runId         The name of the run whose objects the continuation adds to, may be null
+     * @param entry         The name of the entry in the Data Feed archive
+     * @param entryOffset   The number of uncompressed bytes of the entry already converted
+     * @param nextChunk     The number of the chunk the rest of the entry starts in
+     * @param completedKeys The keys of the objects written for the entry so far
+     */
+    Checkpoint(final String sourceETag, final String runId, final String entry, final long entryOffset,
+               final int nextChunk, final List<String> completedKeys) {
+        this.sourceETag = sourceETag;
+        this.runId = runId;
+        this.entry = entry;
+        this.entryOffset = entryOffset;
+        this.nextChunk = nextChunk;
+        this.completedKeys = Collections.unmodifiableList(new ArrayList<String>(completedKeys));
+    }
+
+    /** getter for sourceETag. */
+    public String getSourceETag() {
+        return sourceETag;
+    }
+
+    /** getter for runId. */
+    public String getRunId() {
+        return runId;
+    }
+
+    /** getter for entry. */
+    public String getEntry() {
+        return entry;
+    }
+
+    /** getter for entryOffset. */
+    public long getEntryOffset() {
+        return entryOffset;
+    }
+
+    /** getter for nextChunk. */
+    public int getNextChunk() {
+        return nextChunk;
+    }
+
+    /** getter for completedKeys. */
+    public List<String> getCompletedKeys() {
+        return completedKeys;
+    }
+
+    /**
+     * @return the serialized checkpoint
+     */
+    public byte[] toByteArray() {
+        StringBuilder out = new StringBuilder();
+        out.append("source_etag\t").append(sourceETag).append('\n');
+        if (runId != null) {
+            out.append("run\t").append(runId).append('\n');
+        }
+        out.append("entry\t").append(entry).append('\n');
+        out.append("entry_offset\t").append(entryOffset).append('\n');
+        out.append("next_chunk\t").append(nextChunk).append('\n');
+        for (String key : completedKeys) {
+            out.append("completed\t").append(key).append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param data The serialized checkpoint, or null if there is none
+     * @return the checkpoint, or null if there is none
+     */
+    static Checkpoint parse(final byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        String sourceETag = null;
+        String runId = null;
+        String entry = null;
+        long entryOffset = -1;
+        int nextChunk = -1;
+        List<String> completedKeys = new ArrayList<String>();
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            final int tab = line.indexOf('\t');
+            if (tab == -1) {
+                continue;
+            }
+            final String name = line.substring(0, tab);
+            final String value = line.substring(tab + 1);
+            if (name.equals("source_etag")) {
+                sourceETag = value;
+            } else if (name.equals("run")) {
+                runId = value;
+            } else if (name.equals("entry")) {
+                entry = value;
+            } else if (name.equals("entry_offset")) {
+                entryOffset = Long.parseLong(value);
+            } else if (name.equals("next_chunk")) {
+                nextChunk = Integer.parseInt(value);
+            } else if (name.equals("completed")) {
+                completedKeys.add(value);
+            }
+        }
+        if (sourceETag == null || entry == null || entryOffset < 0 || nextChunk < 0) {
+            throw new RuntimeException("Incomplete checkpoint: " + new String(data, StandardCharsets.UTF_8));
+        }
+        return new Checkpoint(sourceETag, runId, entry, entryOffset, nextChunk, completedKeys);
+    }
+}
@@ -0,0 +1,184 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ChunkedEntryOutput splits a large TSV entry into several gzip objects of roughly a target compressed size.
+ *
+ * Gzip is not splittable, so Athena reads each object with a single reader. Writing hit_data as a series of
+ * chunks in the same date partition lets Athena scan a day with many readers in parallel. Chunks are only ever
+ * cut at the end of a row, taking Adobe's backslash escapes into account, so every chunk is a valid TSV file.
+ *
+ * A chunk is only started once there is a byte to write to it, so an entry ending where a chunk fills up does not
+ * leave an empty object behind. Once the last chunk is uploaded, objects left in the partition by an earlier run
+ * are removed. When sidecar indexes are enabled, each chunk gets its own index.
+ *
+ * An invocation running out of time can stop the entry at the next row boundary, once the chunk in progress has
+ * been uploaded, and record a {@link Checkpoint}. The output of the continuation invocation skips the part of the
+ * entry converted before and carries on with the next chunk.
+ */
+class ChunkedEntryOutput extends EntryOutput {
+    private final DataFeedWriter writer;
+    private final DataFeedRecord df;
+    private final String basename;
+    private final long targetSize;
+    private final RowBoundaryScanner scanner = new RowBoundaryScanner();
+    private final List<String> completedKeys = new ArrayList<String>();
+
+    // The chunk in progress, or null once a chunk has been finished and no byte has been written since
+    private GzipObjectOutput current;
+    private int chunk;
+    private boolean completed;
+    private long entryOffset;
+    private int resumedKeys;
+    private long skipRemaining;
+    private boolean stopRequested;
+    private boolean stopped;
+
+    /**
+     * @param writer     The writer providing the S3 client, thread pools and configuration
+     * @param df         The record of the Data Feed being written
+     * @param basename   The name of the entry in the Data Feed archive
+     * @param targetSize The compressed size after which a new chunk is started at the next row boundary
+     * @param resume     The checkpoint of the entry to carry on from, may be null
+     * @throws IOException when the first chunk can not be started
+     */
+    ChunkedEntryOutput(final DataFeedWriter writer, final DataFeedRecord df, final String basename,
+                       final long targetSize, final Checkpoint resume) throws IOException {
+        this.writer = writer;
+        this.df = df;
+        this.basename = basename;
+        this.targetSize = targetSize;
+        if (resume != null) {
+            this.chunk = resume.getNextChunk();
+            this.skipRemaining = resume.getEntryOffset();
+            this.completedKeys.addAll(resume.getCompletedKeys());
+            this.resumedKeys = completedKeys.size();
+        }
+        this.current = openChunk();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        if (stopped) {
+            return;
+        }
+        int pos = offset;
+        final int end = offset + length;
+
+        // The part converted by an earlier invocation ends with a complete row
+        if (skipRemaining > 0) {
+            final int skip = (int) Math.min(skipRemaining, length);
+            skipRemaining -= skip;
+            entryOffset += skip;
+            pos += skip;
+        }
+
+        while (pos < end) {
+            if (current == null) {
+                current = openChunk();
+            }
+            if (current.getCompressedSize() < targetSize && !stopRequested) {
+                scanner.skip(buf, pos, end);
+                current.write(buf, pos, end - pos);
+                entryOffset += end - pos;
+                return;
+            }
+
+            // The chunk is full, finish it at the end of the current row
+            int rowEnd = scanner.findRowEnd(buf, pos, end);
+            if (rowEnd == -1) {
+                current.write(buf, pos, end - pos);
+                entryOffset += end - pos;
+                return;
+            }
+            current.write(buf, pos, rowEnd - pos);
+            entryOffset += rowEnd - pos;
+            if (stopRequested) {
+                current.close();
+                addCompletedKeys();
+                stopped = true;
+                return;
+            }
+            nextChunk();
+            pos = rowEnd;
+        }
+    }
+
+    /**
+     * Finish the chunk in progress at the next row boundary and ignore the rest of the entry, see
+     * {@link #isStopped()}.
+     */
+    public void stopAtNextRow() {
+        stopRequested = true;
+    }
+
+    /**
+     * @return whether the entry has been stopped, after which every object written so far is complete
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @param sourceETag The ETag of the archive
+     * @return the checkpoint to carry on from once the entry has been stopped
+     */
+    public Checkpoint toCheckpoint(final String sourceETag) {
+        return new Checkpoint(sourceETag, df.getRunId(), basename, entryOffset, chunk + 1, completedKeys);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (completed || stopped) {
+            return;
+        }
+        if (current != null) {
+            current.close();
+            addCompletedKeys();
+        }
+        completed = true;
+        writer.deleteStaleDataObjects(df.getDstPartitionPrefix(basename), completedKeys);
+    }
+
+    /**
+     * Abort the chunk in progress and remove the chunks already written, so a retry starts from a clean partition.
+     * Chunks written before the checkpoint this output resumed from are kept, as the retry resumes from it too.
+     */
+    @Override
+    public void abort() {
+        // A stopped entry keeps its chunks for the continuation
+        if (completed || stopped) {
+            return;
+        }
+        if (current != null) {
+            current.abort();
+        }
+        writer.deleteObjects(completedKeys.subList(resumedKeys, completedKeys.size()));
+    }
+
+    private void nextChunk() throws IOException {
+        current.close();
+        addCompletedKeys();
+        chunk++;
+        current = null;
+    }
+
+    private GzipObjectOutput openChunk() throws IOException {
+        return new GzipObjectOutput(writer, df.getDstKeyForChunk(basename, chunk), null, writer.newSidecarIndex());
+    }
+
+    private void addCompletedKeys() {
+        completedKeys.add(current.getKey());
+        if (current.getSidecarKey() != null) {
+            completedKeys.add(current.getSidecarKey());
+        }
+    }
+}
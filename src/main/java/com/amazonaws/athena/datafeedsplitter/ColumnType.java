@@ -0,0 +1,55 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * ColumnType lists the types hit_data columns are converted to in Parquet and ORC output.
+ */
+enum ColumnType {
+    /** UTF-8 text, the type of every column of the TSV files. */
+    STRING("string"),
+
+    /** 32-bit signed integer. */
+    INT("int"),
+
+    /** 64-bit signed integer. */
+    BIGINT("bigint");
+
+    private final String catalogType;
+
+    ColumnType(final String catalogType) {
+        this.catalogType = catalogType;
+    }
+
+    /**
+     * @return the name of the type in the Glue Data Catalog
+     */
+    public String getCatalogType() {
+        return catalogType;
+    }
+
+    /**
+     * @param catalogType The name of a type in the Glue Data Catalog
+     * @return the matching type
+     */
+    public static ColumnType fromCatalogType(final String catalogType) {
+        for (ColumnType type : values()) {
+            if (type.catalogType.equals(catalogType)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported column type: " + catalogType);
+    }
+
+    /**
+     * @return true if values of the type are integers
+     */
+    public boolean isInteger() {
+        return this != STRING;
+    }
+
+    /**
+     * @return true if the value, which must be a valid integer, fits in the type
+     */
+    public boolean fits(final long value) {
+        return this != INT || (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,83 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * Crc32Combine computes the CRC-32 of two concatenated byte sequences from the CRC-32 of each sequence.
+ *
+ * This is a port of crc32_combine() from zlib. It lets independently compressed blocks compute their checksums
+ * in parallel, while the gzip trailer still carries the checksum of the whole stream.
+ */
+final class Crc32Combine {
+    private static final int GF2_DIM = 32;
+
+    private Crc32Combine() {
+    }
+
+    /**
+     * @param crc1 CRC-32 of the first sequence
+     * @param crc2 CRC-32 of the second sequence
+     * @param len2 length in bytes of the second sequence
+     * @return the CRC-32 of the first sequence followed by the second
+     */
+    public static long combine(final long crc1, final long crc2, final long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[GF2_DIM];
+        long[] odd = new long[GF2_DIM];
+
+        // Operator for one zero bit in odd
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Operator for two zero bits in even, then four zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply len2 zeros to crc1, the first square puts the operator for one zero byte in even
+        long crc = crc1;
+        long len = len2;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            len >>= 1;
+            if (len == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            len >>= 1;
+        } while (len != 0);
+
+        return (crc ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(final long[] mat, final long vec) {
+        long sum = 0;
+        long v = vec;
+        int i = 0;
+        while (v != 0) {
+            if ((v & 1) != 0) {
+                sum ^= mat[i];
+            }
+            v >>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(final long[] square, final long[] mat) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
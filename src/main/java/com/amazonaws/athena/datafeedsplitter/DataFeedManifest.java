@@ -0,0 +1,181 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DataFeedManifest is the .txt metadata file Adobe uploads once the files of a Data Feed delivery are in place:
+ * <pre>
+ *   Datafeed-Manifest-Version: 1.0
+ *   Lookup-Files: 1
+ *   Data-Files: 1
+ *   Total-Records: 611
+ *
+ *   Lookup-File: report_2018-02-02-lookup_data.tar.gz
+ *   MD5-Digest: af6de42d8b945d4ec1cf28360085308
+ *   File-Size: 63750
+ *
+ *   Data-File: report_2018-02-02.tar.gz
+ *   MD5-Digest: 9c70bf783cb3d0095a4836904b72c991
+ *   File-Size: 122534
+ *   Record-Count: 611
+ * </pre>
+ * The counts in the header are checked against the sections that follow, so a truncated manifest is not mistaken
+ * for a smaller delivery.
+ */
+class DataFeedManifest {
+    private final List<DataFile> dataFiles;
+    private final List<DataFile> lookupFiles;
+    private final long totalRecords;
+
+    /**
+     * DataFile is a file of the delivery listed in the manifest.
+     */
+    static class DataFile {
+        private final String name;
+        private final String md5;
+        private final long size;
+        private final long recordCount;
+
+        /**
+         * @param name        The name of the file, in the directory of the manifest
+         * @param md5         The MD5 digest of the file in lower case hex
+         * @param size        The size of the file in bytes
+         * @param recordCount The number of hit_data records in the file, or -1 for a lookup file
+         */
+        DataFile(final String name, final String md5, final long size, final long recordCount) {
+            this.name = name;
+            this.md5 = md5;
+            this.size = size;
+            this.recordCount = recordCount;
+        }
+
+        /** getter for name. */
+        public String getName() {
+            return name;
+        }
+
+        /** getter for md5. */
+        public String getMd5() {
+            return md5;
+        }
+
+        /** getter for size. */
+        public long getSize() {
+            return size;
+        }
+
+        /** getter for recordCount. */
+        public long getRecordCount() {
+            return recordCount;
+        }
+    }
+
+    DataFeedManifest(final List<DataFile> dataFiles, final List<DataFile> lookupFiles, final long totalRecords) {
+        this.dataFiles = Collections.unmodifiableList(new ArrayList<DataFile>(dataFiles));
+        this.lookupFiles = Collections.unmodifiableList(new ArrayList<DataFile>(lookupFiles));
+        this.totalRecords = totalRecords;
+    }
+
+    /** getter for dataFiles. */
+    public List<DataFile> getDataFiles() {
+        return dataFiles;
+    }
+
+    /** getter for lookupFiles. */
+    public List<DataFile> getLookupFiles() {
+        return lookupFiles;
+    }
+
+    /** getter for totalRecords. */
+    public long getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * @param data The contents of the metadata file
+     * @return the manifest
+     */
+    static DataFeedManifest parse(final byte[] data) {
+        final String text = new String(data, StandardCharsets.UTF_8);
+        String version = null;
+        int declaredLookups = -1;
+        int declaredData = -1;
+        long totalRecords = -1;
+        List<DataFile> dataFiles = new ArrayList<DataFile>();
+        List<DataFile> lookupFiles = new ArrayList<DataFile>();
+
+        // Each file is a section of "Name: value" lines, started by its Data-File or Lookup-File line
+        String fileName = null;
+        boolean lookup = false;
+        String md5 = null;
+        long size = -1;
+        long records = -1;
+        for (String line : (text + "\n").split("\r?\n", -1)) {
+            final int colon = line.indexOf(':');
+            final String name = colon == -1 ? "" : line.substring(0, colon).trim();
+            final String value = colon == -1 ? "" : line.substring(colon + 1).trim();
+            if (fileName != null && (line.trim().isEmpty() || name.equals("Data-File")
+                    || name.equals("Lookup-File"))) {
+                if (md5 == null || size < 0 || (!lookup && records < 0)) {
+                    throw new RuntimeException("Incomplete manifest entry for " + fileName);
+                }
+                (lookup ? lookupFiles : dataFiles).add(
+                        new DataFile(fileName, md5.toLowerCase(), size, lookup ? -1 : records));
+                fileName = null;
+            }
+            switch (name) {
+                case "Datafeed-Manifest-Version":
+                    version = value;
+                    break;
+                case "Lookup-Files":
+                    declaredLookups = Integer.parseInt(value);
+                    break;
+                case "Data-Files":
+                    declaredData = Integer.parseInt(value);
+                    break;
+                case "Total-Records":
+                    totalRecords = Long.parseLong(value);
+                    break;
+                case "Data-File":
+                case "Lookup-File":
+                    fileName = value;
+                    lookup = name.equals("Lookup-File");
+                    md5 = null;
+                    size = -1;
+                    records = -1;
+                    break;
+                case "MD5-Digest":
+                    md5 = value;
+                    break;
+                case "File-Size":
+                    size = Long.parseLong(value);
+                    break;
+                case "Record-Count":
+                    records = Long.parseLong(value);
+                    break;
+                default:
+                    // Fields added by later versions are ignored
+            }
+        }
+
+        if (version == null) {
+            throw new RuntimeException("Not a Data Feed manifest, Datafeed-Manifest-Version is missing");
+        }
+        if (declaredData != dataFiles.size() || (declaredLookups >= 0 && declaredLookups != lookupFiles.size())) {
+            throw new RuntimeException("Truncated manifest: lists " + dataFiles.size() + " of " + declaredData
+                    + " data files and " + lookupFiles.size() + " of " + declaredLookups + " lookup files");
+        }
+        long sum = 0;
+        for (DataFile file : dataFiles) {
+            sum += file.getRecordCount();
+        }
+        if (totalRecords >= 0 && totalRecords != sum) {
+            throw new RuntimeException("Manifest lists " + totalRecords + " records in total but " + sum
+                    + " in its data files");
+        }
+        return new DataFeedManifest(dataFiles, lookupFiles, sum);
+    }
+}
@@ -1,55 +1,396 @@
 package com.amazonaws.athena.datafeedsplitter;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
-import static com.amazonaws.athena.datafeedsplitter.LambdaHandler.BUFFER;
-
 /**
  * DataFeedReader is a wrapper for the logic that can read Adobe Analytics Data Feed files.
  * These files are .tar.gz archives that can be up to 2GB in size.
+ *
+ * The archive is inflated on a dedicated thread that hands decompressed chunks to the tar parser through a
+ * bounded pipe, so decompression overlaps with whatever the caller does with the entries.
+ *
+ * With a gzip index enabled, the first read of an archive records a {@link GzipIndex} of it, which
+ * {@link #saveIndex(String)} stores next to the archive. Later reads decompress the archive on several threads through
+ * the index, and a read of only some entries decompresses just the parts of the archive holding them.
+ *
+ * With speculative inflation enabled, an archive without an index is decompressed on several threads anyway, see
+ * {@link SpeculativeGzipInputStream}, which also records the index when one is wanted.
  */
 class DataFeedReader {
+    // Compressed bytes handed to the inflater at a time, the archive itself is buffered by the fetch stage
+    private static final int INFLATE_INPUT_SIZE = 256 * 1024;
+
+    // How long to wait for the inflater to read the rest of the archive after the end of the tar stream
+    private static final long TRAILER_WAIT_MILLIS = 60 * 1000;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final long objectLength;
+    private final String sourceETag;
+    private final int inflateThreads;
+    private final StageStats inflateStats;
+
     private TarArchiveInputStream tarReader;
+    private BlockingPipeInputStream pipe;
+    private Thread inflater;
+
+    // Set when the index is being built by this read
+    private GzipIndex.Recorder indexing;
+    private final List<GzipIndex.Entry> indexEntries = new ArrayList<GzipIndex.Entry>();
+    private boolean endOfArchive;
+
+    // Set when the archive is read through a stored index, and then only some entries by their range
+    private GzipIndex index;
+    private Iterator<GzipIndex.Entry> indexedEntries;
+    private InputStream entryStream;
+
+    // Set when the archive is read in order, so its MD5 digest can be taken on the way
+    private MessageDigest archiveDigest;
+    private InputStream digestIn;
+    private String archiveMd5;
 
     /**
      * Creates a new DataFeedReader class that can read from the provided AmazonS3 and DataFeedRecord instances.
      *
      * @param s3    A pre-existing AmazonS3 client
      * @param record    A DataFeedRecord that indicates the source archive to read from
+     * @param config    The splitter configuration providing the number of connections and their window size
+     * @param stats     The statistics of the pipeline the reader is part of
+     * @param only      The names of the entries that will be read, or null if all of them will be
      * @throws RuntimeException A generic exception if anything goes wrong while initializing
      */
-    public DataFeedReader(final AmazonS3 s3, final DataFeedRecord record) throws RuntimeException {
-        // Initialize an S3 Object stream
-        S3ObjectInputStream s3is = s3.getObject(
-                record.getSrcBucket(),
-                record.getSrcTarbell()
-        ).getObjectContent();
+    public DataFeedReader(final AmazonS3 s3, final DataFeedRecord record, final SplitterConfig config,
+                          final PipelineStats stats, final Set<String> only) throws RuntimeException {
+        this.s3 = s3;
+        this.bucket = record.getSrcBucket();
+        this.key = record.getSrcTarbell();
+        final ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+        this.objectLength = metadata.getContentLength();
+        this.sourceETag = metadata.getETag();
+        this.inflateThreads = config.getInflateThreads();
+        this.inflateStats = stats.stage(PipelineStats.INFLATE);
+
+        if (config.isGzipIndex()) {
+            index = loadIndex(record.getGzipIndexKey());
+            if (index != null && only != null) {
+                // The entries are read by their range, without parsing the tar stream
+                indexedEntries = index.getEntries().iterator();
+                return;
+            }
+            if (index != null) {
+                tarReader = new TarArchiveInputStream(new IndexedGzipInputStream(
+                        s3, bucket, key, index, 0, index.getUncompressedLength(), inflateThreads, inflateStats));
+                return;
+            }
+        }
+
+        if (config.isSpeculativeInflate() && objectLength > 2L * config.getInflateChunkSize()) {
+            // Chunks of the archive are fetched and decompressed on several threads at once
+            final SpeculativeGzipInputStream speculative;
+            try {
+                speculative = new SpeculativeGzipInputStream(s3, bucket, key, objectLength,
+                        config.getInflateChunkSize(), inflateThreads, stats.stage(PipelineStats.FETCH));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open SpeculativeGzipInputStream", e);
+            }
+            if (config.isGzipIndex()) {
+                indexing = speculative;
+            }
+            startInflater(speculative, config, stats);
+            return;
+        }
 
-        GZIPInputStream gzIn;
+        // Archives larger than a single window are fetched over several connections at once
+        InputStream s3is;
+        if (config.getReaderConnections() > 1 && objectLength > config.getReaderWindowSize()) {
+            s3is = new RangedPrefetchInputStream(
+                    s3,
+                    bucket,
+                    key,
+                    objectLength,
+                    config.getReaderWindowSize(),
+                    config.getReaderConnections(),
+                    stats.stage(PipelineStats.FETCH)
+            );
+        } else {
+            s3is = s3.getObject(bucket, key).getObjectContent();
+        }
+
+        if (config.getManifestCheck() != ManifestCheck.OFF) {
+            // The digest is taken as the archive streams into the inflater, so it is only read once
+            try {
+                archiveDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("MD5 is not available", e);
+            }
+            s3is = new DigestInputStream(s3is, archiveDigest);
+            digestIn = s3is;
+        }
+
+        InputStream gzIn;
         try {
-            gzIn = new GZIPInputStream(s3is, BUFFER);
+            if (config.isGzipIndex()) {
+                IndexingGzipInputStream indexingIn = new IndexingGzipInputStream(s3is, config.getGzipIndexSpan());
+                indexing = indexingIn;
+                gzIn = indexingIn;
+            } else {
+                gzIn = new GZIPInputStream(s3is, INFLATE_INPUT_SIZE);
+            }
         } catch (IOException e) {
             throw new RuntimeException("Could not open GZIPInputStream", e);
         }
+        startInflater(gzIn, config, stats);
+    }
 
-        tarReader = new TarArchiveInputStream(gzIn);
+    /**
+     * Creates a new DataFeedReader that does not report its pipeline statistics.
+     *
+     * @param s3    A pre-existing AmazonS3 client
+     * @param record    A DataFeedRecord that indicates the source archive to read from
+     * @param config    The splitter configuration providing the number of connections and their window size
+     */
+    public DataFeedReader(final AmazonS3 s3, final DataFeedRecord record, final SplitterConfig config) {
+        this(s3, record, config, new PipelineStats(), null);
     }
 
     public TarArchiveEntry getNextEntry() throws IOException {
-        return (TarArchiveEntry) tarReader.getNextEntry();
+        if (indexedEntries != null) {
+            return nextIndexedEntry();
+        }
+        TarArchiveEntry entry = (TarArchiveEntry) tarReader.getNextEntry();
+        if (entry == null) {
+            endOfArchive = true;
+        } else if (indexing != null) {
+            indexEntries.add(new GzipIndex.Entry(entry.getName(), tarReader.getBytesRead(), entry.getSize()));
+        }
+        return entry;
     }
 
     public int read(final byte[] buf, final int offset, final int numToRead) throws IOException {
+        if (indexedEntries != null) {
+            return entryStream == null ? -1 : entryStream.read(buf, offset, numToRead);
+        }
         return tarReader.read(buf, offset, numToRead);
     }
 
     public void close() throws IOException {
-        tarReader.close();
+        if (entryStream != null) {
+            entryStream.close();
+        }
+        if (tarReader != null) {
+            tarReader.close();
+        }
+        if (inflater != null) {
+            inflater.interrupt();
+        }
+    }
+
+    /**
+     * @return whether the archive is read through a stored gzip index
+     */
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    /**
+     * Store the gzip index built while reading the archive next to it. The archive must have been read to the end.
+     *
+     * @param indexKey The key to store the index at in the bucket of the archive
+     * @return whether an index was stored, which it is not if the archive was read through one already or does
+     * not have a single gzip member
+     * @throws IOException when the inflater was interrupted before it got to the end of the archive
+     */
+    public boolean saveIndex(final String indexKey) throws IOException {
+        if (indexing == null || !endOfArchive) {
+            return false;
+        }
+        try {
+            inflater.join(TRAILER_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing the gzip index", e);
+        }
+        if (inflater.isAlive() || !indexing.isComplete()) {
+            return false;
+        }
+        final byte[] contents = new GzipIndex(sourceETag, objectLength, indexing.getUncompressedLength(),
+                indexing.getCrc(), indexing.getAccessPoints(), indexEntries).toByteArray();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contents.length);
+        s3.putObject(bucket, indexKey, new ByteArrayInputStream(contents), metadata);
+        return true;
+    }
+
+    /**
+     * @return the MD5 digest of the archive in lower case hex, or null if the archive was not read in order, such as
+     * through a gzip index. The archive must have been read to the end.
+     * @throws IOException when the inflater was interrupted before it got to the end of the archive
+     */
+    public String getArchiveMd5() throws IOException {
+        if (archiveDigest == null || !endOfArchive) {
+            return null;
+        }
+        if (archiveMd5 == null) {
+            try {
+                inflater.join(TRAILER_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while finishing the archive digest", e);
+            }
+            if (inflater.isAlive()) {
+                return null;
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : archiveDigest.digest()) {
+                hash.append(String.format("%02x", b & 0xff));
+            }
+            archiveMd5 = hash.toString();
+        }
+        return archiveMd5;
+    }
+
+    /**
+     * @return the stored index of the archive, or null if there is none for this upload of the archive
+     */
+    private GzipIndex loadIndex(final String indexKey) {
+        byte[] contents;
+        try (S3Object object = s3.getObject(bucket, indexKey)) {
+            contents = IOUtils.toByteArray(object.getObjectContent());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read gzip index " + indexKey, e);
+        }
+        final GzipIndex stored = GzipIndex.parse(contents);
+        // An archive uploaded again gets a new index on this read
+        if (!stored.getSourceETag().equals(sourceETag) || stored.getCompressedLength() != objectLength) {
+            return null;
+        }
+        return stored;
+    }
+
+    private TarArchiveEntry nextIndexedEntry() throws IOException {
+        if (entryStream != null) {
+            entryStream.close();
+            entryStream = null;
+        }
+        if (!indexedEntries.hasNext()) {
+            return null;
+        }
+        final GzipIndex.Entry next = indexedEntries.next();
+        TarArchiveEntry entry = new TarArchiveEntry(next.getName());
+        entry.setSize(next.getSize());
+        entryStream = new EntryInputStream(next);
+        return entry;
+    }
+
+    /**
+     * EntryInputStream reads the data of an entry through the index. Nothing is decompressed until the entry is
+     * read, so entries the caller skips cost nothing.
+     */
+    private class EntryInputStream extends InputStream {
+        private final GzipIndex.Entry entry;
+        private IndexedGzipInputStream in;
+
+        EntryInputStream(final GzipIndex.Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(final byte[] buf, final int offset, final int length) throws IOException {
+            return open().read(buf, offset, length);
+        }
+
+        @Override
+        public void close() {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        private InputStream open() {
+            if (in == null) {
+                in = new IndexedGzipInputStream(s3, bucket, key, index, entry.getDataOffset(),
+                        entry.getDataOffset() + entry.getSize(), inflateThreads, inflateStats);
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Start the inflate stage on its own thread and parse the tar stream it produces.
+     */
+    private void startInflater(final InputStream gzIn, final SplitterConfig config, final PipelineStats stats) {
+        final BufferPool pool = BufferPool.shared(config);
+        pipe = new BlockingPipeInputStream(config.getPipelineQueueDepth(), stats.stage(PipelineStats.PARSE), pool);
+        final int chunkSize = config.getPipelineChunkSize();
+        inflater = new DaemonThreadFactory("inflater").newThread(() -> inflate(gzIn, chunkSize, pool, inflateStats));
+        inflater.start();
+
+        tarReader = new TarArchiveInputStream(pipe);
+    }
+
+    /**
+     * The inflate stage: decompress the archive into full chunks and hand them to the tar parser.
+     */
+    private void inflate(final InputStream gzIn, final int chunkSize, final BufferPool pool,
+                         final StageStats inflateStats) {
+        try {
+            int filled;
+            do {
+                long start = inflateStats.start();
+                byte[] chunk = pool.acquire(chunkSize);
+                filled = 0;
+                int count;
+                while (filled < chunkSize && (count = gzIn.read(chunk, filled, chunkSize - filled)) != -1) {
+                    filled += count;
+                }
+                inflateStats.finish(start);
+                pipe.send(chunk, filled);
+            } while (filled == chunkSize);
+            if (digestIn != null) {
+                // Whatever follows the gzip stream is part of the archive digest too
+                byte[] rest = new byte[INFLATE_INPUT_SIZE];
+                while (digestIn.read(rest) != -1) {
+                    continue;
+                }
+            }
+            pipe.finish();
+        } catch (IOException | RuntimeException e) {
+            pipe.fail(e);
+        } finally {
+            try {
+                gzIn.close();
+            } catch (IOException e) {
+                // Nothing left to read, the error does not matter
+            }
+        }
     }
 }
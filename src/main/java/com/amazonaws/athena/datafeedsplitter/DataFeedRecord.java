@@ -2,6 +2,9 @@ package com.amazonaws.athena.datafeedsplitter;
 
 import com.amazonaws.services.s3.event.S3EventNotification;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * DataFeedRecord maintains the source and destination defaults for Data Feed files.
  * Data Feed reports get dropped in an S3 bucket with a certain prefix. This class
@@ -11,10 +14,19 @@ import com.amazonaws.services.s3.event.S3EventNotification;
  * https://marketing.adobe.com/resources/help/en_US/reference/datafeeds_contents.html
  */
 public class DataFeedRecord {
+    // Archives of a multi-file delivery are named like 01-suite_2018-02-02.tar.gz
+    private static final Pattern PART_NUMBER = Pattern.compile("(\\d+)-.*");
+    // Daily feeds end with the date, hourly feeds with the date and the time the hour starts, like 2018-02-02-130000
+    private static final Pattern FEED_TIME = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})(?:-(\\d{2})\\d{4})?");
+
     private String srcBucket;
     private String srcFilename;
+    private String dataFile;
+    private String dataPart;
     private String reportName;
     private String reportDate;
+    private String deliveryHour;
+    private String runId;
 
     private String dstBucket;
 
@@ -37,6 +49,14 @@ public class DataFeedRecord {
         return String.format("%s/%s/rawtsv", getConvertedPrefix(), reportName);
     }
 
+    /**
+     * @param format the format of the converted files
+     * @return the S3 prefix where files converted to the format are stored.
+     */
+    public String getFormatPrefix(final HitDataFormat format) {
+        return String.format("%s/%s/%s", getConvertedPrefix(), reportName, format.getPrefix());
+    }
+
     /**
      * @return the S3 prefix where the latest version of lookup files are stored.
      */
@@ -55,17 +75,294 @@ public class DataFeedRecord {
 
     /**
      * @param basename the base filename of the file to generate a path for
-     * @return the full S3 prefix to the latest version of a specific lookup file.
+     * @param chunk the sequence number of the chunk within the file
+     * @return the full S3 key of one chunk of a converted TSV file that is split into several objects.
      */
-    public String getLookupKeyForBasename(final String basename) {
+    public String getDstKeyForChunk(final String basename, final int chunk) {
+        return getDstKeyForChunk(basename, getDatePartition(), chunk);
+    }
+
+    /**
+     * @param basename the base filename of the file to generate a path for
+     * @param partition the partition holding the chunk, such as dt=2018-01-01/hr=05
+     * @param chunk the sequence number of the chunk within the partition
+     * @return the full S3 key of one chunk of a converted TSV file in a specific partition.
+     */
+    public String getDstKeyForChunk(final String basename, final String partition, final int chunk) {
         final String tableName = basename.replace(".tsv", "");
-        return String.format("%s/%s/%s.gz", getLatestLookupsPrefix(), tableName, basename);
+        return String.format("%s/%s/%s/%s%s.%s.gz", getRawTSVPrefix(), tableName, partition, getStagingMark(),
+                basename, getChunkName(chunk));
+    }
+
+    /**
+     * @param basename the base filename of the file to generate a path for
+     * @return the S3 prefix, ending with a slash, of the date partition holding a converted TSV file.
+     */
+    public String getDstPartitionPrefix(final String basename) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/%s/%s/", getRawTSVPrefix(), tableName, getDatePartition());
+    }
+
+    /**
+     * @param format the format of the converted file
+     * @param basename the base filename of the TSV file the file is converted from
+     * @return the S3 prefix, ending with a slash, of the date partition holding a converted file.
+     */
+    public String getFormatPartitionPrefix(final HitDataFormat format, final String basename) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/%s/%s/", getFormatPrefix(format), tableName, getDatePartition());
+    }
+
+    /**
+     * @param format the format of the converted file
+     * @param basename the base filename of the TSV file the file is converted from
+     * @param chunk the sequence number of the file within the partition
+     * @return the full S3 key of one file converted from a TSV file, such as a Parquet or ORC file.
+     */
+    public String getFormatKeyForChunk(final HitDataFormat format, final String basename, final int chunk) {
+        return getFormatKeyForChunk(format, basename, getDatePartition(), chunk);
+    }
+
+    /**
+     * @param format the format of the converted file
+     * @param basename the base filename of the TSV file the file is converted from
+     * @param partition the partition holding the file, such as dt=2018-01-01/hr=05
+     * @param chunk the sequence number of the file within the partition
+     * @return the full S3 key of one file converted from a TSV file in a specific partition.
+     */
+    public String getFormatKeyForChunk(final HitDataFormat format, final String basename, final String partition,
+                                       final int chunk) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/%s/%s/%s%s.%s.%s", getFormatPrefix(format), tableName, partition, getStagingMark(),
+                tableName, getChunkName(chunk), format.getExtension());
+    }
+
+    /**
+     * @return what the names of the objects of a run start with until the run is published: an underscore, so
+     *         Athena does not read them next to those of the earlier delivery. Nothing when there is no run.
+     */
+    private String getStagingMark() {
+        return runId != null ? "_" : "";
+    }
+
+    /**
+     * @param key the S3 key of an object written by a run, or of its sidecar index
+     * @return the S3 key the object is published under once the run has been checked against its manifest.
+     */
+    public static String getPublishedKey(final String key) {
+        final int slash = key.lastIndexOf('/');
+        return key.substring(0, slash + 1) + key.substring(slash + 2);
+    }
+
+    /**
+     * @param chunk the sequence number of the chunk within its partition
+     * @return the part of an object name that sets the chunk apart, prefixed with the part number of the archive
+     *         when it is one of several archives of a delivery and with the run that wrote it, if any.
+     */
+    private String getChunkName(final int chunk) {
+        StringBuilder name = new StringBuilder();
+        if (deliveryHour != null) {
+            name.append('h').append(deliveryHour).append('-');
+        }
+        if (dataPart != null) {
+            name.append(dataPart).append('-');
+        }
+        if (runId != null) {
+            name.append(runId).append('-');
+        }
+        return name.append(String.format("%05d", chunk)).toString();
+    }
+
+    /**
+     * @return whether other deliveries or archives write hit_data to the same partitions, so each needs objects
+     *         of its own instead of one object per table and day.
+     */
+    public boolean sharesPartitions() {
+        return deliveryHour != null || dataPart != null;
+    }
+
+    /**
+     * @return whether hit_data is written as chunks that are told apart from those of other deliveries, archives or
+     *         runs, rather than as one object per table and day that replaces the earlier one in place.
+     */
+    public boolean needsOwnObjects() {
+        return sharesPartitions() || runId != null;
+    }
+
+    /**
+     * @param runId a name for the run converting the delivery, which its hit_data objects are given so they do
+     *              not replace those of an earlier run before the delivery has been checked against its manifest.
+     *              Their names start with an underscore until then, see {@link #getPublishedKey(String)}.
+     */
+    public void setRunId(final String runId) {
+        this.runId = runId;
+    }
+
+    /**
+     * @return the name of the run converting the delivery, or null if its objects replace earlier ones in place
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @param key the S3 key of a hit_data object in a partition this Data Feed writes to
+     * @return whether the object belongs to the delivery this Data Feed replaces when it is delivered again: any
+     *         object of the day for a daily feed, only the objects of its hour for an hourly feed.
+     */
+    public boolean replacesObject(final String key) {
+        if (deliveryHour == null) {
+            return true;
+        }
+        return key.substring(key.lastIndexOf('/') + 1).contains(".h" + deliveryHour + "-");
+    }
+
+    /**
+     * @param format the format of the converted file
+     * @param basename the base filename of the TSV file the file is converted from
+     * @return the full S3 key of the column types of the table converted from a TSV file. The name starts with
+     *         an underscore so Athena does not read it as data.
+     */
+    public String getColumnTypesKey(final HitDataFormat format, final String basename) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/%s/_column_types.tsv", getFormatPrefix(format), tableName);
+    }
+
+    /**
+     * @param key the S3 key of a converted object
+     * @return the S3 key of the sidecar index of the object, in the same partition. The name starts with
+     *         an underscore so Athena does not read it as data.
+     */
+    public static String getSidecarKey(final String key) {
+        final int slash = key.lastIndexOf('/');
+        return String.format("%s_%s.idx", key.substring(0, slash + 1), key.substring(slash + 1));
+    }
+
+    /**
+     * @param basename the base filename of the lookup file
+     * @param hash the hex SHA-256 of the contents of the lookup file
+     * @return the full S3 key of a lookup file in the lookup store, which is shared by all report suites.
+     */
+    public String getLookupStoreKey(final String basename, final String hash) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/lookup_store/%s/%s.tsv.gz", getConvertedPrefix(), tableName, hash);
+    }
+
+    /**
+     * @param basename the base filename of the lookup file
+     * @return the full S3 key of the symlink manifest pointing the latest lookup table at a stored lookup file.
+     */
+    public String getLookupSymlinkKey(final String basename) {
+        final String tableName = basename.replace(".tsv", "");
+        return String.format("%s/%s/symlink.txt", getLatestLookupsPrefix(), tableName);
+    }
+
+    /**
+     * @return the full S3 key of the manifest listing the hash of every lookup file of this Data Feed.
+     */
+    public String getLookupHistoryKey() {
+        return String.format("%s/%s/lookup_history/%s/lookups.tsv", getConvertedPrefix(), reportName,
+                getDeliveryPartition());
+    }
+
+    /**
+     * @return the full S3 key of the checkpoint of an unfinished conversion of this Data Feed.
+     */
+    public String getCheckpointKey() {
+        return String.format("%s/%s/_checkpoints/%s/checkpoint.tsv", getConvertedPrefix(), reportName,
+                getDeliveryPartition());
+    }
+
+    /**
+     * @return the S3 prefix, ending with a slash, of the records of the partitions and columns of this day the data
+     * catalog was triggered for, which hourly feeds use to trigger it only when they add something.
+     */
+    public String getCatalogRegistrationPrefix() {
+        return String.format("%s/%s/_catalog/%s/", getConvertedPrefix(), reportName, getDatePartition());
+    }
+
+    /**
+     * @return the full S3 key of the record of the partitions and columns the data catalog was triggered for by
+     * this hour, one object per hour so hours converted at the same time do not overwrite each other's record.
+     */
+    public String getCatalogRegistrationKey() {
+        return String.format("%shr=%s.tsv", getCatalogRegistrationPrefix(), deliveryHour);
     }
 
     public String getSrcTarbell() {
+        if (dataFile != null) {
+            return dataFile;
+        }
         return srcFilename.replace(".txt", ".tar.gz");
     }
 
+    /**
+     * @return the S3 key of the metadata file that triggered the splitter, which is the manifest of the delivery.
+     */
+    public String getManifestKey() {
+        return srcFilename;
+    }
+
+    /**
+     * @param name the name of a file listed in the manifest
+     * @return the S3 key of the file, which is delivered next to the manifest.
+     */
+    public String getSiblingKey(final String name) {
+        final int slash = srcFilename.lastIndexOf('/');
+        return slash == -1 ? name : srcFilename.substring(0, slash + 1) + name;
+    }
+
+    /**
+     * @param name the name of the archive listed in the manifest, which is read instead of the one named after
+     *             the metadata file
+     */
+    public void setDataFile(final String name) {
+        dataFile = getSiblingKey(name);
+    }
+
+    /**
+     * @param name  the name of one of several archives listed in the manifest
+     * @param index the position of the archive in the manifest
+     * @return a record for converting that archive, whose objects are told apart from those of the other archives
+     *         of the delivery by a part number, such as 01 for 01-suite_2018-02-02.tar.gz.
+     */
+    public DataFeedRecord forDataFile(final String name, final int index) {
+        DataFeedRecord part = new DataFeedRecord();
+        part.srcBucket = srcBucket;
+        part.srcFilename = srcFilename;
+        part.dstBucket = dstBucket;
+        part.reportName = reportName;
+        part.reportDate = reportDate;
+        part.deliveryHour = deliveryHour;
+        part.runId = runId;
+        part.setDataFile(name);
+
+        final Matcher numbered = PART_NUMBER.matcher(name);
+        part.dataPart = numbered.matches() ? numbered.group(1) : String.format("%02d", index + 1);
+        return part;
+    }
+
+    /**
+     * @return the part number of the archive within a multi-file delivery, or null for a single archive
+     */
+    public String getDataPart() {
+        return dataPart;
+    }
+
+    /**
+     * @return the S3 prefix, ending with a slash, that a delivery not matching its manifest is copied to.
+     */
+    public String getQuarantinePrefix() {
+        return String.format("adobe/quarantine/%s/%s/", reportName, getDeliveryPartition());
+    }
+
+    /**
+     * @return the full S3 key of the gzip index stored next to the source archive, see {@link GzipIndex}.
+     */
+    public String getGzipIndexKey() {
+        return getSrcTarbell() + ".idx";
+    }
+
     public String getReportName() {
         return reportName;
     }
@@ -84,6 +381,29 @@ public class DataFeedRecord {
         return String.format("dt=%s", reportDate);
     }
 
+    /**
+     * @return the two digit hour an hourly feed was delivered for, or null for a daily feed
+     */
+    public String getDeliveryHour() {
+        return deliveryHour;
+    }
+
+    /**
+     * @return the partition the delivery covers, the date partition for a daily feed or the hour partition below
+     *         it for an hourly feed.
+     */
+    public String getDeliveryPartition() {
+        return deliveryHour == null ? getDatePartition() : getHourPartition(deliveryHour);
+    }
+
+    /**
+     * @param hour the two digit hour of the day
+     * @return the name of the hour partition, below the date partition, for this Data Feed
+     */
+    public String getHourPartition(final String hour) {
+        return String.format("%s/hr=%s", getDatePartition(), hour);
+    }
+
     /**
      * @return the S3 URI for the base path to converted data for this Data Feed
      */
@@ -111,6 +431,7 @@ public class DataFeedRecord {
 
         reportName = getReportNameFromSource(srcFilename);
         reportDate = getDateFromSource(srcFilename);
+        deliveryHour = getHourFromSource(srcFilename);
     }
 
     public boolean isMetadataFile() {
@@ -128,6 +449,20 @@ public class DataFeedRecord {
     }
 
     private String getDateFromSource(final String source) {
+        final String time = getTimeFromSource(source);
+        final Matcher matcher = FEED_TIME.matcher(time);
+        return matcher.matches() ? matcher.group(1) : time;
+    }
+
+    /*
+    Hourly feeds are named <report_suite_id>_YYYY-MM-DD-HH0000
+    */
+    private String getHourFromSource(final String source) {
+        final Matcher matcher = FEED_TIME.matcher(getTimeFromSource(source));
+        return matcher.matches() ? matcher.group(2) : null;
+    }
+
+    private String getTimeFromSource(final String source) {
         String[] split = source.split("/");
         String filename = split[split.length - 1];
 
@@ -0,0 +1,103 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DataFeedSchema describes the columns of hit_data, as listed in the column_headers.tsv entry of a Data Feed,
+ * along with the type each column is converted to.
+ */
+class DataFeedSchema {
+    private final List<String> columnNames;
+    private final List<ColumnType> columnTypes;
+
+    /**
+     * @param columnNames The names of the columns, which are all strings
+     */
+    DataFeedSchema(final List<String> columnNames) {
+        this(columnNames, Collections.nCopies(columnNames.size(), ColumnType.STRING));
+    }
+
+    /**
+     * @param columnNames The names of the columns
+     * @param columnTypes The types of the columns, in the same order
+     */
+    DataFeedSchema(final List<String> columnNames, final List<ColumnType> columnTypes) {
+        if (columnNames.size() != columnTypes.size()) {
+            throw new IllegalArgumentException("Expected " + columnNames.size() + " column types");
+        }
+        this.columnNames = Collections.unmodifiableList(new ArrayList<String>(columnNames));
+        this.columnTypes = Collections.unmodifiableList(new ArrayList<ColumnType>(columnTypes));
+    }
+
+    /**
+     * @param data   The contents of column_headers.tsv
+     * @param length The number of bytes of data
+     * @return the schema described by the header line
+     */
+    public static DataFeedSchema fromColumnHeaders(final byte[] data, final int length) {
+        String headers = new String(data, 0, length, StandardCharsets.UTF_8).trim();
+        List<String> names = new ArrayList<String>();
+        for (String name : headers.split("\t")) {
+            names.add(name.trim());
+        }
+        return new DataFeedSchema(names);
+    }
+
+    /**
+     * @param data The contents of a file written by {@link #toColumnTypesFile()}
+     * @return the type of each column listed in the file, by column name
+     */
+    public static Map<String, ColumnType> parseColumnTypesFile(final byte[] data) {
+        Map<String, ColumnType> types = new LinkedHashMap<String, ColumnType>();
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.trim().split("\t");
+            if (fields.length == 2) {
+                types.put(fields[0], ColumnType.fromCatalogType(fields[1]));
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @return a file listing the name and catalog type of every column, one column per line
+     */
+    public byte[] toColumnTypesFile() {
+        StringBuilder file = new StringBuilder();
+        for (int i = 0; i < columnNames.size(); i++) {
+            file.append(columnNames.get(i)).append('\t').append(columnTypes.get(i).getCatalogType()).append('\n');
+        }
+        return file.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int getColumnCount() {
+        return columnNames.size();
+    }
+
+    public String getColumnName(final int column) {
+        return columnNames.get(column);
+    }
+
+    public ColumnType getColumnType(final int column) {
+        return columnTypes.get(column);
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public List<ColumnType> getColumnTypes() {
+        return columnTypes;
+    }
+
+    /**
+     * @return the position of the named column, or -1 if the feed does not include it
+     */
+    public int indexOf(final String name) {
+        return columnNames.indexOf(name);
+    }
+}
@@ -1,24 +1,77 @@
 package com.amazonaws.athena.datafeedsplitter;
 
 import com.amazonaws.services.lambda.AWSLambdaAsyncClientBuilder;
+import com.amazonaws.services.lambda.AWSLambdaClientBuilder;
 import com.amazonaws.services.lambda.invoke.LambdaInvokerFactory;
+import com.amazonaws.services.lambda.model.InvocationType;
+import com.amazonaws.services.lambda.model.InvokeRequest;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.IOUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * DataFeedSplitterManager manages the reading of Data Feed entries from the input Tar file and writing them
  * out to individual S3 gzip files in a format that is Athena-friendly.
+ *
+ * The work runs as a pipeline of stages, each on its own thread(s) and connected by bounded queues:
+ * fetch (ranged GETs) -> inflate -> parse (tar) -> write -> compress -> upload.
+ * The slowest stage sets the throughput, and the statistics of every stage are logged once the archive is done.
+ *
+ * When the invocation is about to run out of time in the middle of chunked hit_data, the entry is stopped at the
+ * end of a chunk, a {@link Checkpoint} is stored and the function is invoked again with the same event. The
+ * continuation finds the checkpoint and carries on from it.
+ *
+ * The delivery is planned from its manifest: lookup archives are read first, and the archives of a multi-file
+ * delivery are converted concurrently, each by a manager of its own, before the catalog is triggered once.
  */
 class DataFeedSplitterManager {
     private LambdaLogger logger;
+    private AmazonS3 s3;
     private DataFeedRecord dfRecord;
     private DataFeedReader reader;
     private DataFeedWriter writer;
+    private SplitterConfig config;
+    private PipelineStats stats;
+    private long deadline;
+    private String sourceETag;
+    private Checkpoint resumedFrom;
+    private boolean checkpointed;
+    private DataFeedManifest manifest;
+    private DataFeedManifest.DataFile manifestFile;
+    private final Map<String, String> sourceETags = new HashMap<String, String>();
+    private final Map<String, Set<String>> keptObjects = new HashMap<String, Set<String>>();
+    private MemoryBudget budget;
+    private String archiveMd5;
+    private RowCounter hitDataRows;
+    private boolean quarantined;
 
     /**
      * @param logger The Lambda logger sent in to the parent job
@@ -26,12 +79,45 @@ class DataFeedSplitterManager {
      */
     public DataFeedSplitterManager(final LambdaLogger logger,
                                    final S3EventNotification.S3EventNotificationRecord record) {
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
+        this(logger, AmazonS3ClientBuilder.defaultClient(), SplitterConfig.fromEnvironment(), record);
+    }
+
+    /**
+     * @param logger The Lambda logger sent in to the parent job
+     * @param s3     An AmazonS3 client, which may be shared with the managers of other records
+     * @param config The splitter configuration, which may be shared with the managers of other records
+     * @param record The S3 event notification record
+     */
+    public DataFeedSplitterManager(final LambdaLogger logger, final AmazonS3 s3, final SplitterConfig config,
+                                   final S3EventNotification.S3EventNotificationRecord record) {
         this.logger = logger;
+        this.s3 = s3;
+        this.config = config;
+        this.stats = new PipelineStats();
 
         dfRecord = DataFeedRecord.newFromRecord(record);
-        reader = new DataFeedReader(s3, dfRecord);
-        writer = new DataFeedWriter(logger, s3, dfRecord);
+        writer = new DataFeedWriter(logger, s3, dfRecord, config, stats);
+    }
+
+    /**
+     * @param delivery The manager of the multi-file delivery the archive is a part of
+     * @param part     The record of the archive
+     * @param file     The archive as listed in the manifest
+     */
+    private DataFeedSplitterManager(final DataFeedSplitterManager delivery, final DataFeedRecord part,
+                                    final DataFeedManifest.DataFile file) {
+        this.logger = line -> delivery.logger.log("[" + part.getDataPart() + "] " + line);
+        this.s3 = delivery.s3;
+        this.config = delivery.config;
+        this.stats = new PipelineStats();
+        this.manifestFile = file;
+        this.sourceETag = delivery.sourceETags.get(file.getName());
+        this.sourceETags.putAll(delivery.sourceETags);
+
+        dfRecord = part;
+        writer = new DataFeedWriter(logger, s3, dfRecord, config, stats);
+        writer.inheritEntries(delivery.writer);
+        writer.deferStaleObjects(delivery.keptObjects);
     }
 
     /**
@@ -45,29 +131,797 @@ class DataFeedSplitterManager {
     }
 
     /**
+     * @param budget The memory budget shared with the archives of other records, which the archives of a
+     *               multi-file delivery beyond the first are reserved from
+     */
+    public void setMemoryBudget(final MemoryBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param remainingMillis The time left before the invocation times out
+     */
+    public void setRemainingTime(final long remainingMillis) {
+        if (config.getCheckpointMarginSeconds() > 0) {
+            deadline = System.currentTimeMillis() + remainingMillis - config.getCheckpointMarginSeconds() * 1000L;
+        }
+    }
+
+    /**
+     * @return true once every entry has been converted, false if the invocation stopped at a checkpoint and
+     * a continuation has to carry on, see {@link #triggerContinuation(LambdaLogger, S3EventNotification, String)}.
      * @throws IOException when there is an error reading from the .tar.gz file or writing to S3.
+     *
+     * Entries that can only be converted once a later entry has been seen, such as hit_data in Parquet or ORC
+     * format when column_headers.tsv comes after it, are read again in a second pass over the archive.
+     *
+     * A delivery with a manifest writes hit_data to objects named after the run converting it, and the objects of
+     * the delivery converted before are only removed once it has been checked against the manifest.
      */
-    public void processAllEntries() throws IOException {
-        TarArchiveEntry entry;
+    public boolean processAllEntries() throws IOException {
+        try {
+            if (config.getManifestCheck() != ManifestCheck.OFF) {
+                if (!planFromManifest() || !processLookupArchives()) {
+                    return true;
+                }
+                if (manifest.getDataFiles().size() > 1) {
+                    dfRecord.setRunId(newRunId());
+                    if (processParts()) {
+                        writer.publishLookups();
+                    }
+                    return true;
+                }
+            }
+            if (deadline > 0) {
+                if (sourceETag == null) {
+                    sourceETag = s3.getObjectMetadata(dfRecord.getSrcBucket(), dfRecord.getSrcTarbell()).getETag();
+                }
+                resumedFrom = Checkpoint.parse(writer.getSmallObject(dfRecord.getCheckpointKey()));
+                if (resumedFrom != null && !resumedFrom.getSourceETag().equals(sourceETag)) {
+                    logger.log("Ignoring the checkpoint of a different upload of the archive");
+                    resumedFrom = null;
+                }
+                writer.setCheckpoint(resumedFrom);
+            }
+            if (manifestFile != null) {
+                final boolean resumed = resumedFrom != null && resumedFrom.getRunId() != null;
+                dfRecord.setRunId(resumed ? resumedFrom.getRunId() : newRunId());
+                writer.deferStaleObjects(keptObjects);
+            }
 
-        while ((entry = reader.getNextEntry()) != null) {
-            logger.log("Processing: " + entry.getName());
-            writer.writeEntry(reader, entry);
+            boolean verified = false;
+            try {
+                if (!convertArchive()) {
+                    return false;
+                }
+                verified = manifestFile == null || verifyAgainstManifest();
+            } finally {
+                if (manifestFile != null && !checkpointed) {
+                    finishRun(verified);
+                }
+            }
+            if (!verified) {
+                return true;
+            }
+            writer.publishLookups();
+            if (resumedFrom != null) {
+                writer.deleteObjects(Collections.singletonList(dfRecord.getCheckpointKey()));
+            }
+            return true;
+        } finally {
+            closeWriter();
         }
+    }
 
-        // Close each of the reader and writer. Ignore any errors for now.
+    /**
+     * Convert the data archive of the record.
+     *
+     * @return false if the invocation stopped at a checkpoint
+     */
+    private boolean convertArchive() throws IOException {
+        final boolean converted = processPasses();
+        stats.log(logger);
+        return converted;
+    }
+
+    /**
+     * Run the archive through the pipeline, then once more for the entries that could only be converted once a
+     * later entry had been seen.
+     *
+     * @return false if the invocation stopped at a checkpoint
+     * @throws IOException when an entry can still not be converted after the second pass
+     */
+    private boolean processPasses() throws IOException {
+        writer.setArchiveRead(false);
+        List<String> deferred = processPass(null);
+        if (checkpointed) {
+            return false;
+        }
+        if (!deferred.isEmpty()) {
+            logger.log("Reading archive again for " + deferred);
+            writer.setArchiveRead(true);
+            deferred = processPass(new HashSet<String>(deferred));
+            if (!deferred.isEmpty()) {
+                throw new IOException("Could not convert " + deferred + ", column_headers.tsv is missing");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a name for a run converting the delivery, which sets its objects apart from those of earlier runs
+     */
+    private static String newRunId() {
+        return Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    }
+
+    /**
+     * Publish the hit_data objects of the run in place of those of the delivery converted before once the run has
+     * been checked against the manifest, or remove the objects the run wrote itself when it failed or did not match,
+     * so the earlier delivery stays in place.
+     *
+     * @param verified Whether the run converted every archive and matched the manifest
+     */
+    private void finishRun(final boolean verified) throws IOException {
+        if (verified) {
+            writer.publishRun(keptObjects);
+            return;
+        }
+        final List<String> written = new ArrayList<String>();
+        synchronized (keptObjects) {
+            for (Set<String> keys : keptObjects.values()) {
+                written.addAll(keys);
+            }
+            keptObjects.clear();
+        }
+        // The next attempt starts over, with a run of its own
+        if (resumedFrom != null) {
+            written.addAll(resumedFrom.getCompletedKeys());
+            written.add(dfRecord.getCheckpointKey());
+        }
+        if (!written.isEmpty()) {
+            logger.log("Removing the " + written.size() + " objects written for the delivery");
+            writer.deleteObjects(written);
+        }
+    }
+
+    private void closeWriter() {
         try {
-            reader.close();
-        } catch (IOException e) {
-            logger.log("Error closing tar archive, continuing...");
+            writer.close();
+        } catch (InterruptedException e) {
+            logger.log("Error stopping uploader threads, ignoring...");
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Read the manifest of the delivery and check that the archives and lookup files it lists are there in full,
+     * before anything is converted. A delivery of a single archive is converted by this manager, the archives of a
+     * multi-file delivery by {@link #processParts()}.
+     *
+     * @return false if the delivery was quarantined instead
+     * @throws IOException when the manifest can not be read, lists a delivery that can not be converted, or does
+     * not match the delivery and MANIFEST_CHECK is FAIL
+     */
+    private boolean planFromManifest() throws IOException {
+        final byte[] contents;
+        try (S3Object object = s3.getObject(dfRecord.getSrcBucket(), dfRecord.getManifestKey())) {
+            contents = IOUtils.toByteArray(object.getObjectContent());
+        }
+        manifest = DataFeedManifest.parse(contents);
+        if (manifest.getDataFiles().isEmpty()) {
+            throw new IOException("Manifest " + dfRecord.getManifestKey() + " does not list any data file");
+        }
+        for (DataFeedManifest.DataFile file : manifest.getDataFiles()) {
+            if (!isArchive(file.getName())) {
+                throw new IOException("Data file " + file.getName() + " is not a .tar.gz or .zip archive");
+            }
+        }
+        logger.log("Manifest lists " + manifest.getDataFiles().size() + " data files with "
+                + manifest.getTotalRecords() + " records and " + manifest.getLookupFiles().size() + " lookup files");
+        if (manifest.getDataFiles().size() == 1) {
+            manifestFile = manifest.getDataFiles().get(0);
+            dfRecord.setDataFile(manifestFile.getName());
+        }
+
+        List<DataFeedManifest.DataFile> files = new ArrayList<DataFeedManifest.DataFile>(manifest.getDataFiles());
+        files.addAll(manifest.getLookupFiles());
+        for (DataFeedManifest.DataFile file : files) {
+            final String key = dfRecord.getSiblingKey(file.getName());
+            long size;
+            try {
+                final ObjectMetadata metadata = s3.getObjectMetadata(dfRecord.getSrcBucket(), key);
+                sourceETags.put(file.getName(), metadata.getETag());
+                size = metadata.getContentLength();
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                size = -1;
+            }
+            if (size != file.getSize()) {
+                return mismatch(size < 0 ? null : file.getName(), file.getName()
+                        + (size < 0 ? " is missing" : " has " + size + " bytes") + ", the manifest lists "
+                        + file.getSize());
+            }
+        }
+        if (manifestFile != null) {
+            sourceETag = sourceETags.get(manifestFile.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Read the lookup archives listed in the manifest, which a multi-file delivery keeps apart from hit_data, so
+     * hit_data finds column_headers.tsv and the lookups as if they were in its own archive.
+     *
+     * @return false if a lookup archive was quarantined
+     */
+    private boolean processLookupArchives() throws IOException {
+        final String dataFile = manifestFile == null ? null : manifestFile.getName();
+        for (DataFeedManifest.DataFile lookup : manifest.getLookupFiles()) {
+            if (!isArchive(lookup.getName())) {
+                continue;
+            }
+            logger.log("Reading lookup archive " + lookup.getName());
+            dfRecord.setDataFile(lookup.getName());
+            archiveMd5 = null;
+            if (!processPasses()) {
+                throw new IOException("Ran out of time reading lookup archive " + lookup.getName());
+            }
+            if (!verifyDigest(lookup, archiveMd5)) {
+                return false;
+            }
+        }
+        archiveMd5 = null;
+        if (dataFile != null) {
+            dfRecord.setDataFile(dataFile);
+        }
+        return true;
+    }
+
+    private static boolean isArchive(final String name) {
+        return name.endsWith(".tar.gz") || name.endsWith(".zip");
+    }
+
+    /**
+     * Convert the archives of a multi-file delivery concurrently, up to MAX_CONCURRENT_ARCHIVES at a time and within
+     * the memory budget. Each writes its own objects to the same partitions, and the objects left there by earlier
+     * runs are removed once all archives are done and match the manifest. Otherwise the objects of the archives are
+     * removed instead.
+     *
+     * @return false if an archive was quarantined
+     * @throws IOException when an archive could not be converted, once the archives in progress are done
+     */
+    private boolean processParts() throws IOException {
+        final List<DataFeedManifest.DataFile> files = manifest.getDataFiles();
+        if (deadline > 0) {
+            logger.log("The " + files.size() + " archives of a multi-file delivery are converted without checkpoints");
+        }
+        final List<DataFeedSplitterManager> parts = new ArrayList<DataFeedSplitterManager>();
+        for (int i = 0; i < files.size(); i++) {
+            parts.add(new DataFeedSplitterManager(this, dfRecord.forDataFile(files.get(i).getName(), i), files.get(i)));
+        }
+        final MemoryBudget shared = budget != null ? budget : MemoryBudget.fromConfig(config);
+        final long footprint = MemoryBudget.archiveFootprint(config);
+        final int slots = Math.max(1, Math.min(parts.size(), config.getMaxConcurrentArchives()));
+        final ExecutorService pool = Executors.newFixedThreadPool(slots, new DaemonThreadFactory("part"));
+        final CompletionService<Boolean> completed = new ExecutorCompletionService<Boolean>(pool);
+
+        IOException failure = null;
+        boolean verified = true;
+        int next = 0;
+        int running = 0;
         try {
-            writer.waitForAllCopyResults();
+            while (running > 0 || (next < parts.size() && failure == null)) {
+                // The first archive runs within the memory reserved for the delivery, the others reserve their own
+                while (next < parts.size() && running < slots && failure == null) {
+                    final long granted = running == 0 ? 0 : shared.tryReserve(footprint);
+                    if (running > 0 && granted == 0) {
+                        break;
+                    }
+                    final DataFeedSplitterManager part = parts.get(next++);
+                    completed.submit(() -> {
+                        try {
+                            return part.processPart();
+                        } finally {
+                            if (granted > 0) {
+                                shared.release(granted);
+                            }
+                        }
+                    });
+                    running++;
+                }
+
+                final Future<Boolean> done = completed.take();
+                running--;
+                try {
+                    verified &= done.get();
+                } catch (ExecutionException e) {
+                    logger.log("Error converting an archive of the delivery: " + e.getCause());
+                    if (failure == null) {
+                        failure = new IOException("Error converting an archive of the delivery", e.getCause());
+                    }
+                }
+            }
         } catch (InterruptedException e) {
-            logger.log("Error waiting for copy, ignoring...");
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrupted while converting the archives of the delivery", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (failure != null || !verified) {
+            finishRun(false);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (!verified) {
+            quarantined = true;
+            return false;
+        }
+
+        // The catalog is updated once, with what all archives wrote
+        final Set<String> hours = new TreeSet<String>();
+        for (DataFeedSplitterManager part : parts) {
+            if (writer.getHitDataSchema() == null) {
+                writer.setHitDataSchema(part.writer.getHitDataSchema());
+            }
+            if (part.writer.getHitDataHours() != null) {
+                hours.addAll(part.writer.getHitDataHours());
+                writer.setHitDataHours(new ArrayList<String>(hours));
+            }
+        }
+        finishRun(true);
+        logger.log("Converted " + parts.size() + " archives of the delivery");
+        return true;
+    }
+
+    /**
+     * Convert one archive of a multi-file delivery and check it against the manifest.
+     *
+     * @return false if the archive was quarantined
+     */
+    private boolean processPart() throws IOException {
+        logger.log("Converting " + dfRecord.getSrcTarbell());
+        try {
+            convertArchive();
+            return verifyAgainstManifest();
+        } finally {
+            closeWriter();
+        }
+    }
+
+    /**
+     * Check the MD5 digest of the archive and the number of hit_data records against the manifest.
+     *
+     * @return false if the delivery was quarantined
+     * @throws IOException when the delivery does not match and MANIFEST_CHECK is FAIL
+     */
+    private boolean verifyAgainstManifest() throws IOException {
+        if (!verifyDigest(manifestFile, archiveMd5)) {
+            return false;
+        }
+        final long rows = hitDataRows == null ? 0 : hitDataRows.getRows();
+        if (rows != manifestFile.getRecordCount()) {
+            return mismatch(manifestFile.getName(), manifestFile.getName() + " has " + rows
+                    + " hit_data records, the manifest lists " + manifestFile.getRecordCount());
+        }
+        logger.log("  verified " + rows + " records of " + manifestFile.getName() + " against the manifest");
+        return true;
+    }
+
+    /**
+     * @param file   An archive of the delivery as listed in the manifest
+     * @param digest The MD5 digest taken while the archive was read, or null if it was read out of order
+     * @return false if the delivery was quarantined
+     * @throws IOException when the digest does not match and MANIFEST_CHECK is FAIL
+     */
+    private boolean verifyDigest(final DataFeedManifest.DataFile file, final String digest) throws IOException {
+        String md5 = digest;
+        // A single part upload has the MD5 digest of the object as its ETag
+        final String etag = sourceETags.get(file.getName());
+        if (md5 == null && etag != null && etag.matches("[0-9a-f]{32}")) {
+            md5 = etag;
+        }
+        if (md5 == null) {
+            logger.log("  the MD5 digest of " + file.getName() + ", read out of order in parts, is not checked");
+            return true;
+        }
+        if (!md5.equals(file.getMd5())) {
+            return mismatch(file.getName(), file.getName() + " has MD5 digest " + md5 + ", the manifest lists "
+                    + file.getMd5());
+        }
+        return true;
+    }
+
+    /**
+     * @param name   The name of the file of the delivery that does not match, or null if it is missing
+     * @param reason How the delivery differs from its manifest
+     * @return false, once the delivery has been quarantined
+     * @throws IOException when MANIFEST_CHECK is FAIL
+     */
+    private boolean mismatch(final String name, final String reason) throws IOException {
+        if (config.getManifestCheck() != ManifestCheck.QUARANTINE) {
+            throw new IOException("Delivery does not match its manifest: " + reason);
+        }
+        final String prefix = dfRecord.getQuarantinePrefix();
+        logger.log("Quarantining delivery at " + prefix + ", it does not match its manifest: " + reason);
+        List<String> keys = new ArrayList<String>();
+        keys.add(dfRecord.getManifestKey());
+        if (name != null) {
+            keys.add(dfRecord.getSiblingKey(name));
+        }
+        for (String key : keys) {
+            s3.copyObject(dfRecord.getSrcBucket(), key, dfRecord.getDstBucket(),
+                    prefix + key.substring(key.lastIndexOf('/') + 1));
+        }
+        writer.putSmallObject(prefix + "reason.txt", (reason + "\n").getBytes(StandardCharsets.UTF_8));
+        quarantined = true;
+        return false;
+    }
+
+    /**
+     * @return whether the delivery did not match its manifest and was quarantined instead of being published
+     */
+    public boolean isQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * Run the archive through the pipeline once.
+     *
+     * @param only The names of the entries to process, or null to process all entries
+     * @return the names of the entries that could not be converted yet
+     */
+    private List<String> processPass(final Set<String> only) throws IOException {
+        if (dfRecord.getSrcTarbell().endsWith(".zip")) {
+            return processZipPass(only);
+        }
+        reader = new DataFeedReader(s3, dfRecord, config, stats, only);
+        if (reader.isIndexed()) {
+            logger.log("Reading archive through its gzip index");
+        }
+
+        final BlockingQueue<EntryChunk> queue = new ArrayBlockingQueue<EntryChunk>(config.getPipelineQueueDepth());
+        Thread parser = new DaemonThreadFactory("parser").newThread(() -> parseEntries(queue, only));
+        parser.start();
+
+        try {
+            List<String> deferred = writeEntries(queue);
+            if (!checkpointed && reader.saveIndex(dfRecord.getGzipIndexKey())) {
+                logger.log(" - stored gzip index at " + dfRecord.getGzipIndexKey());
+            }
+            if (!checkpointed && archiveMd5 == null) {
+                archiveMd5 = reader.getArchiveMd5();
+            }
+            return deferred;
+        } finally {
+            parser.interrupt();
+
+            // Close the reader. Ignore any errors for now.
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.log("Error closing tar archive, continuing...");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the statistics of each pipeline stage
+     */
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * The parse stage: split the tar stream into entries and hand their data to the write stage in chunks.
+     */
+    private void parseEntries(final BlockingQueue<EntryChunk> queue, final Set<String> only) {
+        try {
+            TarArchiveEntry entry;
+            while ((entry = reader.getNextEntry()) != null) {
+                if (only != null && !only.contains(entry.getName())) {
+                    continue;
+                }
+                sendEntry(queue, entry.getName(), reader::read);
+            }
+            queue.put(EntryChunk.END_OF_ARCHIVE);
+        } catch (InterruptedException e) {
+            // The write stage gave up, there is nobody left to hand data to
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            queue.clear();
+            queue.offer(EntryChunk.failed(e));
+        }
+    }
+
+    /**
+     * Hand the data of one entry to the write stage in chunks.
+     */
+    private void sendEntry(final BlockingQueue<EntryChunk> queue, final String name, final EntrySource source)
+            throws IOException, InterruptedException {
+        final StageStats parseStats = stats.stage(PipelineStats.PARSE);
+        final int chunkSize = config.getPipelineChunkSize();
+        final BufferPool pool = BufferPool.shared(config);
+        queue.put(EntryChunk.begin(name));
+
+        int filled;
+        do {
+            long start = parseStats.start();
+            byte[] chunk = pool.acquire(chunkSize);
+            filled = 0;
+            int count;
+            while (filled < chunkSize && (count = source.read(chunk, filled, chunkSize - filled)) != -1) {
+                filled += count;
+            }
+            parseStats.finish(start);
+            if (filled > 0) {
+                queue.put(EntryChunk.data(chunk, filled));
+            } else {
+                pool.release(chunk);
+            }
+        } while (filled == chunkSize);
+    }
+
+    /**
+     * Run a zip archive through the pipeline once. Every entry is fetched, decompressed and written by a pipeline of
+     * its own: the lookups and column_headers.tsv concurrently, then hit_data, which may depend on them.
+     *
+     * @param only The names of the entries to process, or null to process all entries
+     * @return the names of the entries that could not be converted yet
+     */
+    private List<String> processZipPass(final Set<String> only) throws IOException {
+        final ZipDataFeedReader zip = new ZipDataFeedReader(s3, dfRecord, config, stats);
+        final List<ZipDataFeedReader.Entry> first = new ArrayList<ZipDataFeedReader.Entry>();
+        final List<ZipDataFeedReader.Entry> last = new ArrayList<ZipDataFeedReader.Entry>();
+        for (ZipDataFeedReader.Entry entry : zip.getEntries()) {
+            if (only == null || only.contains(entry.getName())) {
+                (entry.getName().equals("hit_data.tsv") ? last : first).add(entry);
+            }
+        }
+        logger.log("Reading " + zip.getEntries().size() + " entries of the zip archive by their range");
+
+        final List<String> deferred = new ArrayList<String>(writeZipEntries(zip, first));
+        writer.setArchiveRead(true);
+        deferred.addAll(writeZipEntries(zip, last));
+        return deferred;
+    }
+
+    /**
+     * @return the names of the entries the writer could not convert yet
+     * @throws IOException when an entry could not be converted, once the others are stopped
+     */
+    private List<String> writeZipEntries(final ZipDataFeedReader zip, final List<ZipDataFeedReader.Entry> entries)
+            throws IOException {
+        if (entries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(entries.size(), config.getReaderConnections())),
+                new DaemonThreadFactory("zip-entry"));
+        final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        final List<String> deferred = new ArrayList<String>();
+        try {
+            for (ZipDataFeedReader.Entry entry : entries) {
+                results.add(pool.submit(() -> writeZipEntry(zip, entry)));
+            }
+            for (Future<List<String>> result : results) {
+                deferred.addAll(result.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading from Data Feed archive", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing entries", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return deferred;
+    }
+
+    private List<String> writeZipEntry(final ZipDataFeedReader zip, final ZipDataFeedReader.Entry entry)
+            throws IOException {
+        if (entry.isDeflated() && writer.acceptsDeflated(entry.getName())) {
+            copyDeflatedEntry(zip, entry);
+            return Collections.emptyList();
+        }
+        final BlockingQueue<EntryChunk> queue = new ArrayBlockingQueue<EntryChunk>(config.getPipelineQueueDepth());
+        Thread parser = new DaemonThreadFactory("parser").newThread(() -> {
+            try (InputStream in = zip.openEntry(entry)) {
+                sendEntry(queue, entry.getName(), in::read);
+                queue.put(EntryChunk.END_OF_ARCHIVE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                queue.clear();
+                queue.offer(EntryChunk.failed(e));
+            }
+        });
+        parser.start();
+        try {
+            return writeEntries(queue);
+        } finally {
+            parser.interrupt();
+        }
+    }
+
+    /**
+     * Upload a deflated zip entry as a gzip object without inflating and deflating it again. It is only inflated to
+     * be checked and to count its rows for the manifest.
+     */
+    private void copyDeflatedEntry(final ZipDataFeedReader zip, final ZipDataFeedReader.Entry entry)
+            throws IOException {
+        final StageStats writeStats = stats.stage(PipelineStats.WRITE);
+        final BufferPool pool = BufferPool.shared(config);
+        final byte[] buf = pool.acquire(config.getPipelineChunkSize());
+        logger.log("Processing: " + entry.getName());
+        logger.log("  copying " + entry.getCompressedSize() + " deflated bytes without recompressing them");
+        final RowCounter counter = entry.getName().equals("hit_data.tsv") && manifestFile != null
+                ? new RowCounter() : null;
+        if (counter != null) {
+            hitDataRows = counter;
+        }
+        final EntryOutput output = writer.openDeflatedEntry(entry, counter);
+        try (InputStream in = zip.openCompressedEntry(entry)) {
+            int count;
+            while ((count = in.read(buf, 0, buf.length)) != -1) {
+                long start = writeStats.start();
+                output.write(buf, 0, count);
+                writeStats.finish(start);
+            }
+        } catch (IOException | RuntimeException e) {
+            output.abort();
+            throw e;
+        } finally {
+            pool.release(buf);
+        }
+        output.close();
+    }
+
+    /**
+     * The write stage: feed each entry's chunks to its output, which compresses and uploads them.
+     *
+     * @return the names of the entries the writer could not convert yet
+     */
+    private List<String> writeEntries(final BlockingQueue<EntryChunk> queue) throws IOException {
+        final StageStats writeStats = stats.stage(PipelineStats.WRITE);
+        final BufferPool pool = BufferPool.shared(config);
+        final List<String> deferred = new ArrayList<String>();
+        EntryOutput output = null;
+        RowCounter counter = null;
+        boolean skipping = false;
+        try {
+            while (true) {
+                writeStats.sampleQueueDepth(queue.size());
+                EntryChunk chunk = queue.take();
+                long start = writeStats.start();
+
+                if (chunk.error != null) {
+                    throw new IOException("Error reading from Data Feed archive", chunk.error);
+                }
+                if (chunk.name != null || chunk == EntryChunk.END_OF_ARCHIVE) {
+                    if (output != null) {
+                        output.close();
+                        output = null;
+                    }
+                    if (chunk == EntryChunk.END_OF_ARCHIVE) {
+                        return deferred;
+                    }
+                    logger.log("Processing: " + chunk.name);
+                    counter = chunk.name.equals("hit_data.tsv") && manifestFile != null ? new RowCounter() : null;
+                    if (counter != null) {
+                        hitDataRows = counter;
+                    }
+                    output = writer.openEntry(chunk.name);
+                    skipping = output == null;
+                    if (skipping) {
+                        logger.log("  deferring " + chunk.name + " until the rest of the archive has been read");
+                        deferred.add(chunk.name);
+                    }
+                } else {
+                    if (counter != null) {
+                        counter.write(chunk.data, 0, chunk.length);
+                    }
+                    if (!skipping) {
+                        output.write(chunk.data, 0, chunk.length);
+                    }
+                    // Outputs copy what they keep, so the chunk can be filled again
+                    pool.release(chunk.data);
+
+                    if (output instanceof ChunkedEntryOutput && deadline > 0
+                            && System.currentTimeMillis() >= deadline) {
+                        ChunkedEntryOutput chunked = (ChunkedEntryOutput) output;
+                        chunked.stopAtNextRow();
+                        if (chunked.isStopped()) {
+                            saveCheckpoint(chunked.toCheckpoint(sourceETag));
+                            output = null;
+                            checkpointed = true;
+                            return deferred;
+                        }
+                    }
+                }
+                writeStats.finish(start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing entries", e);
+        } finally {
+            if (output != null) {
+                output.abort();
+            }
+        }
+    }
+
+    private void saveCheckpoint(final Checkpoint checkpoint) throws IOException {
+        // A continuation that can not get further than this one would be invoked forever
+        if (resumedFrom != null && resumedFrom.getEntry().equals(checkpoint.getEntry())
+                && resumedFrom.getEntryOffset() >= checkpoint.getEntryOffset()) {
+            throw new IOException("Made no progress on " + checkpoint.getEntry() + " since the last checkpoint, "
+                    + "increase the function timeout or CHECKPOINT_MARGIN_SECONDS");
+        }
+        logger.log("Running out of time, checkpointing " + checkpoint.getEntry() + " at byte "
+                + checkpoint.getEntryOffset() + " after " + checkpoint.getCompletedKeys().size() + " objects");
+        writer.putSmallObject(dfRecord.getCheckpointKey(), checkpoint.toByteArray());
+    }
+
+    /**
+     * Invoke this function again with the records still being processed, to carry on from their checkpoints.
+     *
+     * @param logger      The Lambda logger sent in to the parent job
+     * @param event       The event holding the records to continue
+     * @param functionArn The ARN of this function
+     */
+    public static void triggerContinuation(final LambdaLogger logger, final S3EventNotification event,
+                                           final String functionArn) {
+        logger.log("Invoking " + functionArn + " to continue from the checkpoint");
+        AWSLambdaClientBuilder.defaultClient().invoke(new InvokeRequest()
+                .withFunctionName(functionArn)
+                .withInvocationType(InvocationType.Event)
+                .withPayload(event.toJson()));
+    }
+
+    /**
+     * EntrySource reads the data of the entry being handed to the write stage.
+     */
+    private interface EntrySource {
+        int read(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    /**
+     * EntryChunk is the unit handed from the parse stage to the write stage: the start of an entry,
+     * a chunk of its data, the end of the archive or the error that stopped the parser.
+     */
+    private static class EntryChunk {
+        static final EntryChunk END_OF_ARCHIVE = new EntryChunk(null, null, 0, null);
+
+        private final String name;
+        private final byte[] data;
+        private final int length;
+        private final Throwable error;
+
+        EntryChunk(final String name, final byte[] data, final int length, final Throwable error) {
+            this.name = name;
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+
+        static EntryChunk begin(final String name) {
+            return new EntryChunk(name, null, 0, null);
+        }
+
+        static EntryChunk data(final byte[] data, final int length) {
+            return new EntryChunk(null, data, length, null);
+        }
+
+        static EntryChunk failed(final Throwable error) {
+            return new EntryChunk(null, null, 0, error);
         }
     }
 
@@ -75,8 +929,16 @@ class DataFeedSplitterManager {
      * Trigger a dependent Lambda function that will add the data created by this job to the Glue data catalog.
      * If no database or tables exist, they will be created.
      * The "hit_data" table is partitioned and the data for this Data Feed's date will be added to the partitions.
+     *
+     * An hourly feed only triggers it when it adds partitions or columns the day has not registered yet.
+     *
+     * @throws IOException when the partitions registered for the day can not be read
      */
-    public void triggerCatalogManager() {
+    public void triggerCatalogManager() throws IOException {
+        if (quarantined) {
+            logger.log("Not triggering the data catalog for a quarantined delivery");
+            return;
+        }
         final CatalogManagerTrigger catManager = LambdaInvokerFactory.builder()
                 .lambdaClient(AWSLambdaAsyncClientBuilder.defaultClient())
                 .lambdaFunctionNameResolver(new EnvironmentLambdaFunctionNameResolver())
@@ -86,8 +948,98 @@ class DataFeedSplitterManager {
         jobInput.setReportBase(dfRecord.getReportBasedDestinationURI());
         jobInput.setLookupURI(dfRecord.getLatestLookupsURI());
         jobInput.setReportDate(dfRecord.getReportDate());
+        jobInput.setHitDataFormat(config.getHitDataFormat().getPrefix());
+        DataFeedSchema hitDataSchema = writer.getHitDataSchema();
+        if (hitDataSchema != null) {
+            List<Map<String, String>> columns = new ArrayList<Map<String, String>>();
+            for (int i = 0; i < hitDataSchema.getColumnCount(); i++) {
+                Map<String, String> column = new LinkedHashMap<String, String>();
+                column.put("Name", hitDataSchema.getColumnName(i));
+                column.put("Type", hitDataSchema.getColumnType(i).getCatalogType());
+                columns.add(column);
+            }
+            jobInput.setHitDataColumns(columns);
+        }
+        jobInput.setHitDataHours(writer.getHitDataHours());
+        final byte[] registration = dfRecord.getDeliveryHour() == null ? null : registerHour(jobInput);
+        if (dfRecord.getDeliveryHour() != null && registration == null) {
+            logger.log("Hour " + dfRecord.getDeliveryHour() + " is in partitions the data catalog has, "
+                    + "not triggering it");
+            return;
+        }
 
         logger.log("Triggering data catalog lambda function " + System.getenv("CATALOG_MANAGER_LAMBDA"));
         catManager.addParts(jobInput);
+        // Only recorded once triggered, so an hour whose trigger failed is not taken as registered
+        if (registration != null) {
+            writer.putSmallObject(dfRecord.getCatalogRegistrationKey(), registration);
+        }
+    }
+
+    /**
+     * Work out whether an hourly feed adds partitions or changes the columns the data catalog has for the day.
+     * Each hour registers what it triggered the catalog for in an object of its own, so hours converted at the same
+     * time do not lose each other's registrations. The catalog has the columns of the most recent registration.
+     * New objects in partitions the catalog already has are found by Athena without updating the catalog.
+     *
+     * @param input The input of the catalog trigger, narrowed to the hour partitions that are new
+     * @return the registration of this hour, to store once the catalog has been triggered, or null if the catalog
+     * does not have to be triggered: it is for the first hour of the day, new hour partitions or columns that differ
+     * from those of the most recent registration
+     * @throws IOException when the registered partitions can not be read
+     */
+    byte[] registerHour(final CatalogManagerInput input) throws IOException {
+        final List<String> current = new ArrayList<String>();
+        if (input.getHitDataColumns() != null) {
+            for (Map<String, String> column : input.getHitDataColumns()) {
+                current.add("column\t" + column.get("Name") + "\t" + column.get("Type"));
+            }
+        }
+        final List<String> written = input.getHitDataHours() == null
+                ? Collections.<String>emptyList() : input.getHitDataHours();
+
+        final Set<String> hours = new TreeSet<String>();
+        S3ObjectSummary latest = null;
+        List<String> latestColumns = null;
+        for (S3ObjectSummary summary : writer.listObjects(dfRecord.getCatalogRegistrationPrefix())) {
+            final byte[] previous = writer.getSmallObject(summary.getKey());
+            if (previous == null) {
+                continue;
+            }
+            final List<String> columns = new ArrayList<String>();
+            for (String line : new String(previous, StandardCharsets.UTF_8).split("\n")) {
+                if (line.startsWith("hr\t")) {
+                    hours.add(line.substring(3));
+                } else if (line.startsWith("column\t")) {
+                    columns.add(line);
+                }
+            }
+            // Objects are listed in the order of their hour, which decides between those modified at the same time
+            if (latest == null || summary.getLastModified() == null || latest.getLastModified() == null
+                    || !summary.getLastModified().before(latest.getLastModified())) {
+                latest = summary;
+                latestColumns = columns;
+            }
+        }
+
+        if (current.equals(latestColumns)) {
+            if (hours.containsAll(written)) {
+                return null;
+            }
+            if (input.getHitDataHours() != null) {
+                List<String> added = new ArrayList<String>(written);
+                added.removeAll(hours);
+                input.setHitDataHours(added);
+            }
+        }
+
+        StringBuilder registration = new StringBuilder();
+        for (String hour : new TreeSet<String>(written)) {
+            registration.append("hr\t").append(hour).append('\n');
+        }
+        for (String column : current) {
+            registration.append(column).append('\n');
+        }
+        return registration.toString().getBytes(StandardCharsets.UTF_8);
     }
 }
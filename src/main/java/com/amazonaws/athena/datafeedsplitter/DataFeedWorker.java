@@ -0,0 +1,327 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataFeedWorker converts Data Feed archives outside of Lambda, for report suites whose archives do not fit its time
+ * or memory limits. It runs until it is stopped, taking S3 events from a {@link JobQueue} and converting their
+ * archives with the same {@link DataFeedSplitterManager} the Lambda function uses, without a time limit.
+ *
+ * Up to MAX_CONCURRENT_ARCHIVES archives are converted at once on one pool, sharing an S3 client, the buffer pool
+ * and MEMORY_BUDGET_MB. Archives waiting for a slot are started by a {@link FairScheduler}, so a suite with a
+ * backlog of deliveries does not hold up the others. A job is completed once all the archives of its event are
+ * converted, and failed if any of them could not be.
+ */
+class DataFeedWorker {
+    // How long to wait for a job when nothing is running, and how often to look for more while archives are
+    private static final long IDLE_WAIT_MILLIS = 20 * 1000;
+    private static final long BUSY_WAIT_MILLIS = 1000;
+
+    private final JobQueue queue;
+    private final AmazonS3 s3;
+    private final SplitterConfig config;
+    private final LambdaLogger logger;
+    private final MemoryBudget budget;
+    private final FairScheduler<Archive> scheduler = new FairScheduler<Archive>();
+    private final Set<JobState> activeJobs = Collections.newSetFromMap(new ConcurrentHashMap<JobState, Boolean>());
+    private volatile boolean stopping;
+    // The thread waiting for a job while nothing is running, which stop() wakes up
+    private Thread receiving;
+
+    /**
+     * JobState tracks the archives of a job that are not converted yet.
+     */
+    private static class JobState {
+        private final JobQueue.Job job;
+        private int remaining;
+        private boolean failed;
+        private boolean released;
+
+        JobState(final JobQueue.Job job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * Archive is the conversion of the archive of one metadata record of a job.
+     */
+    private static class Archive {
+        private final JobState job;
+        private final S3EventNotification.S3EventNotificationRecord record;
+        private final String suite;
+        private Exception error;
+
+        Archive(final JobState job, final S3EventNotification.S3EventNotificationRecord record, final String suite) {
+            this.job = job;
+            this.record = record;
+            this.suite = suite;
+        }
+    }
+
+    /**
+     * @param queue  The queue to take jobs from
+     * @param s3     An AmazonS3 client shared by all archives
+     * @param config The splitter configuration shared by all archives
+     * @param logger Where progress is logged
+     */
+    DataFeedWorker(final JobQueue queue, final AmazonS3 s3, final SplitterConfig config, final LambdaLogger logger) {
+        this.queue = queue;
+        this.s3 = s3;
+        this.config = config;
+        this.logger = logger;
+        this.budget = MemoryBudget.fromConfig(config);
+    }
+
+    /**
+     * Take jobs and convert their archives until {@link #stop()} is called. Archives already started are finished
+     * first, and jobs none of whose archives started are released to other workers.
+     *
+     * @throws InterruptedException when interrupted, leaving the jobs in progress to reappear on the queue
+     */
+    public void run() throws InterruptedException {
+        final int slots = Math.max(1, config.getMaxConcurrentArchives());
+        final ExecutorService archives = Executors.newFixedThreadPool(slots, new DaemonThreadFactory("archive"));
+        final CompletionService<Archive> completed = new ExecutorCompletionService<Archive>(archives);
+        final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("job-heartbeat"));
+        final long heartbeatSeconds = Math.max(1, config.getWorkerVisibilitySeconds() / 3);
+        heartbeat.scheduleWithFixedDelay(this::keepAlive, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+
+        int running = 0;
+        try {
+            while (!stopping || running > 0) {
+                // Keep a few archives waiting, so a slot that frees up is filled from the fairest suite
+                if (!stopping && running + scheduler.size() < 2 * slots) {
+                    final boolean idle = running == 0 && scheduler.size() == 0;
+                    takeJobs(2 * slots - running - scheduler.size(), idle ? IDLE_WAIT_MILLIS : 0);
+                }
+                if (stopping) {
+                    releaseWaiting();
+                }
+
+                Archive next;
+                while (running < slots && (next = scheduler.next()) != null) {
+                    final Archive archive = next;
+                    completed.submit(() -> convert(archive));
+                    running++;
+                }
+
+                if (running > 0) {
+                    Future<Archive> done = completed.poll(BUSY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (done != null) {
+                        running--;
+                        finish(done);
+                    }
+                }
+            }
+        } finally {
+            heartbeat.shutdownNow();
+            archives.shutdownNow();
+        }
+    }
+
+    /**
+     * Ask the worker to stop taking jobs and return from {@link #run()} once the archives in progress are done. A
+     * wait for a job in progress is cut short.
+     */
+    public void stop() {
+        stopping = true;
+        synchronized (this) {
+            if (receiving != null) {
+                receiving.interrupt();
+            }
+        }
+    }
+
+    private void takeJobs(final int max, final long waitMillis) throws InterruptedException {
+        List<JobQueue.Job> jobs;
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            receiving = Thread.currentThread();
+        }
+        try {
+            jobs = queue.receive(max, waitMillis);
+        } catch (InterruptedException e) {
+            if (stopping) {
+                return;
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            if (stopping) {
+                return;
+            }
+            logger.log("Error taking jobs from the queue, trying again: " + e);
+            Thread.sleep(BUSY_WAIT_MILLIS);
+            return;
+        } finally {
+            synchronized (this) {
+                receiving = null;
+                // An interrupt from stop() only ends the wait for a job, not the archives in progress
+                if (stopping) {
+                    Thread.interrupted();
+                }
+            }
+        }
+        for (JobQueue.Job job : jobs) {
+            JobState state = new JobState(job);
+            // S3 also sends test events without records
+            final List<S3EventNotification.S3EventNotificationRecord> records =
+                    job.getEvent().getRecords() == null
+                            ? Collections.<S3EventNotification.S3EventNotificationRecord>emptyList()
+                            : job.getEvent().getRecords();
+            for (S3EventNotification.S3EventNotificationRecord record : records) {
+                final DataFeedRecord dfRecord = DataFeedRecord.newFromRecord(record);
+                if (dfRecord.isMetadataFile()) {
+                    scheduler.add(dfRecord.getReportName(), new Archive(state, record, dfRecord.getReportName()));
+                    state.remaining++;
+                }
+            }
+            if (state.remaining == 0) {
+                acknowledge(state);
+            } else {
+                activeJobs.add(state);
+            }
+        }
+    }
+
+    /**
+     * @return the archive, with the error that stopped its conversion if any
+     */
+    private Archive convert(final Archive archive) throws InterruptedException {
+        final String key = archive.record.getS3().getObject().getKey();
+        final LambdaLogger archiveLogger = line -> logger.log("[" + key + "] " + line);
+        final long granted = budget.reserve(MemoryBudget.archiveFootprint(config));
+        try {
+            DataFeedSplitterManager manager = new DataFeedSplitterManager(archiveLogger, s3, config, archive.record);
+            manager.setMemoryBudget(budget);
+            // Without a remaining time, the archive is converted in one go
+            if (!manager.processAllEntries()) {
+                throw new IOException("Conversion of " + key + " stopped at a checkpoint");
+            }
+            manager.triggerCatalogManager();
+        } catch (IOException | RuntimeException e) {
+            archive.error = e;
+        } finally {
+            budget.release(granted);
+        }
+        return archive;
+    }
+
+    private void finish(final Future<Archive> done) throws InterruptedException {
+        final Archive archive;
+        try {
+            archive = done.get();
+        } catch (ExecutionException e) {
+            // Conversion errors are kept in the archive, anything else is a bug of the worker
+            throw new IllegalStateException("Archive task failed", e.getCause());
+        }
+        scheduler.done(archive.suite);
+        final JobState state = archive.job;
+        if (archive.error != null) {
+            logger.log("Error converting " + archive.record.getS3().getObject().getKey() + ": " + archive.error);
+            archive.error.printStackTrace();
+            state.failed = true;
+        }
+        if (--state.remaining == 0) {
+            activeJobs.remove(state);
+            acknowledge(state);
+        }
+    }
+
+    private void acknowledge(final JobState state) {
+        try {
+            if (state.failed) {
+                queue.fail(state.job);
+            } else if (state.released) {
+                queue.release(state.job);
+            } else {
+                queue.complete(state.job);
+                logger.log("Completed job " + state.job.getId());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log("Error acknowledging job " + state.job.getId() + ", it will be delivered again: " + e);
+        }
+    }
+
+    /**
+     * Hand the archives that have not started back to the queue, along with their jobs once nothing of them runs.
+     */
+    private void releaseWaiting() {
+        for (Archive archive : scheduler.drain()) {
+            archive.job.released = true;
+            if (--archive.job.remaining == 0) {
+                activeJobs.remove(archive.job);
+                acknowledge(archive.job);
+            }
+        }
+    }
+
+    private void keepAlive() {
+        for (JobState state : activeJobs) {
+            try {
+                queue.keepAlive(state.job);
+            } catch (IOException | RuntimeException e) {
+                logger.log("Error keeping job " + state.job.getId() + " alive: " + e);
+            }
+        }
+    }
+
+    /**
+     * @param config The splitter configuration naming the queue
+     * @return the queue of WORKER_QUEUE: an SQS queue for an https URL, otherwise a directory
+     */
+    static JobQueue openQueue(final SplitterConfig config) {
+        final String name = config.getWorkerQueue();
+        if (name == null) {
+            throw new RuntimeException("WORKER_QUEUE must name an SQS queue URL or a directory of S3 event files");
+        }
+        if (name.startsWith("https://")) {
+            return new SqsJobQueue(AmazonSQSClientBuilder.defaultClient(), name, config.getWorkerVisibilitySeconds());
+        }
+        return new DirectoryJobQueue(new File(name));
+    }
+
+    /**
+     * Run a worker configured from the environment until the process is terminated.
+     *
+     * @param args Not used
+     * @throws InterruptedException when interrupted
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        SplitterConfig config = SplitterConfig.fromEnvironment();
+        final DataFeedWorker worker = new DataFeedWorker(openQueue(config), AmazonS3ClientBuilder.defaultClient(),
+                config, LambdaRuntime.getLogger());
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            worker.stop();
+            try {
+                main.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        worker.run();
+    }
+}
@@ -2,154 +2,576 @@ package com.amazonaws.athena.datafeedsplitter;
 
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.*;
-import com.amazonaws.services.s3.transfer.Copy;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.IOUtils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
-
-import static com.amazonaws.athena.datafeedsplitter.LambdaHandler.BUFFER;
-import static com.amazonaws.athena.datafeedsplitter.LambdaHandler.PART_MINIMUM;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 /**
  * DataFeedWriter is a wrapper for the logic that writes individual files of the Data Feed file to S3.
  * It is responsible for determining if the files can be uploaded in one shot, or if we need to switch
  * to a multi-part upload in order to extract the files without writing to disk.
  *
- * It is also responsible for determining if the lookup files need to be copied to "latest lookups" location,
- * as well as performing the copy.
+ * Lookup files go to the content-addressed {@link LookupStore}, which also maintains the "latest lookups"
+ * pointers of the report suite.
  */
 class DataFeedWriter {
-    private TransferManager tm;
-    private List<Copy> copyResults;
-    private List<PartETag> partETags;
+    private MultipartUploadEngine uploader;
+    private ExecutorService compressors;
+    private SplitterConfig config;
+    private PipelineStats stats;
     private LambdaLogger logger;
     private AmazonS3 s3;
     private DataFeedRecord df;
+    private LookupStore lookupStore;
+    private volatile DataFeedSchema schema;
+    private volatile DataFeedSchema hitDataSchema;
+    private volatile List<String> hitDataHours;
+    private volatile boolean archiveRead;
+    private volatile Checkpoint checkpoint;
+    private Map<String, Set<String>> keptObjects;
+    private final Map<String, LookupMap> lookups = new ConcurrentHashMap<String, LookupMap>();
+
+    // Maximum number of keys accepted by a single DeleteObjects request
+    static private final int DELETE_BATCH_SIZE = 1000;
 
-    static private final int MULTIPART_THRESHOLD = PART_MINIMUM * 4;
+    // Largest object a single CopyObject request can copy, larger ones are copied in parts
+    static private final long COPY_MAXIMUM = 5L * 1024 * 1024 * 1024;
+    static private final long COPY_PART_SIZE = 512L * 1024 * 1024;
 
-    public DataFeedWriter(final LambdaLogger logger, final AmazonS3 s3, final DataFeedRecord df) {
+    public DataFeedWriter(final LambdaLogger logger, final AmazonS3 s3, final DataFeedRecord df,
+                          final SplitterConfig config, final PipelineStats stats) {
         /*
         DataFeedWriter uses an in-memory byte array in order to transfer files to S3 without writing intermediary
         data out to disk. This is primarily due to the 500MB disk limit in AWS Lambda.
 
-        Files are written in Gzip format and certain files are duplicated as they are "lookup" files.
+        Files are written in Gzip format. Lookup files are only stored when their contents are new.
+        Multipart parts are sent by a pool of uploader threads while the next part is being read and compressed.
+        Gzip blocks are deflated in parallel by a second pool so compression scales with the available cores.
         */
-        tm = TransferManagerBuilder.standard().withS3Client(s3).build();
-        copyResults = new ArrayList<Copy>();
-        partETags = new ArrayList<PartETag>();
+        uploader = new MultipartUploadEngine(logger, s3, config, stats.stage(PipelineStats.UPLOAD));
+        compressors = Executors.newFixedThreadPool(
+                config.getCompressionThreads(),
+                new DaemonThreadFactory("compressor")
+        );
+        this.config = config;
+        this.stats = stats;
         this.logger = logger;
         this.s3 = s3;
         this.df = df;
+        this.lookupStore = new LookupStore(this, df);
     }
 
-    public void writeEntry(final DataFeedReader reader, final TarArchiveEntry entry) throws IOException {
-        // Flag and instance for multi-part upload requests
-        boolean multiPartRequired = false;
-        InitiateMultipartUploadResult multipartUpload = null;
+    /**
+     * @param basename The name of the entry in the Data Feed archive
+     * @return an output that uploads the entry to its converted location, or to the lookup store for lookup
+     *         files. Returns null when the entry can not be
+     *         converted yet because it depends on an entry that comes later in the archive.
+     * @throws IOException when the output can not be started
+     */
+    public EntryOutput openEntry(final String basename) throws IOException {
+        if (basename.equals("column_headers.tsv")) {
+            return new CapturingEntryOutput(
+                    new GzipObjectOutput(this, df.getDstKeyForBasename(basename), null),
+                    headers -> schema = DataFeedSchema.fromColumnHeaders(headers, headers.length)
+            );
+        }
+        if (basename.equals("hit_data.tsv")) {
+            return openHitData(basename);
+        }
+        if (config.isDenormalizeLookups() && LookupDenormalizer.LOOKUP_COLUMNS.containsValue(basename)) {
+            return new CapturingEntryOutput(
+                    new LookupEntryOutput(lookupStore, basename, newSpillBuffer()),
+                    data -> lookups.put(basename, LookupMap.parse(data, data.length))
+            );
+        }
+        return new LookupEntryOutput(lookupStore, basename, newSpillBuffer());
+    }
 
-        byte[] data = new byte[BUFFER];
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        GZIPOutputStream outputStream = new GZIPOutputStream(byteOut);
-        int readCount;
+    /**
+     * @param checkpoint The checkpoint a chunked entry carries on from, may be null
+     */
+    public void setCheckpoint(final Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
 
-        // For easy reference, create local variables for our destination bucket and key
-        String dstBucket = df.getDstBucket();
-        String dstKey = df.getDstKeyForBasename(entry.getName());
+    /**
+     * @param delivery The writer of the delivery this archive is a part of, which has read its lookup archives
+     *
+     * inheritEntries makes column_headers.tsv and the lookups read by the delivery available to hit_data.
+     */
+    public void inheritEntries(final DataFeedWriter delivery) {
+        schema = delivery.schema;
+        lookups.putAll(delivery.lookups);
+    }
 
-        // Read all bytes from the reader
-        while ((readCount = reader.read(data, 0, BUFFER)) != -1) {
-            outputStream.write(data, 0, readCount);
+    /**
+     * @param kept The keys to keep under each prefix, shared by the writers of all archives of a delivery
+     *
+     * deferStaleObjects collects the hit_data objects written instead of removing stale ones right away, so the
+     * archives of a delivery do not remove each other's objects. The delivery removes stale objects once all are done.
+     */
+    public void deferStaleObjects(final Map<String, Set<String>> kept) {
+        keptObjects = kept;
+    }
 
-            // If we reach the threshold of multi-part uploads (+ some buffer), create a new instance
-            if (!multiPartRequired && byteOut.size() > MULTIPART_THRESHOLD) {
-                logger.log("  " + entry.getName() + " - enabling multi-part upload");
-                multiPartRequired = true;
-                multipartUpload = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(dstBucket, dstKey));
+    /**
+     * @param read Whether every entry of the archive has been read once, so entries waiting for entries that the
+     *             archive does not hold can go ahead without them. Cleared before the next archive is read.
+     */
+    public void setArchiveRead(final boolean read) {
+        archiveRead = read;
+    }
+
+    private EntryOutput openHitData(final String basename) throws IOException {
+        final boolean rows = config.getHitDataFormat() != HitDataFormat.TSV || config.isPartitionByHour()
+                || config.isDenormalizeLookups();
+        // Rows, typed columns and sidecar indexes need the columns listed in column_headers.tsv
+        if (schema == null && (rows || config.isSidecarIndex())) {
+            return null;
+        }
+        if (config.isDenormalizeLookups() && !archiveRead && !lookups.keySet().containsAll(neededLookups())) {
+            return null;
+        }
+        if (rows) {
+            return new RowEntryOutput(
+                    this,
+                    df,
+                    basename,
+                    schema,
+                    config.getHitDataFormat(),
+                    config.getHitDataChunkSize()
+            );
+        }
+        // Hourly feeds, the archives of a multi-file delivery and runs checked against a manifest each need objects
+        // of their own, so they are chunked
+        if (config.getHitDataChunkSize() > 0 || df.needsOwnObjects()) {
+            Checkpoint resume = checkpoint != null && checkpoint.getEntry().equals(basename) ? checkpoint : null;
+            if (resume != null) {
+                logger.log("  resuming " + basename + " at byte " + resume.getEntryOffset() + ", chunk "
+                        + resume.getNextChunk());
             }
+            final long targetSize = config.getHitDataChunkSize() > 0 ? config.getHitDataChunkSize() : Long.MAX_VALUE;
+            return new ChunkedEntryOutput(this, df, basename, targetSize, resume);
+        }
+        return new GzipObjectOutput(this, df.getDstKeyForBasename(basename), null, newSidecarIndex());
+    }
 
-            // If we're multi-part and we need to upload some data, do so
-            if (multiPartRequired && byteOut.size() > MULTIPART_THRESHOLD) {
-                uploadPart(dstKey, byteOut, multipartUpload.getUploadId());
+    /**
+     * @param basename The name of the entry in the Data Feed archive
+     * @return true if the entry is uploaded as one gzip object with its rows unchanged, so data that is already
+     *         deflated can be copied as is through openDeflatedEntry
+     */
+    public boolean acceptsDeflated(final String basename) {
+        return basename.equals("hit_data.tsv") && config.getHitDataFormat() == HitDataFormat.TSV
+                && !config.isPartitionByHour() && !config.isDenormalizeLookups() && !config.isSidecarIndex()
+                && config.getHitDataChunkSize() == 0 && !df.sharesPartitions();
+    }
+
+    /**
+     * @param entry The deflated zip entry, whose name acceptsDeflated
+     * @param rows  Counts the rows of the entry as it is checked, may be null
+     * @return an output that uploads the raw deflated data written to it as the converted gzip object, once it has
+     *         been checked against the CRC-32 and sizes of the entry
+     * @throws IOException when the output can not be started
+     */
+    public EntryOutput openDeflatedEntry(final ZipDataFeedReader.Entry entry, final RowCounter rows)
+            throws IOException {
+        if (df.needsOwnObjects()) {
+            return new DeflatedObjectOutput(this, df.getDstKeyForChunk(entry.getName(), 0),
+                    df.getDstPartitionPrefix(entry.getName()), entry, rows);
+        }
+        return new DeflatedObjectOutput(this, df.getDstKeyForBasename(entry.getName()), null, entry, rows);
+    }
+
+    /**
+     * @return the lookup files the id columns of hit_data refer to
+     */
+    private Set<String> neededLookups() {
+        Set<String> needed = new HashSet<String>();
+        for (Map.Entry<String, String> column : LookupDenormalizer.LOOKUP_COLUMNS.entrySet()) {
+            if (schema.indexOf(column.getKey()) != -1) {
+                needed.add(column.getValue());
             }
         }
+        return needed;
+    }
 
-        // Close our output stream and either write the entire buffer (if small enough) or the last multi-part upload.
-        outputStream.close();
-        if (multiPartRequired) {
-            uploadPart(dstKey, byteOut, multipartUpload.getUploadId());
-            logger.log("  " + entry.getName() + " - completing multi-part upload with " + partETags.size() + " parts");
-            CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(
-                    dstBucket,
-                    dstKey,
-                    multipartUpload.getUploadId(),
-                    partETags
-            );
-            s3.completeMultipartUpload(compRequest);
-        } else {
-            oneShot(byteOut, dstKey);
+    /**
+     * @param headers The columns listed in column_headers.tsv
+     * @return a denormalizer resolving the lookup ids of hit_data, or null if denormalization is not enabled
+     */
+    LookupDenormalizer newDenormalizer(final DataFeedSchema headers) {
+        if (!config.isDenormalizeLookups()) {
+            return null;
+        }
+        Set<String> missing = neededLookups();
+        missing.removeAll(lookups.keySet());
+        if (!missing.isEmpty()) {
+            logger.log("  the archive has no " + missing + ", their names are left empty");
         }
+        return new LookupDenormalizer(headers, lookups);
+    }
 
-        copyIfLookupFile(entry.getName());
+    /**
+     * @return a new index for a gzip TSV hit_data object, or null if sidecar indexes are not enabled
+     */
+    SidecarIndex newSidecarIndex() {
+        if (!config.isSidecarIndex()) {
+            return null;
+        }
+        return new SidecarIndex(
+                schema,
+                config.getSidecarRangeColumns(),
+                config.getSidecarBloomFilterColumns(),
+                config.getSidecarBloomFilterEntries()
+        );
     }
 
-    public void waitForAllCopyResults() throws InterruptedException {
-        for (Copy copyResult : copyResults) {
-            copyResult.waitForCopyResult();
+    /**
+     * @return a new buffer that spills to the spill directory past the lookup memory budget
+     */
+    SpillBuffer newSpillBuffer() {
+        return new SpillBuffer(new File(config.getSpillDirectory()), config.getMaxInMemoryLookupBytes());
+    }
+
+    /**
+     * Point the latest lookups at the lookup files of this Data Feed once all entries are written.
+     * @throws IOException when the pointers can not be updated
+     */
+    public void publishLookups() throws IOException {
+        lookupStore.publish();
+    }
+
+    /**
+     * Release the compression and uploader threads once all uploads have completed.
+     */
+    public void close() throws InterruptedException {
+        compressors.shutdown();
+        uploader.shutdown();
+    }
+
+    /**
+     * @return the typed schema hit_data was converted with, or null if it was not converted to a columnar format
+     */
+    public DataFeedSchema getHitDataSchema() {
+        return hitDataSchema;
+    }
+
+    /**
+     * @return the hour partitions hit_data was written to, or null if it was not partitioned by hour
+     */
+    public List<String> getHitDataHours() {
+        return hitDataHours;
+    }
+
+    void setHitDataSchema(final DataFeedSchema typed) {
+        hitDataSchema = typed;
+    }
+
+    void setHitDataHours(final List<String> hours) {
+        hitDataHours = hours;
+    }
+
+    /**
+     * @param basename The name of the entry in the Data Feed archive
+     * @return the column types the entry was converted with on earlier days, by column name
+     * @throws IOException when the column types can not be read
+     */
+    Map<String, ColumnType> loadColumnTypes(final String basename) throws IOException {
+        byte[] file = getSmallObject(df.getColumnTypesKey(config.getHitDataFormat(), basename));
+        if (file == null) {
+            return Collections.emptyMap();
         }
+        return DataFeedSchema.parseColumnTypesFile(file);
     }
 
-    private void copyIfLookupFile(final String basename) {
-        if (!basename.equals("hit_data.tsv") && !basename.equals("column_headers.tsv")) {
-            Copy copy = tm.copy(
-                    df.getDstBucket(),
-                    df.getDstKeyForBasename(basename),
-                    df.getDstBucket(),
-                    df.getLookupKeyForBasename(basename)
-            );
-            copyResults.add(copy);
+    /**
+     * @param basename The name of the entry in the Data Feed archive
+     * @param typed    The schema the entry is converted with
+     * @param known    The column types loaded by {@link #loadColumnTypes(String)}
+     *
+     * saveColumnTypes records the column types, if new columns were typed, so later days keep the same types.
+     */
+    void saveColumnTypes(final String basename, final DataFeedSchema typed, final Map<String, ColumnType> known) {
+        hitDataSchema = typed;
+        if (known.keySet().containsAll(typed.getColumnNames())) {
+            return;
         }
+
+        // Columns missing from today's feed keep their type for the days that still have them
+        Map<String, ColumnType> merged = new LinkedHashMap<String, ColumnType>(known);
+        for (int i = 0; i < typed.getColumnCount(); i++) {
+            merged.put(typed.getColumnName(i), typed.getColumnType(i));
+        }
+        DataFeedSchema stored = new DataFeedSchema(
+                new ArrayList<String>(merged.keySet()),
+                new ArrayList<ColumnType>(merged.values())
+        );
+
+        putSmallObject(df.getColumnTypesKey(config.getHitDataFormat(), basename), stored.toColumnTypesFile());
     }
 
     /**
-     * @param dstKey The S3 key of the file to upload to
-     * @param outputStream A stream of bytes to be written to the uploader
-     * @param uploadId The previously generated ID of the Multipart Request
+     * @param key The key of the object in the destination bucket
+     * @return the contents of the object, or null if it does not exist
+     * @throws IOException when the object can not be read
+     */
+    byte[] getSmallObject(final String key) throws IOException {
+        try (S3Object object = s3.getObject(df.getDstBucket(), key)) {
+            return IOUtils.toByteArray(object.getObjectContent());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param key      The key of the object in the destination bucket
+     * @param contents The contents of the object
+     */
+    void putSmallObject(final String key, final byte[] contents) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contents.length);
+        logger.log(" - uploading to " + key);
+        s3.putObject(df.getDstBucket(), key, new ByteArrayInputStream(contents), metadata);
+    }
+
+    /**
+     * @param prefix The prefix to clean up
+     * @param keep   The keys under the prefix that were written by this run
+     *
+     * deleteStaleObjects removes the objects under a prefix that were left there by an earlier run.
+     */
+    void deleteStaleObjects(final String prefix, final Collection<String> keep) {
+        deleteStaleObjects(prefix, keep, key -> true);
+    }
+
+    /**
+     * @param prefix The partition prefix to clean up
+     * @param keep   The hit_data objects under the prefix that were written by this run
      *
-     * uploadPart uploads a chunk of an S3 multipart upload.
-     * In addition, it will also reset the ByteArrayOutputStream that is passed to to it.
+     * deleteStaleDataObjects removes the hit_data objects under a prefix that were left there by an earlier run of
+     * the same delivery, leaving those of the other hours of an hourly feed, see
+     * {@link DataFeedRecord#replacesObject(String)}.
      */
-    private void uploadPart(final String dstKey, final ByteArrayOutputStream outputStream, final String uploadId) {
-        long partSize = outputStream.size();
-        int partNumber = partETags.size() + 1;
+    void deleteStaleDataObjects(final String prefix, final Collection<String> keep) {
+        if (keptObjects != null) {
+            synchronized (keptObjects) {
+                keptObjects.computeIfAbsent(prefix, p -> new HashSet<String>()).addAll(keep);
+            }
+            return;
+        }
+        deleteStaleObjects(prefix, keep, df::replacesObject);
+    }
 
-        logger.log("  (" + partNumber + ") - " + dstKey);
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
-        UploadPartRequest uploadPartRequest = new UploadPartRequest()
+    /**
+     * @param kept The keys to keep under each prefix, as collected since {@link #deferStaleObjects(Map)}
+     *
+     * deleteStaleDataObjects removes the hit_data objects left under each prefix by an earlier run, once the objects
+     * written instead have been checked.
+     */
+    void deleteStaleDataObjects(final Map<String, Set<String>> kept) {
+        for (Map.Entry<String, Set<String>> prefix : kept.entrySet()) {
+            deleteStaleObjects(prefix.getKey(), prefix.getValue(), df::replacesObject);
+        }
+    }
+
+    /**
+     * @param kept The keys a run wrote under each prefix, as collected since {@link #deferStaleObjects(Map)}
+     * @throws IOException when an object of the run is missing or could not be copied
+     *
+     * publishRun copies the objects of a run that has been checked against its manifest to the names Athena reads,
+     * see {@link DataFeedRecord#getPublishedKey(String)}. It then removes the objects of the earlier run, along with
+     * those of the run itself and of runs that were stopped before they were published.
+     */
+    void publishRun(final Map<String, Set<String>> kept) throws IOException {
+        final Map<String, Long> staged = new LinkedHashMap<String, Long>();
+        final Map<String, Set<String>> published = new LinkedHashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> prefix : kept.entrySet()) {
+            final Map<String, Long> sizes = new HashMap<String, Long>();
+            for (S3ObjectSummary summary : listObjects(prefix.getKey())) {
+                sizes.put(summary.getKey(), summary.getSize());
+            }
+            final Set<String> keys = new HashSet<String>();
+            for (String key : prefix.getValue()) {
+                if (!sizes.containsKey(key)) {
+                    throw new IOException("Object " + key + " of run " + df.getRunId() + " is missing");
+                }
+                staged.put(key, sizes.get(key));
+                keys.add(DataFeedRecord.getPublishedKey(key));
+            }
+            published.put(prefix.getKey(), keys);
+        }
+
+        final ExecutorService publishers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(staged.size(), config.getUploadThreads())), new DaemonThreadFactory("publisher"));
+        try {
+            List<Future<?>> copies = new ArrayList<Future<?>>();
+            for (Map.Entry<String, Long> object : staged.entrySet()) {
+                copies.add(publishers.submit(() -> publishObject(object.getKey(), object.getValue())));
+            }
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Error publishing run " + df.getRunId(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while publishing run " + df.getRunId(), e);
+        } finally {
+            publishers.shutdownNow();
+        }
+        logger.log("  published " + staged.size() + " objects of run " + df.getRunId());
+        deleteStaleDataObjects(published);
+    }
+
+    /**
+     * @param key  The key of an object of the run
+     * @param size The size of the object, which decides whether it is copied in one request or in parts
+     */
+    private void publishObject(final String key, final long size) {
+        final String bucket = df.getDstBucket();
+        final String target = DataFeedRecord.getPublishedKey(key);
+        if (size <= COPY_MAXIMUM) {
+            s3.copyObject(bucket, key, bucket, target);
+            return;
+        }
+        final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, target,
+                s3.getObjectMetadata(bucket, key))).getUploadId();
+        try {
+            List<PartETag> parts = new ArrayList<PartETag>();
+            for (long first = 0; first < size; first += COPY_PART_SIZE) {
+                parts.add(s3.copyPart(new CopyPartRequest()
+                        .withSourceBucketName(bucket).withSourceKey(key)
+                        .withDestinationBucketName(bucket).withDestinationKey(target)
+                        .withUploadId(uploadId).withPartNumber(parts.size() + 1)
+                        .withFirstByte(first).withLastByte(Math.min(size, first + COPY_PART_SIZE) - 1)).getPartETag());
+            }
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, target, uploadId, parts));
+        } catch (RuntimeException e) {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, target, uploadId));
+            throw e;
+        }
+    }
+
+    private void deleteStaleObjects(final String prefix, final Collection<String> keep,
+                                    final Predicate<String> replaced) {
+        Set<String> keepKeys = new HashSet<String>(keep);
+        List<String> stale = new ArrayList<String>();
+        for (String key : listKeys(prefix)) {
+            if (!keepKeys.contains(key) && replaced.test(key)) {
+                stale.add(key);
+            }
+        }
+
+        if (!stale.isEmpty()) {
+            logger.log("  removing " + stale.size() + " stale objects from " + prefix);
+            deleteObjects(stale);
+        }
+    }
+
+    /**
+     * @param prefix The prefix to list
+     * @return the keys of the objects under the prefix in the destination bucket
+     */
+    List<String> listKeys(final String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (S3ObjectSummary summary : listObjects(prefix)) {
+            keys.add(summary.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * @param prefix The prefix to list
+     * @return the objects under the prefix in the destination bucket, with their sizes and modification times
+     */
+    List<S3ObjectSummary> listObjects(final String prefix) {
+        List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
                 .withBucketName(df.getDstBucket())
-                .withKey(dstKey)
-                .withPartNumber(partNumber)
-                .withUploadId(uploadId)
-                .withInputStream(inputStream)
-                .withPartSize(partSize);
-        UploadPartResult uploadPartResult = s3.uploadPart(uploadPartRequest);
-        partETags.add(uploadPartResult.getPartETag());
-        outputStream.reset();
-    }
-
-    private void oneShot(final ByteArrayOutputStream byteOut, final String dstKey) {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(byteOut.toByteArray());
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentLength(byteOut.size());
-        logger.log(" - uploading to " + dstKey);
-        s3.putObject(new PutObjectRequest(df.getDstBucket(), dstKey, inputStream, metadata));
+                .withPrefix(prefix);
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(request);
+            objects.addAll(result.getObjectSummaries());
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return objects;
+    }
+
+    /**
+     * @param keys The keys to delete from the destination bucket
+     */
+    void deleteObjects(final List<String> keys) {
+        for (int start = 0; start < keys.size(); start += DELETE_BATCH_SIZE) {
+            List<String> batch = keys.subList(start, Math.min(keys.size(), start + DELETE_BATCH_SIZE));
+            s3.deleteObjects(new DeleteObjectsRequest(df.getDstBucket())
+                    .withKeys(batch.toArray(new String[0]))
+                    .withQuiet(true));
+        }
+    }
+
+    LambdaLogger getLogger() {
+        return logger;
+    }
+
+    AmazonS3 getS3() {
+        return s3;
+    }
+
+    String getDstBucket() {
+        return df.getDstBucket();
+    }
+
+    SplitterConfig getConfig() {
+        return config;
+    }
+
+    PipelineStats getStats() {
+        return stats;
+    }
+
+    MultipartUploadEngine getUploader() {
+        return uploader;
+    }
+
+    ExecutorService getCompressors() {
+        return compressors;
+    }
+
+    BufferPool getBufferPool() {
+        return BufferPool.shared(config);
     }
 }
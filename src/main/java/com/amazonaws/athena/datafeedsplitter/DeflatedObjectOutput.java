@@ -0,0 +1,142 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * DeflatedObjectOutput uploads a raw deflate stream, compressed before it reached the splitter, as a gzip S3 object.
+ *
+ * The bytes written to it are the deflated data of a zip entry. They are framed with a gzip header and a trailer
+ * built from the CRC-32 and size listed in the central directory, so the entry is converted without being inflated
+ * and deflated again.
+ *
+ * The data is still inflated as it passes, which costs far less than deflating it, to check it against the central
+ * directory before the trailer vouches for it and to count its rows for the manifest. An entry whose length, size or
+ * CRC-32 does not match is not uploaded.
+ *
+ * When the object is one of several in its partition, the objects left there by an earlier run are removed once it
+ * is uploaded, as {@link ChunkedEntryOutput} does.
+ */
+class DeflatedObjectOutput extends EntryOutput {
+    // Size of the buffer the data is inflated into to be checked
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final DataFeedWriter writer;
+    private final S3ObjectOutput object;
+    private final String partitionPrefix;
+    private final ZipDataFeedReader.Entry entry;
+    private final RowCounter rows;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 checksum = new CRC32();
+    private final byte[] inflated = new byte[INFLATE_BUFFER_SIZE];
+    private long compressedBytes;
+    private long inflatedBytes;
+    private boolean closed;
+
+    /**
+     * @param writer          The writer providing the S3 client, uploader and configuration
+     * @param dstKey          The key of the object to write in the destination bucket
+     * @param partitionPrefix The prefix of the partition to remove stale objects from, or null if the object
+     *                        replaces the earlier one in place
+     * @param entry           The deflated zip entry, whose CRC-32 and sizes the data is checked against
+     * @param rows            Counts the rows of the entry, may be null
+     * @throws IOException when the gzip header can not be written
+     */
+    DeflatedObjectOutput(final DataFeedWriter writer, final String dstKey, final String partitionPrefix,
+                         final ZipDataFeedReader.Entry entry, final RowCounter rows) throws IOException {
+        this.writer = writer;
+        this.partitionPrefix = partitionPrefix;
+        this.entry = entry;
+        this.rows = rows;
+        this.object = new S3ObjectOutput(writer, dstKey, null);
+        object.write(ParallelGzipOutputStream.GZIP_HEADER);
+    }
+
+    public String getKey() {
+        return object.getKey();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        object.write(buf, offset, length);
+        compressedBytes += length;
+        inflater.setInput(buf, offset, length);
+        inflate();
+    }
+
+    /**
+     * Inflate all input given so far, so the inflater no longer needs the buffer it came in.
+     */
+    private void inflate() throws IOException {
+        try {
+            int count;
+            while ((count = inflater.inflate(inflated)) > 0) {
+                checksum.update(inflated, 0, count);
+                inflatedBytes += count;
+                if (rows != null) {
+                    rows.write(inflated, 0, count);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Entry " + entry.getName() + " is corrupt: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Check the data against the central directory, then write the gzip trailer and upload what remains of the
+     * object.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // An inflater without the zlib wrapper may need a byte past the end of the deflate stream
+            if (!inflater.finished() && inflater.needsInput()) {
+                inflater.setInput(new byte[1]);
+                inflate();
+            }
+            if (compressedBytes != entry.getCompressedSize() || !inflater.finished()
+                    || inflatedBytes != entry.getSize() || checksum.getValue() != entry.getCrc()) {
+                throw new IOException("Entry " + entry.getName() + " is corrupt: " + compressedBytes
+                        + " deflated bytes inflate to " + inflatedBytes + " bytes with CRC32 "
+                        + Long.toHexString(checksum.getValue()) + ", the central directory lists "
+                        + entry.getCompressedSize() + " deflated bytes of " + entry.getSize()
+                        + " bytes with CRC32 " + Long.toHexString(entry.getCrc()));
+            }
+            // The trailer holds the size modulo 2^32, as gzip does for inputs of 4GB and more
+            byte[] trailer = new byte[8];
+            ParallelGzipOutputStream.writeIntLE(trailer, 0, entry.getCrc());
+            ParallelGzipOutputStream.writeIntLE(trailer, 4, entry.getSize());
+            object.write(trailer);
+        } catch (IOException | RuntimeException e) {
+            object.abort();
+            throw e;
+        } finally {
+            inflater.end();
+        }
+        object.close();
+        if (partitionPrefix != null) {
+            writer.deleteStaleDataObjects(partitionPrefix, Collections.singletonList(object.getKey()));
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+        }
+        object.abort();
+    }
+}
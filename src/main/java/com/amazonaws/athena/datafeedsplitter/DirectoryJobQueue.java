@@ -0,0 +1,102 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.event.S3EventNotification;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DirectoryJobQueue takes jobs from a directory of S3 event files named *.json, for running a worker without SQS and
+ * for tests. Several workers can share the directory.
+ *
+ * A job is taken by renaming its file to *.json.taken, which only one worker can do, and completed by deleting it.
+ * A failed job is renamed to *.json.failed for someone to look at, and a released one back to *.json. The files of
+ * jobs taken by a worker that died stay taken until they are renamed back by hand.
+ */
+class DirectoryJobQueue implements JobQueue {
+    private static final String SUFFIX = ".json";
+    private static final String TAKEN = ".taken";
+    private static final String FAILED = ".failed";
+    // How often the directory is listed while waiting for a job
+    private static final long POLL_MILLIS = 1000;
+
+    private final File directory;
+
+    /**
+     * @param directory The directory holding the jobs
+     */
+    DirectoryJobQueue(final File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<Job> receive(final int max, final long waitMillis) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            List<Job> jobs = new ArrayList<Job>();
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files == null) {
+                throw new IOException("Could not list job directory " + directory);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (jobs.size() == max) {
+                    break;
+                }
+                final File taken = new File(directory, file.getName() + TAKEN);
+                if (!move(file, taken)) {
+                    continue;
+                }
+                final String json = new String(Files.readAllBytes(taken.toPath()), StandardCharsets.UTF_8);
+                jobs.add(new Job(file.getName(), taken.getName(), S3EventNotification.parseJson(json)));
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (!jobs.isEmpty() || remaining <= 0) {
+                return jobs;
+            }
+            Thread.sleep(Math.min(POLL_MILLIS, remaining));
+        }
+    }
+
+    @Override
+    public void keepAlive(final Job job) {
+        // A taken file stays taken
+    }
+
+    @Override
+    public void complete(final Job job) throws IOException {
+        Files.deleteIfExists(new File(directory, job.getReceipt()).toPath());
+    }
+
+    @Override
+    public void fail(final Job job) throws IOException {
+        move(new File(directory, job.getReceipt()), new File(directory, job.getId() + FAILED));
+    }
+
+    @Override
+    public void release(final Job job) throws IOException {
+        move(new File(directory, job.getReceipt()), new File(directory, job.getId()));
+    }
+
+    /**
+     * @return false if the file is gone, such as when another worker took the job first
+     */
+    private static boolean move(final File from, final File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new IOException("Job directory " + from.getParent() + " does not support atomic renames", e);
+        }
+    }
+}
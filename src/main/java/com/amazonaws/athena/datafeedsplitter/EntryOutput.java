@@ -0,0 +1,16 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.OutputStream;
+
+/**
+ * EntryOutput is the destination of the uncompressed bytes of one Data Feed entry.
+ *
+ * Closing an EntryOutput publishes what was written. If anything goes wrong part way through, abort must be
+ * called instead so that nothing partial is left behind in S3.
+ */
+abstract class EntryOutput extends OutputStream {
+    /**
+     * Discard everything written so far. The output can not be used afterwards.
+     */
+    public abstract void abort();
+}
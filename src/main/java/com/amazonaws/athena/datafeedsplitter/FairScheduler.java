@@ -0,0 +1,91 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FairScheduler picks the next task to run among those waiting, so that a report suite with many archives queued
+ * does not hold up the others. The next task comes from the suite with the fewest tasks running, and among those,
+ * from the suite that has waited longest since it last got one.
+ *
+ * @param <T> The type of task
+ */
+class FairScheduler<T> {
+    // Suites with tasks waiting, the one that got a task last at the end
+    private final LinkedHashMap<String, Deque<T>> waiting = new LinkedHashMap<String, Deque<T>>();
+    private final Map<String, Integer> running = new HashMap<String, Integer>();
+    private int size;
+
+    /**
+     * @param suite The report suite of the task
+     * @param task  A task to run after the tasks of the suite added before it
+     */
+    public void add(final String suite, final T task) {
+        Deque<T> tasks = waiting.get(suite);
+        if (tasks == null) {
+            tasks = new ArrayDeque<T>();
+            waiting.put(suite, tasks);
+        }
+        tasks.addLast(task);
+        size++;
+    }
+
+    /**
+     * @return the task to run next, which counts as running until {@link #done(String)}, or null if none is waiting
+     */
+    public T next() {
+        String chosen = null;
+        int fewest = Integer.MAX_VALUE;
+        for (String suite : waiting.keySet()) {
+            final int count = running.getOrDefault(suite, 0);
+            if (count < fewest) {
+                chosen = suite;
+                fewest = count;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        Deque<T> tasks = waiting.remove(chosen);
+        final T task = tasks.removeFirst();
+        if (!tasks.isEmpty()) {
+            waiting.put(chosen, tasks);
+        }
+        running.put(chosen, fewest + 1);
+        size--;
+        return task;
+    }
+
+    /**
+     * @param suite The report suite of a task returned by {@link #next()} that has finished
+     */
+    public void done(final String suite) {
+        final int count = running.getOrDefault(suite, 0) - 1;
+        if (count <= 0) {
+            running.remove(suite);
+        } else {
+            running.put(suite, count);
+        }
+    }
+
+    /**
+     * @return the tasks waiting, in no particular order, which are removed from the scheduler
+     */
+    public Deque<T> drain() {
+        Deque<T> all = new ArrayDeque<T>();
+        for (Deque<T> tasks : waiting.values()) {
+            all.addAll(tasks);
+        }
+        waiting.clear();
+        size = 0;
+        return all;
+    }
+
+    /** getter for size, the number of tasks waiting. */
+    public int size() {
+        return size;
+    }
+}
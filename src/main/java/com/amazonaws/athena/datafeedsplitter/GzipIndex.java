@@ -0,0 +1,261 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * GzipIndex holds the access points of a .tar.gz archive, see {@link ResumableInflater}, along with where each tar
+ * entry's data is in the uncompressed stream, so that any range of the archive can be decompressed without
+ * decompressing everything before it.
+ *
+ * The index is serialized big endian as:
+ * <pre>
+ *   "DFGI" version:u8 sourceETag:utf compressedLength:i64 uncompressedLength:i64 crc:i32
+ *   pointCount:i32 { bitOffset:i64 outOffset:i64 windowLength:i32 deflatedLength:i32 deflatedWindow }
+ *   entryCount:i32 { name:utf dataOffset:i64 size:i64 }
+ * </pre>
+ * where utf is the length prefixed modified UTF-8 of {@link DataOutputStream#writeUTF(String)} and each window is
+ * stored deflated, since 32KB of Data Feed text compresses well.
+ */
+class GzipIndex {
+    private static final byte[] MAGIC = "DFGI".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private final String sourceETag;
+    private final long compressedLength;
+    private final long uncompressedLength;
+    private final int crc;
+    private final List<ResumableInflater.AccessPoint> accessPoints;
+    private final List<Entry> entries;
+
+    /**
+     * Recorder is a gzip stream that records the access points of the archive while it is read.
+     */
+    interface Recorder {
+        /**
+         * @return whether the stream has been read to the end of a single member with a matching trailer
+         */
+        boolean isComplete();
+
+        /**
+         * @return the CRC-32 of the uncompressed stream
+         */
+        int getCrc();
+
+        /**
+         * @return the number of uncompressed bytes
+         */
+        long getUncompressedLength();
+
+        /**
+         * @return the access points recorded, starting with the first block
+         */
+        List<ResumableInflater.AccessPoint> getAccessPoints();
+    }
+
+    /**
+     * Entry is where the data of a tar entry is in the uncompressed archive.
+     */
+    static class Entry {
+        private final String name;
+        private final long dataOffset;
+        private final long size;
+
+        Entry(final String name, final long dataOffset, final long size) {
+            this.name = name;
+            this.dataOffset = dataOffset;
+            this.size = size;
+        }
+
+        /** getter for name. */
+        public String getName() {
+            return name;
+        }
+
+        /** getter for dataOffset. */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        /** getter for size. */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * @param sourceETag         The ETag of the archive, so an index is not applied to a different upload
+     * @param compressedLength   The size of the archive
+     * @param uncompressedLength The size of the uncompressed tar stream
+     * @param crc                The CRC-32 of the uncompressed tar stream, from the gzip trailer
+     * @param accessPoints       The access points in order, starting with the first block
+     * @param entries            The tar entries in archive order
+     */
+    GzipIndex(final String sourceETag, final long compressedLength, final long uncompressedLength, final int crc,
+              final List<ResumableInflater.AccessPoint> accessPoints, final List<Entry> entries) {
+        if (accessPoints.isEmpty() || accessPoints.get(0).getOutOffset() != 0) {
+            throw new RuntimeException("A gzip index needs an access point at the start of the stream");
+        }
+        this.sourceETag = sourceETag;
+        this.compressedLength = compressedLength;
+        this.uncompressedLength = uncompressedLength;
+        this.crc = crc;
+        this.accessPoints = Collections.unmodifiableList(new ArrayList<ResumableInflater.AccessPoint>(accessPoints));
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /** getter for sourceETag. */
+    public String getSourceETag() {
+        return sourceETag;
+    }
+
+    /** getter for compressedLength. */
+    public long getCompressedLength() {
+        return compressedLength;
+    }
+
+    /** getter for uncompressedLength. */
+    public long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    /** getter for crc. */
+    public int getCrc() {
+        return crc;
+    }
+
+    /** getter for accessPoints. */
+    public List<ResumableInflater.AccessPoint> getAccessPoints() {
+        return accessPoints;
+    }
+
+    /** getter for entries. */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param outOffset An offset in the uncompressed stream
+     * @return the index of the last access point at or before outOffset
+     */
+    public int accessPointBefore(final long outOffset) {
+        int low = 0;
+        int high = accessPoints.size() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (accessPoints.get(middle).getOutOffset() <= outOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the serialized index
+     */
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(sourceETag);
+            out.writeLong(compressedLength);
+            out.writeLong(uncompressedLength);
+            out.writeInt(crc);
+
+            out.writeInt(accessPoints.size());
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            final byte[] deflated = new byte[ResumableInflater.WINDOW_SIZE + 1024];
+            try {
+                for (ResumableInflater.AccessPoint point : accessPoints) {
+                    out.writeLong(point.getBitOffset());
+                    out.writeLong(point.getOutOffset());
+                    out.writeInt(point.getWindow().length);
+                    deflater.reset();
+                    deflater.setInput(point.getWindow());
+                    deflater.finish();
+                    final int length = deflater.deflate(deflated);
+                    out.writeInt(length);
+                    out.write(deflated, 0, length);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getDataOffset());
+                out.writeLong(entry.getSize());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not serialize gzip index", e);
+        }
+    }
+
+    /**
+     * @param data The serialized index, or null if there is none
+     * @return the index, or null if there is none
+     */
+    static GzipIndex parse(final byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+                throw new RuntimeException("Not a gzip index of this version");
+            }
+            final String sourceETag = in.readUTF();
+            final long compressedLength = in.readLong();
+            final long uncompressedLength = in.readLong();
+            final int crc = in.readInt();
+
+            final int pointCount = in.readInt();
+            List<ResumableInflater.AccessPoint> accessPoints = new ArrayList<ResumableInflater.AccessPoint>();
+            for (int i = 0; i < pointCount; i++) {
+                final long bitOffset = in.readLong();
+                final long outOffset = in.readLong();
+                final byte[] window = new byte[in.readInt()];
+                final byte[] deflated = new byte[in.readInt()];
+                in.readFully(deflated);
+                inflater.reset();
+                inflater.setInput(deflated);
+                if (inflater.inflate(window) != window.length) {
+                    throw new RuntimeException("Truncated window at access point " + i);
+                }
+                accessPoints.add(new ResumableInflater.AccessPoint(bitOffset, outOffset, window));
+            }
+
+            final int entryCount = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>();
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return new GzipIndex(sourceETag, compressedLength, uncompressedLength, crc, accessPoints, entries);
+        } catch (IOException | DataFormatException e) {
+            throw new RuntimeException("Could not parse gzip index", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
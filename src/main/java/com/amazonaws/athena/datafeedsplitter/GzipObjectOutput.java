@@ -0,0 +1,113 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+
+/**
+ * GzipObjectOutput compresses the bytes written to it into a single gzip S3 object.
+ *
+ * When given a sidecar index, the TSV rows written are also summarized into the index, which is uploaded next to
+ * the object once the object is complete.
+ */
+class GzipObjectOutput extends EntryOutput {
+    private final S3ObjectOutput object;
+    private final ParallelGzipOutputStream outputStream;
+    private final DataFeedWriter writer;
+    private final SidecarIndex index;
+    private final TsvRowReader indexRows;
+    private boolean closed;
+
+    /**
+     * @param writer     The writer providing the S3 client, thread pools and configuration
+     * @param dstKey     The key of the object to write in the destination bucket
+     * @param onComplete Called once the object has been uploaded, may be null
+     * @throws IOException when the compressed stream can not be started
+     */
+    GzipObjectOutput(final DataFeedWriter writer, final String dstKey, final Runnable onComplete)
+            throws IOException {
+        this(writer, dstKey, onComplete, null);
+    }
+
+    /**
+     * @param writer     The writer providing the S3 client, thread pools and configuration
+     * @param dstKey     The key of the object to write in the destination bucket
+     * @param onComplete Called once the object has been uploaded, may be null
+     * @param index      The index to summarize the rows into, may be null
+     * @throws IOException when the compressed stream can not be started
+     */
+    GzipObjectOutput(final DataFeedWriter writer, final String dstKey, final Runnable onComplete,
+                     final SidecarIndex index) throws IOException {
+        this.writer = writer;
+        this.index = index;
+        this.indexRows = index == null ? null : new TsvRowReader(index);
+        SplitterConfig config = writer.getConfig();
+        this.object = new S3ObjectOutput(writer, dstKey, onComplete);
+        this.outputStream = new ParallelGzipOutputStream(
+                object,
+                writer.getCompressors(),
+                config.getCompressionBlockSize(),
+                config.getCompressionThreads() * 2,
+                config.getCompressionLevel(),
+                writer.getStats().stage(PipelineStats.COMPRESS),
+                writer.getBufferPool()
+        );
+    }
+
+    public String getKey() {
+        return object.getKey();
+    }
+
+    /**
+     * @return the key of the sidecar index of the object, or null if it has none
+     */
+    public String getSidecarKey() {
+        return index == null ? null : DataFeedRecord.getSidecarKey(object.getKey());
+    }
+
+    /**
+     * @return the number of compressed bytes produced so far. Blocks still being compressed are not included.
+     */
+    public long getCompressedSize() {
+        return object.getSize();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        outputStream.write(buf, offset, length);
+        if (indexRows != null) {
+            indexRows.write(buf, offset, length);
+        }
+    }
+
+    /**
+     * Write the last compressed blocks and the gzip trailer, then upload what remains of the object and its index.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            outputStream.close();
+        } catch (IOException | RuntimeException e) {
+            object.abort();
+            throw e;
+        }
+        if (index != null) {
+            indexRows.finish();
+            S3ObjectOutput sidecar = new S3ObjectOutput(writer, getSidecarKey(), null);
+            sidecar.write(index.toByteArray());
+            sidecar.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        object.abort();
+    }
+}
@@ -0,0 +1,37 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * HitDataFormat lists the formats hit_data can be converted to. Lookup files are always written as gzip TSV.
+ */
+enum HitDataFormat {
+    /** Gzip compressed TSV under the rawtsv prefix, read through OpenCSVSerde. */
+    TSV("rawtsv", "gz"),
+
+    /** Parquet under the parquet prefix. */
+    PARQUET("parquet", "parquet"),
+
+    /** ORC under the orc prefix. */
+    ORC("orc", "orc");
+
+    private final String prefix;
+    private final String extension;
+
+    HitDataFormat(final String prefix, final String extension) {
+        this.prefix = prefix;
+        this.extension = extension;
+    }
+
+    /**
+     * @return the name of the prefix, below the report, that holds hit_data in this format
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the file name extension of hit_data objects in this format
+     */
+    public String getExtension() {
+        return extension;
+    }
+}
@@ -0,0 +1,77 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * HourPartitioner finds the hour of the day each hit_data row belongs to.
+ *
+ * The hour is read from date_time, the time of the hit in the time zone of the report suite, which is also the
+ * time zone the daily files are cut in. Feeds without date_time fall back to hit_time_gmt, in UTC.
+ */
+class HourPartitioner {
+    /** Hive's partition value for rows whose hour can not be read, which Athena reads as null. */
+    static final String UNKNOWN_HOUR = "__HIVE_DEFAULT_PARTITION__";
+
+    private static final String[] HOURS = new String[24];
+
+    static {
+        for (int hour = 0; hour < HOURS.length; hour++) {
+            HOURS[hour] = String.format("%02d", hour);
+        }
+    }
+
+    private final int dateTimeColumn;
+    private final int hitTimeColumn;
+    private final IntegerParser parser = new IntegerParser();
+
+    /**
+     * @param schema The columns of hit_data
+     */
+    HourPartitioner(final DataFeedSchema schema) {
+        this.dateTimeColumn = schema.indexOf("date_time");
+        this.hitTimeColumn = schema.indexOf("hit_time_gmt");
+        if (dateTimeColumn == -1 && hitTimeColumn == -1) {
+            throw new IllegalArgumentException("Partitioning by hour requires a date_time or hit_time_gmt column");
+        }
+    }
+
+    /**
+     * @param row A row of hit_data
+     * @return the two digit hour of the row, or {@link #UNKNOWN_HOUR} when the row has no valid time
+     */
+    public String getHour(final TsvRow row) {
+        if (dateTimeColumn != -1) {
+            return dateTimeHour(row);
+        }
+        return hitTimeHour(row);
+    }
+
+    // date_time is formatted as YYYY-MM-DD HH:MM:SS
+    private String dateTimeHour(final TsvRow row) {
+        if (dateTimeColumn >= row.getFieldCount() || row.getLength(dateTimeColumn) < 13) {
+            return UNKNOWN_HOUR;
+        }
+        final byte[] buf = row.getBuffer();
+        final int at = row.getStart(dateTimeColumn) + 11;
+        if (buf[at - 1] != ' ' || !isDigit(buf[at]) || !isDigit(buf[at + 1])) {
+            return UNKNOWN_HOUR;
+        }
+        return hour((buf[at] - '0') * 10 + buf[at + 1] - '0');
+    }
+
+    // hit_time_gmt is a Unix timestamp in seconds
+    private String hitTimeHour(final TsvRow row) {
+        if (hitTimeColumn >= row.getFieldCount()
+                || !parser.parse(row.getBuffer(), row.getStart(hitTimeColumn), row.getLength(hitTimeColumn))) {
+            return UNKNOWN_HOUR;
+        }
+        final long seconds = parser.getValue();
+        return hour((int) ((seconds / 3600 % 24 + 24) % 24));
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static String hour(final int hour) {
+        return hour < HOURS.length ? HOURS[hour] : UNKNOWN_HOUR;
+    }
+}
@@ -0,0 +1,228 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * IndexedGzipInputStream reads a range of the uncompressed content of a .tar.gz archive through its
+ * {@link GzipIndex}.
+ *
+ * The range is split at the access points of the index. Each segment is fetched with a ranged GET of its
+ * compressed bytes and decompressed from its access point on a thread of its own, so the archive is decompressed
+ * on several cores at once instead of one, and a range in the middle of the archive costs only the segments
+ * around it. Segments are handed out strictly in order. When the whole archive is read, the CRC-32 of the
+ * segments is checked against the gzip trailer.
+ */
+class IndexedGzipInputStream extends InputStream {
+    // Bytes fetched past the end of a segment, which the decoder may look ahead at
+    private static final int LOOKAHEAD = 16;
+    private static final int SKIP_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final GzipIndex index;
+    private final List<ResumableInflater.AccessPoint> points;
+    private final long start;
+    private final long end;
+    private final boolean verify;
+    private final int maxSegments;
+    private final ExecutorService inflaters;
+    private final Deque<Future<Segment>> segments;
+    private final StageStats stats;
+
+    private int nextSegment;
+    private final int lastSegment;
+    private byte[] current;
+    private int position;
+    private long crc;
+    private boolean closed;
+
+    /**
+     * Segment is the decompressed part of a range between two access points.
+     */
+    private static class Segment {
+        private final byte[] data;
+        private final long crc;
+
+        Segment(final byte[] data, final long crc) {
+            this.data = data;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * @param s3      A pre-existing AmazonS3 client
+     * @param bucket  The bucket of the archive
+     * @param key     The key of the archive
+     * @param index   The index of the archive
+     * @param start   The uncompressed offset of the first byte to read
+     * @param end     The uncompressed offset after the last byte to read
+     * @param threads The number of segments decompressed at once
+     * @param stats   The statistics of the inflate stage
+     */
+    IndexedGzipInputStream(final AmazonS3 s3, final String bucket, final String key, final GzipIndex index,
+                           final long start, final long end, final int threads, final StageStats stats) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.index = index;
+        this.points = index.getAccessPoints();
+        this.start = start;
+        this.end = end;
+        this.verify = start == 0 && end == index.getUncompressedLength();
+        this.maxSegments = threads + 1;
+        this.inflaters = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("indexed-inflater"));
+        this.segments = new ArrayDeque<Future<Segment>>();
+        this.stats = stats;
+
+        this.nextSegment = index.accessPointBefore(start);
+        this.lastSegment = end > start ? index.accessPointBefore(end - 1) + 1 : nextSegment;
+        fillSegments();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buf, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<Segment> segment : segments) {
+            segment.cancel(true);
+        }
+        segments.clear();
+        inflaters.shutdownNow();
+    }
+
+    /**
+     * @return true when there are unread bytes in the current segment, false at the end of the range
+     */
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            if (segments.isEmpty()) {
+                if (verify && (int) crc != index.getCrc()) {
+                    throw new IOException("CRC mismatch decompressing s3://" + bucket + "/" + key
+                            + " through its index");
+                }
+                return false;
+            }
+            Segment segment = takeSegment(segments.removeFirst());
+            crc = Crc32Combine.combine(crc, segment.crc, segment.data.length);
+            current = segment.data;
+            position = 0;
+            fillSegments();
+        }
+        return true;
+    }
+
+    private Segment takeSegment(final Future<Segment> segment) throws IOException {
+        int ready = 0;
+        for (Future<Segment> pending : segments) {
+            if (pending.isDone()) {
+                ready++;
+            }
+        }
+        stats.sampleQueueDepth(segment.isDone() ? ready + 1 : ready);
+
+        try {
+            return segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading s3://" + bucket + "/" + key, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error decompressing s3://" + bucket + "/" + key, e.getCause());
+        }
+    }
+
+    private void fillSegments() {
+        while (segments.size() < maxSegments && nextSegment < lastSegment) {
+            final int segment = nextSegment++;
+            segments.addLast(inflaters.submit(() -> decode(segment)));
+        }
+    }
+
+    /**
+     * Fetch the compressed bytes of a segment and decompress the part of it within the range.
+     */
+    private Segment decode(final int segment) throws IOException {
+        long startNanos = stats.start();
+        final ResumableInflater.AccessPoint point = points.get(segment);
+        final boolean last = segment + 1 == points.size();
+        final long segmentEnd = last ? index.getUncompressedLength() : points.get(segment + 1).getOutOffset();
+        final long byteStart = point.getBitOffset() >>> 3;
+        final long byteEnd = last ? index.getCompressedLength() : Math.min(index.getCompressedLength(),
+                ((points.get(segment + 1).getBitOffset() + 7) >>> 3) + LOOKAHEAD);
+        final byte[] compressed = RangedPrefetchInputStream.readRange(
+                s3, bucket, key, byteStart, (int) (byteEnd - byteStart));
+
+        ResumableInflater inflater = new ResumableInflater(new ByteArrayInputStream(compressed),
+                point.getBitOffset(), point.getOutOffset(), point.getWindow(), 0);
+        final long from = Math.max(start, point.getOutOffset());
+        final long to = Math.min(end, segmentEnd);
+
+        long skip = from - point.getOutOffset();
+        byte[] skipped = new byte[(int) Math.min(SKIP_SIZE, Math.max(1, skip))];
+        while (skip > 0) {
+            final int count = inflater.read(skipped, 0, (int) Math.min(skipped.length, skip));
+            if (count == -1) {
+                throw new IOException("Archive ended before offset " + from);
+            }
+            skip -= count;
+        }
+
+        byte[] data = new byte[(int) (to - from)];
+        int filled = 0;
+        int count;
+        while (filled < data.length && (count = inflater.read(data, filled, data.length - filled)) != -1) {
+            filled += count;
+        }
+        if (filled != data.length) {
+            throw new IOException("Archive ended before offset " + to);
+        }
+        CRC32 segmentCrc = new CRC32();
+        segmentCrc.update(data, 0, data.length);
+        stats.finish(startNanos);
+        return new Segment(data, segmentCrc.getValue());
+    }
+}
@@ -0,0 +1,205 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * IndexingGzipInputStream decompresses a gzip stream like GZIPInputStream, and records access points along the way
+ * from which a {@link GzipIndex} can be built.
+ *
+ * Only the first member of the stream is indexed. Data Feed archives have a single member, but should another one
+ * follow, it is decompressed by a GZIPInputStream and no index is offered.
+ */
+class IndexingGzipInputStream extends InputStream implements GzipIndex.Recorder {
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private final InputStream in;
+    private final ResumableInflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final long priorCrc;
+    private final long priorLength;
+    private final byte[] single = new byte[1];
+    private InputStream nextMembers;
+    private boolean complete;
+    private boolean eof;
+
+    /**
+     * @param in   The gzip stream, from its first byte
+     * @param span The number of uncompressed bytes between access points
+     * @throws IOException when the gzip header can not be read
+     */
+    IndexingGzipInputStream(final InputStream in, final long span) throws IOException {
+        this.in = in;
+        final long headerLength = readHeader(in);
+        this.inflater = new ResumableInflater(in, headerLength * 8, 0, new byte[0], span);
+        this.priorCrc = 0;
+        this.priorLength = 0;
+    }
+
+    /**
+     * Carry on with a member that has been decompressed up to a block boundary by other means.
+     *
+     * @param in       The gzip stream, from the byte holding the first bit inflater decodes
+     * @param inflater The inflater to decompress the rest of the member with
+     * @param priorCrc The CRC-32 of the bytes before the first byte inflater decodes
+     */
+    IndexingGzipInputStream(final InputStream in, final ResumableInflater inflater, final long priorCrc) {
+        this.in = in;
+        this.inflater = inflater;
+        this.priorCrc = priorCrc;
+        this.priorLength = inflater.getTotalOut();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int offset, final int length) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (nextMembers != null) {
+            final int count = nextMembers.read(buf, offset, length);
+            eof = count == -1;
+            return count;
+        }
+        final int count = inflater.read(buf, offset, length);
+        if (count > 0) {
+            crc.update(buf, offset, count);
+            return count;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        finishMember();
+        return read(buf, offset, length);
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public int getCrc() {
+        return (int) memberCrc();
+    }
+
+    @Override
+    public long getUncompressedLength() {
+        return inflater.getTotalOut();
+    }
+
+    @Override
+    public List<ResumableInflater.AccessPoint> getAccessPoints() {
+        return inflater.getAccessPoints();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (nextMembers != null) {
+            nextMembers.close();
+        }
+        in.close();
+    }
+
+    private void finishMember() throws IOException {
+        long expectedCrc = 0;
+        long expectedSize = 0;
+        for (int i = 0; i < 8; i++) {
+            final int b = inflater.readTrailerByte();
+            if (b == -1) {
+                throw new IOException("Unexpected end of gzip trailer");
+            }
+            if (i < 4) {
+                expectedCrc |= (long) b << (8 * i);
+            } else {
+                expectedSize |= (long) b << (8 * (i - 4));
+            }
+        }
+        if (expectedCrc != memberCrc() || expectedSize != (inflater.getTotalOut() & 0xffffffffL)) {
+            throw new IOException("Corrupt gzip trailer");
+        }
+
+        // Like GZIPInputStream, anything but another member after the trailer is ignored
+        final int first = inflater.readTrailerByte();
+        final int second = first == -1 ? -1 : inflater.readTrailerByte();
+        if (first != 0x1f || second != 0x8b) {
+            complete = true;
+            eof = true;
+            return;
+        }
+        final InputStream rest = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return inflater.readTrailerByte();
+            }
+        };
+        nextMembers = new GZIPInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(new byte[]{(byte) first, (byte) second}), rest));
+    }
+
+    private long memberCrc() {
+        return Crc32Combine.combine(priorCrc, crc.getValue(), inflater.getTotalOut() - priorLength);
+    }
+
+    /**
+     * @return the length of the gzip header read from in
+     */
+    static long readHeader(final InputStream in) throws IOException {
+        if (readByte(in) != 0x1f || readByte(in) != 0x8b) {
+            throw new IOException("Not in GZIP format");
+        }
+        if (readByte(in) != 8) {
+            throw new IOException("Unsupported compression method");
+        }
+        final int flags = readByte(in);
+        // Modification time, extra flags and operating system
+        long length = 10;
+        skip(in, 6);
+        if ((flags & FLAG_EXTRA) != 0) {
+            final int extraLength = readByte(in) | (readByte(in) << 8);
+            skip(in, extraLength);
+            length += 2 + extraLength;
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            do {
+                length++;
+            } while (readByte(in) != 0);
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            do {
+                length++;
+            } while (readByte(in) != 0);
+        }
+        if ((flags & FLAG_HEADER_CRC) != 0) {
+            skip(in, 2);
+            length += 2;
+        }
+        return length;
+    }
+
+    private static void skip(final InputStream in, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readByte(in);
+        }
+    }
+
+    private static int readByte(final InputStream in) throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            throw new IOException("Unexpected end of gzip header");
+        }
+        return b;
+    }
+}
@@ -0,0 +1,44 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * IntegerParser reads decimal integers straight from a row buffer, without creating a String for every value.
+ */
+class IntegerParser {
+    private long value;
+
+    /**
+     * @return true if the bytes are an optional minus sign followed by 1 to 18 digits, false otherwise.
+     *         The parsed value is then available from {@link #getValue()}.
+     */
+    public boolean parse(final byte[] buf, final int offset, final int length) {
+        int i = offset;
+        final int end = offset + length;
+        boolean negative = false;
+        if (i < end && buf[i] == '-') {
+            negative = true;
+            i++;
+        }
+        // 18 digits always fit in a long
+        final int digits = end - i;
+        if (digits < 1 || digits > 18) {
+            return false;
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            result = result * 10 + digit;
+        }
+        value = negative ? -result : result;
+        return true;
+    }
+
+    /**
+     * @return the value read by the last successful call to parse
+     */
+    public long getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,83 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.event.S3EventNotification;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * JobQueue is where {@link DataFeedWorker} gets its work from. Each job is an S3 event, as S3 sends it to a queue or
+ * a Lambda function, and stays invisible to other workers until it is completed, failed or released.
+ */
+interface JobQueue {
+
+    /**
+     * Job is an S3 event taken from a queue, along with what the queue needs to acknowledge it.
+     */
+    class Job {
+        private final String id;
+        private final String receipt;
+        private final S3EventNotification event;
+
+        /**
+         * @param id      The identifier of the job, for logging
+         * @param receipt The handle the queue acknowledges the job by
+         * @param event   The S3 event of the job
+         */
+        Job(final String id, final String receipt, final S3EventNotification event) {
+            this.id = id;
+            this.receipt = receipt;
+            this.event = event;
+        }
+
+        /** getter for id. */
+        public String getId() {
+            return id;
+        }
+
+        /** getter for receipt. */
+        public String getReceipt() {
+            return receipt;
+        }
+
+        /** getter for event. */
+        public S3EventNotification getEvent() {
+            return event;
+        }
+    }
+
+    /**
+     * @param max        The largest number of jobs to take
+     * @param waitMillis How long to wait for a job when there is none
+     * @return the jobs taken, empty when there were none in time
+     * @throws IOException          when the queue can not be read
+     * @throws InterruptedException when interrupted while waiting
+     */
+    List<Job> receive(int max, long waitMillis) throws IOException, InterruptedException;
+
+    /**
+     * Keep a job that is still being worked on invisible to other workers.
+     *
+     * @param job A job taken by {@link #receive(int, long)}
+     * @throws IOException when the queue can not be updated
+     */
+    void keepAlive(Job job) throws IOException;
+
+    /**
+     * @param job A job that has been done and is removed from the queue
+     * @throws IOException when the queue can not be updated
+     */
+    void complete(Job job) throws IOException;
+
+    /**
+     * @param job A job that failed. The queue decides whether it is delivered again or put aside.
+     * @throws IOException when the queue can not be updated
+     */
+    void fail(Job job) throws IOException;
+
+    /**
+     * @param job A job that was not worked on, which is delivered again right away
+     * @throws IOException when the queue can not be updated
+     */
+    void release(Job job) throws IOException;
+}
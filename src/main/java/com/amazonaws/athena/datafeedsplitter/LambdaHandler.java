@@ -5,48 +5,222 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.event.S3EventNotification;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * LambdaHandler implements a Lambda function triggered on S3 Create events that accepts an Adobe Analytics Data Feed file.
  * If the file received is a metadata file, that is an indication that all data files have been uploaded.
  * This job will take a data file and extract it's contents to Athena-friendly S3 locations.
+ *
+ * An event may hold several records, such as when several report suites are delivered at once. The metadata files
+ * among them are processed concurrently, up to MAX_CONCURRENT_ARCHIVES at a time and within MEMORY_BUDGET_MB, sharing
+ * one S3 client and configuration.
  */
 public class LambdaHandler implements RequestHandler<S3Event, String>  {
-    // Read 50MB at a time
-    static final int BUFFER = 50 * 1024 * 1024;
-
     // Minimum part size to use the S3 multi-part upload API
     static final int PART_MINIMUM = 5 * 1024 * 1024;
 
+    // Appended to the event name of a record handed on without progress, followed by the number of times in a row
+    static final String STALLED_SUFFIX = "#stalled=";
+
+    /**
+     * Outcome is what became of one record of the event: done, continued from a checkpoint, or handed on to a
+     * continuation before any work was started on it.
+     */
+    enum Outcome { DONE, CONTINUED, STALLED }
+
     /**
      * @param input The S3 event associated with this Lambda job
      * @param context Lambda context
-     * @return a value for the result of this job. Currently only "OK" or "SKIP" if we do not process the file.
+     * @return a value for the result of this job: "OK", "SKIP" if there is no metadata file in the event,
+     * "CONTINUED" if the job ran out of time on some archives and a continuation invocation will finish them, or
+     * "RETRIED" if some archives failed and a new invocation retries them alone.
      */
     @Override
     public String handleRequest(final S3Event input, final Context context) {
         LambdaLogger logger = context.getLogger();
-        S3EventNotification.S3EventNotificationRecord record = input.getRecords().get(0);
 
-        DataFeedSplitterManager manager = new DataFeedSplitterManager(logger, record);
-
-        if (!manager.shouldProcessFile()) {
-            logger.log("Received record was not a metadata file, ignoring.");
+        // Deciding to skip a record only takes its key, no client or manager is needed for it
+        List<S3EventNotification.S3EventNotificationRecord> metadataRecords =
+                new ArrayList<S3EventNotification.S3EventNotificationRecord>();
+        for (S3EventNotification.S3EventNotificationRecord record : input.getRecords()) {
+            if (DataFeedRecord.newFromRecord(record).isMetadataFile()) {
+                metadataRecords.add(record);
+            }
+        }
+        if (metadataRecords.isEmpty()) {
+            logger.log("Received records were not metadata files, ignoring.");
             return "SKIP";
         }
 
+        return processRecords(metadataRecords, context, AmazonS3ClientBuilder.defaultClient(),
+                SplitterConfig.fromEnvironment());
+    }
+
+    /**
+     * Process the metadata records concurrently, then trigger one continuation for those that ran out of time.
+     * When any record fails, the others still finish. Lambda would retry the whole event, converting the records
+     * that succeeded again, so the failed records are retried in an invocation of their own instead. Only an
+     * invocation whose records all failed fails itself, so a record that keeps failing ends up alone and follows
+     * the retry policy of the function.
+     */
+    String processRecords(final List<S3EventNotification.S3EventNotificationRecord> records, final Context context,
+                          final AmazonS3 s3, final SplitterConfig config) {
+        final LambdaLogger logger = context.getLogger();
+        // Every continuation would start with too little time left and hand the records on again
+        if (config.getCheckpointMarginSeconds() > 0
+                && context.getRemainingTimeInMillis() <= config.getCheckpointMarginSeconds() * 1000L) {
+            throw new RuntimeException("The function timeout of " + context.getRemainingTimeInMillis() / 1000
+                    + "s does not leave CHECKPOINT_MARGIN_SECONDS of " + config.getCheckpointMarginSeconds() + "s");
+        }
+        final MemoryBudget budget = MemoryBudget.fromConfig(config);
+        final ExecutorService archives = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(records.size(), config.getMaxConcurrentArchives())),
+                new DaemonThreadFactory("archive"));
+
+        List<Future<Outcome>> outcomes = new ArrayList<Future<Outcome>>();
+        try {
+            for (S3EventNotification.S3EventNotificationRecord record : records) {
+                final LambdaLogger archiveLogger = records.size() == 1 ? logger
+                        : line -> logger.log("[" + record.getS3().getObject().getKey() + "] " + line);
+                outcomes.add(archives.submit(() -> processRecord(record, archiveLogger, context, s3, config, budget)));
+            }
+
+            List<S3EventNotification.S3EventNotificationRecord> continued =
+                    new ArrayList<S3EventNotification.S3EventNotificationRecord>();
+            List<S3EventNotification.S3EventNotificationRecord> failed =
+                    new ArrayList<S3EventNotification.S3EventNotificationRecord>();
+            Throwable failure = null;
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    final Outcome outcome = outcomes.get(i).get();
+                    // A record that made progress starts counting the continuations without progress again
+                    if (outcome == Outcome.CONTINUED) {
+                        continued.add(withStalledContinuations(records.get(i), 0));
+                    } else if (outcome == Outcome.STALLED) {
+                        continued.add(withStalledContinuations(records.get(i),
+                                stalledContinuations(records.get(i)) + 1));
+                    }
+                } catch (ExecutionException e) {
+                    logger.log("Error processing " + records.get(i).getS3().getObject().getKey() + ": "
+                            + e.getCause());
+                    e.getCause().printStackTrace();
+                    failed.add(records.get(i));
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failed.size() == records.size()) {
+                throw new RuntimeException("Error reading from Data Feed archive", failure);
+            }
+            if (!continued.isEmpty()) {
+                invokeAgain(logger, continued, context);
+            }
+            if (!failed.isEmpty()) {
+                logger.log("Retrying " + failed.size() + " failed records in a new invocation");
+                invokeAgain(logger, failed, context);
+                return "RETRIED";
+            }
+            return continued.isEmpty() ? "OK" : "CONTINUED";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing Data Feed archives", e);
+        } finally {
+            archives.shutdownNow();
+        }
+    }
+
+    /**
+     * Invoke this function again with some of the records of the event.
+     */
+    void invokeAgain(final LambdaLogger logger, final List<S3EventNotification.S3EventNotificationRecord> records,
+                     final Context context) {
+        DataFeedSplitterManager.triggerContinuation(logger, new S3Event(records), context.getInvokedFunctionArn());
+    }
+
+    Outcome processRecord(final S3EventNotification.S3EventNotificationRecord record,
+                          final LambdaLogger logger, final Context context, final AmazonS3 s3,
+                          final SplitterConfig config, final MemoryBudget budget) throws Exception {
+        // Waiting for memory must leave the archive the time to start before the invocation ends
+        final long granted = budget.reserve(MemoryBudget.archiveFootprint(config),
+                context.getRemainingTimeInMillis() - config.getCheckpointMarginSeconds() * 1000L);
+        if (granted == 0) {
+            return stall(record, logger, config, "No memory for the archive before the invocation ends");
+        }
         try {
-            manager.processAllEntries();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Error reading from Data Feed archive", e);
+            // An archive that only got its turn at the end of the invocation is left to the continuation
+            if (config.getCheckpointMarginSeconds() > 0
+                    && context.getRemainingTimeInMillis() <= config.getCheckpointMarginSeconds() * 1000L) {
+                return stall(record, logger, config, "Not enough time left to start");
+            }
+
+            DataFeedSplitterManager manager = new DataFeedSplitterManager(logger, s3, config, record);
+            manager.setRemainingTime(context.getRemainingTimeInMillis());
+            manager.setMemoryBudget(budget);
+            if (!manager.processAllEntries()) {
+                return Outcome.CONTINUED;
+            }
+            manager.triggerCatalogManager();
+            return Outcome.DONE;
+        } finally {
+            budget.release(granted);
         }
+    }
 
-        manager.triggerCatalogManager();
+    /**
+     * @param reason Why no work could be started on the record
+     * @return STALLED, for the record to be handed to a continuation
+     * @throws IOException when the record has been handed on without progress too many times in a row already
+     */
+    private Outcome stall(final S3EventNotification.S3EventNotificationRecord record, final LambdaLogger logger,
+                          final SplitterConfig config, final String reason) throws IOException {
+        final int stalled = stalledContinuations(record);
+        if (stalled >= config.getMaxStalledContinuations()) {
+            throw new IOException(reason + " after " + stalled + " continuations without progress, giving up");
+        }
+        logger.log(reason + ", continuing in a new invocation");
+        return Outcome.STALLED;
+    }
 
-        return "OK";
+    /**
+     * @return the number of continuations in a row the record has been handed to without progress
+     */
+    static int stalledContinuations(final S3EventNotification.S3EventNotificationRecord record) {
+        final String name = record.getEventName();
+        final int at = name == null ? -1 : name.lastIndexOf(STALLED_SUFFIX);
+        return at < 0 ? 0 : Integer.parseInt(name.substring(at + STALLED_SUFFIX.length()));
+    }
+
+    /**
+     * @param count The number of continuations in a row without progress, carried in the event name
+     * @return the record, or a copy of it if it carried another count
+     */
+    static S3EventNotification.S3EventNotificationRecord withStalledContinuations(
+            final S3EventNotification.S3EventNotificationRecord record, final int count) {
+        String name = record.getEventName();
+        if (name != null && name.contains(STALLED_SUFFIX)) {
+            name = name.substring(0, name.lastIndexOf(STALLED_SUFFIX));
+        }
+        if (count > 0) {
+            name = (name == null ? "" : name) + STALLED_SUFFIX + count;
+        }
+        if (name == null ? record.getEventName() == null : name.equals(record.getEventName())) {
+            return record;
+        }
+        return new S3EventNotification.S3EventNotificationRecord(record.getAwsRegion(), name,
+                record.getEventSource(), record.getEventTime() == null ? null : record.getEventTime().toString(),
+                record.getEventVersion(), record.getRequestParameters(), record.getResponseElements(),
+                record.getS3(), record.getUserIdentity());
     }
 }
@@ -0,0 +1,124 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LookupDenormalizer resolves the lookup ids of hit_data rows into the names listed by the lookup files of the
+ * same Data Feed, so queries do not need to join hit_data with the lookup tables.
+ *
+ * Every id column of the feed gets a name column, named after it with a _name suffix, appended after the columns
+ * of column_headers.tsv. The name columns are added even when the lookup file is missing from a feed, so the
+ * schema is the same every day, and ids the lookup does not list get an empty name.
+ */
+class LookupDenormalizer {
+    /** The lookup file listing the values of each id column of hit_data. */
+    static final Map<String, String> LOOKUP_COLUMNS;
+
+    private static final String NAME_SUFFIX = "_name";
+    private static final byte[] EMPTY = new byte[0];
+
+    static {
+        Map<String, String> columns = new LinkedHashMap<String, String>();
+        columns.put("browser", "browser.tsv");
+        columns.put("os", "operating_systems.tsv");
+        columns.put("country", "country.tsv");
+        columns.put("color", "color_depth.tsv");
+        columns.put("connection_type", "connection_type.tsv");
+        columns.put("javascript", "javascript_version.tsv");
+        columns.put("language", "languages.tsv");
+        columns.put("resolution", "resolution.tsv");
+        columns.put("ref_type", "referrer_type.tsv");
+        columns.put("search_engine", "search_engines.tsv");
+        columns.put("post_search_engine", "search_engines.tsv");
+        columns.put("visit_search_engine", "search_engines.tsv");
+        LOOKUP_COLUMNS = Collections.unmodifiableMap(columns);
+    }
+
+    private final int headerColumns;
+    private final int[] idColumns;
+    private final LookupMap[] maps;
+    private final byte[][] values;
+    private final DataFeedSchema schema;
+    private final IntegerParser parser = new IntegerParser();
+
+    /**
+     * @param headers The columns listed in column_headers.tsv
+     * @param lookups The lookup files of the feed, by entry name
+     */
+    LookupDenormalizer(final DataFeedSchema headers, final Map<String, LookupMap> lookups) {
+        List<String> names = new ArrayList<String>(headers.getColumnNames());
+        List<ColumnType> types = new ArrayList<ColumnType>(headers.getColumnTypes());
+        List<Integer> ids = new ArrayList<Integer>();
+        List<LookupMap> resolved = new ArrayList<LookupMap>();
+        for (Map.Entry<String, String> column : LOOKUP_COLUMNS.entrySet()) {
+            final int id = headers.indexOf(column.getKey());
+            final String name = column.getKey() + NAME_SUFFIX;
+            if (id == -1 || headers.indexOf(name) != -1) {
+                continue;
+            }
+            names.add(name);
+            types.add(ColumnType.STRING);
+            ids.add(id);
+            resolved.add(lookups.get(column.getValue()));
+        }
+
+        this.headerColumns = headers.getColumnCount();
+        this.schema = new DataFeedSchema(names, types);
+        this.idColumns = new int[ids.size()];
+        this.maps = resolved.toArray(new LookupMap[0]);
+        this.values = new byte[idColumns.length][];
+        for (int i = 0; i < idColumns.length; i++) {
+            idColumns[i] = ids.get(i);
+        }
+    }
+
+    /**
+     * @return the columns of column_headers.tsv followed by the name columns
+     */
+    public DataFeedSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the type of every name column, by column name
+     */
+    public Map<String, ColumnType> getNameColumnTypes() {
+        Map<String, ColumnType> types = new HashMap<String, ColumnType>();
+        for (int i = headerColumns; i < schema.getColumnCount(); i++) {
+            types.put(schema.getColumnName(i), schema.getColumnType(i));
+        }
+        return types;
+    }
+
+    /**
+     * @param row A row of hit_data, which is extended with the name columns
+     */
+    public void resolve(final TsvRow row) {
+        // Ids are read before the row grows, as appending may move the buffer
+        final int fields = row.getFieldCount();
+        for (int i = 0; i < idColumns.length; i++) {
+            values[i] = EMPTY;
+            final int column = idColumns[i];
+            if (maps[i] != null && column < fields
+                    && parser.parse(row.getBuffer(), row.getStart(column), row.getLength(column))
+                    && parser.getValue() == (int) parser.getValue()) {
+                byte[] value = maps[i].get((int) parser.getValue());
+                if (value != null) {
+                    values[i] = value;
+                }
+            }
+        }
+
+        while (row.getFieldCount() < headerColumns) {
+            row.appendField(EMPTY);
+        }
+        for (byte[] value : values) {
+            row.appendField(value);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * LookupEntryOutput hashes a lookup entry as it streams out of the archive and hands it to the lookup store once
+ * complete. The entry is kept until its hash is known, in memory for the usual small lookup files and in the spill
+ * directory for large ones.
+ */
+class LookupEntryOutput extends EntryOutput {
+    private final LookupStore store;
+    private final String basename;
+    private final MessageDigest digest;
+    private final SpillBuffer contents;
+
+    /**
+     * @param store    The store the entry is added to
+     * @param basename The name of the entry in the Data Feed archive
+     * @param contents The buffer the entry is kept in until it is complete
+     */
+    LookupEntryOutput(final LookupStore store, final String basename, final SpillBuffer contents) {
+        this.store = store;
+        this.basename = basename;
+        this.contents = contents;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        digest.update(buf, offset, length);
+        contents.write(buf, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b & 0xff));
+        }
+        try {
+            store.put(basename, hash.toString(), contents);
+        } finally {
+            contents.delete();
+        }
+    }
+
+    /**
+     * Nothing has been uploaded before the entry is complete, only the buffered contents are dropped.
+     */
+    @Override
+    public void abort() {
+        contents.delete();
+    }
+}
@@ -0,0 +1,87 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LookupMap maps the integer ids of a lookup file to the UTF-8 bytes of their values.
+ *
+ * Keys are kept in a primitive open addressing table, so resolving an id from a row neither boxes the id nor
+ * decodes the value.
+ */
+class LookupMap {
+    private int[] keys = new int[16];
+    private byte[][] values = new byte[16][];
+    private int size;
+
+    /**
+     * @param data   The contents of a lookup file, one id and value per line separated by a tab
+     * @param length The number of bytes of data
+     * @return the map of the lookup file. Lines whose id is not an integer are left out.
+     */
+    public static LookupMap parse(final byte[] data, final int length) {
+        final LookupMap map = new LookupMap();
+        final IntegerParser parser = new IntegerParser();
+        TsvRowReader reader = new TsvRowReader(row -> {
+            if (row.getFieldCount() >= 2 && parser.parse(row.getBuffer(), row.getStart(0), row.getLength(0))
+                    && parser.getValue() == (int) parser.getValue()) {
+                map.put((int) parser.getValue(), Arrays.copyOfRange(row.getBuffer(), row.getStart(1),
+                        row.getStart(1) + row.getLength(1)));
+            }
+        });
+        try {
+            reader.write(data, 0, length);
+            reader.finish();
+        } catch (IOException e) {
+            // The handler does not throw
+            throw new RuntimeException(e);
+        }
+        return map;
+    }
+
+    public void put(final int key, final byte[] value) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int slot = slot(key);
+        if (values[slot] == null) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * @return the value of the id, or null if the lookup does not list it
+     */
+    public byte[] get(final int key) {
+        return values[slot(key)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(final int key) {
+        final int mask = keys.length - 1;
+        int hash = key * 0x9e3779b9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        byte[][] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new byte[oldKeys.length * 2][];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
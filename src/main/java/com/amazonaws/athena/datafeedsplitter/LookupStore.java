@@ -0,0 +1,131 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LookupStore keeps lookup files once per distinct content, instead of once per day and report suite.
+ *
+ * Every lookup file is stored under the SHA-256 of its uncompressed contents, in a store shared by all report
+ * suites, and is only uploaded if that key does not exist yet. The latest lookups of a report suite are then
+ * pointers into the store: each lookup table location holds a symlink manifest listing the stored file, which
+ * Athena reads through SymlinkTextInputFormat. The hash of the latest file of a table is read back from its
+ * symlink, so a pointer is only rewritten when the hash of its table changes. Each table has only the one object,
+ * so deliveries converted at the same time, such as the hours of an hourly feed, can not leave a pointer and a
+ * record of its hash that disagree.
+ *
+ * Consecutive deliveries, especially the hours of an hourly feed, mostly repeat the lookups of the previous one. A
+ * lookup file whose hash is the latest of its table is known to be stored already, without asking S3.
+ */
+class LookupStore {
+    private final DataFeedWriter writer;
+    private final DataFeedRecord df;
+    private final Map<String, String> hashes = Collections.synchronizedMap(new TreeMap<String, String>());
+    // The latest hash of each table read so far, empty for a table without a symlink
+    private final Map<String, String> latest = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @param writer The writer providing the S3 client, thread pools and configuration
+     * @param df     The record of the Data Feed being written
+     */
+    LookupStore(final DataFeedWriter writer, final DataFeedRecord df) {
+        this.writer = writer;
+        this.df = df;
+    }
+
+    /**
+     * @param basename The name of the lookup entry in the Data Feed archive
+     * @param hash     The hex SHA-256 of the contents of the entry
+     * @param contents The uncompressed contents of the entry
+     * @throws IOException when the lookup file can not be uploaded
+     */
+    public void put(final String basename, final String hash, final SpillBuffer contents) throws IOException {
+        final String key = df.getLookupStoreKey(basename, hash);
+        if (hash.equals(getLatest(basename))) {
+            writer.getLogger().log("  " + basename + " is unchanged since the last delivery");
+        } else if (writer.getS3().doesObjectExist(df.getDstBucket(), key)) {
+            writer.getLogger().log("  " + basename + " is unchanged in the lookup store");
+        } else {
+            GzipObjectOutput output = new GzipObjectOutput(writer, key, null);
+            try {
+                contents.writeTo(output);
+                output.close();
+            } catch (IOException | RuntimeException e) {
+                output.abort();
+                throw e;
+            }
+        }
+        hashes.put(basename, hash);
+    }
+
+    /**
+     * Point the latest lookups of the report suite at the lookup files stored by this Data Feed, rewriting only
+     * the pointers whose file changed, and record the lookup files of the day.
+     */
+    public void publish() throws IOException {
+        final Map<String, String> current = new TreeMap<String, String>(hashes);
+        if (current.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, String> lookup : current.entrySet()) {
+            final String basename = lookup.getKey();
+            if (lookup.getValue().equals(getLatest(basename))) {
+                continue;
+            }
+            writer.getLogger().log("  pointing latest " + basename + " to " + lookup.getValue());
+            final String symlinkKey = df.getLookupSymlinkKey(basename);
+            final String target = String.format("s3://%s/%s\n", df.getDstBucket(),
+                    df.getLookupStoreKey(basename, lookup.getValue()));
+            writer.putSmallObject(symlinkKey, target.getBytes(StandardCharsets.UTF_8));
+            // Every object in the table location is read as a manifest, so remove the rest
+            writer.deleteStaleObjects(symlinkKey.substring(0, symlinkKey.lastIndexOf('/') + 1),
+                    Collections.singletonList(symlinkKey));
+            latest.put(basename, lookup.getValue());
+        }
+        writer.putSmallObject(df.getLookupHistoryKey(), toManifest(current));
+    }
+
+    /**
+     * @param basename The name of the lookup entry in the Data Feed archive
+     * @return the hash of the latest lookup file of its table, or null if the table has none yet
+     * @throws IOException when the symlink of the table can not be read
+     */
+    private String getLatest(final String basename) throws IOException {
+        String hash = latest.get(basename);
+        if (hash == null) {
+            hash = parseSymlink(writer.getSmallObject(df.getLookupSymlinkKey(basename)));
+            latest.putIfAbsent(basename, hash);
+        }
+        return hash.isEmpty() ? null : hash;
+    }
+
+    /**
+     * @param symlink The contents of the symlink of a lookup table, or null if there is none
+     * @return the hash of the stored lookup file it points at, or an empty string if it points at none
+     */
+    static String parseSymlink(final byte[] symlink) {
+        if (symlink == null) {
+            return "";
+        }
+        final String target = new String(symlink, StandardCharsets.UTF_8).trim();
+        if (!target.endsWith(".tsv.gz")) {
+            return "";
+        }
+        return target.substring(target.lastIndexOf('/') + 1, target.length() - ".tsv.gz".length());
+    }
+
+    /**
+     * @return a manifest listing one entry name and hash per line
+     */
+    static byte[] toManifest(final Map<String, String> hashes) {
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> lookup : hashes.entrySet()) {
+            manifest.append(lookup.getKey()).append('\t').append(lookup.getValue()).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,16 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * ManifestCheck lists what is done about a delivery that does not match its manifest: an archive of another size,
+ * MD5 digest or hit_data record count than the .txt metadata file lists.
+ */
+enum ManifestCheck {
+    /** The manifest is not read, the archive is named after the metadata file. */
+    OFF,
+
+    /** The conversion fails, before anything is written where the mismatch can be told up front. */
+    FAIL,
+
+    /** The archive and manifest are copied aside, and the conversion is neither published nor cataloged. */
+    QUARANTINE
+}
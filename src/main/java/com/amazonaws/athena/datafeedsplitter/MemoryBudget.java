@@ -0,0 +1,122 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * MemoryBudget bounds the memory of the archives processed at once. Each archive reserves the most memory its
+ * pipeline holds under the configuration before it starts, and waits until that fits next to the archives already
+ * running. An archive larger than the whole budget runs on its own.
+ */
+class MemoryBudget {
+    private static final long MB = 1024 * 1024;
+    // How much larger the output of a speculatively decompressed region is, as hit_data compresses about 10 times
+    static final int SPECULATIVE_INFLATE_RATIO = 10;
+
+    private final long capacity;
+    private long reserved;
+
+    /**
+     * @param capacity The number of bytes shared by the archives
+     */
+    MemoryBudget(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param config The splitter configuration providing the budget
+     * @return a budget of the configured size
+     */
+    static MemoryBudget fromConfig(final SplitterConfig config) {
+        return new MemoryBudget(config.getMemoryBudgetMB() * MB);
+    }
+
+    /**
+     * @param config The splitter configuration the archive is processed with
+     * @return the number of bytes the buffers of one archive's pipeline can hold at most
+     */
+    static long archiveFootprint(final SplitterConfig config) {
+        // Windows being fetched, chunks queued before the tar parser and before the writer
+        long bytes = (long) config.getReaderConnections() * config.getReaderWindowSize();
+        bytes += 2L * config.getPipelineQueueDepth() * config.getPipelineChunkSize();
+        if (config.isSpeculativeInflate()) {
+            // A region and its whole output for each queued chunk and the one being read. The output takes two bytes
+            // per byte while it is symbolic, but only until it stops referring to the window before the region.
+            bytes += (config.getInflateThreads() + 1L) * config.getInflateChunkSize()
+                    * (1 + SPECULATIVE_INFLATE_RATIO);
+        }
+        // Blocks being deflated and their output, then parts and lookup files waiting to be uploaded
+        bytes += 2L * config.getCompressionThreads() * config.getCompressionBlockSize();
+        bytes += config.getMaxInMemoryPartBytes();
+        bytes += config.getMaxInMemoryLookupBytes();
+        if (config.getHitDataFormat() == HitDataFormat.PARQUET) {
+            bytes += config.getParquetRowGroupSize();
+        } else if (config.getHitDataFormat() == HitDataFormat.ORC) {
+            bytes += config.getOrcStripeSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Wait until the bytes fit in the budget and reserve them.
+     *
+     * @param bytes The number of bytes to reserve
+     * @return the number of bytes reserved, to hand to {@link #release(long)}
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized long reserve(final long bytes) throws InterruptedException {
+        final long granted = Math.min(bytes, capacity);
+        while (reserved + granted > capacity) {
+            wait();
+        }
+        reserved += granted;
+        return granted;
+    }
+
+    /**
+     * Wait until the bytes fit in the budget and reserve them, or give up once the time is up.
+     *
+     * @param bytes         The number of bytes to reserve
+     * @param timeoutMillis The longest time to wait
+     * @return the number of bytes reserved, to hand to {@link #release(long)}, or 0 if they did not fit in time
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized long reserve(final long bytes, final long timeoutMillis) throws InterruptedException {
+        final long granted = Math.min(bytes, capacity);
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (reserved + granted > capacity) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return 0;
+            }
+            wait(left);
+        }
+        reserved += granted;
+        return granted;
+    }
+
+    /**
+     * Reserve the bytes if they fit in the budget now, without waiting.
+     *
+     * @param bytes The number of bytes to reserve
+     * @return the number of bytes reserved, to hand to {@link #release(long)}, or 0 if they do not fit
+     */
+    public synchronized long tryReserve(final long bytes) {
+        final long granted = Math.min(bytes, capacity);
+        if (reserved + granted > capacity) {
+            return 0;
+        }
+        reserved += granted;
+        return granted;
+    }
+
+    /**
+     * @param granted The number of bytes returned by {@link #reserve(long)} or {@link #tryReserve(long)}
+     */
+    public synchronized void release(final long granted) {
+        reserved -= granted;
+        notifyAll();
+    }
+
+    /** getter for reserved. */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+}
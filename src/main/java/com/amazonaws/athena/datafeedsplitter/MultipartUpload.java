@@ -0,0 +1,190 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MultipartUpload tracks the state of a single S3 multipart upload whose parts are sent by a MultipartUploadEngine.
+ *
+ * Each upload keeps its own list of pending parts, so several objects can be uploaded at the same time
+ * without sharing part numbers or ETags.
+ */
+class MultipartUpload {
+    private final MultipartUploadEngine engine;
+    private final String bucket;
+    private final String key;
+    private final String uploadId;
+    private final List<Future<PartETag>> parts;
+    private final List<Runnable> partReleases;
+    private final List<AtomicBoolean> partsStarted;
+    private boolean aborted;
+
+    MultipartUpload(final MultipartUploadEngine engine, final String bucket, final String key, final String uploadId) {
+        this.engine = engine;
+        this.bucket = bucket;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.parts = new ArrayList<Future<PartETag>>();
+        this.partReleases = new ArrayList<Runnable>();
+        this.partsStarted = new ArrayList<AtomicBoolean>();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * @return the number of parts submitted so far
+     */
+    public int getPartCount() {
+        return parts.size();
+    }
+
+    /**
+     * @param data   The bytes of the part. Ownership passes to the upload; the caller must not modify them afterwards.
+     * @param length The number of bytes of data to send
+     * @param pool   The pool data is released to once the part has been sent, may be null
+     * @throws IOException when interrupted while waiting for room in the upload queue
+     *
+     * uploadPart queues a part for upload and returns as soon as the engine has room for it.
+     */
+    public void uploadPart(final byte[] data, final int length, final BufferPool pool) throws IOException {
+        final int partNumber = parts.size() + 1;
+        try {
+            engine.getPendingParts().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing part " + partNumber + " of " + key, e);
+        }
+
+        engine.getStats().sampleQueueDepth(engine.getPendingPartCount());
+
+        // A part beyond the memory budget waits on disk, and its buffer can be reused right away
+        final boolean inMemory = engine.reserveMemory(length);
+        final File spilled = inMemory ? null : engine.spill(data, length);
+        if (spilled != null && pool != null) {
+            pool.release(data);
+        }
+        final Runnable release = releasePart(length, inMemory, spilled);
+        final AtomicBoolean started = new AtomicBoolean();
+        try {
+            parts.add(engine.getExecutor().submit(() -> {
+                // A part claimed by abort is not sent
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                long start = engine.getStats().start();
+                try {
+                    engine.getLogger().log("  (" + partNumber + ") - " + key + (spilled != null ? " from disk" : ""));
+                    UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withPartNumber(partNumber)
+                            .withUploadId(uploadId)
+                            .withPartSize(length);
+                    if (spilled != null) {
+                        uploadPartRequest.withFile(spilled).withFileOffset(0);
+                    } else {
+                        uploadPartRequest.withInputStream(new ByteArrayInputStream(data, 0, length));
+                    }
+                    PartETag partETag = engine.getS3().uploadPart(uploadPartRequest).getPartETag();
+                    engine.getStats().finish(start);
+                    return partETag;
+                } finally {
+                    release.run();
+                    if (spilled == null && pool != null) {
+                        pool.release(data);
+                    }
+                }
+            }));
+            partReleases.add(release);
+            partsStarted.add(started);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a task that gives back the queue slot, memory budget and spill file of a part once it has been sent or
+     * will not be sent, and only once
+     */
+    private Runnable releasePart(final int length, final boolean inMemory, final File spilled) {
+        final AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            engine.getPendingParts().release();
+            if (inMemory) {
+                engine.releaseMemory(length);
+            }
+            if (spilled != null && !spilled.delete()) {
+                spilled.deleteOnExit();
+            }
+        };
+    }
+
+    /**
+     * @throws IOException when any of the parts failed to upload. The multipart upload is aborted in that case.
+     *
+     * complete waits for all queued parts and then completes the multipart upload.
+     */
+    public void complete() throws IOException {
+        List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+        try {
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted while waiting for parts of " + key, e);
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Error uploading part of " + key, e.getCause());
+        }
+
+        engine.getLogger().log("  " + key + " - completing multi-part upload with " + partETags.size() + " parts");
+        engine.getS3().completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+    }
+
+    /**
+     * Abort the multipart upload so that S3 does not keep the orphaned parts around. Aborting again does nothing.
+     */
+    public void abort() {
+        if (aborted) {
+            return;
+        }
+        aborted = true;
+        for (int i = 0; i < parts.size(); i++) {
+            // A part claimed before it started never releases what it holds by itself, a running part still does.
+            // The buffer of a claimed part is left to the garbage collector.
+            if (partsStarted.get(i).compareAndSet(false, true)) {
+                parts.get(i).cancel(false);
+                partReleases.get(i).run();
+            }
+        }
+        try {
+            engine.getS3().abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException e) {
+            engine.getLogger().log("Error aborting multi-part upload of " + key + ", ignoring...");
+            e.printStackTrace();
+        }
+    }
+}
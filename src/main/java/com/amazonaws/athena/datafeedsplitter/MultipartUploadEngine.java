@@ -0,0 +1,156 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MultipartUploadEngine owns the pool of threads that send multipart parts to S3.
+ *
+ * Parts are handed to the engine as soon as they are filled, so reading and compressing the next part overlaps
+ * with the network transfer of the previous ones. The number of parts that are queued or in flight is bounded,
+ * which caps the memory held by pending parts and pushes back on the reader when S3 is the bottleneck.
+ *
+ * Pending parts are also held against a memory budget. A part that does not fit it is written to the spill
+ * directory and sent from there, so more parts can be pending than the heap could hold. Parts stay in memory when
+ * the spill directory lacks the space.
+ */
+class MultipartUploadEngine {
+    private final AmazonS3 s3;
+    private final LambdaLogger logger;
+    private final ExecutorService executor;
+    private final Semaphore pendingParts;
+    private final int maxPendingParts;
+    private final StageStats stats;
+    private final File spillDirectory;
+    private final long maxInMemoryPartBytes;
+    private final AtomicLong inMemoryPartBytes = new AtomicLong();
+
+    /**
+     * @param logger The Lambda logger sent in to the parent job
+     * @param s3     A pre-existing AmazonS3 client
+     * @param config The splitter configuration providing thread and queue sizes
+     * @param stats  The statistics of the upload stage
+     */
+    public MultipartUploadEngine(final LambdaLogger logger, final AmazonS3 s3, final SplitterConfig config,
+                                 final StageStats stats) {
+        this.s3 = s3;
+        this.logger = logger;
+        this.executor = Executors.newFixedThreadPool(
+                config.getUploadThreads(),
+                new DaemonThreadFactory("part-uploader")
+        );
+        this.pendingParts = new Semaphore(config.getMaxPendingParts());
+        this.maxPendingParts = config.getMaxPendingParts();
+        this.stats = stats;
+        this.spillDirectory = new File(config.getSpillDirectory());
+        this.maxInMemoryPartBytes = config.getMaxInMemoryPartBytes();
+    }
+
+    /**
+     * @param bucket The destination bucket
+     * @param key    The destination key
+     * @return a new multipart upload whose parts are sent by this engine
+     */
+    public MultipartUpload start(final String bucket, final String key) {
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        return new MultipartUpload(this, bucket, key, uploadId);
+    }
+
+    AmazonS3 getS3() {
+        return s3;
+    }
+
+    LambdaLogger getLogger() {
+        return logger;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    Semaphore getPendingParts() {
+        return pendingParts;
+    }
+
+    StageStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param length The size of a part about to be queued
+     * @return whether the part fits the memory budget, in which case it is counted until {@link #releaseMemory(int)}
+     */
+    boolean reserveMemory(final int length) {
+        while (true) {
+            long current = inMemoryPartBytes.get();
+            // A single part is always allowed, so a budget below the part size does not spill everything
+            if (current > 0 && current + length > maxInMemoryPartBytes) {
+                return false;
+            }
+            if (inMemoryPartBytes.compareAndSet(current, current + length)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param length The size of a part counted by {@link #reserveMemory(int)} that has been sent
+     */
+    void releaseMemory(final int length) {
+        inMemoryPartBytes.addAndGet(-length);
+    }
+
+    /**
+     * @param data   The bytes of the part
+     * @param length The number of bytes of data
+     * @return the file the part was written to, or null if it could not be spilled and has to stay in memory
+     */
+    File spill(final byte[] data, final int length) {
+        if (spillDirectory.getUsableSpace() < length * 2L) {
+            return null;
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("part-", ".tmp", spillDirectory);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(data, 0, length);
+            }
+            return file;
+        } catch (IOException e) {
+            logger.log("Could not spill part to " + spillDirectory + ", keeping it in memory: " + e);
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of parts queued or in flight
+     */
+    int getPendingPartCount() {
+        return maxPendingParts - pendingParts.availablePermits();
+    }
+
+    /**
+     * Stop the uploader threads once all submitted parts have been sent.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.log("Part uploads still running after a minute, stopping them");
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.Arrays;
+
+/**
+ * OrcBloomFilter is the bloom filter ORC stores for a column of one row group.
+ *
+ * Strings are hashed with the 64-bit Murmur3 variant of ORC and Hive and integers with Thomas Wang's 64-bit
+ * integer hash, so the bit set matches what their readers probe when they evaluate an equality or IN predicate.
+ * Filters are serialized in the UTF-8 form, which readers trust for strings from writers newer than ORC-101.
+ */
+class OrcBloomFilter {
+    private static final int SEED = 104729;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int R1 = 31;
+    private static final int R2 = 27;
+    private static final int M = 5;
+    private static final int N1 = 0x52dce729;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashFunctions;
+
+    /**
+     * @param expectedEntries     The number of distinct values the filter is sized for
+     * @param falsePositiveChance The chance of a false positive once the filter holds expectedEntries values
+     */
+    OrcBloomFilter(final int expectedEntries, final double falsePositiveChance) {
+        final int entries = Math.max(expectedEntries, 1);
+        final int optimalBits = (int) (-entries * Math.log(falsePositiveChance) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[optimalBits / Long.SIZE + 1];
+        this.numBits = bits.length * Long.SIZE;
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / entries * Math.log(2)));
+    }
+
+    public void add(final byte[] buf, final int offset, final int length) {
+        addHash(hash64(buf, offset, length));
+    }
+
+    public void addLong(final long value) {
+        addHash(longHash(value));
+    }
+
+    public boolean mightContain(final byte[] buf, final int offset, final int length) {
+        return mightContainHash(hash64(buf, offset, length));
+    }
+
+    public boolean mightContainLong(final long value) {
+        return mightContainHash(longHash(value));
+    }
+
+    private void addHash(final long hash) {
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int position = position(hash, i);
+            bits[position >>> 6] |= 1L << position;
+        }
+    }
+
+    private boolean mightContainHash(final long hash) {
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int position = position(hash, i);
+            if ((bits[position >>> 6] & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    /**
+     * @return the bit set as 64-bit words, bit i being bit (i % 64) of word (i / 64)
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    public void clear() {
+        Arrays.fill(bits, 0L);
+    }
+
+    /**
+     * @return the BloomFilter message with the bit set as little endian 64-bit words
+     */
+    public ProtobufWriter encode() {
+        byte[] utf8Bits = new byte[bits.length * 8];
+        for (int i = 0; i < bits.length; i++) {
+            for (int b = 0; b < 8; b++) {
+                utf8Bits[i * 8 + b] = (byte) (bits[i] >>> (b * 8));
+            }
+        }
+        return new ProtobufWriter()
+                .uint64Field(1, numHashFunctions)
+                .bytesField(3, utf8Bits);
+    }
+
+    private int position(final long hash, final int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % numBits;
+    }
+
+    static long longHash(final long value) {
+        long key = value;
+        key = (~key) + (key << 21);
+        key = key ^ (key >> 24);
+        key = (key + (key << 3)) + (key << 8);
+        key = key ^ (key >> 14);
+        key = (key + (key << 2)) + (key << 4);
+        key = key ^ (key >> 28);
+        key = key + (key << 31);
+        return key;
+    }
+
+    static long hash64(final byte[] data, final int offset, final int length) {
+        long hash = SEED;
+        final int blocks = length >> 3;
+        for (int i = 0; i < blocks; i++) {
+            final int at = offset + (i << 3);
+            long k = (data[at] & 0xffL)
+                    | (data[at + 1] & 0xffL) << 8
+                    | (data[at + 2] & 0xffL) << 16
+                    | (data[at + 3] & 0xffL) << 24
+                    | (data[at + 4] & 0xffL) << 32
+                    | (data[at + 5] & 0xffL) << 40
+                    | (data[at + 6] & 0xffL) << 48
+                    | (data[at + 7] & 0xffL) << 56;
+            k *= C1;
+            k = Long.rotateLeft(k, R1);
+            k *= C2;
+            hash ^= k;
+            hash = Long.rotateLeft(hash, R2) * M + N1;
+        }
+
+        final int tail = offset + (blocks << 3);
+        final int remaining = length - (blocks << 3);
+        if (remaining > 0) {
+            long k = 0;
+            for (int i = remaining - 1; i >= 0; i--) {
+                k ^= (data[tail + i] & 0xffL) << (i * 8);
+            }
+            k *= C1;
+            k = Long.rotateLeft(k, R1);
+            k *= C2;
+            hash ^= k;
+        }
+
+        hash ^= length;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,729 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * OrcFileWriter streams rows of hit_data into an ORC file.
+ *
+ * Rows are buffered column by column, compressed as they arrive, until the stripe reaches its target size.
+ * The stripe is then written out and the buffers are reused, so memory is bounded by the stripe size rather
+ * than the file size. Statistics of every stripe are kept for the file metadata, which is written with the
+ * footer when the file is closed.
+ *
+ * Every column uses DIRECT encoding with a PRESENT stream of null flags. String columns have a DATA stream of
+ * the concatenated values and a LENGTH stream of the value lengths, INT and BIGINT columns a DATA stream of
+ * run length encoded integers. All streams are ZLIB compressed. Values that are not integers in an integer
+ * column are stored as nulls and counted. Each stripe starts with a
+ * row index holding statistics for every group of 10,000 rows and, for the chosen columns, bloom filters, so
+ * readers can skip stripes and row groups that can not match a predicate.
+ */
+class OrcFileWriter implements RowFileWriter {
+    private static final byte[] MAGIC = "ORC".getBytes(StandardCharsets.US_ASCII);
+
+    // ORC protobuf enumerations
+    private static final int KIND_INT = 3;
+    private static final int KIND_LONG = 4;
+    private static final int KIND_STRING = 7;
+    private static final int KIND_STRUCT = 12;
+    private static final int STREAM_PRESENT = 0;
+    private static final int STREAM_DATA = 1;
+    private static final int STREAM_LENGTH = 2;
+    private static final int STREAM_ROW_INDEX = 6;
+    private static final int STREAM_BLOOM_FILTER_UTF8 = 8;
+    private static final int ENCODING_DIRECT = 0;
+    private static final int COMPRESSION_ZLIB = 1;
+
+    // File format version 0.12, written with the fixes of ORC-135
+    private static final int[] VERSION = {0, 12};
+    private static final int WRITER_VERSION = 6;
+
+    // Values longer than this are left out of the column statistics
+    private static final int MAX_STATISTICS_LENGTH = 512;
+
+    // A multiple of 8, so every row group starts on a whole byte of the PRESENT stream
+    private static final int ROW_INDEX_STRIDE = 10000;
+    private static final double BLOOM_FILTER_FPP = 0.05;
+
+    private final OutputStream out;
+    private final DataFeedSchema schema;
+    private final int stripeSize;
+    private final int compressionBlockSize;
+    private final ColumnWriter[] columns;
+    private final Statistics[] fileStatistics;
+    private final List<byte[]> stripes = new ArrayList<byte[]>();
+    private final List<byte[]> stripeStatistics = new ArrayList<byte[]>();
+    private final IntegerParser parser = new IntegerParser();
+
+    // Streams are compressed one at a time, so they share the deflater and its output buffer
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] deflated = new byte[0];
+
+    private ProtobufWriter rootIndex = new ProtobufWriter();
+    private long position;
+    private int rowsInGroup;
+    private long rowsInStripe;
+    private long totalRows;
+    private long bufferedBytes;
+    private long rejectedValues;
+
+    /**
+     * @param out                  The stream the file is written to
+     * @param schema               The columns of the file
+     * @param stripeSize           The number of buffered bytes after which a stripe is written
+     * @param compressionBlockSize The number of bytes compressed as one ZLIB chunk
+     * @param bloomFilterColumns   The names of the columns that get bloom filters
+     * @throws IOException when the file header can not be written
+     */
+    OrcFileWriter(final OutputStream out, final DataFeedSchema schema, final int stripeSize,
+                  final int compressionBlockSize, final Collection<String> bloomFilterColumns)
+            throws IOException {
+        this.out = out;
+        this.schema = schema;
+        this.stripeSize = stripeSize;
+        this.compressionBlockSize = compressionBlockSize;
+        this.columns = new ColumnWriter[schema.getColumnCount()];
+        this.fileStatistics = new Statistics[columns.length + 1];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnWriter(schema.getColumnType(i),
+                    bloomFilterColumns.contains(schema.getColumnName(i)));
+        }
+        fileStatistics[0] = new Statistics(null);
+        for (int i = 0; i < columns.length; i++) {
+            fileStatistics[i + 1] = new Statistics(schema.getColumnType(i));
+        }
+        write(MAGIC);
+    }
+
+    @Override
+    public boolean writeRow(final TsvRow row) throws IOException {
+        if (rowsInGroup == ROW_INDEX_STRIDE) {
+            endRowGroup();
+        }
+        final int present = Math.min(row.getFieldCount(), columns.length);
+        for (int i = 0; i < present; i++) {
+            bufferedBytes += columns[i].writeValue(row.getBuffer(), row.getStart(i), row.getLength(i));
+        }
+        for (int i = present; i < columns.length; i++) {
+            columns[i].writeNull();
+        }
+        rowsInGroup++;
+        rowsInStripe++;
+
+        if (bufferedBytes >= stripeSize) {
+            flushStripe();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long getRejectedValues() {
+        return rejectedValues;
+    }
+
+    /**
+     * @return the number of rows buffered that are not yet part of a written stripe
+     */
+    public long getBufferedRows() {
+        return rowsInStripe;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            writeFooter();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeFooter() throws IOException {
+        if (rowsInStripe > 0) {
+            flushStripe();
+        }
+        final long contentLength = position;
+
+        ProtobufWriter metadata = new ProtobufWriter();
+        for (byte[] stripe : stripeStatistics) {
+            metadata.bytesField(1, stripe);
+        }
+        byte[] compressedMetadata = compress(metadata.toByteArray());
+        write(compressedMetadata);
+
+        ProtobufWriter footer = new ProtobufWriter()
+                .uint64Field(1, MAGIC.length)
+                .uint64Field(2, contentLength);
+        for (byte[] stripe : stripes) {
+            footer.bytesField(3, stripe);
+        }
+        int[] subtypes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            subtypes[i] = i + 1;
+        }
+        ProtobufWriter root = new ProtobufWriter()
+                .uint64Field(1, KIND_STRUCT)
+                .packedUint32Field(2, subtypes);
+        for (String name : schema.getColumnNames()) {
+            root.stringField(3, name);
+        }
+        footer.messageField(4, root);
+        for (ColumnWriter column : columns) {
+            footer.messageField(4, new ProtobufWriter().uint64Field(1, column.kind));
+        }
+        footer.uint64Field(6, totalRows);
+        for (Statistics statistics : fileStatistics) {
+            footer.messageField(7, statistics.encode());
+        }
+        footer.uint64Field(8, ROW_INDEX_STRIDE);
+        byte[] compressedFooter = compress(footer.toByteArray());
+        write(compressedFooter);
+
+        // The postscript is the only uncompressed structure, it tells readers how to read the others
+        byte[] postscript = new ProtobufWriter()
+                .uint64Field(1, compressedFooter.length)
+                .uint64Field(2, COMPRESSION_ZLIB)
+                .uint64Field(3, compressionBlockSize)
+                .packedUint32Field(4, VERSION)
+                .uint64Field(5, compressedMetadata.length)
+                .uint64Field(6, WRITER_VERSION)
+                .bytesField(8000, MAGIC)
+                .toByteArray();
+        write(postscript);
+        write(new byte[]{(byte) postscript.length});
+    }
+
+    private void endRowGroup() throws IOException {
+        Statistics rootStatistics = new Statistics(null);
+        rootStatistics.values = rowsInGroup;
+        rootIndex.messageField(1, new ProtobufWriter().messageField(2, rootStatistics.encode()));
+        for (ColumnWriter column : columns) {
+            column.endRowGroup();
+        }
+        rowsInGroup = 0;
+    }
+
+    private void flushStripe() throws IOException {
+        if (rowsInGroup > 0) {
+            endRowGroup();
+        }
+        final long offset = position;
+        ProtobufWriter stripeFooter = new ProtobufWriter();
+
+        // The index section: the row index of every column, followed by its bloom filters if it has any
+        long indexLength = writeStream(stripeFooter, STREAM_ROW_INDEX, 0, rootIndex.toByteArray());
+        for (int i = 0; i < columns.length; i++) {
+            ColumnWriter column = columns[i];
+            indexLength += writeStream(stripeFooter, STREAM_ROW_INDEX, i + 1, column.index.toByteArray());
+            if (column.bloomFilter != null) {
+                indexLength += writeStream(stripeFooter, STREAM_BLOOM_FILTER_UTF8, i + 1,
+                        column.bloomFilters.toByteArray());
+            }
+        }
+
+        // The data section: PRESENT, DATA and for strings LENGTH of every column, the root struct has no streams
+        ProtobufWriter statistics = new ProtobufWriter();
+        Statistics rootStatistics = new Statistics(null);
+        rootStatistics.values = rowsInStripe;
+        statistics.messageField(1, rootStatistics.encode());
+        fileStatistics[0].merge(rootStatistics);
+
+        long dataLength = 0;
+        for (int i = 0; i < columns.length; i++) {
+            ColumnWriter column = columns[i];
+            dataLength += writeStream(stripeFooter, STREAM_PRESENT, i + 1, column.present);
+            dataLength += writeStream(stripeFooter, STREAM_DATA, i + 1, column.data);
+            if (!column.type.isInteger()) {
+                dataLength += writeStream(stripeFooter, STREAM_LENGTH, i + 1, column.lengths);
+            }
+
+            statistics.messageField(1, column.statistics.encode());
+            fileStatistics[i + 1].merge(column.statistics);
+            column.resetStripe();
+        }
+        for (int i = 0; i <= columns.length; i++) {
+            stripeFooter.messageField(2, new ProtobufWriter().uint64Field(1, ENCODING_DIRECT));
+        }
+        byte[] compressedStripeFooter = compress(stripeFooter.toByteArray());
+        write(compressedStripeFooter);
+
+        stripes.add(new ProtobufWriter()
+                .uint64Field(1, offset)
+                .uint64Field(2, indexLength)
+                .uint64Field(3, dataLength)
+                .uint64Field(4, compressedStripeFooter.length)
+                .uint64Field(5, rowsInStripe)
+                .toByteArray());
+        stripeStatistics.add(statistics.toByteArray());
+
+        rootIndex = new ProtobufWriter();
+        totalRows += rowsInStripe;
+        rowsInStripe = 0;
+        bufferedBytes = 0;
+    }
+
+    private long writeStream(final ProtobufWriter stripeFooter, final int kind, final int column,
+                             final byte[] index) throws IOException {
+        CompressedStream stream = new CompressedStream();
+        stream.write(index, 0, index.length);
+        return writeStream(stripeFooter, kind, column, stream);
+    }
+
+    private long writeStream(final ProtobufWriter stripeFooter, final int kind, final int column,
+                             final CompressedStream stream) throws IOException {
+        stream.flush();
+        stripeFooter.messageField(1, new ProtobufWriter()
+                .uint64Field(1, kind)
+                .uint64Field(2, column)
+                .uint64Field(3, stream.compressed.size()));
+        stream.compressed.writeTo(out);
+        position += stream.compressed.size();
+        return stream.compressed.size();
+    }
+
+    private byte[] compress(final byte[] data) throws IOException {
+        CompressedStream stream = new CompressedStream();
+        stream.write(data, 0, data.length);
+        stream.flush();
+        return stream.compressed.toByteArray();
+    }
+
+    private void write(final byte[] buf) throws IOException {
+        out.write(buf, 0, buf.length);
+        position += buf.length;
+    }
+
+    private static int compareUnsigned(final byte[] a, final byte[] b, final int bOffset, final int bLength) {
+        int n = Math.min(a.length, bLength);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - bLength;
+    }
+
+    private static byte[] copy(final byte[] buf, final int offset, final int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(buf, offset, result, 0, length);
+        return result;
+    }
+
+    /**
+     * ColumnWriter encodes the streams and the index of one column for the current stripe.
+     */
+    private class ColumnWriter {
+        private final ColumnType type;
+        private final int kind;
+        private final CompressedStream present = new CompressedStream();
+        private final CompressedStream data = new CompressedStream();
+        private final CompressedStream lengths = new CompressedStream();
+        private final Statistics statistics;
+        private final Statistics groupStatistics;
+        private final OrcBloomFilter bloomFilter;
+
+        // Null flags are bit packed, then written as byte run length literals of up to 128 bytes
+        private final byte[] presentLiterals = new byte[128];
+        private int presentCount;
+        private int presentBits;
+        private int presentBitCount;
+
+        // String lengths or integer values are written as integer run length literals of up to 128 values
+        private final long[] integerLiterals = new long[128];
+        private int integerCount;
+
+        // Where the current row group starts in each stream, see startRowGroup
+        private final long[] groupPositions;
+        private ProtobufWriter index = new ProtobufWriter();
+        private ProtobufWriter bloomFilters = new ProtobufWriter();
+
+        ColumnWriter(final ColumnType type, final boolean hasBloomFilter) {
+            this.type = type;
+            this.kind = type == ColumnType.INT ? KIND_INT : type == ColumnType.BIGINT ? KIND_LONG : KIND_STRING;
+            this.statistics = new Statistics(type);
+            this.groupStatistics = new Statistics(type);
+            this.bloomFilter = hasBloomFilter ? new OrcBloomFilter(ROW_INDEX_STRIDE, BLOOM_FILTER_FPP) : null;
+            this.groupPositions = new long[type.isInteger() ? 7 : 9];
+        }
+
+        /**
+         * @return the number of bytes added to the buffered streams
+         */
+        int writeValue(final byte[] buf, final int offset, final int length) throws IOException {
+            if (type.isInteger()) {
+                return writeInteger(buf, offset, length);
+            }
+            presentBit(1);
+            data.write(buf, offset, length);
+            integerLiteral(length);
+            groupStatistics.update(buf, offset, length);
+            if (bloomFilter != null) {
+                bloomFilter.add(buf, offset, length);
+            }
+            return length + 2;
+        }
+
+        private int writeInteger(final byte[] buf, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                writeNull();
+                return 0;
+            }
+            if (!parser.parse(buf, offset, length) || !type.fits(parser.getValue())) {
+                rejectedValues++;
+                writeNull();
+                return 0;
+            }
+            final long value = parser.getValue();
+            presentBit(1);
+            // Signed integers are zigzag encoded
+            integerLiteral((value << 1) ^ (value >> 63));
+            groupStatistics.update(value);
+            if (bloomFilter != null) {
+                bloomFilter.addLong(value);
+            }
+            return 4;
+        }
+
+        void writeNull() throws IOException {
+            presentBit(0);
+            groupStatistics.hasNull = true;
+        }
+
+        /**
+         * Add the row group to the index. Run length literals are ended so the next row group starts at a run.
+         */
+        void endRowGroup() throws IOException {
+            if (presentBitCount > 0) {
+                presentBits <<= 8 - presentBitCount;
+                presentByte();
+            }
+            flushPresent();
+            flushIntegers();
+
+            index.messageField(1, new ProtobufWriter()
+                    .packedUint64Field(1, groupPositions)
+                    .messageField(2, groupStatistics.encode()));
+            statistics.merge(groupStatistics);
+            groupStatistics.reset();
+            if (bloomFilter != null) {
+                bloomFilters.messageField(1, bloomFilter.encode());
+                bloomFilter.clear();
+            }
+            startRowGroup();
+        }
+
+        /**
+         * Record the positions readers seek to for the next row group: for each stream the offset of the
+         * compressed chunk and the offset within it, then the offset within the run, and for PRESENT the bit.
+         * Strings have PRESENT, DATA and LENGTH streams, integers PRESENT and DATA.
+         */
+        private void startRowGroup() {
+            groupPositions[0] = present.compressed.size();
+            groupPositions[1] = present.length;
+            groupPositions[4] = data.compressed.size();
+            groupPositions[5] = data.length;
+            if (!type.isInteger()) {
+                groupPositions[6] = lengths.compressed.size();
+                groupPositions[7] = lengths.length;
+            }
+        }
+
+        private void integerLiteral(final long value) throws IOException {
+            integerLiterals[integerCount++] = value;
+            if (integerCount == integerLiterals.length) {
+                flushIntegers();
+            }
+        }
+
+        private void presentBit(final int bit) throws IOException {
+            presentBits = presentBits << 1 | bit;
+            if (++presentBitCount == 8) {
+                presentByte();
+            }
+        }
+
+        private void presentByte() throws IOException {
+            presentLiterals[presentCount++] = (byte) presentBits;
+            presentBits = 0;
+            presentBitCount = 0;
+            if (presentCount == presentLiterals.length) {
+                flushPresent();
+            }
+        }
+
+        private void flushPresent() throws IOException {
+            if (presentCount > 0) {
+                present.write(-presentCount);
+                present.write(presentLiterals, 0, presentCount);
+                presentCount = 0;
+            }
+        }
+
+        private void flushIntegers() throws IOException {
+            if (integerCount > 0) {
+                CompressedStream stream = type.isInteger() ? data : lengths;
+                stream.write(-integerCount);
+                for (int i = 0; i < integerCount; i++) {
+                    stream.writeVarint(integerLiterals[i]);
+                }
+                integerCount = 0;
+            }
+        }
+
+        void resetStripe() {
+            present.reset();
+            data.reset();
+            lengths.reset();
+            statistics.reset();
+            index = new ProtobufWriter();
+            bloomFilters = new ProtobufWriter();
+            startRowGroup();
+        }
+    }
+
+    /**
+     * CompressedStream cuts its input into chunks that are ZLIB compressed as they fill up. Each chunk starts
+     * with a 3 byte header holding its length and whether it was stored uncompressed because that was smaller.
+     */
+    private class CompressedStream extends OutputStream {
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private byte[] buffer = new byte[Math.min(1024, compressionBlockSize)];
+        private int length;
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (length == buffer.length) {
+                grow();
+            }
+            buffer[length++] = (byte) b;
+            if (length == compressionBlockSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(final byte[] buf, final int offset, final int count) throws IOException {
+            int off = offset;
+            int remaining = count;
+            while (remaining > 0) {
+                if (length == buffer.length) {
+                    grow();
+                }
+                int n = Math.min(remaining, buffer.length - length);
+                System.arraycopy(buf, off, buffer, length, n);
+                length += n;
+                off += n;
+                remaining -= n;
+                if (length == compressionBlockSize) {
+                    flush();
+                }
+            }
+        }
+
+        void writeVarint(final long value) throws IOException {
+            long v = value;
+            while ((v & ~0x7fL) != 0) {
+                write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        /**
+         * Compress the buffered input as a chunk, even if it is smaller than the block size.
+         */
+        @Override
+        public void flush() {
+            if (length == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(buffer, 0, length);
+            deflater.finish();
+            if (deflated.length < length) {
+                deflated = new byte[length];
+            }
+            int outputLength = 0;
+            while (!deflater.finished() && outputLength < length) {
+                outputLength += deflater.deflate(deflated, outputLength, length - outputLength);
+            }
+
+            if (deflater.finished() && outputLength < length) {
+                header(outputLength, false);
+                compressed.write(deflated, 0, outputLength);
+            } else {
+                header(length, true);
+                compressed.write(buffer, 0, length);
+            }
+            length = 0;
+        }
+
+        void reset() {
+            compressed.reset();
+            length = 0;
+        }
+
+        private void header(final int chunkLength, final boolean original) {
+            int value = chunkLength << 1 | (original ? 1 : 0);
+            compressed.write(value);
+            compressed.write(value >> 8);
+            compressed.write(value >> 16);
+        }
+
+        /**
+         * Buffers start small and grow up to the block size, as most columns of hit_data are sparse.
+         * A full buffer is compressed straight away, so a recorded position never points at the end of a chunk.
+         */
+        private void grow() {
+            buffer = Arrays.copyOf(buffer, Math.min(compressionBlockSize, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Statistics of a column within a row group, a stripe or the whole file.
+     */
+    private static class Statistics {
+        private final ColumnType type;
+        private long values;
+        private boolean hasNull;
+
+        // String columns
+        private long sum;
+        private boolean minMaxValid = true;
+        private byte[] min;
+        private byte[] max;
+
+        // Integer columns, the sum is left out once it overflows
+        private long minInteger;
+        private long maxInteger;
+        private long integerSum;
+        private boolean integerSumValid = true;
+
+        /**
+         * @param type The type of the column, null for the root struct
+         */
+        Statistics(final ColumnType type) {
+            this.type = type;
+        }
+
+        void update(final byte[] buf, final int offset, final int length) {
+            values++;
+            sum += length;
+            if (!minMaxValid) {
+                return;
+            }
+            if (length > MAX_STATISTICS_LENGTH) {
+                minMaxValid = false;
+                min = null;
+                max = null;
+                return;
+            }
+            if (min == null || compareUnsigned(min, buf, offset, length) > 0) {
+                min = copy(buf, offset, length);
+            }
+            if (max == null || compareUnsigned(max, buf, offset, length) < 0) {
+                max = copy(buf, offset, length);
+            }
+        }
+
+        void update(final long value) {
+            if (values == 0 || value < minInteger) {
+                minInteger = value;
+            }
+            if (values == 0 || value > maxInteger) {
+                maxInteger = value;
+            }
+            addToSum(value);
+            values++;
+        }
+
+        void merge(final Statistics other) {
+            if (other.values > 0 && type != null && type.isInteger()) {
+                if (values == 0 || other.minInteger < minInteger) {
+                    minInteger = other.minInteger;
+                }
+                if (values == 0 || other.maxInteger > maxInteger) {
+                    maxInteger = other.maxInteger;
+                }
+                integerSumValid &= other.integerSumValid;
+                addToSum(other.integerSum);
+            }
+            values += other.values;
+            hasNull |= other.hasNull;
+            sum += other.sum;
+            if (!other.minMaxValid) {
+                minMaxValid = false;
+                min = null;
+                max = null;
+            }
+            if (!minMaxValid || other.min == null) {
+                return;
+            }
+            if (min == null || compareUnsigned(min, other.min, 0, other.min.length) > 0) {
+                min = other.min;
+            }
+            if (max == null || compareUnsigned(max, other.max, 0, other.max.length) < 0) {
+                max = other.max;
+            }
+        }
+
+        void reset() {
+            values = 0;
+            hasNull = false;
+            sum = 0;
+            minMaxValid = true;
+            min = null;
+            max = null;
+            integerSum = 0;
+            integerSumValid = true;
+        }
+
+        ProtobufWriter encode() {
+            ProtobufWriter encoded = new ProtobufWriter().uint64Field(1, values);
+            if (type == ColumnType.STRING) {
+                ProtobufWriter stringStatistics = new ProtobufWriter();
+                if (minMaxValid && min != null) {
+                    stringStatistics.bytesField(1, min).bytesField(2, max);
+                }
+                stringStatistics.sint64Field(3, sum);
+                encoded.messageField(4, stringStatistics);
+            } else if (type != null) {
+                ProtobufWriter integerStatistics = new ProtobufWriter();
+                if (values > 0) {
+                    integerStatistics.sint64Field(1, minInteger).sint64Field(2, maxInteger);
+                }
+                if (integerSumValid) {
+                    integerStatistics.sint64Field(3, integerSum);
+                }
+                encoded.messageField(2, integerStatistics);
+            }
+            return encoded.boolField(10, hasNull);
+        }
+
+        private void addToSum(final long value) {
+            if (!integerSumValid) {
+                return;
+            }
+            long result = integerSum + value;
+            // Overflow if both operands have the sign opposite to the result
+            if (((integerSum ^ result) & (value ^ result)) < 0) {
+                integerSumValid = false;
+            } else {
+                integerSum = result;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ParallelGzipOutputStream writes a single gzip member whose deflate blocks are compressed concurrently.
+ *
+ * In the same way as pigz, input is cut into fixed size blocks and each block is deflated by a worker thread,
+ * primed with the last 32KB of the previous block as a dictionary so the compression ratio stays close to a
+ * single-threaded stream. Every block but the last ends with a sync flush so the compressed blocks can simply be
+ * concatenated. Block checksums are combined into the CRC-32 of the whole stream for the gzip trailer.
+ *
+ * Compressed blocks are written to the underlying stream in order, from the thread calling write or close,
+ * so the underlying stream does not need to be thread safe.
+ *
+ * Input blocks and compressed output are taken from a buffer pool and released to it once written, an input block
+ * only after the next block, which uses it as a dictionary, has been compressed too.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final int level;
+    private final int outputSize;
+    private final BufferPool pool;
+    private final Deque<Future<CompressedBlock>> pending;
+    private final StageStats stats;
+
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private int previousLength;
+    private byte[] lastWrittenInput;
+
+    private long crc;
+    private long totalLength;
+    private boolean closed;
+
+    /**
+     * @param out              The stream compressed bytes are written to
+     * @param compressors      The worker pool that deflates blocks
+     * @param blockSize        The number of uncompressed bytes per block
+     * @param maxPendingBlocks The number of blocks that may be compressing before write blocks the caller
+     * @param level            The deflate compression level
+     * @param stats            The statistics of the compression stage
+     * @param pool             The pool blocks are taken from and released to, may be null
+     * @throws IOException when the gzip header cannot be written
+     */
+    ParallelGzipOutputStream(final OutputStream out, final ExecutorService compressors, final int blockSize,
+                             final int maxPendingBlocks, final int level, final StageStats stats,
+                             final BufferPool pool) throws IOException {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+        }
+        this.out = out;
+        this.compressors = compressors;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.level = level;
+        this.stats = stats;
+        this.pool = pool == null ? new BufferPool(0) : pool;
+        this.outputSize = blockSize + (blockSize >> 3) + 1024;
+        this.pending = new ArrayDeque<Future<CompressedBlock>>();
+        this.block = this.pool.acquire(blockSize);
+
+        out.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        ensureOpen();
+        int off = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            int count = Math.min(remaining, blockSize - blockLength);
+            System.arraycopy(buf, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            remaining -= count;
+
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Write all blocks that have finished compressing, without waiting on blocks that are still in progress.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeBlock(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress the remaining input as the final block, write all blocks and the gzip trailer,
+     * then close the underlying stream.
+     *
+     * The underlying stream is only closed once the gzip stream is complete, so that on failure the caller can
+     * discard it instead of publishing a truncated stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writeBlock(pending.removeFirst());
+            }
+            pool.release(lastWrittenInput);
+            lastWrittenInput = null;
+
+            byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, crc);
+            writeIntLE(trailer, 4, totalLength);
+            out.write(trailer);
+        } finally {
+            closed = true;
+            for (Future<CompressedBlock> future : pending) {
+                future.cancel(true);
+            }
+        }
+        out.close();
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        final byte[] dictionary = previousBlock;
+        final int dictionaryLength = previousLength;
+
+        stats.sampleQueueDepth(pending.size());
+        pending.addLast(compressors.submit(() -> compress(input, inputLength, dictionary, dictionaryLength, last)));
+
+        previousBlock = input;
+        previousLength = inputLength;
+        block = last ? null : pool.acquire(blockSize);
+        blockLength = 0;
+
+        // Bound the number of blocks in memory by waiting for the oldest one
+        while (pending.size() > maxPendingBlocks) {
+            writeBlock(pending.removeFirst());
+        }
+    }
+
+    private CompressedBlock compress(final byte[] input, final int inputLength, final byte[] dictionary,
+                                     final int dictionaryLength, final boolean last) {
+        long start = stats.start();
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                int size = Math.min(DICTIONARY_SIZE, dictionaryLength);
+                deflater.setDictionary(dictionary, dictionaryLength - size, size);
+            }
+            deflater.setInput(input, 0, inputLength);
+
+            byte[] output = pool.acquire(outputSize);
+            int outputLength = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (outputLength == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                }
+            } else {
+                // A sync flush is complete once deflate leaves room in the output buffer
+                int count;
+                do {
+                    if (outputLength == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    count = deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+                    outputLength += count;
+                } while (outputLength == output.length);
+            }
+
+            CRC32 checksum = new CRC32();
+            checksum.update(input, 0, inputLength);
+            return new CompressedBlock(input, output, outputLength, checksum.getValue(), inputLength);
+        } finally {
+            deflater.end();
+            stats.finish(start);
+        }
+    }
+
+    private void writeBlock(final Future<CompressedBlock> future) throws IOException {
+        CompressedBlock compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+
+        out.write(compressed.data, 0, compressed.length);
+        crc = Crc32Combine.combine(crc, compressed.crc, compressed.inputLength);
+        totalLength += compressed.inputLength;
+
+        // The previous input was the dictionary of this block, so neither is needed by a compressor any more
+        if (compressed.data.length == outputSize) {
+            pool.release(compressed.data);
+        }
+        pool.release(lastWrittenInput);
+        lastWrittenInput = compressed.input;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    static void writeIntLE(final byte[] buf, final int offset, final long value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * The deflated form of one block along with what is needed to build the gzip trailer.
+     */
+    private static class CompressedBlock {
+        private final byte[] input;
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final int inputLength;
+
+        CompressedBlock(final byte[] input, final byte[] data, final int length, final long crc,
+                        final int inputLength) {
+            this.input = input;
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.inputLength = inputLength;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ParquetFileWriter streams rows of hit_data into a Parquet file.
+ *
+ * Rows are buffered column by column until the row group reaches its target size, then every column chunk is
+ * written out and the buffers are reused, so memory is bounded by the row group size rather than the file size.
+ * The footer is written when the file is closed.
+ *
+ * Every column is optional and stored with PLAIN encoding and RLE definition levels in GZIP compressed
+ * version 1 data pages, with min/max statistics for each column chunk. String columns are UTF-8 byte arrays,
+ * INT and BIGINT columns are 32 and 64-bit integers. Values that are not integers in an integer column
+ * are stored as nulls and counted.
+ */
+class ParquetFileWriter implements RowFileWriter {
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final String CREATED_BY = "athena-adobe-datafeed-splitter";
+
+    // Parquet Thrift enumerations
+    private static final int TYPE_INT32 = 1;
+    private static final int TYPE_INT64 = 2;
+    private static final int TYPE_BYTE_ARRAY = 6;
+    private static final int REPETITION_OPTIONAL = 1;
+    private static final int CONVERTED_TYPE_UTF8 = 0;
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int CODEC_GZIP = 2;
+    private static final int PAGE_TYPE_DATA_PAGE = 0;
+
+    // Values longer than this are left out of the column chunk statistics
+    private static final int MAX_STATISTICS_LENGTH = 512;
+
+    private final OutputStream out;
+    private final DataFeedSchema schema;
+    private final int rowGroupSize;
+    private final int pageSize;
+    private final ColumnWriter[] columns;
+    private final List<byte[]> rowGroups = new ArrayList<byte[]>();
+    private final IntegerParser parser = new IntegerParser();
+
+    private long position;
+    private long rowsInGroup;
+    private long totalRows;
+    private long bufferedBytes;
+    private long rejectedValues;
+
+    /**
+     * @param out          The stream the file is written to
+     * @param schema       The columns of the file
+     * @param rowGroupSize The number of buffered bytes after which a row group is written
+     * @param pageSize     The number of value bytes after which a column's page is compressed
+     * @throws IOException when the file header can not be written
+     */
+    ParquetFileWriter(final OutputStream out, final DataFeedSchema schema, final int rowGroupSize,
+                      final int pageSize) throws IOException {
+        this.out = out;
+        this.schema = schema;
+        this.rowGroupSize = rowGroupSize;
+        this.pageSize = pageSize;
+        this.columns = new ColumnWriter[schema.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnWriter(schema.getColumnName(i), schema.getColumnType(i));
+        }
+        write(MAGIC, 0, MAGIC.length);
+    }
+
+    @Override
+    public boolean writeRow(final TsvRow row) throws IOException {
+        final int present = Math.min(row.getFieldCount(), columns.length);
+        for (int i = 0; i < present; i++) {
+            bufferedBytes += columns[i].writeValue(row.getBuffer(), row.getStart(i), row.getLength(i));
+        }
+        for (int i = present; i < columns.length; i++) {
+            columns[i].writeNull();
+        }
+        rowsInGroup++;
+
+        if (bufferedBytes >= rowGroupSize) {
+            flushRowGroup();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long getRejectedValues() {
+        return rejectedValues;
+    }
+
+    /**
+     * @return the number of rows buffered that are not yet part of a written row group
+     */
+    public long getBufferedRows() {
+        return rowsInGroup;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (rowsInGroup > 0) {
+            flushRowGroup();
+        }
+
+        byte[] footer = fileMetaData();
+        write(footer, 0, footer.length);
+        byte[] footerLength = new byte[4];
+        writeIntLE(footerLength, 0, footer.length);
+        write(footerLength, 0, footerLength.length);
+        write(MAGIC, 0, MAGIC.length);
+    }
+
+    private void flushRowGroup() throws IOException {
+        ThriftCompactWriter rowGroup = new ThriftCompactWriter();
+        rowGroup.beginList(1, ThriftCompactWriter.TYPE_STRUCT, columns.length);
+        long totalByteSize = 0;
+        for (ColumnWriter column : columns) {
+            column.flushPage();
+            long chunkOffset = position;
+            column.chunk.writeTo(out);
+            position += column.chunk.size();
+            totalByteSize += column.uncompressedSize;
+            column.writeChunkMetaData(rowGroup, chunkOffset, rowsInGroup);
+            column.resetChunk();
+        }
+        rowGroup.i64Field(2, totalByteSize);
+        rowGroup.i64Field(3, rowsInGroup);
+        rowGroup.stop();
+        rowGroups.add(rowGroup.toByteArray());
+
+        totalRows += rowsInGroup;
+        rowsInGroup = 0;
+        bufferedBytes = 0;
+    }
+
+    private byte[] fileMetaData() {
+        ThriftCompactWriter meta = new ThriftCompactWriter();
+        meta.i32Field(1, 1);
+
+        meta.beginList(2, ThriftCompactWriter.TYPE_STRUCT, columns.length + 1);
+        meta.beginListStruct()
+                .stringField(4, "schema")
+                .i32Field(5, columns.length)
+                .endStruct();
+        for (ColumnWriter column : columns) {
+            meta.beginListStruct()
+                    .i32Field(1, column.physicalType)
+                    .i32Field(3, REPETITION_OPTIONAL)
+                    .stringField(4, column.name);
+            if (column.type == ColumnType.STRING) {
+                meta.i32Field(6, CONVERTED_TYPE_UTF8);
+            }
+            meta.endStruct();
+        }
+
+        meta.i64Field(3, totalRows);
+
+        // Row groups were encoded as they were written
+        meta.beginList(4, ThriftCompactWriter.TYPE_STRUCT, rowGroups.size());
+        for (byte[] rowGroup : rowGroups) {
+            meta.listEncodedStruct(rowGroup);
+        }
+
+        meta.stringField(6, CREATED_BY);
+
+        // Column orders tell readers that min/max statistics use the unsigned byte-wise order of UTF-8
+        // and the signed order of integers
+        meta.beginList(7, ThriftCompactWriter.TYPE_STRUCT, columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            meta.beginListStruct().beginStruct(1).endStruct().endStruct();
+        }
+        return meta.stop().toByteArray();
+    }
+
+    private void write(final byte[] buf, final int offset, final int length) throws IOException {
+        out.write(buf, offset, length);
+        position += length;
+    }
+
+    private static void writeIntLE(final byte[] buf, final int offset, final int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int compareUnsigned(final byte[] a, final byte[] b, final int bOffset, final int bLength) {
+        int n = Math.min(a.length, bLength);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - bLength;
+    }
+
+    /**
+     * ColumnWriter buffers the pages of one column chunk.
+     */
+    private class ColumnWriter {
+        private final String name;
+        private final ColumnType type;
+        private final int physicalType;
+        private final ByteArrayOutputStream values = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream definitionLevels = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        private final byte[] lengthPrefix = new byte[4];
+
+        private int runLevel = -1;
+        private int runLength;
+        private int pageValues;
+
+        private long chunkNulls;
+        private long uncompressedSize;
+        private boolean statisticsValid = true;
+        private byte[] min;
+        private byte[] max;
+        private long minInteger;
+        private long maxInteger;
+        private boolean hasIntegers;
+
+        ColumnWriter(final String name, final ColumnType type) {
+            this.name = name;
+            this.type = type;
+            switch (type) {
+                case INT:
+                    physicalType = TYPE_INT32;
+                    break;
+                case BIGINT:
+                    physicalType = TYPE_INT64;
+                    break;
+                default:
+                    physicalType = TYPE_BYTE_ARRAY;
+            }
+        }
+
+        /**
+         * @return the number of bytes added to the buffered values
+         */
+        int writeValue(final byte[] buf, final int offset, final int length) throws IOException {
+            if (type.isInteger()) {
+                return writeInteger(buf, offset, length);
+            }
+            definitionLevel(1);
+            writeIntLE(lengthPrefix, 0, length);
+            values.write(lengthPrefix, 0, 4);
+            values.write(buf, offset, length);
+            updateStatistics(buf, offset, length);
+
+            if (values.size() >= pageSize) {
+                flushPage();
+            }
+            return length + 4;
+        }
+
+        private int writeInteger(final byte[] buf, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                writeNull();
+                return 0;
+            }
+            if (!parser.parse(buf, offset, length) || !type.fits(parser.getValue())) {
+                rejectedValues++;
+                writeNull();
+                return 0;
+            }
+            final long value = parser.getValue();
+            if (!hasIntegers || value < minInteger) {
+                minInteger = value;
+            }
+            if (!hasIntegers || value > maxInteger) {
+                maxInteger = value;
+            }
+            hasIntegers = true;
+
+            definitionLevel(1);
+            final int width = physicalType == TYPE_INT32 ? 4 : 8;
+            for (int i = 0; i < width; i++) {
+                values.write((int) (value >>> (i * 8)));
+            }
+            if (values.size() >= pageSize) {
+                flushPage();
+            }
+            return width;
+        }
+
+        void writeNull() throws IOException {
+            definitionLevel(0);
+            chunkNulls++;
+        }
+
+        private void definitionLevel(final int level) {
+            if (level != runLevel) {
+                endRun();
+                runLevel = level;
+            }
+            runLength++;
+            pageValues++;
+        }
+
+        /**
+         * Definition levels are written as RLE runs of the hybrid encoding: the run length shifted left by one,
+         * followed by the level in a single byte since the maximum level is 1.
+         */
+        private void endRun() {
+            if (runLength > 0) {
+                writeUnsignedVarint(definitionLevels, (long) runLength << 1);
+                definitionLevels.write(runLevel);
+            }
+            runLength = 0;
+        }
+
+        private void updateStatistics(final byte[] buf, final int offset, final int length) {
+            if (!statisticsValid) {
+                return;
+            }
+            if (length > MAX_STATISTICS_LENGTH) {
+                statisticsValid = false;
+                min = null;
+                max = null;
+                return;
+            }
+            if (min == null || compareUnsigned(min, buf, offset, length) > 0) {
+                min = copy(buf, offset, length);
+            }
+            if (max == null || compareUnsigned(max, buf, offset, length) < 0) {
+                max = copy(buf, offset, length);
+            }
+        }
+
+        void flushPage() throws IOException {
+            if (pageValues == 0) {
+                return;
+            }
+            endRun();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(4 + definitionLevels.size() + values.size());
+            writeIntLE(lengthPrefix, 0, definitionLevels.size());
+            body.write(lengthPrefix, 0, 4);
+            definitionLevels.writeTo(body);
+            values.writeTo(body);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.size() / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                body.writeTo(gzip);
+            }
+
+            byte[] header = new ThriftCompactWriter()
+                    .i32Field(1, PAGE_TYPE_DATA_PAGE)
+                    .i32Field(2, body.size())
+                    .i32Field(3, compressed.size())
+                    .beginStruct(5)
+                    .i32Field(1, pageValues)
+                    .i32Field(2, ENCODING_PLAIN)
+                    .i32Field(3, ENCODING_RLE)
+                    .i32Field(4, ENCODING_RLE)
+                    .endStruct()
+                    .stop()
+                    .toByteArray();
+
+            chunk.write(header, 0, header.length);
+            compressed.writeTo(chunk);
+            uncompressedSize += header.length + body.size();
+
+            values.reset();
+            definitionLevels.reset();
+            runLevel = -1;
+            pageValues = 0;
+        }
+
+        void writeChunkMetaData(final ThriftCompactWriter rowGroup, final long chunkOffset, final long rows) {
+            rowGroup.beginListStruct()
+                    .i64Field(2, chunkOffset)
+                    .beginStruct(3)
+                    .i32Field(1, physicalType)
+                    .beginList(2, ThriftCompactWriter.TYPE_I32, 2).listI32(ENCODING_PLAIN).listI32(ENCODING_RLE)
+                    .beginList(3, ThriftCompactWriter.TYPE_BINARY, 1).listString(name)
+                    .i32Field(4, CODEC_GZIP)
+                    .i64Field(5, rows)
+                    .i64Field(6, uncompressedSize)
+                    .i64Field(7, chunk.size())
+                    .i64Field(9, chunkOffset);
+
+            rowGroup.beginStruct(12).i64Field(3, chunkNulls);
+            if (hasIntegers) {
+                rowGroup.binaryField(5, integerStatistic(maxInteger)).binaryField(6, integerStatistic(minInteger));
+            } else if (statisticsValid && max != null) {
+                rowGroup.binaryField(5, max).binaryField(6, min);
+            }
+            rowGroup.endStruct();
+
+            rowGroup.endStruct().endStruct();
+        }
+
+        /**
+         * @return the value in the PLAIN encoding of the column, as used by statistics
+         */
+        private byte[] integerStatistic(final long value) {
+            byte[] encoded = new byte[physicalType == TYPE_INT32 ? 4 : 8];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = (byte) (value >>> (i * 8));
+            }
+            return encoded;
+        }
+
+        void resetChunk() {
+            chunk.reset();
+            chunkNulls = 0;
+            uncompressedSize = 0;
+            statisticsValid = true;
+            min = null;
+            max = null;
+            hasIntegers = false;
+        }
+    }
+
+    private static byte[] copy(final byte[] buf, final int offset, final int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(buf, offset, result, 0, length);
+        return result;
+    }
+
+    private static void writeUnsignedVarint(final ByteArrayOutputStream out, final long value) {
+        long v = value;
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+}
@@ -0,0 +1,59 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PipelineStats collects the StageStats of every stage a Data Feed passes through, in pipeline order:
+ * fetch, inflate, parse, write, compress and upload.
+ */
+class PipelineStats {
+    public static final String FETCH = "fetch";
+    public static final String INFLATE = "inflate";
+    public static final String PARSE = "parse";
+    public static final String WRITE = "write";
+    public static final String COMPRESS = "compress";
+    public static final String UPLOAD = "upload";
+
+    private final List<StageStats> stages = new ArrayList<StageStats>();
+
+    PipelineStats() {
+        // Register the known stages up front so they are reported in pipeline order
+        for (String name : new String[]{FETCH, INFLATE, PARSE, WRITE, COMPRESS, UPLOAD}) {
+            stage(name);
+        }
+    }
+
+    /**
+     * @param name The name of the stage
+     * @return the statistics of the named stage, created on first use
+     */
+    public synchronized StageStats stage(final String name) {
+        for (StageStats stats : stages) {
+            if (stats.getName().equals(name)) {
+                return stats;
+            }
+        }
+        StageStats stats = new StageStats(name);
+        stages.add(stats);
+        return stats;
+    }
+
+    /**
+     * @return a snapshot of all stages seen so far
+     */
+    public synchronized List<StageStats> getStages() {
+        return new ArrayList<StageStats>(stages);
+    }
+
+    /**
+     * @param logger The Lambda logger to write one line per stage to
+     */
+    public void log(final LambdaLogger logger) {
+        for (StageStats stats : getStages()) {
+            logger.log("  stage " + stats);
+        }
+    }
+}
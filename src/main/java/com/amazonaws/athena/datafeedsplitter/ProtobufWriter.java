@@ -0,0 +1,89 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ProtobufWriter encodes messages in the protocol buffers wire format.
+ *
+ * ORC stores its stripe footers, file footer and postscript as protocol buffers. Only the varint and
+ * length-delimited wire types ORC metadata uses are supported, which avoids pulling the protobuf runtime
+ * into the Lambda package. Nested messages are encoded with their own writer and added as bytes.
+ */
+class ProtobufWriter {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * @return the bytes encoded so far
+     */
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    public ProtobufWriter uint64Field(final int id, final long value) {
+        tag(id, WIRE_VARINT);
+        writeVarint(value);
+        return this;
+    }
+
+    public ProtobufWriter sint64Field(final int id, final long value) {
+        return uint64Field(id, (value << 1) ^ (value >> 63));
+    }
+
+    public ProtobufWriter boolField(final int id, final boolean value) {
+        return uint64Field(id, value ? 1 : 0);
+    }
+
+    public ProtobufWriter bytesField(final int id, final byte[] value) {
+        tag(id, WIRE_LENGTH_DELIMITED);
+        writeVarint(value.length);
+        out.write(value, 0, value.length);
+        return this;
+    }
+
+    public ProtobufWriter stringField(final int id, final String value) {
+        return bytesField(id, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ProtobufWriter messageField(final int id, final ProtobufWriter message) {
+        return bytesField(id, message.toByteArray());
+    }
+
+    /**
+     * Write a repeated uint32 field in packed form.
+     */
+    public ProtobufWriter packedUint32Field(final int id, final int... values) {
+        ProtobufWriter packed = new ProtobufWriter();
+        for (int value : values) {
+            packed.writeVarint(value & 0xffffffffL);
+        }
+        return bytesField(id, packed.toByteArray());
+    }
+
+    /**
+     * Write a repeated uint64 field in packed form.
+     */
+    public ProtobufWriter packedUint64Field(final int id, final long... values) {
+        ProtobufWriter packed = new ProtobufWriter();
+        for (long value : values) {
+            packed.writeVarint(value);
+        }
+        return bytesField(id, packed.toByteArray());
+    }
+
+    private void tag(final int id, final int wireType) {
+        writeVarint((long) id << 3 | wireType);
+    }
+
+    private void writeVarint(final long value) {
+        long v = value;
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+}
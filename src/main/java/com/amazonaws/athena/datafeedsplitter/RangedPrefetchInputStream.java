@@ -0,0 +1,201 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * RangedPrefetchInputStream reads an S3 object through several parallel ranged GET requests.
+ *
+ * The object is split into fixed size windows. Up to a bounded number of windows are fetched ahead of the reader,
+ * each on its own connection, and are handed out strictly in order. A single S3 connection is limited to a
+ * fraction of the Lambda network bandwidth, so this lets the downstream GZIPInputStream read at the speed
+ * of several connections.
+ */
+class RangedPrefetchInputStream extends InputStream {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final long end;
+    private final int windowSize;
+    private final int maxWindows;
+    private final ExecutorService fetchers;
+    private final Deque<Future<byte[]>> windows;
+    private final StageStats stats;
+
+    private long nextFetchOffset;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param s3           A pre-existing AmazonS3 client
+     * @param bucket       The bucket of the object to read
+     * @param key          The key of the object to read
+     * @param objectLength The total length of the object
+     * @param windowSize   The number of bytes requested by each ranged GET
+     * @param connections  The number of ranged GETs that may run at once
+     * @param stats        The statistics of the fetch stage
+     */
+    RangedPrefetchInputStream(final AmazonS3 s3, final String bucket, final String key, final long objectLength,
+                              final int windowSize, final int connections, final StageStats stats) {
+        this(s3, bucket, key, 0, objectLength, windowSize, connections, stats);
+    }
+
+    /**
+     * @param s3          A pre-existing AmazonS3 client
+     * @param bucket      The bucket of the object to read
+     * @param key         The key of the object to read
+     * @param start       The offset of the first byte to read
+     * @param end         The offset after the last byte to read
+     * @param windowSize  The number of bytes requested by each ranged GET
+     * @param connections The number of ranged GETs that may run at once
+     * @param stats       The statistics of the fetch stage
+     */
+    RangedPrefetchInputStream(final AmazonS3 s3, final String bucket, final String key, final long start,
+                              final long end, final int windowSize, final int connections, final StageStats stats) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.end = end;
+        this.nextFetchOffset = start;
+        this.windowSize = windowSize;
+        this.maxWindows = connections * 2;
+        this.fetchers = Executors.newFixedThreadPool(connections, new DaemonThreadFactory("range-fetcher"));
+        this.windows = new ArrayDeque<Future<byte[]>>();
+        this.stats = stats;
+
+        fillWindows();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buf, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> window : windows) {
+            window.cancel(true);
+        }
+        windows.clear();
+        fetchers.shutdownNow();
+    }
+
+    /**
+     * @return true when there are unread bytes in the current window, false at the end of the object
+     */
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            if (windows.isEmpty()) {
+                return false;
+            }
+            current = takeWindow(windows.removeFirst());
+            position = 0;
+            fillWindows();
+        }
+        return true;
+    }
+
+    private byte[] takeWindow(final Future<byte[]> window) throws IOException {
+        int ready = 0;
+        for (Future<byte[]> pending : windows) {
+            if (pending.isDone()) {
+                ready++;
+            }
+        }
+        stats.sampleQueueDepth(window.isDone() ? ready + 1 : ready);
+
+        try {
+            return window.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading s3://" + bucket + "/" + key, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error reading s3://" + bucket + "/" + key, e.getCause());
+        }
+    }
+
+    private void fillWindows() {
+        while (windows.size() < maxWindows && nextFetchOffset < end) {
+            final long start = nextFetchOffset;
+            final int length = (int) Math.min(windowSize, end - start);
+            windows.addLast(fetchers.submit(() -> fetch(start, length)));
+            nextFetchOffset += length;
+        }
+    }
+
+    private byte[] fetch(final long start, final int length) throws IOException {
+        long startNanos = stats.start();
+        byte[] data = readRange(s3, bucket, key, start, length);
+        stats.finish(startNanos);
+        return data;
+    }
+
+    /**
+     * Read a byte range of an object in full, retrying the request when the connection drops part way through.
+     */
+    static byte[] readRange(final AmazonS3 s3, final String bucket, final String key, final long start,
+                            final int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int attempt = 1; ; attempt++) {
+            GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, start + length - 1);
+            try (S3ObjectInputStream in = s3.getObject(request).getObjectContent()) {
+                int filled = 0;
+                int count;
+                while (filled < length && (count = in.read(data, filled, length - filled)) != -1) {
+                    filled += count;
+                }
+                if (filled != length) {
+                    throw new IOException("Expected " + length + " bytes at offset " + start + ", got " + filled);
+                }
+                return data;
+            } catch (IOException | SdkClientException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
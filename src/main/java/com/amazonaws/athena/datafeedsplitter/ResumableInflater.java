@@ -0,0 +1,840 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ResumableInflater decodes a raw deflate stream, like java.util.zip.Inflater, but can also start in the middle of
+ * the stream.
+ *
+ * In the same way as zlib's zran example, decoding can start at the first bit of any deflate block, given the 32KB
+ * of uncompressed data that precede it as the window that matches may refer to. While decoding, the inflater can
+ * record such access points every so many uncompressed bytes, so a later reader can start at the one nearest to
+ * the data it is after, or several readers can decode the stretches between access points in parallel. zlib has no
+ * way to report block boundaries through java.util.zip, hence a decoder of its own.
+ *
+ * Bit offsets are absolute within the file the stream is part of, so that access points can be turned into ranged
+ * GETs of the file. The input stream must start at the byte holding the first bit to decode.
+ *
+ * Decoding can even start at a block whose window is not known yet, see {@link #speculative}. Output then comes as
+ * symbols from {@link #readSymbols}, where a symbol of {@link #MARKER} or more stands for the byte of the window at
+ * that position minus MARKER, until 32KB have been decoded that refer to no unknown byte and the output turns back
+ * into bytes. This is how pugz decompresses one gzip stream on several threads.
+ */
+class ResumableInflater {
+    static final int WINDOW_SIZE = 32 * 1024;
+    static final int MARKER = 256;
+
+    private static final int MAX_MATCH = 258;
+    private static final int OUTPUT_SIZE = 256 * 1024;
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int FAST_BITS = 10;
+    private static final int MAX_BITS = 15;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_STORED = 1;
+    private static final int STATE_HUFFMAN = 2;
+    private static final int STATE_DONE = 3;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195,
+            227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577
+    };
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        FIXED_LITERALS = new Huffman(288);
+        FIXED_LITERALS.build(lengths, 0, 288);
+        Arrays.fill(lengths, 0, 30, 5);
+        FIXED_DISTANCES = new Huffman(30);
+        FIXED_DISTANCES.build(lengths, 0, 30);
+    }
+
+    /**
+     * AccessPoint is a place where decoding can start: the first bit of a deflate block, the number of
+     * uncompressed bytes before it and the window of uncompressed bytes just before it.
+     */
+    static class AccessPoint {
+        private final long bitOffset;
+        private final long outOffset;
+        private final byte[] window;
+
+        AccessPoint(final long bitOffset, final long outOffset, final byte[] window) {
+            this.bitOffset = bitOffset;
+            this.outOffset = outOffset;
+            this.window = window;
+        }
+
+        /** getter for bitOffset. */
+        public long getBitOffset() {
+            return bitOffset;
+        }
+
+        /** getter for outOffset. */
+        public long getOutOffset() {
+            return outOffset;
+        }
+
+        /** getter for window. */
+        public byte[] getWindow() {
+            return window;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] input;
+    private final int inputOffset;
+    private final long inputOffsetByte;
+    private int inputPosition;
+    private int inputLimit;
+    private long inputByte;
+    private long bitBuffer;
+    private int bitCount;
+
+    // The window of history, then the decoded bytes that have not been read yet
+    private final byte[] output = new byte[WINDOW_SIZE + OUTPUT_SIZE];
+    private int outputStart;
+    private int outputEnd;
+    private int history;
+    private long totalOut;
+
+    private final Huffman literals = new Huffman(288);
+    private final Huffman distances = new Huffman(30);
+    private final Huffman codeLengths = new Huffman(19);
+    private final int[] lengths = new int[288 + 30];
+    private Huffman literalCode;
+    private Huffman distanceCode;
+    private int state = STATE_HEADER;
+    private boolean lastBlock;
+    private int storedRemaining;
+
+    private final long span;
+    private long nextAccessPoint;
+    private final List<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
+
+    // While the window is unknown, symbols take the place of the output bytes
+    private char[] symbols;
+    private boolean symbolic;
+    private long lastMarkerOut;
+    private long stopBit = Long.MAX_VALUE;
+    private boolean stopped;
+    private int blocks;
+    private boolean probing;
+
+    /**
+     * @param in        The compressed bytes, starting with the byte that holds the first bit to decode
+     * @param bitOffset The offset of the first bit to decode in the file
+     * @param outOffset The number of uncompressed bytes before the first bit to decode
+     * @param window    The uncompressed bytes just before the first bit to decode, at most 32KB of them
+     * @param span      The number of uncompressed bytes between recorded access points, zero to record none
+     * @throws IOException when the first byte can not be read
+     */
+    ResumableInflater(final InputStream in, final long bitOffset, final long outOffset, final byte[] window,
+                      final long span) throws IOException {
+        this.in = in;
+        this.input = new byte[INPUT_SIZE];
+        this.inputOffset = 0;
+        this.inputOffsetByte = bitOffset >>> 3;
+        this.span = span;
+        start(bitOffset, outOffset, window);
+    }
+
+    /**
+     * @param data      The compressed bytes
+     * @param offset    The offset in data of the byte that holds the first bit to decode
+     * @param length    The number of compressed bytes in data from offset on
+     * @param bitOffset The offset of the first bit to decode in the file
+     * @param outOffset The number of uncompressed bytes before the first bit to decode
+     * @param window    The uncompressed bytes just before the first bit to decode, at most 32KB of them
+     * @throws IOException when the first byte is not in data
+     */
+    ResumableInflater(final byte[] data, final int offset, final int length, final long bitOffset,
+                      final long outOffset, final byte[] window) throws IOException {
+        this.in = null;
+        this.input = data;
+        this.inputOffset = offset;
+        this.inputOffsetByte = bitOffset >>> 3;
+        this.inputLimit = offset + length;
+        this.span = 0;
+        start(bitOffset, outOffset, window);
+    }
+
+    /**
+     * Create an inflater for a block whose window is not known yet, see {@link #readSymbols}.
+     *
+     * @param data      The compressed bytes
+     * @param offset    The offset in data of the byte that holds the first bit to decode
+     * @param length    The number of compressed bytes in data from offset on
+     * @param bitOffset The offset of the first bit to decode in the file, which must be the first bit of a block
+     * @return the inflater, counting uncompressed bytes from the start of the block
+     * @throws IOException when the first byte is not in data
+     */
+    static ResumableInflater speculative(final byte[] data, final int offset, final int length,
+                                         final long bitOffset) throws IOException {
+        ResumableInflater inflater = new ResumableInflater(data, offset, length, bitOffset, 0, new byte[0]);
+        inflater.symbols = new char[inflater.output.length];
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            inflater.symbols[i] = (char) (MARKER + i);
+        }
+        inflater.symbolic = true;
+        inflater.history = WINDOW_SIZE;
+        inflater.lastMarkerOut = -1;
+        return inflater;
+    }
+
+    private void start(final long bitOffset, final long outOffset, final byte[] window) throws IOException {
+        this.inputPosition = inputOffset + (int) ((bitOffset >>> 3) - inputOffsetByte);
+        this.inputByte = bitOffset >>> 3;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.state = STATE_HEADER;
+        this.lastBlock = false;
+        this.stopped = false;
+        this.blocks = 0;
+        this.totalOut = outOffset;
+        this.history = Math.min(window.length, WINDOW_SIZE);
+        System.arraycopy(window, window.length - history, output, WINDOW_SIZE - history, history);
+        this.outputStart = WINDOW_SIZE;
+        this.outputEnd = WINDOW_SIZE;
+        this.nextAccessPoint = span > 0 ? outOffset : Long.MAX_VALUE;
+        final int skip = (int) (bitOffset & 7);
+        if (skip > 0) {
+            need(skip);
+            drop(skip);
+        }
+    }
+
+    /**
+     * @return the decoded bytes read into buf, or -1 once the final block has been decoded
+     */
+    public int read(final byte[] buf, final int offset, final int length) throws IOException {
+        if (symbolic) {
+            throw new IllegalStateException("The window is not known yet, read symbols instead");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (outputStart == outputEnd) {
+            if (state == STATE_DONE) {
+                return -1;
+            }
+            decode();
+        }
+        final int count = Math.min(length, outputEnd - outputStart);
+        System.arraycopy(output, outputStart, buf, offset, count);
+        outputStart += count;
+        return count;
+    }
+
+    /**
+     * Read the output of a speculative inflater while it still refers to the unknown window.
+     *
+     * @return the symbols read into buf, 0 once the output has turned into bytes to {@link #read}, or -1 once
+     * decoding has finished
+     */
+    public int readSymbols(final char[] buf, final int offset, final int length) throws IOException {
+        while (symbolic && outputStart == outputEnd) {
+            if (state == STATE_DONE) {
+                return -1;
+            }
+            decode();
+        }
+        if (!symbolic) {
+            return 0;
+        }
+        final int count = Math.min(length, outputEnd - outputStart);
+        System.arraycopy(symbols, outputStart, buf, offset, count);
+        outputStart += count;
+        return count;
+    }
+
+    /**
+     * @return whether the output still refers to the unknown window, see {@link #readSymbols}
+     */
+    public boolean isSymbolic() {
+        return symbolic;
+    }
+
+    /**
+     * @param bit Stop decoding at the first block that starts at or after this bit, instead of at the final block
+     */
+    public void setStopBit(final long bit) {
+        stopBit = bit;
+    }
+
+    /**
+     * @return whether decoding stopped at the stop bit rather than after the final block
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return the offset in the file of the next bit to decode, which once finished is the end of the decoded
+     * blocks
+     */
+    public long getBitPosition() {
+        return inputByte * 8 - bitCount;
+    }
+
+    /**
+     * Check whether a speculative inflater could start at a bit, by decoding a few blocks from it.
+     *
+     * @param bitOffset The offset of the bit in the file, within the data the inflater was created with
+     * @param count     The number of blocks that have to decode without error
+     * @return whether the blocks decoded, or the final block did
+     */
+    public boolean probe(final long bitOffset, final int count) {
+        // Only dynamic blocks are tried, fixed ones decode from almost any bits. Most candidates fail on the header.
+        final int index = inputOffset + (int) ((bitOffset >>> 3) - inputOffsetByte);
+        if (index + 1 >= inputLimit) {
+            return false;
+        }
+        final int header = ((input[index] & 0xff) | (input[index + 1] & 0xff) << 8) >>> (bitOffset & 7);
+        if ((header & 7) != 4) {
+            return false;
+        }
+        probing = true;
+        try {
+            start(bitOffset, 0, new byte[0]);
+            symbolic = true;
+            history = WINDOW_SIZE;
+            lastMarkerOut = -1;
+            while (state != STATE_DONE && blocks <= count) {
+                outputStart = outputEnd;
+                decode();
+            }
+            return !stopped;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            probing = false;
+        }
+    }
+
+    /**
+     * @return the number of bytes decoded so far, counted from the start of the stream
+     */
+    public long getTotalOut() {
+        return totalOut;
+    }
+
+    /**
+     * @return whether the final block has been decoded
+     */
+    public boolean isFinished() {
+        return state == STATE_DONE;
+    }
+
+    /**
+     * @return the access points recorded so far
+     */
+    public List<AccessPoint> getAccessPoints() {
+        return accessPoints;
+    }
+
+    /**
+     * Read whole bytes following the deflate stream, such as a gzip trailer, once it is finished.
+     *
+     * @return the next byte after the end of the deflate stream, or -1 at the end of the input
+     */
+    public int readTrailerByte() throws IOException {
+        drop(bitCount & 7);
+        if (bitCount >= 8) {
+            final int b = (int) (bitBuffer & 0xff);
+            drop(8);
+            return b;
+        }
+        return nextByte();
+    }
+
+    /**
+     * Decode until the output is nearly full, the current block ends or the stream ends.
+     */
+    private void decode() throws IOException {
+        if (symbolic && totalOut - lastMarkerOut > WINDOW_SIZE) {
+            // Nothing from here on can refer to the unknown window any more
+            for (int i = outputEnd - WINDOW_SIZE; i < outputEnd; i++) {
+                output[i] = (byte) symbols[i];
+            }
+            symbolic = false;
+        }
+        if (outputEnd > output.length - MAX_MATCH - 1) {
+            // Keep the window of history in front of the next output
+            if (symbolic) {
+                System.arraycopy(symbols, outputEnd - WINDOW_SIZE, symbols, 0, WINDOW_SIZE);
+            } else {
+                System.arraycopy(output, outputEnd - WINDOW_SIZE, output, 0, WINDOW_SIZE);
+            }
+            outputStart = WINDOW_SIZE;
+            outputEnd = WINDOW_SIZE;
+        }
+        switch (state) {
+            case STATE_HEADER:
+                readBlockHeader();
+                break;
+            case STATE_STORED:
+                copyStored();
+                break;
+            case STATE_HUFFMAN:
+                if (symbolic) {
+                    decodeHuffmanSymbols();
+                } else {
+                    decodeHuffman();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void readBlockHeader() throws IOException {
+        if (lastBlock) {
+            state = STATE_DONE;
+            return;
+        }
+        if (getBitPosition() >= stopBit) {
+            stopped = true;
+            state = STATE_DONE;
+            return;
+        }
+        blocks++;
+        if (totalOut >= nextAccessPoint) {
+            final int windowLength = Math.min(history, WINDOW_SIZE);
+            accessPoints.add(new AccessPoint(getBitPosition(), totalOut,
+                    Arrays.copyOfRange(output, outputEnd - windowLength, outputEnd)));
+            nextAccessPoint = totalOut + span;
+        }
+
+        need(3);
+        lastBlock = bits(1) == 1;
+        final int type = bits(2);
+        if (type == 0) {
+            drop(bitCount & 7);
+            need(32);
+            final int length = bits(16);
+            final int complement = bits(16);
+            if ((length ^ 0xffff) != complement) {
+                throw new IOException("Invalid stored block length at bit " + getBitPosition());
+            }
+            storedRemaining = length;
+            state = STATE_STORED;
+        } else if (type == 1) {
+            literalCode = FIXED_LITERALS;
+            distanceCode = FIXED_DISTANCES;
+            state = STATE_HUFFMAN;
+        } else if (type == 2) {
+            readDynamicTables();
+            literalCode = literals;
+            distanceCode = distances;
+            state = STATE_HUFFMAN;
+        } else {
+            throw new IOException("Invalid block type at bit " + getBitPosition());
+        }
+    }
+
+    private void readDynamicTables() throws IOException {
+        need(14);
+        final int literalCount = bits(5) + 257;
+        final int distanceCount = bits(5) + 1;
+        final int codeLengthCount = bits(4) + 4;
+        if (literalCount > 286 || distanceCount > 30) {
+            throw new IOException("Invalid dynamic block header at bit " + getBitPosition());
+        }
+
+        Arrays.fill(lengths, 0, 19, 0);
+        for (int i = 0; i < codeLengthCount; i++) {
+            need(3);
+            lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+        }
+        if (!codeLengths.build(lengths, 0, 19) || probing && !codeLengths.complete) {
+            throw new IOException("Invalid code length code at bit " + getBitPosition());
+        }
+
+        int index = 0;
+        final int total = literalCount + distanceCount;
+        while (index < total) {
+            final int symbol = decodeSymbol(codeLengths);
+            if (symbol < 16) {
+                lengths[index++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (index == 0) {
+                    throw new IOException("Repeat of no code length at bit " + getBitPosition());
+                }
+                value = lengths[index - 1];
+                need(2);
+                repeat = 3 + bits(2);
+            } else if (symbol == 17) {
+                need(3);
+                repeat = 3 + bits(3);
+            } else {
+                need(7);
+                repeat = 11 + bits(7);
+            }
+            if (index + repeat > total) {
+                throw new IOException("Too many code lengths at bit " + getBitPosition());
+            }
+            Arrays.fill(lengths, index, index + repeat, value);
+            index += repeat;
+        }
+        if (lengths[256] == 0) {
+            throw new IOException("Missing end of block code at bit " + getBitPosition());
+        }
+        if (!literals.build(lengths, 0, literalCount) || !distances.build(lengths, literalCount, distanceCount)
+                || probing && !literals.complete) {
+            throw new IOException("Invalid Huffman code lengths at bit " + getBitPosition());
+        }
+    }
+
+    private void copyStored() throws IOException {
+        final int start = outputEnd;
+        int room = output.length - outputEnd;
+        // Whole bytes left in the bit buffer come first
+        while (storedRemaining > 0 && room > 0 && bitCount >= 8) {
+            if (symbolic) {
+                symbols[outputEnd++] = (char) (bitBuffer & 0xff);
+            } else {
+                output[outputEnd++] = (byte) bitBuffer;
+            }
+            drop(8);
+            storedRemaining--;
+            room--;
+            totalOut++;
+        }
+        while (storedRemaining > 0 && room > 0) {
+            if (inputPosition == inputLimit && !fill()) {
+                throw new IOException("Unexpected end of deflate stream in stored block");
+            }
+            final int count = Math.min(Math.min(storedRemaining, room), inputLimit - inputPosition);
+            if (symbolic) {
+                for (int i = 0; i < count; i++) {
+                    symbols[outputEnd + i] = (char) (input[inputPosition + i] & 0xff);
+                }
+            } else {
+                System.arraycopy(input, inputPosition, output, outputEnd, count);
+            }
+            inputPosition += count;
+            inputByte += count;
+            outputEnd += count;
+            storedRemaining -= count;
+            room -= count;
+            totalOut += count;
+        }
+        addHistory(outputEnd - start);
+        if (storedRemaining == 0) {
+            state = STATE_HEADER;
+        }
+    }
+
+    private void decodeHuffman() throws IOException {
+        final byte[] out = output;
+        final int limit = out.length - MAX_MATCH;
+        int end = outputEnd;
+        try {
+            while (end <= limit) {
+                final int symbol = decodeSymbol(literalCode);
+                if (symbol < 256) {
+                    out[end++] = (byte) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    state = STATE_HEADER;
+                    return;
+                }
+                final int lengthSymbol = symbol - 257;
+                if (lengthSymbol >= 29) {
+                    throw new IOException("Invalid length code at bit " + getBitPosition());
+                }
+                int length = LENGTH_BASE[lengthSymbol];
+                if (LENGTH_EXTRA[lengthSymbol] > 0) {
+                    need(LENGTH_EXTRA[lengthSymbol]);
+                    length += bits(LENGTH_EXTRA[lengthSymbol]);
+                }
+                final int distanceSymbol = decodeSymbol(distanceCode);
+                if (distanceSymbol >= 30) {
+                    throw new IOException("Invalid distance code at bit " + getBitPosition());
+                }
+                int distance = DISTANCE_BASE[distanceSymbol];
+                if (DISTANCE_EXTRA[distanceSymbol] > 0) {
+                    need(DISTANCE_EXTRA[distanceSymbol]);
+                    distance += bits(DISTANCE_EXTRA[distanceSymbol]);
+                }
+                if (distance > history + (end - outputEnd)) {
+                    throw new IOException("Distance too far back at bit " + getBitPosition());
+                }
+                int from = end - distance;
+                if (distance >= length) {
+                    System.arraycopy(out, from, out, end, length);
+                    end += length;
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        out[end++] = out[from++];
+                    }
+                }
+            }
+        } finally {
+            final int produced = end - outputEnd;
+            outputEnd = end;
+            totalOut += produced;
+            addHistory(produced);
+        }
+    }
+
+    /**
+     * decodeHuffman for a speculative inflater, noting where the last symbol of the unknown window went.
+     */
+    private void decodeHuffmanSymbols() throws IOException {
+        final char[] out = symbols;
+        final int limit = out.length - MAX_MATCH;
+        int end = outputEnd;
+        int lastMarker = -1;
+        try {
+            while (end <= limit) {
+                final int symbol = decodeSymbol(literalCode);
+                if (symbol < 256) {
+                    out[end++] = (char) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    state = STATE_HEADER;
+                    return;
+                }
+                final int lengthSymbol = symbol - 257;
+                if (lengthSymbol >= 29) {
+                    throw new IOException("Invalid length code at bit " + getBitPosition());
+                }
+                int length = LENGTH_BASE[lengthSymbol];
+                if (LENGTH_EXTRA[lengthSymbol] > 0) {
+                    need(LENGTH_EXTRA[lengthSymbol]);
+                    length += bits(LENGTH_EXTRA[lengthSymbol]);
+                }
+                final int distanceSymbol = decodeSymbol(distanceCode);
+                if (distanceSymbol >= 30) {
+                    throw new IOException("Invalid distance code at bit " + getBitPosition());
+                }
+                int distance = DISTANCE_BASE[distanceSymbol];
+                if (DISTANCE_EXTRA[distanceSymbol] > 0) {
+                    need(DISTANCE_EXTRA[distanceSymbol]);
+                    distance += bits(DISTANCE_EXTRA[distanceSymbol]);
+                }
+                if (distance > history + (end - outputEnd)) {
+                    throw new IOException("Distance too far back at bit " + getBitPosition());
+                }
+                int from = end - distance;
+                for (int i = 0; i < length; i++) {
+                    final char c = out[from++];
+                    if (c >= MARKER) {
+                        lastMarker = end;
+                    }
+                    out[end++] = c;
+                }
+            }
+        } finally {
+            final int produced = end - outputEnd;
+            if (lastMarker >= 0) {
+                lastMarkerOut = totalOut + (lastMarker - outputEnd);
+            }
+            outputEnd = end;
+            totalOut += produced;
+            addHistory(produced);
+        }
+    }
+
+    private void addHistory(final int produced) {
+        history = Math.min(WINDOW_SIZE, history + produced);
+    }
+
+    private int decodeSymbol(final Huffman code) throws IOException {
+        if (bitCount < MAX_BITS) {
+            refill();
+        }
+        final int entry = code.fast[(int) (bitBuffer & ((1 << FAST_BITS) - 1))];
+        if (entry != 0) {
+            final int length = entry & 0xf;
+            if (length > bitCount) {
+                throw new IOException("Unexpected end of deflate stream");
+            }
+            drop(length);
+            return entry >>> 4;
+        }
+        return decodeSlow(code);
+    }
+
+    /**
+     * Decode a code longer than the fast table covers, or an invalid code, one bit at a time.
+     */
+    private int decodeSlow(final Huffman code) throws IOException {
+        int value = 0;
+        int first = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_BITS; length++) {
+            value |= (int) (bitBuffer >>> (length - 1)) & 1;
+            final int count = code.count[length];
+            if (value - count < first) {
+                if (length > bitCount) {
+                    throw new IOException("Unexpected end of deflate stream");
+                }
+                drop(length);
+                return code.symbols[index + (value - first)];
+            }
+            index += count;
+            first += count;
+            first <<= 1;
+            value <<= 1;
+        }
+        throw new IOException("Invalid Huffman code at bit " + getBitPosition());
+    }
+
+    private int bits(final int count) {
+        final int value = (int) (bitBuffer & ((1L << count) - 1));
+        drop(count);
+        return value;
+    }
+
+    private void drop(final int count) {
+        bitBuffer >>>= count;
+        bitCount -= count;
+    }
+
+    private void need(final int count) throws IOException {
+        if (bitCount < count) {
+            refill();
+            if (bitCount < count) {
+                throw new IOException("Unexpected end of deflate stream");
+            }
+        }
+    }
+
+    /**
+     * Top up the bit buffer as far as the input allows. Past the end of the input, missing bits read as zeros
+     * without being counted, so decoding can look ahead at the last code.
+     */
+    private void refill() throws IOException {
+        while (bitCount <= 56) {
+            if (inputPosition == inputLimit && !fill()) {
+                return;
+            }
+            bitBuffer |= (long) (input[inputPosition++] & 0xff) << bitCount;
+            bitCount += 8;
+            inputByte++;
+        }
+    }
+
+    private int nextByte() throws IOException {
+        if (inputPosition == inputLimit && !fill()) {
+            return -1;
+        }
+        inputByte++;
+        return input[inputPosition++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        final int count = in.read(input, 0, input.length);
+        if (count <= 0) {
+            return false;
+        }
+        inputPosition = 0;
+        inputLimit = count;
+        return true;
+    }
+
+    /**
+     * Huffman is a canonical Huffman code, decoded through a table of the codes up to FAST_BITS long and
+     * otherwise one bit at a time from the code counts, as zlib's puff does.
+     */
+    private static class Huffman {
+        private final int[] count = new int[MAX_BITS + 1];
+        private final int[] symbols;
+        private final int[] fast = new int[1 << FAST_BITS];
+        private final int[] offsets = new int[MAX_BITS + 2];
+        // Whether every bit sequence is a code, as zlib makes all but single code distance codes
+        private boolean complete;
+
+        Huffman(final int maxSymbols) {
+            this.symbols = new int[maxSymbols];
+        }
+
+        /**
+         * @return false if the lengths describe more codes than there are, in which case the code can not be used
+         */
+        boolean build(final int[] lengths, final int offset, final int n) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++) {
+                count[lengths[offset + i]]++;
+            }
+            count[0] = 0;
+            int left = 1;
+            for (int length = 1; length <= MAX_BITS; length++) {
+                left = (left << 1) - count[length];
+                if (left < 0) {
+                    return false;
+                }
+            }
+            complete = left == 0;
+
+            offsets[1] = 0;
+            for (int length = 1; length <= MAX_BITS; length++) {
+                offsets[length + 1] = offsets[length] + count[length];
+            }
+            for (int i = 0; i < n; i++) {
+                final int length = lengths[offset + i];
+                if (length != 0) {
+                    symbols[offsets[length]++] = i;
+                }
+            }
+
+            Arrays.fill(fast, 0);
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= MAX_BITS; length++) {
+                for (int i = 0; i < count[length]; i++) {
+                    if (length <= FAST_BITS) {
+                        final int entry = (symbols[index] << 4) | length;
+                        for (int reversed = reverse(code, length); reversed < fast.length;
+                             reversed += 1 << length) {
+                            fast[reversed] = entry;
+                        }
+                    }
+                    code++;
+                    index++;
+                }
+                code <<= 1;
+            }
+            return true;
+        }
+
+        private static int reverse(final int code, final int length) {
+            return Integer.reverse(code) >>> (32 - length);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * RowBoundaryScanner finds the ends of rows in a stream of Data Feed TSV bytes.
+ *
+ * Adobe escapes tabs, newlines and backslashes that are part of a value with a backslash, so a newline only ends
+ * a row when it is preceded by an even number of backslashes. The scanner carries that escape state from one
+ * buffer to the next, so rows may span any number of writes.
+ */
+class RowBoundaryScanner {
+    private boolean escaped;
+
+    /**
+     * Account for bytes that are passed through without looking for a row end.
+     *
+     * @param buf  The buffer holding the bytes
+     * @param from The offset of the first byte
+     * @param to   The offset after the last byte
+     */
+    public void skip(final byte[] buf, final int from, final int to) {
+        // Only the run of backslashes at the very end decides whether the next byte is escaped
+        int run = 0;
+        int i = to - 1;
+        while (i >= from && buf[i] == '\\') {
+            run++;
+            i--;
+        }
+        if (i >= from) {
+            escaped = (run & 1) == 1;
+        } else {
+            escaped ^= (run & 1) == 1;
+        }
+    }
+
+    /**
+     * @param buf  The buffer holding the bytes
+     * @param from The offset of the first byte to scan
+     * @param to   The offset after the last byte to scan
+     * @return the offset just after the first unescaped newline in the range, or -1 if there is none.
+     *         The scanner state is advanced to the returned offset, or to the end of the range.
+     */
+    public int findRowEnd(final byte[] buf, final int from, final int to) {
+        boolean esc = escaped;
+        for (int i = from; i < to; i++) {
+            byte b = buf[i];
+            if (esc) {
+                esc = false;
+            } else if (b == '\\') {
+                esc = true;
+            } else if (b == '\n') {
+                escaped = false;
+                return i + 1;
+            }
+        }
+        escaped = esc;
+        return -1;
+    }
+
+    /**
+     * @return true when the next byte is escaped by a trailing backslash
+     */
+    public boolean isEscaped() {
+        return escaped;
+    }
+}
@@ -0,0 +1,37 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+/**
+ * RowCounter counts the rows of a Data Feed TSV file as it streams past, honouring the escaped newlines of
+ * {@link RowBoundaryScanner}. A last row without a newline counts too.
+ */
+class RowCounter {
+    private final RowBoundaryScanner scanner = new RowBoundaryScanner();
+    private long rows;
+    private boolean openRow;
+
+    /**
+     * @param buf    The buffer holding the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     */
+    public void write(final byte[] buf, final int offset, final int length) {
+        final int to = offset + length;
+        int position = offset;
+        int end;
+        while ((end = scanner.findRowEnd(buf, position, to)) != -1) {
+            rows++;
+            position = end;
+            openRow = false;
+        }
+        if (position < to) {
+            openRow = true;
+        }
+    }
+
+    /**
+     * @return the number of rows seen so far, counting a row that has not ended yet
+     */
+    public long getRows() {
+        return openRow ? rows + 1 : rows;
+    }
+}
@@ -0,0 +1,270 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * RowEntryOutput parses hit_data into rows and writes them as Parquet, ORC or gzip TSV files under the prefix of
+ * the format.
+ *
+ * Rows are streamed into row groups or stripes as they arrive and each one is uploaded as soon as it is complete,
+ * so memory use is bounded by the row group or stripe size. Once a file grows past the target size, it is
+ * finished and the following rows go to a new file in the same partition.
+ *
+ * Columns of Parquet and ORC files are typed before the first file is started. Columns without a stored or
+ * standard type are inferred from the first rows of the entry, which are held in memory until the types are
+ * decided and then written.
+ *
+ * When lookup denormalization is enabled, each row is extended with the names of its lookup ids before it is
+ * typed or written.
+ *
+ * When hour partitioning is enabled, each row goes to the dt=.../hr=... partition of its event time. A file is
+ * kept open for each of the most recently used hours only; when another hour is needed, the file of the least
+ * recently used hour is finished and that hour continues in a new file if it comes up again.
+ */
+class RowEntryOutput extends EntryOutput implements TsvRowReader.RowHandler {
+    // Uncompressed size of the values of one Parquet column after which a page is compressed
+    static private final int PAGE_SIZE = 1024 * 1024;
+
+    // Uncompressed size of an ORC stream after which it is compressed as a chunk
+    static private final int ORC_COMPRESSION_BLOCK_SIZE = 256 * 1024;
+
+    private final DataFeedWriter writer;
+    private final DataFeedRecord df;
+    private final String basename;
+    private final Map<String, ColumnType> knownTypes;
+    private final HitDataFormat format;
+    private final long targetSize;
+    private final TsvRowReader rows;
+    private final HourPartitioner partitioner;
+    private final LookupDenormalizer denormalizer;
+    private final int maxOpenPartitions;
+    private final List<String> completedKeys = new ArrayList<String>();
+    private final Map<String, Integer> nextChunks = new HashMap<String, Integer>();
+    private final Set<String> writtenHours = new TreeSet<String>();
+
+    // Files in progress by partition, least recently used first
+    private final LinkedHashMap<String, PartitionFile> openFiles =
+            new LinkedHashMap<String, PartitionFile>(16, 0.75f, true);
+
+    private DataFeedSchema schema;
+    private TypeInference inference;
+    private List<TsvRow> sample = new ArrayList<TsvRow>();
+    private boolean completed;
+
+    /**
+     * PartitionFile is the file being written for one partition.
+     */
+    private static class PartitionFile {
+        private final String key;
+        private final String sidecarKey;
+        private final EntryOutput output;
+        private final RowFileWriter file;
+
+        PartitionFile(final String key, final String sidecarKey, final EntryOutput output, final RowFileWriter file) {
+            this.key = key;
+            this.sidecarKey = sidecarKey;
+            this.output = output;
+            this.file = file;
+        }
+    }
+
+    /**
+     * @param writer       The writer providing the S3 client, thread pools and configuration
+     * @param df           The record of the Data Feed being written
+     * @param basename     The name of the entry in the Data Feed archive
+     * @param schema       The columns of the entry, as listed in column_headers.tsv
+     * @param format       The format to convert to
+     * @param targetSize   The file size after which a new file is started, zero for a single file per partition
+     * @throws IOException when the stored column types can not be read
+     */
+    RowEntryOutput(final DataFeedWriter writer, final DataFeedRecord df, final String basename,
+                   final DataFeedSchema schema, final HitDataFormat format, final long targetSize)
+            throws IOException {
+        SplitterConfig config = writer.getConfig();
+        this.writer = writer;
+        this.df = df;
+        this.basename = basename;
+        this.format = format;
+        this.targetSize = targetSize;
+        this.rows = new TsvRowReader(this);
+        this.partitioner = config.isPartitionByHour() ? new HourPartitioner(schema) : null;
+        this.maxOpenPartitions = Math.max(1, config.getMaxOpenPartitions());
+        this.denormalizer = writer.newDenormalizer(schema);
+        final DataFeedSchema columns = denormalizer == null ? schema : denormalizer.getSchema();
+
+        // TSV output keeps every column as a string
+        if (format == HitDataFormat.TSV) {
+            this.knownTypes = Collections.emptyMap();
+            this.schema = columns;
+            this.sample = null;
+            if (denormalizer != null) {
+                writer.setHitDataSchema(columns);
+            }
+        } else {
+            this.knownTypes = writer.loadColumnTypes(basename);
+            Map<String, ColumnType> types = new HashMap<String, ColumnType>(knownTypes);
+            if (denormalizer != null) {
+                types.putAll(denormalizer.getNameColumnTypes());
+            }
+            this.inference = new TypeInference(columns, types);
+            if (!inference.needsSample() || config.getTypeInferenceRows() <= 0) {
+                decideTypes();
+            }
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        rows.write(buf, offset, length);
+    }
+
+    @Override
+    public void onRow(final TsvRow row) throws IOException {
+        if (denormalizer != null) {
+            denormalizer.resolve(row);
+        }
+        if (inference != null) {
+            inference.observe(row);
+            sample.add(row.copy());
+            if (sample.size() >= writer.getConfig().getTypeInferenceRows()) {
+                decideTypes();
+            }
+            return;
+        }
+        writeRow(row);
+    }
+
+    private void writeRow(final TsvRow row) throws IOException {
+        final String partition = partitioner == null
+                ? df.getDatePartition()
+                : hourPartition(partitioner.getHour(row));
+        PartitionFile open = openFiles.get(partition);
+        if (open == null) {
+            open = openFile(partition);
+        }
+        if (open.file.writeRow(row) && targetSize > 0 && open.file.getPosition() >= targetSize) {
+            finishFile(partition);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (completed) {
+            return;
+        }
+        rows.finish();
+        if (inference != null) {
+            decideTypes();
+        }
+
+        // An empty entry still gets a file, so the date partition exists
+        if (partitioner == null && openFiles.isEmpty() && completedKeys.isEmpty()) {
+            openFile(df.getDatePartition());
+        }
+        for (String partition : new ArrayList<String>(openFiles.keySet())) {
+            finishFile(partition);
+        }
+        completed = true;
+        if (partitioner != null) {
+            writer.setHitDataHours(new ArrayList<String>(writtenHours));
+        }
+        writer.deleteStaleDataObjects(df.getFormatPartitionPrefix(format, basename), completedKeys);
+    }
+
+    /**
+     * Abort the files in progress and remove the files already written, so a retry starts from a clean partition.
+     */
+    @Override
+    public void abort() {
+        if (completed) {
+            return;
+        }
+        for (PartitionFile open : openFiles.values()) {
+            open.output.abort();
+        }
+        openFiles.clear();
+        writer.deleteObjects(completedKeys);
+    }
+
+    /**
+     * Fix the type of every column, record them for later days and write out the rows sampled so far.
+     */
+    private void decideTypes() throws IOException {
+        schema = inference.infer();
+        inference = null;
+        writer.saveColumnTypes(basename, schema, knownTypes);
+
+        List<TsvRow> sampled = sample;
+        sample = null;
+        for (TsvRow row : sampled) {
+            writeRow(row);
+        }
+    }
+
+    private PartitionFile openFile(final String partition) throws IOException {
+        if (openFiles.size() >= maxOpenPartitions) {
+            Iterator<String> leastRecentlyUsed = openFiles.keySet().iterator();
+            finishFile(leastRecentlyUsed.next());
+        }
+
+        Integer chunk = nextChunks.get(partition);
+        if (chunk == null) {
+            chunk = 0;
+        }
+        nextChunks.put(partition, chunk + 1);
+
+        SplitterConfig config = writer.getConfig();
+        PartitionFile open;
+        if (format == HitDataFormat.TSV) {
+            GzipObjectOutput output = new GzipObjectOutput(writer, df.getDstKeyForChunk(basename, partition, chunk),
+                    null, writer.newSidecarIndex());
+            open = new PartitionFile(output.getKey(), output.getSidecarKey(), output, new TsvFileWriter(output));
+        } else {
+            S3ObjectOutput output = new S3ObjectOutput(writer,
+                    df.getFormatKeyForChunk(format, basename, partition, chunk), null);
+            RowFileWriter file;
+            if (format == HitDataFormat.ORC) {
+                file = new OrcFileWriter(output, schema, config.getOrcStripeSize(), ORC_COMPRESSION_BLOCK_SIZE,
+                        config.getOrcBloomFilterColumns());
+            } else {
+                file = new ParquetFileWriter(output, schema, config.getParquetRowGroupSize(), PAGE_SIZE);
+            }
+            open = new PartitionFile(output.getKey(), null, output, file);
+        }
+        openFiles.put(partition, open);
+        return open;
+    }
+
+    private void finishFile(final String partition) throws IOException {
+        PartitionFile open = openFiles.remove(partition);
+        open.file.finish();
+        if (open.file.getRejectedValues() > 0) {
+            writer.getLogger().log("  stored " + open.file.getRejectedValues() + " values that did not match the type "
+                    + "of their column as nulls in " + open.key);
+        }
+        open.output.close();
+        completedKeys.add(open.key);
+        if (open.sidecarKey != null) {
+            completedKeys.add(open.sidecarKey);
+        }
+    }
+
+    private String hourPartition(final String hour) {
+        writtenHours.add(hour);
+        return df.getHourPartition(hour);
+    }
+}
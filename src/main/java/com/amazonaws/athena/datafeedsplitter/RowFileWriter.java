@@ -0,0 +1,30 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+
+/**
+ * RowFileWriter streams rows of hit_data into a columnar file.
+ */
+interface RowFileWriter {
+    /**
+     * @param row The row to add. Missing trailing fields are stored as nulls, extra fields are ignored.
+     * @return true if the row completed a block of rows, a row group or stripe, that was written out
+     * @throws IOException when a block of rows can not be written
+     */
+    boolean writeRow(TsvRow row) throws IOException;
+
+    /**
+     * @return the number of bytes written to the output stream so far
+     */
+    long getPosition();
+
+    /**
+     * @return the number of values that did not match the type of their column and were stored as nulls
+     */
+    long getRejectedValues();
+
+    /**
+     * Write the last block of rows and the file footer. The output stream is not closed.
+     */
+    void finish() throws IOException;
+}
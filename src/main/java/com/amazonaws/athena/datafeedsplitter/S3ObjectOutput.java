@@ -0,0 +1,169 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.amazonaws.athena.datafeedsplitter.LambdaHandler.PART_MINIMUM;
+
+/**
+ * S3ObjectOutput uploads the bytes written to it as a single S3 object.
+ *
+ * Small objects are uploaded in one shot when closed. Once the data grows past the multipart threshold,
+ * a multipart upload is started and parts are handed to the uploader threads as they fill up, so the object is
+ * never held in memory in full.
+ *
+ * Bytes are written straight into the buffer that is sent, without copying it again on upload. Objects start in a
+ * small buffer of their own and move to a part sized buffer from the buffer pool once they outgrow it; a full part
+ * buffer is handed to the uploader and goes back to the pool once sent.
+ */
+class S3ObjectOutput extends EntryOutput {
+    static private final int MULTIPART_THRESHOLD = PART_MINIMUM * 4;
+
+    // Size up to which an object is kept in a buffer of its own rather than a pooled part buffer
+    static private final int SMALL_OBJECT_SIZE = 1024 * 1024;
+    static private final int INITIAL_SIZE = 8 * 1024;
+
+    private final DataFeedWriter writer;
+    private final String dstKey;
+    private final Runnable onComplete;
+    private final BufferPool pool;
+
+    private byte[] buffer = new byte[0];
+    private int bufferLength;
+    private MultipartUpload multipartUpload;
+    private long uploadedBytes;
+    private boolean closed;
+
+    /**
+     * @param writer     The writer providing the S3 client, uploader and configuration
+     * @param dstKey     The key of the object to write in the destination bucket
+     * @param onComplete Called once the object has been uploaded, may be null
+     */
+    S3ObjectOutput(final DataFeedWriter writer, final String dstKey, final Runnable onComplete) {
+        this.writer = writer;
+        this.dstKey = dstKey;
+        this.onComplete = onComplete;
+        this.pool = writer.getBufferPool();
+    }
+
+    public String getKey() {
+        return dstKey;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getSize() {
+        return uploadedBytes + bufferLength;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        int off = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            // A full part is only sent once more data arrives, so an object of exactly one part stays one shot
+            if (bufferLength == MULTIPART_THRESHOLD) {
+                uploadPart(false);
+            }
+            if (bufferLength == buffer.length) {
+                grow();
+            }
+            int count = Math.min(remaining, buffer.length - bufferLength);
+            System.arraycopy(buf, off, buffer, bufferLength, count);
+            bufferLength += count;
+            off += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Either upload the entire buffer (if small enough) or the last part of the multipart upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (multipartUpload != null) {
+                uploadPart(true);
+                multipartUpload.complete();
+            } else {
+                oneShot();
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    @Override
+    public void abort() {
+        closed = true;
+        if (multipartUpload != null) {
+            multipartUpload.abort();
+            multipartUpload = null;
+        }
+        releaseBuffer();
+    }
+
+    private void grow() {
+        if (buffer.length < SMALL_OBJECT_SIZE) {
+            buffer = Arrays.copyOf(buffer, Math.min(SMALL_OBJECT_SIZE, Math.max(INITIAL_SIZE, buffer.length * 2)));
+        } else {
+            byte[] part = pool.acquire(MULTIPART_THRESHOLD);
+            System.arraycopy(buffer, 0, part, 0, bufferLength);
+            buffer = part;
+        }
+    }
+
+    /**
+     * uploadPart hands the buffered bytes to the uploader as the next part of the multipart upload, which starts
+     * the upload if needed, and continues in a new part buffer unless this is the last part.
+     */
+    private void uploadPart(final boolean last) throws IOException {
+        // If we reach the threshold of multi-part uploads, create a new instance
+        if (multipartUpload == null) {
+            writer.getLogger().log("  " + dstKey + " - enabling multi-part upload");
+            multipartUpload = writer.getUploader().start(writer.getDstBucket(), dstKey);
+        }
+        final byte[] part = buffer;
+        final int partLength = bufferLength;
+        buffer = last ? new byte[0] : pool.acquire(MULTIPART_THRESHOLD);
+        bufferLength = 0;
+        multipartUpload.uploadPart(part, partLength, pool);
+        uploadedBytes += partLength;
+    }
+
+    private void oneShot() {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(buffer, 0, bufferLength);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(bufferLength);
+        writer.getLogger().log(" - uploading to " + dstKey);
+        writer.getS3().putObject(new PutObjectRequest(writer.getDstBucket(), dstKey, inputStream, metadata));
+        releaseBuffer();
+    }
+
+    private void releaseBuffer() {
+        if (buffer.length == MULTIPART_THRESHOLD) {
+            pool.release(buffer);
+        }
+        buffer = new byte[0];
+        bufferLength = 0;
+    }
+}
@@ -0,0 +1,204 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SidecarIndex summarizes the rows of one gzip TSV object, so a query router can tell which objects can not hold
+ * the rows a query is after without reading them.
+ *
+ * For range columns it keeps the smallest and largest value, compared as integers for integer columns such as
+ * hit_time_gmt and as UTF-8 bytes for others such as date_time. For bloom filter columns it keeps a bloom filter
+ * hashed in the same way as ORC bloom filters, see {@link OrcBloomFilter}. Empty values are left out of both.
+ *
+ * The index is serialized big endian as:
+ * <pre>
+ *   "DFSI" version:u8 rows:i64
+ *   rangeCount:u16   { name:utf kind:u8 (0 no values, 1 integer, 2 string)
+ *                      kind 1: min:i64 max:i64, kind 2: minLength:i32 min maxLength:i32 max }
+ *   bloomCount:u16   { name:utf hashFunctions:i32 words:i32 bits:i64[words] }
+ * </pre>
+ * where utf is the length prefixed modified UTF-8 of {@link DataOutputStream#writeUTF(String)}.
+ */
+class SidecarIndex implements TsvRowReader.RowHandler {
+    private static final byte[] MAGIC = "DFSI".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private static final int KIND_EMPTY = 0;
+    private static final int KIND_INTEGER = 1;
+    private static final int KIND_STRING = 2;
+
+    private static final double BLOOM_FILTER_FPP = 0.05;
+
+    private final List<RangeColumn> ranges = new ArrayList<RangeColumn>();
+    private final List<BloomColumn> blooms = new ArrayList<BloomColumn>();
+    private final IntegerParser parser = new IntegerParser();
+    private long rows;
+
+    /**
+     * RangeColumn tracks the smallest and largest value of a column.
+     */
+    private static class RangeColumn {
+        private final String name;
+        private final int column;
+        private final boolean integer;
+        private boolean hasValues;
+        private long minInteger;
+        private long maxInteger;
+        private byte[] minString;
+        private byte[] maxString;
+
+        RangeColumn(final String name, final int column, final boolean integer) {
+            this.name = name;
+            this.column = column;
+            this.integer = integer;
+        }
+    }
+
+    /**
+     * BloomColumn holds the bloom filter of a column.
+     */
+    private static class BloomColumn {
+        private final String name;
+        private final int column;
+        private final OrcBloomFilter filter;
+
+        BloomColumn(final String name, final int column, final OrcBloomFilter filter) {
+            this.name = name;
+            this.column = column;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * @param schema        The columns of the TSV object. Index columns the schema lacks are left out.
+     * @param rangeColumns  The columns to keep the smallest and largest value of
+     * @param bloomColumns  The columns to keep a bloom filter of
+     * @param bloomEntries  The number of distinct values each bloom filter is sized for
+     */
+    SidecarIndex(final DataFeedSchema schema, final List<String> rangeColumns, final List<String> bloomColumns,
+                 final int bloomEntries) {
+        for (String name : rangeColumns) {
+            int column = schema.indexOf(name);
+            if (column != -1) {
+                ColumnType type = TypeInference.ADOBE_COLUMN_TYPES.get(name);
+                ranges.add(new RangeColumn(name, column, type != null && type.isInteger()));
+            }
+        }
+        for (String name : bloomColumns) {
+            int column = schema.indexOf(name);
+            if (column != -1) {
+                blooms.add(new BloomColumn(name, column, new OrcBloomFilter(bloomEntries, BLOOM_FILTER_FPP)));
+            }
+        }
+    }
+
+    @Override
+    public void onRow(final TsvRow row) {
+        rows++;
+        final byte[] buf = row.getBuffer();
+        for (RangeColumn range : ranges) {
+            if (range.column < row.getFieldCount() && row.getLength(range.column) > 0) {
+                addRangeValue(range, buf, row.getStart(range.column), row.getLength(range.column));
+            }
+        }
+        for (BloomColumn bloom : blooms) {
+            if (bloom.column < row.getFieldCount() && row.getLength(bloom.column) > 0) {
+                bloom.filter.add(buf, row.getStart(bloom.column), row.getLength(bloom.column));
+            }
+        }
+    }
+
+    private void addRangeValue(final RangeColumn range, final byte[] buf, final int offset, final int length) {
+        if (range.integer) {
+            if (!parser.parse(buf, offset, length)) {
+                return;
+            }
+            final long value = parser.getValue();
+            if (!range.hasValues || value < range.minInteger) {
+                range.minInteger = value;
+            }
+            if (!range.hasValues || value > range.maxInteger) {
+                range.maxInteger = value;
+            }
+        } else {
+            if (!range.hasValues || compareUnsigned(range.minString, buf, offset, length) > 0) {
+                range.minString = Arrays.copyOfRange(buf, offset, offset + length);
+            }
+            if (!range.hasValues || compareUnsigned(range.maxString, buf, offset, length) < 0) {
+                range.maxString = Arrays.copyOfRange(buf, offset, offset + length);
+            }
+        }
+        range.hasValues = true;
+    }
+
+    /**
+     * @return the number of rows summarized so far
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the serialized index
+     */
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(rows);
+
+            out.writeShort(ranges.size());
+            for (RangeColumn range : ranges) {
+                out.writeUTF(range.name);
+                if (!range.hasValues) {
+                    out.writeByte(KIND_EMPTY);
+                } else if (range.integer) {
+                    out.writeByte(KIND_INTEGER);
+                    out.writeLong(range.minInteger);
+                    out.writeLong(range.maxInteger);
+                } else {
+                    out.writeByte(KIND_STRING);
+                    out.writeInt(range.minString.length);
+                    out.write(range.minString);
+                    out.writeInt(range.maxString.length);
+                    out.write(range.maxString);
+                }
+            }
+
+            out.writeShort(blooms.size());
+            for (BloomColumn bloom : blooms) {
+                out.writeUTF(bloom.name);
+                out.writeInt(bloom.filter.getNumHashFunctions());
+                long[] bits = bloom.filter.getBits();
+                out.writeInt(bits.length);
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int compareUnsigned(final byte[] a, final byte[] b, final int bOffset, final int bLength) {
+        int n = Math.min(a.length, bLength);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - bLength;
+    }
+}
@@ -0,0 +1,486 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * SpeculativeGzipInputStream decompresses a single member gzip S3 object on several threads without an index, in
+ * the manner of pugz.
+ *
+ * The compressed object is cut into regions. For each region, a worker looks for the first bit from which a few
+ * dynamic blocks decode cleanly, which is almost surely the start of a block, and decodes from there up to the
+ * block the next region's search found, with the window before it unknown, see
+ * {@link ResumableInflater#speculative}. Chunks are handed out in order, and once the window before a chunk is
+ * known, the symbols that refer to it are replaced by its bytes.
+ *
+ * A chunk is only used when the chunk before it ended exactly where it starts, so a block start found by mistake
+ * can not corrupt the output: a chunk that started there fails or ends somewhere else, the chunk before it runs past
+ * it without reaching a block boundary, and decompression carries on from the end of the last good chunk on a single
+ * thread instead. The CRC-32 of the output is checked against the gzip trailer. Each chunk start is an access point, so
+ * the read can be recorded as a {@link GzipIndex}.
+ */
+class SpeculativeGzipInputStream extends InputStream implements GzipIndex.Recorder {
+    // Blocks that must decode from a candidate block start
+    private static final int PROBE_BLOCKS = 2;
+    // Compressed bytes past the end of a region fetched to try block starts near its end
+    private static final int PROBE_SIZE = 1024 * 1024;
+    // Bytes fetched past the end of a chunk, which the decoder may look ahead at
+    private static final int LOOKAHEAD = 16;
+    private static final int TRAILER_SIZE = 8;
+    private static final int PART_SIZE = 1024 * 1024;
+    private static final int HEADER_FETCH_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final long objectLength;
+    private final long headerLength;
+    private final int regionSize;
+    private final int regions;
+    private final int maxChunks;
+    private final ExecutorService workers;
+    private final ConcurrentMap<Integer, FutureTask<Long>> blockStarts =
+            new ConcurrentHashMap<Integer, FutureTask<Long>>();
+    private final Deque<Future<Chunk>> chunks = new ArrayDeque<Future<Chunk>>();
+    private final StageStats stats;
+
+    private int nextRegion;
+    private long nextBit;
+    private long totalOut;
+    private final CRC32 crc = new CRC32();
+    private final byte[] window = new byte[ResumableInflater.WINDOW_SIZE];
+    private final List<ResumableInflater.AccessPoint> accessPoints = new ArrayList<ResumableInflater.AccessPoint>();
+
+    private Chunk chunk;
+    // The window before the current chunk, which its symbols refer to
+    private byte[] chunkWindow;
+    private int part;
+    private byte[] current;
+    private int position;
+    private int length;
+    private InputStream tail;
+    private IndexingGzipInputStream fallback;
+    private boolean complete;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Chunk is the output of a worker: the symbols that still refer to the window before it, then bytes.
+     */
+    private static class Chunk {
+        // A chunk that started at a false block start or ran out of input before it reached a block boundary
+        private static final Chunk UNUSABLE = new Chunk(-1, -1, false, Collections.<char[]>emptyList(),
+                Collections.<byte[]>emptyList());
+
+        private final long startBit;
+        private final long endBit;
+        private final boolean stopped;
+        private final List<char[]> symbols;
+        private final List<byte[]> bytes;
+
+        Chunk(final long startBit, final long endBit, final boolean stopped, final List<char[]> symbols,
+              final List<byte[]> bytes) {
+            this.startBit = startBit;
+            this.endBit = endBit;
+            this.stopped = stopped;
+            this.symbols = symbols;
+            this.bytes = bytes;
+        }
+
+        private int parts() {
+            return symbols.size() + bytes.size();
+        }
+    }
+
+    /**
+     * @param s3           A pre-existing AmazonS3 client
+     * @param bucket       The bucket of the object to read
+     * @param key          The key of the object to read
+     * @param objectLength The total length of the object
+     * @param regionSize   The number of compressed bytes each worker decompresses
+     * @param threads      The number of workers
+     * @param stats        The statistics of the inflate stage
+     * @throws IOException when the gzip header can not be read
+     */
+    SpeculativeGzipInputStream(final AmazonS3 s3, final String bucket, final String key, final long objectLength,
+                               final int regionSize, final int threads, final StageStats stats) throws IOException {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.objectLength = objectLength;
+        this.regionSize = regionSize;
+        this.stats = stats;
+        this.headerLength = IndexingGzipInputStream.readHeader(new ByteArrayInputStream(
+                RangedPrefetchInputStream.readRange(s3, bucket, key, 0,
+                        (int) Math.min(HEADER_FETCH_SIZE, objectLength))));
+        this.regions = (int) Math.max(1,
+                (objectLength - TRAILER_SIZE - headerLength + regionSize - 1) / regionSize);
+        this.maxChunks = threads;
+        this.workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("speculative-inflater"));
+        this.nextBit = headerLength * 8;
+        fillChunks();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int offset, final int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        while (tail == null && position == length) {
+            if (!nextPart()) {
+                return -1;
+            }
+        }
+        if (tail != null) {
+            return tail.read(buf, offset, count);
+        }
+        final int copied = Math.min(count, length - position);
+        System.arraycopy(current, position, buf, offset, copied);
+        position += copied;
+        return copied;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancelChunks();
+        workers.shutdownNow();
+        if (tail != null) {
+            tail.close();
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        return fallback != null ? fallback.isComplete() : complete;
+    }
+
+    @Override
+    public int getCrc() {
+        return fallback != null ? fallback.getCrc() : (int) crc.getValue();
+    }
+
+    @Override
+    public long getUncompressedLength() {
+        return fallback != null ? fallback.getUncompressedLength() : totalOut;
+    }
+
+    @Override
+    public List<ResumableInflater.AccessPoint> getAccessPoints() {
+        if (fallback == null) {
+            return accessPoints;
+        }
+        List<ResumableInflater.AccessPoint> all = new ArrayList<ResumableInflater.AccessPoint>(accessPoints);
+        all.addAll(fallback.getAccessPoints());
+        return all;
+    }
+
+    /**
+     * Move on to the next part of output, resolving it against the window if need be.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean nextPart() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (chunk == null || part == chunk.parts()) {
+            if (chunk != null) {
+                nextBit = chunk.endBit;
+                final boolean last = !chunk.stopped;
+                chunk = null;
+                if (last) {
+                    finishMember();
+                    return tail != null;
+                }
+            }
+            if (finished) {
+                return false;
+            }
+            if (chunks.isEmpty()) {
+                throw new IOException("Decompression of s3://" + bucket + "/" + key + " ended before the final block");
+            }
+            Chunk next = takeChunk(chunks.removeFirst());
+            fillChunks();
+            if (next == null) {
+                // No block starts in that region, the chunk before it covers it
+                continue;
+            }
+            if (next == Chunk.UNUSABLE || next.startBit != nextBit) {
+                // This chunk or the next one started at a false block start
+                continueSequentially();
+                return true;
+            }
+            accessPoints.add(new ResumableInflater.AccessPoint(next.startBit, totalOut, Arrays.copyOfRange(
+                    window, ResumableInflater.WINDOW_SIZE - (int) Math.min(totalOut, ResumableInflater.WINDOW_SIZE),
+                    ResumableInflater.WINDOW_SIZE)));
+            chunk = next;
+            part = 0;
+            chunkWindow = window.clone();
+        }
+
+        if (part < chunk.symbols.size()) {
+            final char[] symbols = chunk.symbols.get(part);
+            final byte[] resolved = new byte[symbols.length];
+            for (int i = 0; i < symbols.length; i++) {
+                final char symbol = symbols[i];
+                resolved[i] = symbol < ResumableInflater.MARKER ? (byte) symbol
+                        : chunkWindow[symbol - ResumableInflater.MARKER];
+            }
+            current = resolved;
+        } else {
+            current = chunk.bytes.get(part - chunk.symbols.size());
+        }
+        part++;
+        position = 0;
+        length = current.length;
+        crc.update(current, 0, length);
+        totalOut += length;
+        slideWindow(current, length);
+        return true;
+    }
+
+    private void slideWindow(final byte[] data, final int count) {
+        final int size = ResumableInflater.WINDOW_SIZE;
+        if (count >= size) {
+            System.arraycopy(data, count - size, window, 0, size);
+        } else {
+            System.arraycopy(window, count, window, 0, size - count);
+            System.arraycopy(data, 0, window, size - count, count);
+        }
+    }
+
+    /**
+     * Check the trailer after the final block and see whether another member follows.
+     */
+    private void finishMember() throws IOException {
+        finished = true;
+        cancelChunks();
+        final long trailerStart = (nextBit + 7) >>> 3;
+        final byte[] trailer = RangedPrefetchInputStream.readRange(s3, bucket, key, trailerStart,
+                (int) Math.min(TRAILER_SIZE + 2, objectLength - trailerStart));
+        if (trailer.length < TRAILER_SIZE) {
+            throw new IOException("Unexpected end of gzip trailer");
+        }
+        long expectedCrc = 0;
+        long expectedSize = 0;
+        for (int i = 0; i < 4; i++) {
+            expectedCrc |= (long) (trailer[i] & 0xff) << (8 * i);
+            expectedSize |= (long) (trailer[i + 4] & 0xff) << (8 * i);
+        }
+        if (expectedCrc != crc.getValue() || expectedSize != (totalOut & 0xffffffffL)) {
+            throw new IOException("Corrupt gzip trailer");
+        }
+        if (trailer.length == TRAILER_SIZE + 2 && (trailer[8] & 0xff) == 0x1f && (trailer[9] & 0xff) == 0x8b) {
+            // Like GZIPInputStream, carry on with the next member
+            tail = new GZIPInputStream(openFrom(trailerStart + TRAILER_SIZE));
+            return;
+        }
+        complete = true;
+    }
+
+    /**
+     * Decompress the rest of the member on this thread, from the end of the last good chunk.
+     */
+    private void continueSequentially() throws IOException {
+        finished = true;
+        cancelChunks();
+        final byte[] known = Arrays.copyOfRange(window,
+                ResumableInflater.WINDOW_SIZE - (int) Math.min(totalOut, ResumableInflater.WINDOW_SIZE),
+                ResumableInflater.WINDOW_SIZE);
+        final InputStream in = openFrom(nextBit >>> 3);
+        fallback = new IndexingGzipInputStream(in,
+                new ResumableInflater(in, nextBit, totalOut, known, 0), crc.getValue());
+        tail = fallback;
+    }
+
+    private InputStream openFrom(final long start) {
+        return s3.getObject(new GetObjectRequest(bucket, key).withRange(start, objectLength - 1)).getObjectContent();
+    }
+
+    private Chunk takeChunk(final Future<Chunk> next) throws IOException {
+        int ready = 0;
+        for (Future<Chunk> pending : chunks) {
+            if (pending.isDone()) {
+                ready++;
+            }
+        }
+        stats.sampleQueueDepth(next.isDone() ? ready + 1 : ready);
+
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading s3://" + bucket + "/" + key, e);
+        } catch (ExecutionException e) {
+            if (accessPoints.isEmpty()) {
+                // The first chunk starts right after the header, so it did not fail for a false block start
+                throw new IOException("Error decompressing s3://" + bucket + "/" + key, e.getCause());
+            }
+            return Chunk.UNUSABLE;
+        }
+    }
+
+    private void fillChunks() {
+        while (!finished && chunks.size() < maxChunks && nextRegion < regions) {
+            final int region = nextRegion++;
+            chunks.addLast(workers.submit(() -> decodeRegion(region)));
+        }
+    }
+
+    private void cancelChunks() {
+        for (Future<Chunk> pending : chunks) {
+            pending.cancel(true);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Decode from the block start found in a region up to the one found in a later region.
+     *
+     * @return the chunk, or null if no block starts in the region
+     */
+    private Chunk decodeRegion(final int region) throws IOException {
+        final long startBit = blockStart(region);
+        if (startBit < 0) {
+            return null;
+        }
+        long stopBit = -1;
+        for (int next = region + 1; next < regions && stopBit < 0; next++) {
+            stopBit = blockStart(next);
+        }
+
+        long startNanos = stats.start();
+        final long byteStart = startBit >>> 3;
+        final long byteEnd = stopBit < 0 ? objectLength : Math.min(objectLength, ((stopBit + 7) >>> 3) + LOOKAHEAD);
+        final byte[] compressed = RangedPrefetchInputStream.readRange(
+                s3, bucket, key, byteStart, (int) (byteEnd - byteStart));
+        ResumableInflater inflater = region == 0
+                ? new ResumableInflater(compressed, 0, compressed.length, startBit, 0, new byte[0])
+                : ResumableInflater.speculative(compressed, 0, compressed.length, startBit);
+        if (stopBit >= 0) {
+            inflater.setStopBit(stopBit);
+        }
+
+        try {
+            return decodeChunk(inflater, startBit);
+        } catch (IOException e) {
+            if (stopBit >= 0 && inflater.getBitPosition() > stopBit) {
+                // The stop bit is a false block start, so the compressed bytes ran out before the next block
+                return Chunk.UNUSABLE;
+            }
+            throw e;
+        } finally {
+            stats.finish(startNanos);
+        }
+    }
+
+    private Chunk decodeChunk(final ResumableInflater inflater, final long startBit) throws IOException {
+        List<char[]> symbols = new ArrayList<char[]>();
+        char[] symbolPart = new char[PART_SIZE];
+        int filled = 0;
+        int count;
+        while (inflater.isSymbolic() && (count = inflater.readSymbols(symbolPart, filled, PART_SIZE - filled)) > 0) {
+            filled += count;
+            if (filled == PART_SIZE) {
+                symbols.add(symbolPart);
+                symbolPart = new char[PART_SIZE];
+                filled = 0;
+            }
+        }
+        if (filled > 0) {
+            symbols.add(Arrays.copyOf(symbolPart, filled));
+        }
+
+        List<byte[]> bytes = new ArrayList<byte[]>();
+        if (!inflater.isSymbolic()) {
+            byte[] bytePart = new byte[PART_SIZE];
+            filled = 0;
+            while ((count = inflater.read(bytePart, filled, PART_SIZE - filled)) != -1) {
+                filled += count;
+                if (filled == PART_SIZE) {
+                    bytes.add(bytePart);
+                    bytePart = new byte[PART_SIZE];
+                    filled = 0;
+                }
+            }
+            if (filled > 0) {
+                bytes.add(Arrays.copyOf(bytePart, filled));
+            }
+        }
+        return new Chunk(startBit, inflater.getBitPosition(), inflater.isStopped(), symbols, bytes);
+    }
+
+    /**
+     * @return the first bit of the region from which blocks decode, or -1 if there is none. Each region is only
+     * searched once, by whichever worker gets to it first.
+     */
+    private long blockStart(final int region) throws IOException {
+        if (region == 0) {
+            return headerLength * 8;
+        }
+        FutureTask<Long> search = new FutureTask<Long>(() -> searchBlockStart(region));
+        FutureTask<Long> existing = blockStarts.putIfAbsent(region, search);
+        if (existing == null) {
+            search.run();
+        } else {
+            search = existing;
+        }
+        try {
+            return search.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching for a block start", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Error searching for a block start", e.getCause());
+        }
+    }
+
+    /**
+     * @return the first bit of the region from which {@link #PROBE_BLOCKS} blocks decode, or -1 if there is none
+     */
+    long searchBlockStart(final int region) throws IOException {
+        final long from = headerLength + (long) region * regionSize;
+        final long to = Math.min(objectLength - TRAILER_SIZE, from + regionSize);
+        final byte[] data = RangedPrefetchInputStream.readRange(s3, bucket, key, from,
+                (int) (Math.min(objectLength, to + PROBE_SIZE) - from));
+        ResumableInflater probe = ResumableInflater.speculative(data, 0, data.length, from * 8);
+        for (long bit = from * 8; bit < to * 8; bit++) {
+            if (probe.probe(bit, PROBE_BLOCKS)) {
+                return bit;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,119 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * SpillBuffer holds bytes that have to be kept until something is known about all of them, such as the hash of a
+ * lookup file.
+ *
+ * Bytes are kept in memory up to a limit. Past it they are moved to a temporary file in the spill directory, which
+ * on Lambda is the /tmp storage of the function, so a large buffer costs disk instead of heap. The file is removed
+ * by {@link #delete()}.
+ */
+class SpillBuffer {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final int memoryLimit;
+
+    private byte[] buffer = new byte[0];
+    private long size;
+    private File file;
+    private OutputStream fileOut;
+
+    /**
+     * @param directory   The directory the buffer is spilled to
+     * @param memoryLimit The number of bytes kept in memory before spilling
+     */
+    SpillBuffer(final File directory, final int memoryLimit) {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * @param buf    The buffer holding the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     * @throws IOException when the spill file can not be written
+     */
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        if (file == null && size + length > memoryLimit) {
+            spill();
+        }
+        if (file != null) {
+            fileOut.write(buf, offset, length);
+        } else {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(memoryLimit,
+                        Math.max(size + length, Math.max(INITIAL_SIZE, buffer.length * 2L))));
+            }
+            System.arraycopy(buf, offset, buffer, (int) size, length);
+        }
+        size += length;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return whether the bytes have been moved to disk
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @param out The stream to copy every byte written so far to
+     * @throws IOException when the spill file can not be read or out fails
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (file == null) {
+            out.write(buffer, 0, (int) size);
+            return;
+        }
+        fileOut.flush();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] copy = new byte[COPY_SIZE];
+            int count;
+            while ((count = in.read(copy)) != -1) {
+                out.write(copy, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Release the memory and remove the spill file. The buffer can not be used afterwards.
+     */
+    public void delete() {
+        buffer = new byte[0];
+        if (file != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                // The file is removed anyway
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("spill-", ".tmp", directory);
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), COPY_SIZE);
+        fileOut.write(buffer, 0, (int) size);
+        buffer = new byte[0];
+    }
+}
@@ -0,0 +1,472 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * SplitterConfig holds the tunable settings of the splitter.
+ * Values are read from Lambda environment variables, falling back to defaults that suit a 3GB Lambda function.
+ */
+class SplitterConfig {
+    /** Number of threads uploading multipart parts to S3. */
+    private int uploadThreads = 4;
+
+    /** Maximum number of parts that may be queued or in flight at once, across all uploads. */
+    private int maxPendingParts = 8;
+
+    /** Number of threads deflating gzip blocks. */
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Number of uncompressed bytes deflated as one block by a compression thread. */
+    private int compressionBlockSize = 1024 * 1024;
+
+    /** Deflate level used for gzip output. */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** Number of parallel ranged GET connections used to read the source archive. */
+    private int readerConnections = 4;
+
+    /** Number of bytes fetched by each ranged GET of the source archive. */
+    private int readerWindowSize = 8 * 1024 * 1024;
+
+    /** Whether archives are read through a gzip index of access points, which is built on the first read. */
+    private boolean gzipIndex = false;
+
+    /** Number of uncompressed bytes between the access points of a gzip index. */
+    private int gzipIndexSpan = 16 * 1024 * 1024;
+
+    /** Number of threads decompressing an archive through its gzip index. */
+    private int inflateThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Whether archives without a gzip index are decompressed on several threads by speculative decoding. */
+    private boolean speculativeInflate = false;
+
+    /** Number of compressed bytes each thread decompresses speculatively. */
+    private int inflateChunkSize = 4 * 1024 * 1024;
+
+    /** Number of bytes handed from one pipeline stage to the next at a time. */
+    private int pipelineChunkSize = 1024 * 1024;
+
+    /** Number of chunks that may wait between two pipeline stages. */
+    private int pipelineQueueDepth = 16;
+
+    /** Number of bytes of free chunk, block and part buffers kept for reuse across entries and invocations. */
+    private int bufferPoolSize = 256 * 1024 * 1024;
+
+    /** Directory that parts and lookup files are spilled to when they do not fit their memory budget. */
+    private String spillDirectory = "/tmp";
+
+    /** Number of bytes of parts waiting for upload that are kept in memory, further parts are spilled to disk. */
+    private int maxInMemoryPartBytes = 160 * 1024 * 1024;
+
+    /** Size after which a lookup file waiting for its hash is moved from memory to disk. */
+    private int maxInMemoryLookupBytes = 64 * 1024 * 1024;
+
+    /** Number of archives of an event processed at once. */
+    private int maxConcurrentArchives = 2;
+
+    /** Megabytes of memory shared by the archives processed at once, an archive waits until its share fits. */
+    private int memoryBudgetMB = (int) (Runtime.getRuntime().maxMemory() * 3 / 4 / (1024 * 1024));
+
+    /** What is done about a delivery that does not match its manifest. */
+    private ManifestCheck manifestCheck = ManifestCheck.FAIL;
+
+    /** Queue the worker takes S3 events from: the URL of an SQS queue, or a directory of event files. */
+    private String workerQueue = null;
+
+    /** Seconds a job taken by the worker stays invisible to other workers without being kept alive. */
+    private int workerVisibilitySeconds = 600;
+
+    /** Seconds before the Lambda timeout at which chunked hit_data is checkpointed and continued. Zero disables it. */
+    private int checkpointMarginSeconds = 120;
+
+    /** Continuations in a row that may start no work on a record, for want of time or memory, before it fails. */
+    private int maxStalledContinuations = 3;
+
+    /**
+     * Compressed size after which hit_data is continued in a new object. Zero writes a single object, which also
+     * lets a deflated hit_data entry of a zip delivery be copied without recompressing it.
+     */
+    private int hitDataChunkSize = 64 * 1024 * 1024;
+
+    /** Format hit_data is converted to. */
+    private HitDataFormat hitDataFormat = HitDataFormat.TSV;
+
+    /** Whether hit_data is partitioned by hour of the day below the date partition. */
+    private boolean partitionByHour = false;
+
+    /** Number of hour partitions that may have a file in progress at once when partitioning by hour. */
+    private int maxOpenPartitions = 4;
+
+    /** Whether each gzip TSV hit_data object gets a sidecar index of value ranges and bloom filters. */
+    private boolean sidecarIndex = false;
+
+    /** Columns of hit_data whose smallest and largest value per object are kept in sidecar indexes. */
+    private List<String> sidecarRangeColumns = Arrays.asList("hit_time_gmt", "date_time");
+
+    /** Columns of hit_data that get a bloom filter per object in sidecar indexes. */
+    private List<String> sidecarBloomFilterColumns =
+            Arrays.asList("post_visid_high", "post_visid_low", "post_page_url", "hitid_high", "hitid_low");
+
+    /** Number of distinct values each sidecar bloom filter is sized for. */
+    private int sidecarBloomFilterEntries = 200000;
+
+    /** Whether hit_data gets name columns resolved from the lookup files of the same Data Feed. */
+    private boolean denormalizeLookups = false;
+
+    /** Number of buffered bytes after which a Parquet row group is written. */
+    private int parquetRowGroupSize = 64 * 1024 * 1024;
+
+    /** Number of hit_data rows sampled to infer the type of columns without a known type. Zero disables it. */
+    private int typeInferenceRows = 10000;
+
+    /** Number of buffered bytes after which an ORC stripe is written. */
+    private int orcStripeSize = 64 * 1024 * 1024;
+
+    /** Columns of hit_data that get bloom filters in ORC output, the ones usually filtered on by equality. */
+    private List<String> orcBloomFilterColumns =
+            Arrays.asList("pagename", "page_url", "post_visid_high", "post_visid_low");
+
+    /** getter for uploadThreads. */
+    public int getUploadThreads() { return uploadThreads; }
+
+    /** setter for uploadThreads. */
+    public void setUploadThreads(final int value) { uploadThreads = value; }
+
+    /** getter for maxPendingParts. */
+    public int getMaxPendingParts() { return maxPendingParts; }
+
+    /** setter for maxPendingParts. */
+    public void setMaxPendingParts(final int value) { maxPendingParts = value; }
+
+    /** getter for compressionThreads. */
+    public int getCompressionThreads() { return compressionThreads; }
+
+    /** setter for compressionThreads. */
+    public void setCompressionThreads(final int value) { compressionThreads = value; }
+
+    /** getter for compressionBlockSize. */
+    public int getCompressionBlockSize() { return compressionBlockSize; }
+
+    /** setter for compressionBlockSize. */
+    public void setCompressionBlockSize(final int value) { compressionBlockSize = value; }
+
+    /** getter for compressionLevel. */
+    public int getCompressionLevel() { return compressionLevel; }
+
+    /** setter for compressionLevel. */
+    public void setCompressionLevel(final int value) { compressionLevel = value; }
+
+    /** getter for readerConnections. */
+    public int getReaderConnections() { return readerConnections; }
+
+    /** setter for readerConnections. */
+    public void setReaderConnections(final int value) { readerConnections = value; }
+
+    /** getter for readerWindowSize. */
+    public int getReaderWindowSize() { return readerWindowSize; }
+
+    /** setter for readerWindowSize. */
+    public void setReaderWindowSize(final int value) { readerWindowSize = value; }
+
+    /** getter for gzipIndex. */
+    public boolean isGzipIndex() { return gzipIndex; }
+
+    /** setter for gzipIndex. */
+    public void setGzipIndex(final boolean value) { gzipIndex = value; }
+
+    /** getter for gzipIndexSpan. */
+    public int getGzipIndexSpan() { return gzipIndexSpan; }
+
+    /** setter for gzipIndexSpan. */
+    public void setGzipIndexSpan(final int value) { gzipIndexSpan = value; }
+
+    /** getter for inflateThreads. */
+    public int getInflateThreads() { return inflateThreads; }
+
+    /** setter for inflateThreads. */
+    public void setInflateThreads(final int value) { inflateThreads = value; }
+
+    /** getter for speculativeInflate. */
+    public boolean isSpeculativeInflate() { return speculativeInflate; }
+
+    /** setter for speculativeInflate. */
+    public void setSpeculativeInflate(final boolean value) { speculativeInflate = value; }
+
+    /** getter for inflateChunkSize. */
+    public int getInflateChunkSize() { return inflateChunkSize; }
+
+    /** setter for inflateChunkSize. */
+    public void setInflateChunkSize(final int value) { inflateChunkSize = value; }
+
+    /** getter for pipelineChunkSize. */
+    public int getPipelineChunkSize() { return pipelineChunkSize; }
+
+    /** setter for pipelineChunkSize. */
+    public void setPipelineChunkSize(final int value) { pipelineChunkSize = value; }
+
+    /** getter for pipelineQueueDepth. */
+    public int getPipelineQueueDepth() { return pipelineQueueDepth; }
+
+    /** setter for pipelineQueueDepth. */
+    public void setPipelineQueueDepth(final int value) { pipelineQueueDepth = value; }
+
+    /** getter for bufferPoolSize. */
+    public int getBufferPoolSize() { return bufferPoolSize; }
+
+    /** setter for bufferPoolSize. */
+    public void setBufferPoolSize(final int value) { bufferPoolSize = value; }
+
+    /** getter for spillDirectory. */
+    public String getSpillDirectory() { return spillDirectory; }
+
+    /** setter for spillDirectory. */
+    public void setSpillDirectory(final String value) { spillDirectory = value; }
+
+    /** getter for maxInMemoryPartBytes. */
+    public int getMaxInMemoryPartBytes() { return maxInMemoryPartBytes; }
+
+    /** setter for maxInMemoryPartBytes. */
+    public void setMaxInMemoryPartBytes(final int value) { maxInMemoryPartBytes = value; }
+
+    /** getter for maxInMemoryLookupBytes. */
+    public int getMaxInMemoryLookupBytes() { return maxInMemoryLookupBytes; }
+
+    /** setter for maxInMemoryLookupBytes. */
+    public void setMaxInMemoryLookupBytes(final int value) { maxInMemoryLookupBytes = value; }
+
+    /** getter for maxConcurrentArchives. */
+    public int getMaxConcurrentArchives() { return maxConcurrentArchives; }
+
+    /** setter for maxConcurrentArchives. */
+    public void setMaxConcurrentArchives(final int value) { maxConcurrentArchives = value; }
+
+    /** getter for memoryBudgetMB. */
+    public int getMemoryBudgetMB() { return memoryBudgetMB; }
+
+    /** setter for memoryBudgetMB. */
+    public void setMemoryBudgetMB(final int value) { memoryBudgetMB = value; }
+
+    /** getter for manifestCheck. */
+    public ManifestCheck getManifestCheck() { return manifestCheck; }
+
+    /** setter for manifestCheck. */
+    public void setManifestCheck(final ManifestCheck value) { manifestCheck = value; }
+
+    /** getter for workerQueue. */
+    public String getWorkerQueue() { return workerQueue; }
+
+    /** setter for workerQueue. */
+    public void setWorkerQueue(final String value) { workerQueue = value; }
+
+    /** getter for workerVisibilitySeconds. */
+    public int getWorkerVisibilitySeconds() { return workerVisibilitySeconds; }
+
+    /** setter for workerVisibilitySeconds. */
+    public void setWorkerVisibilitySeconds(final int value) { workerVisibilitySeconds = value; }
+
+    /** getter for checkpointMarginSeconds. */
+    public int getCheckpointMarginSeconds() { return checkpointMarginSeconds; }
+
+    /** setter for checkpointMarginSeconds. */
+    public void setCheckpointMarginSeconds(final int value) { checkpointMarginSeconds = value; }
+
+    /** getter for maxStalledContinuations. */
+    public int getMaxStalledContinuations() { return maxStalledContinuations; }
+
+    /** setter for maxStalledContinuations. */
+    public void setMaxStalledContinuations(final int value) { maxStalledContinuations = value; }
+
+    /** getter for hitDataChunkSize. */
+    public int getHitDataChunkSize() { return hitDataChunkSize; }
+
+    /** setter for hitDataChunkSize. */
+    public void setHitDataChunkSize(final int value) { hitDataChunkSize = value; }
+
+    /** getter for hitDataFormat. */
+    public HitDataFormat getHitDataFormat() { return hitDataFormat; }
+
+    /** setter for hitDataFormat. */
+    public void setHitDataFormat(final HitDataFormat value) { hitDataFormat = value; }
+
+    /** getter for partitionByHour. */
+    public boolean isPartitionByHour() { return partitionByHour; }
+
+    /** setter for partitionByHour. */
+    public void setPartitionByHour(final boolean value) { partitionByHour = value; }
+
+    /** getter for maxOpenPartitions. */
+    public int getMaxOpenPartitions() { return maxOpenPartitions; }
+
+    /** setter for maxOpenPartitions. */
+    public void setMaxOpenPartitions(final int value) { maxOpenPartitions = value; }
+
+    /** getter for sidecarIndex. */
+    public boolean isSidecarIndex() { return sidecarIndex; }
+
+    /** setter for sidecarIndex. */
+    public void setSidecarIndex(final boolean value) { sidecarIndex = value; }
+
+    /** getter for sidecarRangeColumns. */
+    public List<String> getSidecarRangeColumns() { return sidecarRangeColumns; }
+
+    /** setter for sidecarRangeColumns. */
+    public void setSidecarRangeColumns(final List<String> value) { sidecarRangeColumns = value; }
+
+    /** getter for sidecarBloomFilterColumns. */
+    public List<String> getSidecarBloomFilterColumns() { return sidecarBloomFilterColumns; }
+
+    /** setter for sidecarBloomFilterColumns. */
+    public void setSidecarBloomFilterColumns(final List<String> value) { sidecarBloomFilterColumns = value; }
+
+    /** getter for sidecarBloomFilterEntries. */
+    public int getSidecarBloomFilterEntries() { return sidecarBloomFilterEntries; }
+
+    /** setter for sidecarBloomFilterEntries. */
+    public void setSidecarBloomFilterEntries(final int value) { sidecarBloomFilterEntries = value; }
+
+    /** getter for denormalizeLookups. */
+    public boolean isDenormalizeLookups() { return denormalizeLookups; }
+
+    /** setter for denormalizeLookups. */
+    public void setDenormalizeLookups(final boolean value) { denormalizeLookups = value; }
+
+    /** getter for parquetRowGroupSize. */
+    public int getParquetRowGroupSize() { return parquetRowGroupSize; }
+
+    /** setter for parquetRowGroupSize. */
+    public void setParquetRowGroupSize(final int value) { parquetRowGroupSize = value; }
+
+    /** getter for typeInferenceRows. */
+    public int getTypeInferenceRows() { return typeInferenceRows; }
+
+    /** setter for typeInferenceRows. */
+    public void setTypeInferenceRows(final int value) { typeInferenceRows = value; }
+
+    /** getter for orcStripeSize. */
+    public int getOrcStripeSize() { return orcStripeSize; }
+
+    /** setter for orcStripeSize. */
+    public void setOrcStripeSize(final int value) { orcStripeSize = value; }
+
+    /** getter for orcBloomFilterColumns. */
+    public List<String> getOrcBloomFilterColumns() { return orcBloomFilterColumns; }
+
+    /** setter for orcBloomFilterColumns. */
+    public void setOrcBloomFilterColumns(final List<String> value) { orcBloomFilterColumns = value; }
+
+    /**
+     * @return a SplitterConfig populated from the environment of the current process.
+     */
+    public static SplitterConfig fromEnvironment() {
+        SplitterConfig config = new SplitterConfig();
+        config.setUploadThreads(getIntEnv("UPLOAD_THREADS", config.getUploadThreads()));
+        config.setMaxPendingParts(getIntEnv("MAX_PENDING_PARTS", config.getMaxPendingParts()));
+        config.setCompressionThreads(getIntEnv("COMPRESSION_THREADS", config.getCompressionThreads()));
+        config.setCompressionBlockSize(getIntEnv("COMPRESSION_BLOCK_SIZE", config.getCompressionBlockSize()));
+        config.setCompressionLevel(getIntEnv("COMPRESSION_LEVEL", config.getCompressionLevel()));
+        config.setReaderConnections(getIntEnv("READER_CONNECTIONS", config.getReaderConnections()));
+        config.setReaderWindowSize(getIntEnv("READER_WINDOW_SIZE", config.getReaderWindowSize()));
+        config.setGzipIndex(getBooleanEnv("GZIP_INDEX", config.isGzipIndex()));
+        config.setGzipIndexSpan(getIntEnv("GZIP_INDEX_SPAN", config.getGzipIndexSpan()));
+        config.setInflateThreads(getIntEnv("INFLATE_THREADS", config.getInflateThreads()));
+        config.setSpeculativeInflate(getBooleanEnv("SPECULATIVE_INFLATE", config.isSpeculativeInflate()));
+        config.setInflateChunkSize(getIntEnv("INFLATE_CHUNK_SIZE", config.getInflateChunkSize()));
+        config.setPipelineChunkSize(getIntEnv("PIPELINE_CHUNK_SIZE", config.getPipelineChunkSize()));
+        config.setPipelineQueueDepth(getIntEnv("PIPELINE_QUEUE_DEPTH", config.getPipelineQueueDepth()));
+        config.setBufferPoolSize(getIntEnv("BUFFER_POOL_SIZE", config.getBufferPoolSize()));
+        config.setSpillDirectory(getStringEnv("SPILL_DIRECTORY", config.getSpillDirectory()));
+        config.setMaxInMemoryPartBytes(getIntEnv("MAX_IN_MEMORY_PART_BYTES", config.getMaxInMemoryPartBytes()));
+        config.setMaxInMemoryLookupBytes(
+                getIntEnv("MAX_IN_MEMORY_LOOKUP_BYTES", config.getMaxInMemoryLookupBytes()));
+        config.setMaxConcurrentArchives(getIntEnv("MAX_CONCURRENT_ARCHIVES", config.getMaxConcurrentArchives()));
+        config.setMemoryBudgetMB(getIntEnv("MEMORY_BUDGET_MB", config.getMemoryBudgetMB()));
+        config.setManifestCheck(getEnumEnv("MANIFEST_CHECK", ManifestCheck.class, config.getManifestCheck()));
+        config.setWorkerQueue(getStringEnv("WORKER_QUEUE", config.getWorkerQueue()));
+        config.setWorkerVisibilitySeconds(
+                getIntEnv("WORKER_VISIBILITY_SECONDS", config.getWorkerVisibilitySeconds()));
+        config.setCheckpointMarginSeconds(
+                getIntEnv("CHECKPOINT_MARGIN_SECONDS", config.getCheckpointMarginSeconds()));
+        config.setMaxStalledContinuations(
+                getIntEnv("MAX_STALLED_CONTINUATIONS", config.getMaxStalledContinuations()));
+        config.setHitDataChunkSize(getIntEnv("HIT_DATA_CHUNK_SIZE", config.getHitDataChunkSize()));
+        config.setHitDataFormat(getEnumEnv("HIT_DATA_FORMAT", HitDataFormat.class, config.getHitDataFormat()));
+        config.setPartitionByHour(getBooleanEnv("PARTITION_BY_HOUR", config.isPartitionByHour()));
+        config.setMaxOpenPartitions(getIntEnv("MAX_OPEN_PARTITIONS", config.getMaxOpenPartitions()));
+        config.setSidecarIndex(getBooleanEnv("SIDECAR_INDEX", config.isSidecarIndex()));
+        config.setSidecarRangeColumns(getListEnv("SIDECAR_RANGE_COLUMNS", config.getSidecarRangeColumns()));
+        config.setSidecarBloomFilterColumns(
+                getListEnv("SIDECAR_BLOOM_FILTER_COLUMNS", config.getSidecarBloomFilterColumns()));
+        config.setSidecarBloomFilterEntries(
+                getIntEnv("SIDECAR_BLOOM_FILTER_ENTRIES", config.getSidecarBloomFilterEntries()));
+        config.setDenormalizeLookups(getBooleanEnv("DENORMALIZE_LOOKUPS", config.isDenormalizeLookups()));
+        config.setParquetRowGroupSize(getIntEnv("PARQUET_ROW_GROUP_SIZE", config.getParquetRowGroupSize()));
+        config.setTypeInferenceRows(getIntEnv("TYPE_INFERENCE_ROWS", config.getTypeInferenceRows()));
+        config.setOrcStripeSize(getIntEnv("ORC_STRIPE_SIZE", config.getOrcStripeSize()));
+        config.setOrcBloomFilterColumns(
+                getListEnv("ORC_BLOOM_FILTER_COLUMNS", config.getOrcBloomFilterColumns()));
+        return config;
+    }
+
+    private static String getStringEnv(final String name, final String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    private static int getIntEnv(final String name, final int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Environment variable " + name + " must be an integer, got: " + value, e);
+        }
+    }
+
+    private static boolean getBooleanEnv(final String name, final boolean defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new RuntimeException("Environment variable " + name + " must be true or false, got: " + value);
+    }
+
+    private static List<String> getListEnv(final String name, final List<String> defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        List<String> values = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    private static <E extends Enum<E>> E getEnumEnv(final String name, final Class<E> type, final E defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unsupported value for environment variable " + name + ": " + value, e);
+        }
+    }
+}
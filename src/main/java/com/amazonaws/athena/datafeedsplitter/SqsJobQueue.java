@@ -0,0 +1,94 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SqsJobQueue takes jobs from an SQS queue that S3 sends the event notifications of the delivery bucket to.
+ *
+ * A job is kept invisible for the visibility timeout, which {@link #keepAlive(Job)} extends while an archive is
+ * being converted. A failed job becomes visible again after a backoff that doubles with every delivery, so a job that
+ * keeps failing does not hold up the workers, and the queue's redrive policy decides how often it is retried before
+ * it is moved to a dead-letter queue. A released job becomes visible again at once.
+ */
+class SqsJobQueue implements JobQueue {
+    // Most messages and longest wait of one ReceiveMessage request
+    private static final int MAX_MESSAGES = 10;
+    private static final int MAX_WAIT_SECONDS = 20;
+    // Visibility of a job failed on its first delivery, and the longest visibility SQS accepts
+    private static final int FAIL_BACKOFF_SECONDS = 60;
+    private static final int MAX_VISIBILITY_SECONDS = 12 * 60 * 60;
+    private static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final int visibilitySeconds;
+    private final Map<String, Integer> receiveCounts = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param sqs               A pre-existing AmazonSQS client
+     * @param queueUrl          The URL of the queue
+     * @param visibilitySeconds How long a job is invisible to other workers after it is taken or kept alive
+     */
+    SqsJobQueue(final AmazonSQS sqs, final String queueUrl, final int visibilitySeconds) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        this.visibilitySeconds = visibilitySeconds;
+    }
+
+    @Override
+    public List<Job> receive(final int max, final long waitMillis) {
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(Math.max(1, Math.min(max, MAX_MESSAGES)))
+                .withWaitTimeSeconds((int) Math.min(MAX_WAIT_SECONDS, waitMillis / 1000))
+                .withVisibilityTimeout(visibilitySeconds)
+                .withAttributeNames(RECEIVE_COUNT);
+        List<Job> jobs = new ArrayList<Job>();
+        for (Message message : sqs.receiveMessage(request).getMessages()) {
+            final String count = message.getAttributes().get(RECEIVE_COUNT);
+            receiveCounts.put(message.getReceiptHandle(), count == null ? 1 : Integer.parseInt(count));
+            jobs.add(new Job(message.getMessageId(), message.getReceiptHandle(),
+                    S3EventNotification.parseJson(message.getBody())));
+        }
+        return jobs;
+    }
+
+    @Override
+    public void keepAlive(final Job job) {
+        sqs.changeMessageVisibility(queueUrl, job.getReceipt(), visibilitySeconds);
+    }
+
+    @Override
+    public void complete(final Job job) {
+        receiveCounts.remove(job.getReceipt());
+        sqs.deleteMessage(queueUrl, job.getReceipt());
+    }
+
+    @Override
+    public void fail(final Job job) {
+        final Integer count = receiveCounts.remove(job.getReceipt());
+        sqs.changeMessageVisibility(queueUrl, job.getReceipt(), failBackoffSeconds(count == null ? 1 : count));
+    }
+
+    @Override
+    public void release(final Job job) {
+        receiveCounts.remove(job.getReceipt());
+        sqs.changeMessageVisibility(queueUrl, job.getReceipt(), 0);
+    }
+
+    /**
+     * @param receiveCount How often the failed job has been delivered
+     * @return how long the job stays invisible before it is delivered again
+     */
+    static int failBackoffSeconds(final int receiveCount) {
+        final int doublings = Math.min(Math.max(0, receiveCount - 1), 20);
+        return (int) Math.min(MAX_VISIBILITY_SECONDS, (long) FAIL_BACKOFF_SECONDS << doublings);
+    }
+}
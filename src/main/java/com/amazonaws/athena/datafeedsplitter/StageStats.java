@@ -0,0 +1,84 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StageStats records how busy one stage of the splitting pipeline was and how deep its input queue ran.
+ *
+ * A stage whose input queue is usually full and whose threads are busy most of the wall time is the
+ * bottleneck; stages downstream of it will show empty queues.
+ */
+class StageStats {
+    private final String name;
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong queueDepthSum = new AtomicLong();
+    private final AtomicLong queueDepthSamples = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    StageStats(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a timestamp to be passed to {@link #finish(long)} once the unit of work is done
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos The value returned by {@link #start()} when the unit of work began
+     */
+    public void finish(final long startNanos) {
+        busyNanos.addAndGet(System.nanoTime() - startNanos);
+        items.incrementAndGet();
+    }
+
+    /**
+     * @param depth The number of items waiting in front of this stage
+     */
+    public void sampleQueueDepth(final int depth) {
+        queueDepthSum.addAndGet(depth);
+        queueDepthSamples.incrementAndGet();
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    /** @return the total time spent working, summed over all threads of the stage. */
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+    }
+
+    /** @return the number of units of work completed. */
+    public long getItems() {
+        return items.get();
+    }
+
+    /** @return the average number of items waiting in front of this stage when sampled. */
+    public double getAverageQueueDepth() {
+        long samples = queueDepthSamples.get();
+        return samples == 0 ? 0 : (double) queueDepthSum.get() / samples;
+    }
+
+    /** @return the largest number of items seen waiting in front of this stage. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: busy %dms over %d items, queue depth avg %.1f max %d",
+                name, getBusyMillis(), getItems(), getAverageQueueDepth(), getMaxQueueDepth());
+    }
+}
@@ -0,0 +1,145 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * ThriftCompactWriter encodes structures with the Thrift compact protocol.
+ *
+ * Parquet stores its page headers and file footer as Thrift compact structures. Only the handful of types
+ * Parquet metadata uses are supported, which avoids pulling the Thrift runtime into the Lambda package.
+ */
+class ThriftCompactWriter {
+    static final byte TYPE_I32 = 5;
+    static final byte TYPE_I64 = 6;
+    static final byte TYPE_BINARY = 8;
+    static final byte TYPE_LIST = 9;
+    static final byte TYPE_STRUCT = 12;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Deque<Short> fieldIds = new ArrayDeque<Short>();
+    private short lastFieldId;
+
+    /**
+     * @return the bytes encoded so far
+     */
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    public ThriftCompactWriter i32Field(final int id, final int value) {
+        fieldHeader(TYPE_I32, id);
+        writeVarint(zigzag(value));
+        return this;
+    }
+
+    public ThriftCompactWriter i64Field(final int id, final long value) {
+        fieldHeader(TYPE_I64, id);
+        writeVarint(zigzag(value));
+        return this;
+    }
+
+    public ThriftCompactWriter binaryField(final int id, final byte[] value) {
+        fieldHeader(TYPE_BINARY, id);
+        writeBinary(value);
+        return this;
+    }
+
+    public ThriftCompactWriter stringField(final int id, final String value) {
+        return binaryField(id, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Start a nested structure. It must be ended with {@link #endStruct()}.
+     */
+    public ThriftCompactWriter beginStruct(final int id) {
+        fieldHeader(TYPE_STRUCT, id);
+        return beginListStruct();
+    }
+
+    public ThriftCompactWriter endStruct() {
+        out.write(0);
+        lastFieldId = fieldIds.pop();
+        return this;
+    }
+
+    /**
+     * Start a list field. The caller then writes exactly size elements of elementType.
+     */
+    public ThriftCompactWriter beginList(final int id, final byte elementType, final int size) {
+        fieldHeader(TYPE_LIST, id);
+        if (size < 15) {
+            out.write((size << 4) | elementType);
+        } else {
+            out.write(0xf0 | elementType);
+            writeVarint(size);
+        }
+        return this;
+    }
+
+    public ThriftCompactWriter listI32(final int value) {
+        writeVarint(zigzag(value));
+        return this;
+    }
+
+    public ThriftCompactWriter listString(final String value) {
+        writeBinary(value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Start a structure that is an element of a list. It must be ended with {@link #endStruct()}.
+     */
+    public ThriftCompactWriter beginListStruct() {
+        fieldIds.push(lastFieldId);
+        lastFieldId = 0;
+        return this;
+    }
+
+    /**
+     * Append a structure that was encoded on its own as the next element of a list.
+     */
+    public ThriftCompactWriter listEncodedStruct(final byte[] encoded) {
+        out.write(encoded, 0, encoded.length);
+        return this;
+    }
+
+    /**
+     * End the top level structure.
+     */
+    public ThriftCompactWriter stop() {
+        out.write(0);
+        return this;
+    }
+
+    private void fieldHeader(final byte type, final int id) {
+        int delta = id - lastFieldId;
+        if (delta > 0 && delta <= 15) {
+            out.write((delta << 4) | type);
+        } else {
+            out.write(type);
+            writeVarint(zigzag(id));
+        }
+        lastFieldId = (short) id;
+    }
+
+    private void writeBinary(final byte[] value) {
+        writeVarint(value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private void writeVarint(final long value) {
+        long v = value;
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
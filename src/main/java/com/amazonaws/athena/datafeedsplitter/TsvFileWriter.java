@@ -0,0 +1,68 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+
+/**
+ * TsvFileWriter writes rows back out as a gzip Data Feed TSV file, escaping tabs, newlines and backslashes
+ * in values the way Adobe does.
+ */
+class TsvFileWriter implements RowFileWriter {
+    private final GzipObjectOutput out;
+    private byte[] line = new byte[4096];
+
+    /**
+     * @param out The gzip object the rows are written to
+     */
+    TsvFileWriter(final GzipObjectOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * @return always true, so the compressed size is checked after every row
+     */
+    @Override
+    public boolean writeRow(final TsvRow row) throws IOException {
+        final byte[] buf = row.getBuffer();
+        int length = 0;
+        for (int field = 0; field < row.getFieldCount(); field++) {
+            final int start = row.getStart(field);
+            final int end = start + row.getLength(field);
+            // Each byte takes at most two bytes once escaped, plus the separator
+            if (line.length < length + (end - start) * 2 + 1) {
+                byte[] grown = new byte[Math.max(line.length * 2, length + (end - start) * 2 + 1)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            for (int i = start; i < end; i++) {
+                byte b = buf[i];
+                if (b == '\t' || b == '\n' || b == '\\') {
+                    line[length++] = '\\';
+                }
+                line[length++] = b;
+            }
+            line[length++] = field == row.getFieldCount() - 1 ? (byte) '\n' : (byte) '\t';
+        }
+        out.write(line, 0, length);
+        return true;
+    }
+
+    /**
+     * @return the number of compressed bytes written so far
+     */
+    @Override
+    public long getPosition() {
+        return out.getCompressedSize();
+    }
+
+    @Override
+    public long getRejectedValues() {
+        return 0;
+    }
+
+    /**
+     * Nothing follows the last row. The gzip trailer is written when the object is closed.
+     */
+    @Override
+    public void finish() {
+    }
+}
@@ -0,0 +1,167 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TsvRow is a view of one row of a Data Feed TSV file. Field values have their backslash escapes removed.
+ *
+ * Rows without escapes are viewed in place in the buffer they were read from; other rows are assembled in a
+ * buffer owned by the row. Either way the row and its buffer are reused for the next row, so values must be
+ * copied if they are kept beyond the call that received the row.
+ */
+class TsvRow {
+    private byte[] ownBuffer = new byte[4096];
+    private byte[] buffer = ownBuffer;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int fieldCount;
+    private int length;
+
+    /** @return the number of fields in the row. */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /** @return the buffer holding the field values. */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /** @return the offset of the field's value in the buffer. */
+    public int getStart(final int field) {
+        return starts[field];
+    }
+
+    /** @return the length in bytes of the field's value. */
+    public int getLength(final int field) {
+        return ends[field] - starts[field];
+    }
+
+    /** @return the field's value decoded as UTF-8. */
+    public String getString(final int field) {
+        return new String(buffer, starts[field], getLength(field), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the row that is not affected when this row is reused
+     */
+    public TsvRow copy() {
+        if (buffer != ownBuffer) {
+            ownFields();
+        }
+        TsvRow copy = new TsvRow();
+        copy.buffer = Arrays.copyOf(buffer, length);
+        copy.ownBuffer = copy.buffer;
+        copy.starts = Arrays.copyOf(starts, Math.max(fieldCount, 1));
+        copy.ends = Arrays.copyOf(ends, Math.max(fieldCount, 1));
+        copy.fieldCount = fieldCount;
+        copy.length = length;
+        return copy;
+    }
+
+    /**
+     * @param value The value of a field to add after the last field of the row
+     */
+    void appendField(final byte[] value) {
+        if (buffer != ownBuffer) {
+            ownFields();
+        }
+        final int fieldStart = length;
+        append(value, 0, value.length);
+        endField(fieldStart);
+    }
+
+    void reset() {
+        buffer = ownBuffer;
+        fieldCount = 0;
+        length = 0;
+    }
+
+    /**
+     * Start a row whose fields are viewed in place in the given buffer, see {@link #endField(int, int)}.
+     *
+     * @param source The buffer the row is read from
+     */
+    void resetInPlace(final byte[] source) {
+        buffer = source;
+        fieldCount = 0;
+        length = 0;
+    }
+
+    /**
+     * Move a row viewed in place into the buffer owned by the row, along with the part of the row read so far.
+     *
+     * @param from The offset in the source buffer where the row starts
+     * @param to   The offset in the source buffer up to which the row has been read
+     * @return the offset in the owned buffer that corresponds to the given end offset
+     */
+    int own(final int from, final int to) {
+        final byte[] source = buffer;
+        buffer = ownBuffer;
+        length = 0;
+        append(source, from, to - from);
+        for (int i = 0; i < fieldCount; i++) {
+            starts[i] -= from;
+            ends[i] -= from;
+        }
+        return length;
+    }
+
+    private void ownFields() {
+        if (fieldCount == 0) {
+            buffer = ownBuffer;
+            length = 0;
+        } else {
+            own(starts[0], ends[fieldCount - 1]);
+        }
+    }
+
+    void append(final byte b) {
+        if (length == buffer.length) {
+            grow(length + 1);
+        }
+        buffer[length++] = b;
+    }
+
+    void append(final byte[] src, final int offset, final int count) {
+        if (length + count > buffer.length) {
+            grow(length + count);
+        }
+        System.arraycopy(src, offset, buffer, length, count);
+        length += count;
+    }
+
+    private void grow(final int minLength) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, minLength)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+        ownBuffer = grown;
+    }
+
+    void endField(final int fieldStart) {
+        endField(fieldStart, length);
+    }
+
+    /**
+     * @param fieldStart The offset of the field's value in the buffer
+     * @param fieldEnd   The offset just past the field's value in the buffer
+     */
+    void endField(final int fieldStart, final int fieldEnd) {
+        if (fieldCount == starts.length) {
+            int[] grownStarts = new int[starts.length * 2];
+            int[] grownEnds = new int[ends.length * 2];
+            System.arraycopy(starts, 0, grownStarts, 0, fieldCount);
+            System.arraycopy(ends, 0, grownEnds, 0, fieldCount);
+            starts = grownStarts;
+            ends = grownEnds;
+        }
+        starts[fieldCount] = fieldStart;
+        ends[fieldCount] = fieldEnd;
+        fieldCount++;
+    }
+
+    int length() {
+        return length;
+    }
+}
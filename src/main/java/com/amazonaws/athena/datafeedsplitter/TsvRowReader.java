@@ -0,0 +1,165 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * TsvRowReader assembles rows of a Data Feed TSV file from bytes written to it in arbitrary pieces.
+ *
+ * Adobe escapes tabs, newlines and backslashes that are part of a value with a backslash. The reader removes
+ * those escapes, splits rows into fields and hands each complete row to a RowHandler.
+ *
+ * The reader does not allocate per row or per field. Delimiters are found eight bytes at a time by testing a
+ * whole word for tab, newline and backslash bytes at once. A row that lies within one write and has no escapes,
+ * which is nearly every row, is handed over as offsets into the written buffer without copying it. Only rows
+ * with escapes or that span writes are copied into the buffer of the row, a run of bytes at a time.
+ */
+class TsvRowReader {
+    /**
+     * RowHandler receives every complete row.
+     */
+    interface RowHandler {
+        void onRow(TsvRow row) throws IOException;
+    }
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long TABS = ONES * '\t';
+    private static final long NEWLINES = ONES * '\n';
+    private static final long BACKSLASHES = ONES * '\\';
+
+    private final RowHandler handler;
+    private final TsvRow row = new TsvRow();
+    private boolean escaped;
+    private int fieldStart;
+
+    // Little endian view of the last buffer written, to read it a word at a time
+    private byte[] wordSource;
+    private ByteBuffer words;
+
+    TsvRowReader(final RowHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @param buf    The buffer holding TSV bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     * @throws IOException when the handler fails
+     */
+    public void write(final byte[] buf, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        int i = offset;
+        if (escaped && i < end) {
+            row.append(buf[i++]);
+            escaped = false;
+        }
+
+        // Rows are viewed in place in buf, until one needs unescaping or is cut off by the end of buf
+        boolean inPlace = false;
+        int rowStart = i;
+        if (!escaped && row.length() == 0 && row.getFieldCount() == 0) {
+            row.resetInPlace(buf);
+            inPlace = true;
+            fieldStart = i;
+        }
+
+        while (i < end) {
+            final int special = indexOfSpecial(buf, i, end);
+            if (!inPlace) {
+                row.append(buf, i, special - i);
+            }
+            if (special == end) {
+                i = end;
+                break;
+            }
+            final byte b = buf[special];
+            i = special + 1;
+            if (b == '\t') {
+                row.endField(fieldStart, inPlace ? special : row.length());
+                fieldStart = inPlace ? i : row.length();
+            } else if (b == '\n') {
+                row.endField(fieldStart, inPlace ? special : row.length());
+                handler.onRow(row);
+                row.resetInPlace(buf);
+                inPlace = true;
+                rowStart = i;
+                fieldStart = i;
+            } else {
+                if (inPlace) {
+                    fieldStart -= rowStart;
+                    row.own(rowStart, special);
+                    inPlace = false;
+                }
+                if (i == end) {
+                    escaped = true;
+                    break;
+                }
+                row.append(buf[i++]);
+            }
+        }
+
+        // The row cut off by the end of buf is kept until the next write
+        if (inPlace) {
+            if (rowStart < end) {
+                fieldStart -= rowStart;
+                row.own(rowStart, end);
+            } else {
+                row.reset();
+                fieldStart = 0;
+            }
+        }
+    }
+
+    /**
+     * Hand over the last row if the data did not end with a newline.
+     */
+    public void finish() throws IOException {
+        if (row.length() > 0 || row.getFieldCount() > 0) {
+            emitRow();
+        }
+    }
+
+    private void emitRow() throws IOException {
+        row.endField(fieldStart);
+        handler.onRow(row);
+        row.reset();
+        fieldStart = 0;
+    }
+
+    /**
+     * @return the offset of the first tab, newline or backslash in buf from offset from, or to if there is none
+     */
+    private int indexOfSpecial(final byte[] buf, final int from, final int to) {
+        int i = from;
+        if (to - from >= Long.BYTES) {
+            if (buf != wordSource) {
+                wordSource = buf;
+                words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                final long word = words.getLong(i);
+                final long found = zeroBytes(word ^ TABS) | zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ BACKSLASHES);
+                if (found != 0) {
+                    // The lowest flagged byte is always a real match, higher ones may be borrows
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+                }
+            }
+        }
+        for (; i < to; i++) {
+            final byte b = buf[i];
+            if (b == '\t' || b == '\n' || b == '\\') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return a word with the high bit set in the lowest byte of v that is zero, and possibly in higher bytes
+     */
+    private static long zeroBytes(final long v) {
+        return (v - ONES) & ~v & HIGH_BITS;
+    }
+}
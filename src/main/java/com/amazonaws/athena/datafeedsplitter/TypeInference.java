@@ -0,0 +1,135 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * TypeInference decides the type of every hit_data column.
+ *
+ * A column keeps the type it was given on an earlier day, so all partitions of the table agree. A new column
+ * takes its type from the list of standard Adobe columns below, and any other column is inferred from a sample
+ * of rows: it becomes an INT if every sampled value is a plain integer, and stays a STRING otherwise.
+ */
+class TypeInference {
+    /** Standard Data Feed columns with a known type. */
+    static final Map<String, ColumnType> ADOBE_COLUMN_TYPES;
+
+    // Custom variables hold whatever the site sends, so they are never inferred
+    private static final Pattern CUSTOM_VARIABLE = Pattern.compile("(post_)?(evar|prop|mvvar|list)[0-9]+");
+
+    // Minimum number of values a sample must hold before a column is inferred to be an integer
+    private static final int MIN_SAMPLE_VALUES = 100;
+
+    // Integers with more digits are left as strings, they are usually identifiers
+    private static final int MAX_INFERRED_DIGITS = 9;
+
+    static {
+        Map<String, ColumnType> types = new HashMap<String, ColumnType>();
+        for (String name : new String[]{
+                "hit_time_gmt", "cust_hit_time_gmt", "post_cust_hit_time_gmt", "first_hit_time_gmt",
+                "last_hit_time_gmt", "visit_start_time_gmt", "last_purchase_time_gmt", "last_purchase_num",
+                "visit_num", "visit_page_num", "exclude_hit", "hit_source", "duplicate_purchase",
+                "daily_visitor", "hourly_visitor", "weekly_visitor", "monthly_visitor", "quarterly_visitor",
+                "yearly_visitor", "new_visit", "page_event", "post_page_event", "browser", "browser_height",
+                "browser_width", "post_browser_height", "post_browser_width", "color", "connection_type",
+                "country", "javascript", "language", "os", "resolution", "search_engine", "post_search_engine",
+                "visit_search_engine", "ref_type", "visit_ref_type", "first_hit_ref_type", "geo_dma",
+                "va_closer_id", "va_finder_id", "va_instance_id", "visid_type", "post_visid_type",
+        }) {
+            types.put(name, ColumnType.INT);
+        }
+        // Unsigned 64-bit identifiers do not fit a signed bigint
+        for (String name : new String[]{
+                "hitid_high", "hitid_low", "visid_high", "visid_low", "post_visid_high", "post_visid_low",
+                "mcvisid", "post_mcvisid",
+        }) {
+            types.put(name, ColumnType.STRING);
+        }
+        ADOBE_COLUMN_TYPES = Collections.unmodifiableMap(types);
+    }
+
+    private final DataFeedSchema schema;
+    private final ColumnType[] types;
+    private final int[] sampledValues;
+    private final boolean[] allIntegers;
+    private final IntegerParser parser = new IntegerParser();
+    private boolean needsSample;
+
+    /**
+     * @param schema     The columns listed in column_headers.tsv
+     * @param knownTypes The types columns were given on earlier days, by column name
+     */
+    TypeInference(final DataFeedSchema schema, final Map<String, ColumnType> knownTypes) {
+        this.schema = schema;
+        this.types = new ColumnType[schema.getColumnCount()];
+        this.sampledValues = new int[types.length];
+        this.allIntegers = new boolean[types.length];
+        for (int i = 0; i < types.length; i++) {
+            String name = schema.getColumnName(i);
+            if (knownTypes.containsKey(name)) {
+                types[i] = knownTypes.get(name);
+            } else if (ADOBE_COLUMN_TYPES.containsKey(name)) {
+                types[i] = ADOBE_COLUMN_TYPES.get(name);
+            } else if (CUSTOM_VARIABLE.matcher(name).matches()) {
+                types[i] = ColumnType.STRING;
+            } else {
+                allIntegers[i] = true;
+                needsSample = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if some column can only be typed from a sample of rows
+     */
+    public boolean needsSample() {
+        return needsSample;
+    }
+
+    /**
+     * @param row A row of hit_data to infer the type of the undecided columns from
+     */
+    public void observe(final TsvRow row) {
+        final int fields = Math.min(row.getFieldCount(), types.length);
+        for (int i = 0; i < fields; i++) {
+            if (types[i] != null || !allIntegers[i] || row.getLength(i) == 0) {
+                continue;
+            }
+            sampledValues[i]++;
+            allIntegers[i] = isPlainInteger(row.getBuffer(), row.getStart(i), row.getLength(i));
+        }
+    }
+
+    /**
+     * @return the schema with the type of every column decided
+     */
+    public DataFeedSchema infer() {
+        List<ColumnType> result = new ArrayList<ColumnType>(types.length);
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != null) {
+                result.add(types[i]);
+            } else if (allIntegers[i] && sampledValues[i] >= MIN_SAMPLE_VALUES) {
+                result.add(ColumnType.INT);
+            } else {
+                result.add(ColumnType.STRING);
+            }
+        }
+        return new DataFeedSchema(schema.getColumnNames(), result);
+    }
+
+    /**
+     * Leading zeros mark codes such as zip codes, which must keep their text.
+     */
+    private boolean isPlainInteger(final byte[] buf, final int offset, final int length) {
+        final int digitsStart = buf[offset] == '-' ? offset + 1 : offset;
+        final int digits = offset + length - digitsStart;
+        if (digits > MAX_INFERRED_DIGITS || (digits > 1 && buf[digitsStart] == '0')) {
+            return false;
+        }
+        return parser.parse(buf, offset, length);
+    }
+}
@@ -0,0 +1,331 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ZipDataFeedReader reads Data Feed files delivered as .zip archives instead of .tar.gz.
+ *
+ * A zip archive ends with a central directory listing where every entry starts and how large it is. The
+ * directory is read with a single ranged GET of the end of the archive, after which every entry can be fetched
+ * and decompressed on its own, over its own ranged GETs, at the same time as the others. Archives and entries
+ * larger than 4GB use the ZIP64 records of the directory.
+ */
+class ZipDataFeedReader {
+    // The end of central directory record is 22 bytes, followed by a comment of up to 64KB
+    private static final int TAIL_SIZE = 22 + 0xffff;
+    private static final int END_OF_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int DIRECTORY_ENTRY = 0x02014b50;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int INFLATE_INPUT_SIZE = 256 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final int windowSize;
+    private final int connections;
+    private final StageStats fetchStats;
+    private final List<Entry> entries;
+
+    /**
+     * Entry is a file of the archive as listed in the central directory.
+     */
+    static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        /**
+         * @param name              The name of the file
+         * @param method            The compression method, stored (0) or deflated (8)
+         * @param crc               The CRC32 of the uncompressed file
+         * @param compressedSize    The size of the file in the archive
+         * @param size              The uncompressed size of the file
+         * @param localHeaderOffset The offset of the local header preceding the file data
+         */
+        Entry(final String name, final int method, final long crc, final long compressedSize, final long size,
+              final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /** getter for name. */
+        public String getName() {
+            return name;
+        }
+
+        /** getter for method. */
+        public int getMethod() {
+            return method;
+        }
+
+        /** getter for crc. */
+        public long getCrc() {
+            return crc;
+        }
+
+        /** getter for compressedSize. */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /** getter for size. */
+        public long getSize() {
+            return size;
+        }
+
+        /** getter for localHeaderOffset. */
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * @return true if the file is stored as a raw deflate stream
+         */
+        public boolean isDeflated() {
+            return method == DEFLATED;
+        }
+    }
+
+    /**
+     * @param s3     A pre-existing AmazonS3 client
+     * @param record A DataFeedRecord that indicates the source archive to read from
+     * @param config The splitter configuration providing the number of connections and their window size
+     * @param stats  The statistics of the pipeline the reader is part of
+     * @throws IOException when the central directory can not be read
+     */
+    ZipDataFeedReader(final AmazonS3 s3, final DataFeedRecord record, final SplitterConfig config,
+                      final PipelineStats stats) throws IOException {
+        this.s3 = s3;
+        this.bucket = record.getSrcBucket();
+        this.key = record.getSrcTarbell();
+        this.windowSize = config.getReaderWindowSize();
+        this.connections = config.getReaderConnections();
+        this.fetchStats = stats.stage(PipelineStats.FETCH);
+
+        final long objectLength = s3.getObjectMetadata(bucket, key).getContentLength();
+        final long tailStart = Math.max(0, objectLength - TAIL_SIZE);
+        final byte[] tail = fetch(tailStart, (int) (objectLength - tailStart));
+        final long[] directory = findCentralDirectory(tail, tailStart);
+
+        final long directoryStart = directory[0];
+        final int directorySize = (int) directory[1];
+        final byte[] listing;
+        if (directoryStart >= tailStart) {
+            listing = new byte[directorySize];
+            System.arraycopy(tail, (int) (directoryStart - tailStart), listing, 0, directorySize);
+        } else {
+            listing = fetch(directoryStart, directorySize);
+        }
+        this.entries = Collections.unmodifiableList(parseCentralDirectory(listing));
+    }
+
+    /**
+     * @return the files of the archive, in the order of the central directory, without directories
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param entry A file of the archive
+     * @return a stream of the uncompressed file, which fails at its end if the file does not match its CRC32
+     * @throws IOException when the local header of the file can not be read
+     */
+    public InputStream openEntry(final Entry entry) throws IOException {
+        final InputStream compressed = openCompressedEntry(entry);
+        final InputStream data;
+        if (entry.isDeflated()) {
+            // An inflater without the zlib wrapper may need a byte past the end of the deflate stream
+            data = new InflaterInputStream(new SequenceInputStream(compressed, new ByteArrayInputStream(new byte[1])),
+                    new Inflater(true), INFLATE_INPUT_SIZE);
+        } else {
+            data = compressed;
+        }
+        return new CheckedInputStream(data, new CRC32()) {
+            private long read;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] buf, final int offset, final int length) throws IOException {
+                final int count = super.read(buf, offset, length);
+                if (count > 0) {
+                    read += count;
+                } else if (count == -1 && (read != entry.getSize() || getChecksum().getValue() != entry.getCrc())) {
+                    throw new IOException("Entry " + entry.getName() + " of s3://" + bucket + "/" + key
+                            + " is corrupt: " + read + " bytes with CRC32 "
+                            + Long.toHexString(getChecksum().getValue()) + ", expected " + entry.getSize()
+                            + " bytes with CRC32 " + Long.toHexString(entry.getCrc()));
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @param entry A file of the archive
+     * @return a stream of the file as stored in the archive, a raw deflate stream for deflated files
+     * @throws IOException when the local header of the file can not be read
+     */
+    public InputStream openCompressedEntry(final Entry entry) throws IOException {
+        final ByteBuffer header = ByteBuffer.wrap(fetch(entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("No local header for " + entry.getName() + " in s3://" + bucket + "/" + key);
+        }
+        // The local extra field may differ from the one in the central directory
+        final long dataStart = entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        final long dataEnd = dataStart + entry.getCompressedSize();
+
+        if (entry.getCompressedSize() == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (entry.getCompressedSize() > windowSize) {
+            return new RangedPrefetchInputStream(s3, bucket, key, dataStart, dataEnd, windowSize,
+                    Math.max(1, connections), fetchStats);
+        }
+        return new ByteArrayInputStream(fetch(dataStart, (int) entry.getCompressedSize()));
+    }
+
+
+    private byte[] fetch(final long start, final int length) throws IOException {
+        long startNanos = fetchStats.start();
+        byte[] data = RangedPrefetchInputStream.readRange(s3, bucket, key, start, length);
+        fetchStats.finish(startNanos);
+        return data;
+    }
+
+    /**
+     * @param tail      The end of the archive
+     * @param tailStart The offset of the tail in the archive
+     * @return the offset and size of the central directory
+     * @throws IOException when the tail has no end of central directory record, or its ZIP64 record is not in it
+     */
+    static long[] findCentralDirectory(final byte[] tail, final long tailStart) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int end = -1;
+        // The record is found from the back, as the comment before it could hold its signature
+        for (int at = tail.length - 22; at >= 0; at--) {
+            if (buf.getInt(at) == END_OF_DIRECTORY && at + 22 + (buf.getShort(at + 20) & 0xffff) == tail.length) {
+                end = at;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("Not a zip archive, the end of central directory record is missing");
+        }
+
+        long size = buf.getInt(end + 12) & 0xffffffffL;
+        long offset = buf.getInt(end + 16) & 0xffffffffL;
+        if (size != 0xffffffffL && offset != 0xffffffffL) {
+            return new long[]{offset, size};
+        }
+
+        // A ZIP64 archive locates its own end of central directory record just before the classic one
+        final int locator = end - 20;
+        if (locator < 0 || buf.getInt(locator) != ZIP64_LOCATOR) {
+            throw new IOException("ZIP64 end of central directory locator is missing");
+        }
+        final long zip64End = buf.getLong(locator + 8) - tailStart;
+        if (zip64End < 0 || zip64End + 56 > locator || buf.getInt((int) zip64End) != ZIP64_END_OF_DIRECTORY) {
+            throw new IOException("ZIP64 end of central directory record is missing");
+        }
+        size = buf.getLong((int) zip64End + 40);
+        offset = buf.getLong((int) zip64End + 48);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Central directory of " + size + " bytes is too large");
+        }
+        return new long[]{offset, size};
+    }
+
+    /**
+     * @param listing The central directory
+     * @return the files it lists, without directories
+     * @throws IOException when the directory is corrupt or lists a file that can not be read
+     */
+    static List<Entry> parseCentralDirectory(final byte[] listing) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(listing).order(ByteOrder.LITTLE_ENDIAN);
+        final List<Entry> files = new ArrayList<Entry>();
+        int at = 0;
+        while (at + 46 <= listing.length && buf.getInt(at) == DIRECTORY_ENTRY) {
+            final int flags = buf.getShort(at + 8) & 0xffff;
+            final int method = buf.getShort(at + 10) & 0xffff;
+            final long crc = buf.getInt(at + 16) & 0xffffffffL;
+            long compressedSize = buf.getInt(at + 20) & 0xffffffffL;
+            long size = buf.getInt(at + 24) & 0xffffffffL;
+            final int nameLength = buf.getShort(at + 28) & 0xffff;
+            final int extraLength = buf.getShort(at + 30) & 0xffff;
+            final int commentLength = buf.getShort(at + 32) & 0xffff;
+            long localHeaderOffset = buf.getInt(at + 42) & 0xffffffffL;
+            final String name = new String(listing, at + 46, nameLength, StandardCharsets.UTF_8);
+
+            // The ZIP64 extra field holds, in this order, the values that did not fit in 32 bits
+            int extra = at + 46 + nameLength;
+            final int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                final int id = buf.getShort(extra) & 0xffff;
+                final int length = buf.getShort(extra + 2) & 0xffff;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (size == 0xffffffffL) {
+                        size = buf.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = buf.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = buf.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+            at = extraEnd + commentLength;
+
+            if (name.endsWith("/")) {
+                continue;
+            }
+            if ((flags & 1) != 0) {
+                throw new IOException("Entry " + name + " is encrypted");
+            }
+            if (method != STORED && method != DEFLATED) {
+                throw new IOException("Entry " + name + " uses unsupported compression method " + method);
+            }
+            files.add(new Entry(name, method, crc, compressedSize, size, localHeaderOffset));
+        }
+        return files;
+    }
+}
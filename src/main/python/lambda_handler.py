@@ -38,55 +38,127 @@ def get_headers(s3_report_base, partition_date):
     return got_text.strip().split("\t")
 
 
-def create_glue_table(glue_client, database_name, s3_report_base, partition_date):
-    """Create the base Glue table if it does not exist"""
-    if does_table_exist(glue_client, database_name, "hit_data"):
-        return
-    print("Creating hit_data table using partition %s" % partition_date)
-    headers = get_headers(s3_report_base, partition_date)
-    glue_client.create_table(
-        DatabaseName=database_name,
-        TableInput={
-            "Name": 'hit_data',
-            "StorageDescriptor": storage_descriptor(
-                [{"Type": "string", "Name": name} for name in headers],
-                '%s/rawtsv/hit_data/' % (s3_report_base)
-            ),
-            "PartitionKeys": [{"Name": "dt", "Type": "string"}],
-            "TableType": "EXTERNAL_TABLE",
-            "Parameters": {},  # Required or Glue create_dynamic_frame.from_catalog fails
-            "LastAccessTime": time.time()
-        }
-    )
+def hitdata_columns(s3_report_base, partition_date, typed_columns):
+    """Return the typed hit_data columns sent by the splitter, or every column header as a string"""
+    if typed_columns:
+        return typed_columns
+    return [{"Type": "string", "Name": name} for name in get_headers(s3_report_base, partition_date)]
+
+
+def hitdata_storage_descriptor(columns, location, hit_data_format):
+    """Build the storage descriptor of hit_data in the format the splitter wrote it in"""
+    if hit_data_format == "parquet":
+        return parquet_storage_descriptor(columns, location)
+    if hit_data_format == "orc":
+        return orc_storage_descriptor(columns, location)
+    return storage_descriptor(columns, location)
 
 
-def does_partition_exist(glue_client, database, table, part_values):
-    """Test if a specific partition exists"""
+def hitdata_partition_keys(hours):
+    """Partition hit_data by dt, and by hr below it when the splitter wrote hour partitions"""
+    keys = [{"Name": "dt", "Type": "string"}]
+    if hours is not None:
+        keys.append({"Name": "hr", "Type": "string"})
+    return keys
+
+
+def create_glue_table(glue_client, database_name, s3_report_base, partition_date, hit_data_format, typed_columns,
+                      hours):
+    """Create the base Glue table if it does not exist, or update it when the splitter now writes it differently"""
     try:
-        glue_client.get_partition(DatabaseName=database, TableName=table, PartitionValues=part_values)
+        table = glue_client.get_table(DatabaseName=database_name, Name="hit_data")['Table']
+    except glue_client.exceptions.EntityNotFoundException:
+        table = None
+    partition_keys = hitdata_partition_keys(hours)
+    if table is not None:
+        check_partition_keys(table, partition_keys)
+    location = '%s/%s/hit_data/' % (s3_report_base, hit_data_format)
+    if table is not None and not hitdata_descriptor_changed(table['StorageDescriptor'], location, hit_data_format,
+                                                            typed_columns):
+        return
+    columns = hitdata_columns(s3_report_base, partition_date, typed_columns)
+    table_input = {
+        "Name": 'hit_data',
+        "StorageDescriptor": hitdata_storage_descriptor(columns, location, hit_data_format),
+        "PartitionKeys": partition_keys,
+        "TableType": "EXTERNAL_TABLE",
+        "Parameters": {},  # Required or Glue create_dynamic_frame.from_catalog fails
+        "LastAccessTime": time.time()
+    }
+    if table is None:
+        print("Creating hit_data table using partition %s" % partition_date)
+        glue_client.create_table(DatabaseName=database_name, TableInput=table_input)
+    else:
+        print("Updating hit_data table to the %s columns of partition %s" % (hit_data_format, partition_date))
+        glue_client.update_table(DatabaseName=database_name, TableInput=table_input)
+
+
+def check_partition_keys(table, partition_keys):
+    """Fail when an existing hit_data table is partitioned differently than the splitter now writes it.
+
+    Glue can not change the partition keys of a table that has partitions, so the table has to be recreated, for
+    example by deleting it and converting a day again.
+    """
+    existing = [key['Name'] for key in table.get('PartitionKeys', [])]
+    expected = [key['Name'] for key in partition_keys]
+    if existing != expected:
+        raise ValueError("hit_data is partitioned by %s but the splitter wrote %s partitions; PARTITION_BY_HOUR was "
+                         "changed after the table was created, delete the hit_data table to recreate it"
+                         % (", ".join(existing), "/".join(expected)))
+
+
+def hitdata_descriptor_changed(descriptor, location, hit_data_format, typed_columns):
+    """Test if the descriptor of the hit_data table or a partition has another format, location or columns than the
+    splitter now writes, such as the name columns of denormalized lookups"""
+    expected = hitdata_storage_descriptor([], location, hit_data_format)
+    if descriptor.get('Location') != location or descriptor.get('InputFormat') != expected['InputFormat']:
         return True
+    # Columns of a table of strings are only known from the column headers, which are not read again
+    if typed_columns:
+        existing = [(column['Name'], column['Type']) for column in descriptor.get('Columns', [])]
+        return existing != [(column['Name'], column['Type']) for column in typed_columns]
+    return False
+
+
+def get_partition(glue_client, database, table, part_values):
+    """Return a specific partition, or None if it does not exist"""
+    try:
+        return glue_client.get_partition(DatabaseName=database, TableName=table,
+                                         PartitionValues=part_values)['Partition']
     except glue_client.exceptions.EntityNotFoundException:
-        return False
+        return None
 
 
-def add_hitdata_partition(glue_client, database_name, s3_report_base, partition_date):
-    """Add a partition to the hit_data table for a specific date"""
-    if does_partition_exist(glue_client, database_name, "hit_data", [partition_date]):
-        return
-    headers = get_headers(s3_report_base, partition_date)
-    print("Creating partition %s" % partition_date)
-    glue_client.create_partition(
-        DatabaseName=database_name,
-        TableName="hit_data",
-        PartitionInput={
-            "Values": [partition_date],
-            "StorageDescriptor": storage_descriptor(
-                [{"Type": "string", "Name": name} for name in headers],
-                '%s/rawtsv/hit_data/dt=%s/' % (s3_report_base, partition_date)
-            ),
+def add_hitdata_partition(glue_client, database_name, s3_report_base, partition_date, hit_data_format,
+                          typed_columns, hours):
+    """Add a partition to the hit_data table for a specific date, or one for every hour of the date"""
+    if hours is None:
+        partitions = [([partition_date], 'dt=%s' % partition_date)]
+    else:
+        partitions = [([partition_date, hour], 'dt=%s/hr=%s' % (partition_date, hour)) for hour in hours]
+    columns = None
+    for values, path in partitions:
+        location = '%s/%s/hit_data/%s/' % (s3_report_base, hit_data_format, path)
+        existing = get_partition(glue_client, database_name, "hit_data", values)
+        if existing is not None and not hitdata_descriptor_changed(existing['StorageDescriptor'], location,
+                                                                   hit_data_format, typed_columns):
+            continue
+        if columns is None:
+            columns = hitdata_columns(s3_report_base, partition_date, typed_columns)
+        partition_input = {
+            "Values": values,
+            "StorageDescriptor": hitdata_storage_descriptor(columns, location, hit_data_format),
             "Parameters": {}
         }
-    )
+        if existing is None:
+            print("Creating partition %s" % path)
+            glue_client.create_partition(DatabaseName=database_name, TableName="hit_data",
+                                         PartitionInput=partition_input)
+        else:
+            # A day converted again, for example with DENORMALIZE_LOOKUPS turned on, may have new columns
+            print("Updating partition %s" % path)
+            glue_client.update_partition(DatabaseName=database_name, TableName="hit_data",
+                                         PartitionValueList=values, PartitionInput=partition_input)
 
 
 def storage_descriptor(columns, location):
@@ -107,6 +179,45 @@ def storage_descriptor(columns, location):
     }
 
 
+def symlink_storage_descriptor(columns, location):
+    """Build a Data Catalog storage descriptor for TSV files listed by the symlink manifests in the S3 location"""
+    descriptor = storage_descriptor(columns, location)
+    descriptor["InputFormat"] = "org.apache.hadoop.hive.ql.io.SymlinkTextInputFormat"
+    return descriptor
+
+
+def parquet_storage_descriptor(columns, location):
+    """Build a Data Catalog storage descriptor for Parquet files with the desired columns and S3 location"""
+    return {
+        "Columns": columns,
+        "Location": location,
+        "InputFormat": "org.apache.hadoop.hive.ql.io.parquet.MapredParquetInputFormat",
+        "OutputFormat": "org.apache.hadoop.hive.ql.io.parquet.MapredParquetOutputFormat",
+        "SerdeInfo": {
+            "SerializationLibrary": "org.apache.hadoop.hive.ql.io.parquet.serde.ParquetHiveSerDe",
+            "Parameters": {}
+        },
+        "BucketColumns": [],  # Required or SHOW CREATE TABLE fails
+        "Parameters": {}  # Required or create_dynamic_frame.from_catalog fails
+    }
+
+
+def orc_storage_descriptor(columns, location):
+    """Build a Data Catalog storage descriptor for ORC files with the desired columns and S3 location"""
+    return {
+        "Columns": columns,
+        "Location": location,
+        "InputFormat": "org.apache.hadoop.hive.ql.io.orc.OrcInputFormat",
+        "OutputFormat": "org.apache.hadoop.hive.ql.io.orc.OrcOutputFormat",
+        "SerdeInfo": {
+            "SerializationLibrary": "org.apache.hadoop.hive.ql.io.orc.OrcSerde",
+            "Parameters": {}
+        },
+        "BucketColumns": [],  # Required or SHOW CREATE TABLE fails
+        "Parameters": {}  # Required or create_dynamic_frame.from_catalog fails
+    }
+
+
 def does_table_exist(glue_client, database, table):
     """Test if a specific table exists"""
     try:
@@ -134,22 +245,26 @@ def create_lookup_tables(glue_client, database_name, s3_lookup_uri):
     ]
 
     for lookup_name in generic_lookup_types:
-        if does_table_exist(glue_client, database_name, lookup_name):
+        table_input = {
+            "Name": lookup_name,
+            "StorageDescriptor": symlink_storage_descriptor(
+                [{"Type": "string", "Name": "id"}, {"Type": "string", "Name": "value"}],
+                '%s/%s/' % (s3_lookup_uri, lookup_name)
+            ),
+            "PartitionKeys": [],
+            "TableType": "EXTERNAL_TABLE",
+            "Parameters": {},  # Required or Glue create_dynamic_frame.from_catalog fails
+            "LastAccessTime": time.time()
+        }
+        try:
+            table = glue_client.get_table(DatabaseName=database_name, Name=lookup_name)['Table']
+        except glue_client.exceptions.EntityNotFoundException:
+            glue_client.create_table(DatabaseName=database_name, TableInput=table_input)
             continue
-        glue_client.create_table(
-            DatabaseName=database_name,
-            TableInput={
-                "Name": lookup_name,
-                "StorageDescriptor": storage_descriptor(
-                    [{"Type": "string", "Name": "id"}, {"Type": "string", "Name": "value"}],
-                    '%s/%s/' % (s3_lookup_uri, lookup_name)
-                ),
-                "PartitionKeys": [],
-                "TableType": "EXTERNAL_TABLE",
-                "Parameters": {},  # Required or Glue create_dynamic_frame.from_catalog fails
-                "LastAccessTime": time.time()
-            }
-        )
+        # Tables created before the lookup store read the lookup files directly
+        if table['StorageDescriptor'].get('InputFormat') != table_input['StorageDescriptor']['InputFormat']:
+            print("Switching lookup table %s to symlink manifests" % lookup_name)
+            glue_client.update_table(DatabaseName=database_name, TableInput=table_input)
 
 
 def create_glue_client():
@@ -171,10 +286,15 @@ def handler(event, context):
     s3_report_base = event['reportBase'].rstrip('/')
     lookup_location = event['lookupURI'].rstrip('/')
     partition_date = event['reportDate']
+    hit_data_format = event.get('hitDataFormat') or 'rawtsv'
+    typed_columns = event.get('hitDataColumns')
+    hours = event.get('hitDataHours')
     glue_database = os.environ['DB_NAME']
     glue_client = create_glue_client()
 
     create_db(glue_client, glue_database)
-    create_glue_table(glue_client, glue_database, s3_report_base, partition_date)
+    create_glue_table(glue_client, glue_database, s3_report_base, partition_date, hit_data_format, typed_columns,
+                      hours)
     create_lookup_tables(glue_client, glue_database, lookup_location)
-    add_hitdata_partition(glue_client, glue_database, s3_report_base, partition_date)
+    add_hitdata_partition(glue_client, glue_database, s3_report_base, partition_date, hit_data_format, typed_columns,
+                          hours)
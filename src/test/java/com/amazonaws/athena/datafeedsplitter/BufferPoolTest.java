@@ -0,0 +1,32 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @org.junit.Test
+    public void reusesReleasedArraysOfTheSameSize() {
+        BufferPool pool = new BufferPool(1024);
+        byte[] first = pool.acquire(256);
+        pool.release(first);
+
+        assertSame(first, pool.acquire(256));
+        assertNotSame(first, pool.acquire(256));
+        assertEquals(512, pool.acquire(512).length);
+        assertEquals(3, pool.getAllocations());
+    }
+
+    @org.junit.Test
+    public void keepsAtMostTheConfiguredBytes() {
+        BufferPool pool = new BufferPool(1000);
+        byte[] kept = pool.acquire(600);
+        byte[] dropped = pool.acquire(600);
+        pool.release(kept);
+        pool.release(dropped);
+        pool.release(null);
+
+        assertEquals(600, pool.getPooledBytes());
+        assertSame(kept, pool.acquire(600));
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
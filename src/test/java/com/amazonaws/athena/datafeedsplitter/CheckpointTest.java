@@ -0,0 +1,44 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    @org.junit.Test
+    public void roundTrip() {
+        Checkpoint checkpoint = new Checkpoint("\"abc-12\"", "k1x2y3z4", "hit_data.tsv", 123456789012L, 3,
+                Arrays.asList(
+                        "adobe/converted/suite/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.k1x2y3z4-00000.gz",
+                        "adobe/converted/suite/rawtsv/hit_data/dt=2018-02-02/_hit_data.tsv.k1x2y3z4-00000.gz.idx"));
+
+        Checkpoint parsed = Checkpoint.parse(checkpoint.toByteArray());
+
+        assertEquals("\"abc-12\"", parsed.getSourceETag());
+        assertEquals("k1x2y3z4", parsed.getRunId());
+        assertEquals("hit_data.tsv", parsed.getEntry());
+        assertEquals(123456789012L, parsed.getEntryOffset());
+        assertEquals(3, parsed.getNextChunk());
+        assertEquals(checkpoint.getCompletedKeys(), parsed.getCompletedKeys());
+    }
+
+    @org.junit.Test
+    public void checkpointWithoutRun() {
+        Checkpoint parsed = Checkpoint.parse("source_etag\tx\nentry\thit_data.tsv\nentry_offset\t10\nnext_chunk\t1\n"
+                .getBytes(StandardCharsets.UTF_8));
+        assertNull(parsed.getRunId());
+        assertEquals(1, parsed.getNextChunk());
+    }
+
+    @org.junit.Test
+    public void noCheckpoint() {
+        assertNull(Checkpoint.parse(null));
+    }
+
+    @org.junit.Test(expected = RuntimeException.class)
+    public void incompleteCheckpoint() {
+        Checkpoint.parse("source_etag\tx\nentry\thit_data.tsv\n".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,50 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DataFeedManifestTest {
+    private static final String MANIFEST = "Datafeed-Manifest-Version: 1.0\n"
+            + "Lookup-Files: 1\n"
+            + "Data-Files: 1\n"
+            + "Total-Records: 611\n"
+            + "\n"
+            + "Lookup-File: report_2018-02-02-lookup_data.tar.gz\n"
+            + "MD5-Digest: AF6DE42D8B945D4EC1CF28360085308A\n"
+            + "File-Size: 63750\n"
+            + "\n"
+            + "Data-File: report_2018-02-02.tar.gz\n"
+            + "MD5-Digest: 9c70bf783cb3d0095a4836904b72c991\n"
+            + "File-Size: 122534\n"
+            + "Record-Count: 611\n";
+
+    @org.junit.Test
+    public void parse() {
+        DataFeedManifest manifest = DataFeedManifest.parse(MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(611, manifest.getTotalRecords());
+        assertEquals(1, manifest.getDataFiles().size());
+        DataFeedManifest.DataFile data = manifest.getDataFiles().get(0);
+        assertEquals("report_2018-02-02.tar.gz", data.getName());
+        assertEquals("9c70bf783cb3d0095a4836904b72c991", data.getMd5());
+        assertEquals(122534, data.getSize());
+        assertEquals(611, data.getRecordCount());
+        DataFeedManifest.DataFile lookup = manifest.getLookupFiles().get(0);
+        assertEquals("report_2018-02-02-lookup_data.tar.gz", lookup.getName());
+        assertEquals("af6de42d8b945d4ec1cf28360085308a", lookup.getMd5());
+        assertEquals(-1, lookup.getRecordCount());
+    }
+
+    @org.junit.Test(expected = RuntimeException.class)
+    public void truncatedManifest() {
+        String truncated = MANIFEST.substring(0, MANIFEST.indexOf("Data-File:"));
+        DataFeedManifest.parse(truncated.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @org.junit.Test(expected = RuntimeException.class)
+    public void totalDoesNotMatch() {
+        DataFeedManifest.parse(MANIFEST.replace("Total-Records: 611", "Total-Records: 612")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+}
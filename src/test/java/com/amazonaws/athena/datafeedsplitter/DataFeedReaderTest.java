@@ -2,12 +2,17 @@ package com.amazonaws.athena.datafeedsplitter;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.event.S3EventNotification;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.IOUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -15,13 +20,24 @@ import software.amazon.ion.IonException;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -47,6 +63,9 @@ public class DataFeedReaderTest {
 
         // Return a sample entry when queried
         Mockito.when(s3.getObject(TEST_BUCKET, "adobe/daily/small_archive.tar.gz")).thenReturn(mockS3Object);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(readResource("/small_archive.tar.gz").length);
+        Mockito.when(s3.getObjectMetadata(TEST_BUCKET, "adobe/daily/small_archive.tar.gz")).thenReturn(metadata);
 
 
         // Set up the data feed record with a metadata event for the archive file
@@ -56,7 +75,7 @@ public class DataFeedReaderTest {
         );
         S3EventNotification notification = S3EventNotification.parseJson(sampleS3ArchiveEvent);
         dataFeedRecord.buildFromRecord(notification.getRecords().get(0));
-        dataFeedReader = new DataFeedReader(s3, dataFeedRecord);
+        dataFeedReader = new DataFeedReader(s3, dataFeedRecord, new SplitterConfig());
     }
 
     @org.junit.Test
@@ -104,4 +123,290 @@ public class DataFeedReaderTest {
         assertEquals(test2Text, fileString);
         assertEquals(-1, dataFeedReader.read(data, 0, BUFFER));
     }
-}
\ No newline at end of file
+
+    private Map<String, byte[]> sampleEntries() {
+        Random random = new Random(11);
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        for (String name : new String[]{"hit_data.tsv", "browser.tsv", "column_headers.tsv", "os.tsv"}) {
+            byte[] data = new byte[name.equals("hit_data.tsv") ? 900000 : 300 + random.nextInt(200000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ('a' + random.nextInt(10));
+            }
+            entries.put(name, data);
+        }
+        return entries;
+    }
+
+    private byte[] tarGz(final Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(archive))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getKey());
+                tarEntry.setSize(entry.getValue().length);
+                tar.putArchiveEntry(tarEntry);
+                tar.write(entry.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        return archive.toByteArray();
+    }
+
+    /**
+     * Serve archive from a mocked S3, along with whatever gzip index is stored next to it.
+     */
+    private AmazonS3 indexedS3(final byte[] archive, final Map<String, byte[]> stored) {
+        AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+        final String key = dataFeedRecord.getSrcTarbell();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(archive.length);
+        metadata.setHeader(Headers.ETAG, "etag");
+        Mockito.when(s3.getObjectMetadata(TEST_BUCKET, key)).thenReturn(metadata);
+        Mockito.when(s3.getObject(TEST_BUCKET, key)).thenAnswer(invocation -> {
+            S3Object object = new S3Object();
+            object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(archive), null));
+            return object;
+        });
+        Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            long[] range = ((GetObjectRequest) invocation.getArgument(0)).getRange();
+            S3Object object = new S3Object();
+            object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(
+                    archive, (int) range[0], (int) (range[1] - range[0] + 1)), null));
+            return object;
+        });
+        Mockito.when(s3.getObject(TEST_BUCKET, dataFeedRecord.getGzipIndexKey())).thenAnswer(invocation -> {
+            byte[] index = stored.get(dataFeedRecord.getGzipIndexKey());
+            if (index == null) {
+                AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+                notFound.setStatusCode(404);
+                throw notFound;
+            }
+            S3Object object = new S3Object();
+            object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(index), null));
+            return object;
+        });
+        Mockito.when(s3.putObject(ArgumentMatchers.eq(TEST_BUCKET), ArgumentMatchers.anyString(),
+                ArgumentMatchers.any(InputStream.class), ArgumentMatchers.any(ObjectMetadata.class)))
+                .thenAnswer(invocation -> {
+                    stored.put(invocation.getArgument(1),
+                            IOUtils.toByteArray((InputStream) invocation.getArgument(2)));
+                    return null;
+                });
+        return s3;
+    }
+
+    private Map<String, byte[]> readEntries(final DataFeedReader reader) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        TarArchiveEntry entry;
+        while ((entry = reader.getNextEntry()) != null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[50000];
+            int count;
+            while ((count = reader.read(buf, 0, buf.length)) != -1) {
+                data.write(buf, 0, count);
+            }
+            entries.put(entry.getName(), data.toByteArray());
+        }
+        return entries;
+    }
+
+    @org.junit.Test
+    public void digestsArchive() throws Exception {
+        while (dataFeedReader.getNextEntry() != null) {
+            continue;
+        }
+
+        StringBuilder expected = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(readResource("/small_archive.tar.gz"))) {
+            expected.append(String.format("%02x", b & 0xff));
+        }
+        assertEquals(expected.toString(), dataFeedReader.getArchiveMd5());
+    }
+
+    @org.junit.Test
+    public void readsThroughGzipIndex() throws IOException {
+        Map<String, byte[]> entries = sampleEntries();
+        Map<String, byte[]> stored = new LinkedHashMap<String, byte[]>();
+        AmazonS3 s3 = indexedS3(tarGz(entries), stored);
+        SplitterConfig config = new SplitterConfig();
+        config.setGzipIndex(true);
+        config.setGzipIndexSpan(100000);
+        config.setInflateThreads(3);
+
+        // The first read builds the index
+        DataFeedReader first = new DataFeedReader(s3, dataFeedRecord, config, new PipelineStats(), null);
+        assertFalse(first.isIndexed());
+        Map<String, byte[]> read = readEntries(first);
+        assertTrue(first.saveIndex(dataFeedRecord.getGzipIndexKey()));
+        first.close();
+        assertEquals(entries.keySet(), read.keySet());
+        for (String name : entries.keySet()) {
+            assertArrayEquals(name, entries.get(name), read.get(name));
+        }
+        GzipIndex index = GzipIndex.parse(stored.get(dataFeedRecord.getGzipIndexKey()));
+        assertTrue(index.getAccessPoints().size() > 5);
+        assertEquals(entries.size(), index.getEntries().size());
+
+        // Later reads decompress through it
+        DataFeedReader second = new DataFeedReader(s3, dataFeedRecord, config, new PipelineStats(), null);
+        assertTrue(second.isIndexed());
+        read = readEntries(second);
+        assertFalse(second.saveIndex(dataFeedRecord.getGzipIndexKey()));
+        second.close();
+        for (String name : entries.keySet()) {
+            assertArrayEquals(name, entries.get(name), read.get(name));
+        }
+
+        // A read of one entry only decompresses the segments holding it
+        Mockito.clearInvocations(s3);
+        DataFeedReader third = new DataFeedReader(
+                s3, dataFeedRecord, config, new PipelineStats(), Collections.singleton("os.tsv"));
+        TarArchiveEntry entry;
+        while ((entry = third.getNextEntry()) != null) {
+            if (!entry.getName().equals("os.tsv")) {
+                continue;
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[50000];
+            int count;
+            while ((count = third.read(buf, 0, buf.length)) != -1) {
+                data.write(buf, 0, count);
+            }
+            assertArrayEquals(entries.get("os.tsv"), data.toByteArray());
+        }
+        third.close();
+        Mockito.verify(s3, Mockito.never()).getObject(TEST_BUCKET, dataFeedRecord.getSrcTarbell());
+        Mockito.verify(s3, Mockito.atMost(entries.get("os.tsv").length / 100000 + 2))
+                .getObject(ArgumentMatchers.any(GetObjectRequest.class));
+    }
+
+    @org.junit.Test
+    public void readsSpeculatively() throws IOException {
+        Map<String, byte[]> entries = sampleEntries();
+        byte[] archive = tarGz(entries);
+        Map<String, byte[]> stored = new LinkedHashMap<String, byte[]>();
+        AmazonS3 s3 = indexedS3(archive, stored);
+        SplitterConfig config = new SplitterConfig();
+        config.setSpeculativeInflate(true);
+        config.setInflateChunkSize(archive.length / 7);
+        config.setInflateThreads(3);
+        config.setGzipIndex(true);
+
+        DataFeedReader reader = new DataFeedReader(s3, dataFeedRecord, config, new PipelineStats(), null);
+        Map<String, byte[]> read = readEntries(reader);
+        assertTrue(reader.saveIndex(dataFeedRecord.getGzipIndexKey()));
+        reader.close();
+        assertEquals(entries.keySet(), read.keySet());
+        for (String name : entries.keySet()) {
+            assertArrayEquals(name, entries.get(name), read.get(name));
+        }
+        // The archive was never read from its start in one piece
+        Mockito.verify(s3, Mockito.never()).getObject(TEST_BUCKET, dataFeedRecord.getSrcTarbell());
+
+        // Each chunk start is an access point that later reads resume from
+        GzipIndex index = GzipIndex.parse(stored.get(dataFeedRecord.getGzipIndexKey()));
+        assertTrue(index.getAccessPoints().size() > 3);
+        DataFeedReader indexed = new DataFeedReader(s3, dataFeedRecord, config, new PipelineStats(), null);
+        assertTrue(indexed.isIndexed());
+        read = readEntries(indexed);
+        indexed.close();
+        for (String name : entries.keySet()) {
+            assertArrayEquals(name, entries.get(name), read.get(name));
+        }
+    }
+
+    @org.junit.Test
+    public void readsStoredBlocksSpeculatively() throws IOException {
+        // No dynamic blocks to find, so the first chunk decodes the whole archive
+        Map<String, byte[]> entries = sampleEntries();
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(archive) {
+            {
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        })) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getKey());
+                tarEntry.setSize(entry.getValue().length);
+                tar.putArchiveEntry(tarEntry);
+                tar.write(entry.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        SplitterConfig config = new SplitterConfig();
+        config.setSpeculativeInflate(true);
+        config.setInflateChunkSize(archive.size() / 5);
+        config.setInflateThreads(2);
+
+        DataFeedReader reader = new DataFeedReader(indexedS3(archive.toByteArray(),
+                new LinkedHashMap<String, byte[]>()), dataFeedRecord, config, new PipelineStats(), null);
+        Map<String, byte[]> read = readEntries(reader);
+        reader.close();
+        for (String name : entries.keySet()) {
+            assertArrayEquals(name, entries.get(name), read.get(name));
+        }
+    }
+
+    @org.junit.Test
+    public void readsPastFalseBlockStart() throws IOException {
+        // A block start planted a byte before a real one, so the chunk starting there fails to decode
+        readsSpeculativelyFrom(-8);
+        // A block start planted within a block, so the chunk before it runs out of input past it
+        readsSpeculativelyFrom(1);
+    }
+
+    /**
+     * @param shift The number of bits the block start found in the third region is moved by
+     */
+    private void readsSpeculativelyFrom(final int shift) throws IOException {
+        byte[] archive = tarGz(sampleEntries());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(archive))) {
+            IOUtils.copy(in, expected);
+        }
+
+        SpeculativeGzipInputStream in = new SpeculativeGzipInputStream(
+                indexedS3(archive, new LinkedHashMap<String, byte[]>()), TEST_BUCKET, dataFeedRecord.getSrcTarbell(),
+                archive.length, archive.length / 7, 3, new PipelineStats().stage(PipelineStats.FETCH)) {
+            @Override
+            long searchBlockStart(final int region) throws IOException {
+                long bit = super.searchBlockStart(region);
+                return region == 2 && bit >= 0 ? bit + shift : bit;
+            }
+        };
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        IOUtils.copy(in, read);
+        in.close();
+
+        assertArrayEquals(expected.toByteArray(), read.toByteArray());
+        assertTrue(in.isComplete());
+        CRC32 crc = new CRC32();
+        crc.update(expected.toByteArray());
+        assertEquals((int) crc.getValue(), in.getCrc());
+        assertEquals(expected.size(), in.getUncompressedLength());
+    }
+
+    @org.junit.Test
+    public void ignoresIndexOfAnotherUpload() throws IOException {
+        Map<String, byte[]> stored = new LinkedHashMap<String, byte[]>();
+        SplitterConfig config = new SplitterConfig();
+        config.setGzipIndex(true);
+        DataFeedReader first = new DataFeedReader(
+                indexedS3(tarGz(sampleEntries()), stored), dataFeedRecord, config, new PipelineStats(), null);
+        readEntries(first);
+        assertTrue(first.saveIndex(dataFeedRecord.getGzipIndexKey()));
+        first.close();
+
+        // The archive is uploaded again with different content
+        Map<String, byte[]> entries = Collections.singletonMap("hit_data.tsv", new byte[1000]);
+        AmazonS3 s3 = indexedS3(tarGz(entries), stored);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(tarGz(entries).length);
+        metadata.setHeader(Headers.ETAG, "other");
+        Mockito.when(s3.getObjectMetadata(TEST_BUCKET, dataFeedRecord.getSrcTarbell())).thenReturn(metadata);
+
+        DataFeedReader second = new DataFeedReader(s3, dataFeedRecord, config, new PipelineStats(), null);
+        assertFalse(second.isIndexed());
+        assertArrayEquals(new byte[1000], readEntries(second).get("hit_data.tsv"));
+        second.close();
+    }
+}
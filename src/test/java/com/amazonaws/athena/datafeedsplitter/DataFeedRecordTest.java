@@ -1,14 +1,27 @@
 package com.amazonaws.athena.datafeedsplitter;
 
+import com.amazonaws.services.s3.event.S3EventNotification;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import static org.junit.Assert.*;
 
 public class DataFeedRecordTest {
 
+    private final DataFeedRecord dataFeedRecord = new DataFeedRecord();
+
     @Before
     public void setUp() throws Exception {
+        final String sampleS3Event = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource("/s3_event.json").getFile())),
+                StandardCharsets.UTF_8
+        );
+        S3EventNotification notification = S3EventNotification.parseJson(sampleS3Event);
+        dataFeedRecord.buildFromRecord(notification.getRecords().get(0));
     }
 
     @Test
@@ -36,13 +49,142 @@ public class DataFeedRecordTest {
     }
 
     @Test
-    public void getLookupKeyForBasename() {
+    public void getDstKeyForChunk() {
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.00003.gz",
+                dataFeedRecord.getDstKeyForChunk("hit_data.tsv", 3)
+        );
+    }
+
+    @Test
+    public void getDstPartitionPrefix() {
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/",
+                dataFeedRecord.getDstPartitionPrefix("hit_data.tsv")
+        );
+    }
+
+    @Test
+    public void getFormatKeyForChunk() {
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/orc/hit_data/dt=2018-02-02/hit_data.00001.orc",
+                dataFeedRecord.getFormatKeyForChunk(HitDataFormat.ORC, "hit_data.tsv", 1)
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/parquet/hit_data/dt=2018-02-02/",
+                dataFeedRecord.getFormatPartitionPrefix(HitDataFormat.PARQUET, "hit_data.tsv")
+        );
+    }
+
+    @Test
+    public void runIsStagedUntilPublished() {
+        dataFeedRecord.setRunId("k9x2m1a0");
+        final String staged = dataFeedRecord.getFormatKeyForChunk(HitDataFormat.ORC, "hit_data.tsv", 1);
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/orc/hit_data/dt=2018-02-02/_hit_data.k9x2m1a0-00001.orc",
+                staged
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/orc/hit_data/dt=2018-02-02/hit_data.k9x2m1a0-00001.orc",
+                DataFeedRecord.getPublishedKey(staged)
+        );
+        assertEquals(
+                DataFeedRecord.getSidecarKey(DataFeedRecord.getPublishedKey(staged)),
+                DataFeedRecord.getPublishedKey(DataFeedRecord.getSidecarKey(staged))
+        );
+    }
+
+    @Test
+    public void forDataFile() {
+        DataFeedRecord part = dataFeedRecord.forDataFile("02-awsamazonallprod1_2018-02-02.tar.gz", 1);
+        assertEquals("02", part.getDataPart());
+        assertEquals("adobe/daily/02-awsamazonallprod1_2018-02-02.tar.gz", part.getSrcTarbell());
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.02-00003.gz",
+                part.getDstKeyForChunk("hit_data.tsv", 3)
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/orc/hit_data/dt=2018-02-02/hit_data.02-00001.orc",
+                part.getFormatKeyForChunk(HitDataFormat.ORC, "hit_data.tsv", 1)
+        );
+        assertEquals("03", dataFeedRecord.forDataFile("awsamazonallprod1_2018-02-02.tar.gz", 2).getDataPart());
+        assertNull(dataFeedRecord.getDataPart());
+    }
+
+    @Test
+    public void hourlyFeed() throws Exception {
+        final String sampleS3Event = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource("/s3_hourly_event.json").getFile())),
+                StandardCharsets.UTF_8
+        );
+        DataFeedRecord hourly = DataFeedRecord.newFromRecord(
+                S3EventNotification.parseJson(sampleS3Event).getRecords().get(0));
+
+        assertEquals("2018-02-02", hourly.getReportDate());
+        assertEquals("13", hourly.getDeliveryHour());
+        assertEquals("adobe/hourly/awsamazonallprod1_2018-02-02-130000.tar.gz", hourly.getSrcTarbell());
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.h13-00000.gz",
+                hourly.getDstKeyForChunk("hit_data.tsv", 0)
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/_checkpoints/dt=2018-02-02/hr=13/checkpoint.tsv",
+                hourly.getCheckpointKey()
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/_catalog/dt=2018-02-02/hr=13.tsv",
+                hourly.getCatalogRegistrationKey()
+        );
+        assertTrue(hourly.getCatalogRegistrationKey().startsWith(hourly.getCatalogRegistrationPrefix()));
+        assertTrue(hourly.replacesObject(hourly.getDstKeyForChunk("hit_data.tsv", 4)));
+        assertFalse(hourly.replacesObject(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.h12-00000.gz"));
+        assertNull(dataFeedRecord.getDeliveryHour());
+        assertTrue(dataFeedRecord.replacesObject(hourly.getDstKeyForChunk("hit_data.tsv", 0)));
+    }
+
+    @Test
+    public void getHourPartition() {
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hr=07/hit_data.tsv.00000.gz",
+                dataFeedRecord.getDstKeyForChunk("hit_data.tsv", dataFeedRecord.getHourPartition("07"), 0)
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/parquet/hit_data/dt=2018-02-02/hr=23/hit_data.00002.parquet",
+                dataFeedRecord.getFormatKeyForChunk(HitDataFormat.PARQUET, "hit_data.tsv",
+                        dataFeedRecord.getHourPartition("23"), 2)
+        );
+    }
+
+    @Test
+    public void getLookupStoreKey() {
+        assertEquals(
+                "adobe/converted/lookup_store/browser/0123abcd.tsv.gz",
+                dataFeedRecord.getLookupStoreKey("browser.tsv", "0123abcd")
+        );
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/latest_lookups/browser/symlink.txt",
+                dataFeedRecord.getLookupSymlinkKey("browser.tsv")
+        );
+    }
+
+    @Test
+    public void getCheckpointKey() {
+        assertEquals(
+                "adobe/converted/awsamazonallprod1/_checkpoints/dt=2018-02-02/checkpoint.tsv",
+                dataFeedRecord.getCheckpointKey()
+        );
     }
 
     @Test
     public void getSrcTarbell() {
     }
 
+    @Test
+    public void getGzipIndexKey() {
+        assertEquals(dataFeedRecord.getSrcTarbell() + ".idx", dataFeedRecord.getGzipIndexKey());
+    }
+
     @Test
     public void getReportName() {
     }
@@ -0,0 +1,302 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DataFeedSplitterManagerTest {
+
+    private static final String EARLIER_CHUNK =
+            "adobe/converted/awsamazonallprod1/rawtsv/hit_data/dt=2018-02-02/hit_data.tsv.00000.gz";
+
+    private S3EventNotification.S3EventNotificationRecord record;
+    private AmazonS3 s3;
+    private byte[] archive;
+    private final List<String> objects = Collections.synchronizedList(new ArrayList<String>());
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(zipped)) {
+            zip.putNextEntry(new ZipEntry("column_headers.tsv"));
+            zip.write("hit_time_gmt\tpagename\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("hit_data.tsv"));
+            zip.write("1517529600\thome\n1517529601\tcart\n1517529602\tcheckout\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        archive = zipped.toByteArray();
+
+        final String sampleS3Event = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource("/s3_event.json").getFile())),
+                StandardCharsets.UTF_8
+        );
+        record = S3EventNotification.parseJson(sampleS3Event).getRecords().get(0);
+
+        s3 = Mockito.mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(archive.length);
+        metadata.setHeader("ETag",
+                String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(archive))));
+        Mockito.when(s3.getObjectMetadata("delivery-bucket", "adobe/daily/awsamazonallprod1_2018-02-02.zip"))
+                .thenReturn(metadata);
+        // Serve the requested range of the archive, as S3 would
+        Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            long[] range = request.getRange();
+            int start = (int) range[0];
+            int end = (int) Math.min(range[1], archive.length - 1);
+            S3Object s3Object = new S3Object();
+            s3Object.setObjectContent(new S3ObjectInputStream(
+                    new ByteArrayInputStream(archive, start, end - start + 1), null));
+            return s3Object;
+        });
+        // List the objects of the earlier delivery and those put since, as S3 would
+        objects.add(EARLIER_CHUNK);
+        Mockito.when(s3.putObject(ArgumentMatchers.any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            objects.add(((PutObjectRequest) invocation.getArgument(0)).getKey());
+            return null;
+        });
+        Mockito.when(s3.putObject(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+                ArgumentMatchers.any(InputStream.class), ArgumentMatchers.any(ObjectMetadata.class)))
+                .thenAnswer(invocation -> {
+                    objects.add(invocation.getArgument(1));
+                    return null;
+                });
+        Mockito.when(s3.listObjectsV2(ArgumentMatchers.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Result listing = new ListObjectsV2Result();
+            synchronized (objects) {
+                for (String key : objects) {
+                    if (key.startsWith(((ListObjectsV2Request) invocation.getArgument(0)).getPrefix())) {
+                        S3ObjectSummary summary = new S3ObjectSummary();
+                        summary.setKey(key);
+                        listing.getObjectSummaries().add(summary);
+                    }
+                }
+            }
+            return listing;
+        });
+    }
+
+    private void deliverManifest(final long records) throws Exception {
+        final String md5 = s3.getObjectMetadata("delivery-bucket", "adobe/daily/awsamazonallprod1_2018-02-02.zip")
+                .getETag();
+        final String manifest = "Datafeed-Manifest-Version: 1.0\n"
+                + "Lookup-Files: 0\n"
+                + "Data-Files: 1\n"
+                + "Total-Records: " + records + "\n"
+                + "\n"
+                + "Data-File: awsamazonallprod1_2018-02-02.zip\n"
+                + "MD5-Digest: " + md5 + "\n"
+                + "File-Size: " + archive.length + "\n"
+                + "Record-Count: " + records + "\n";
+        S3Object object = new S3Object();
+        object.setObjectContent(new S3ObjectInputStream(
+                new ByteArrayInputStream(manifest.getBytes(StandardCharsets.UTF_8)), null));
+        Mockito.when(s3.getObject("delivery-bucket", "adobe/daily/awsamazonallprod1_2018-02-02.txt"))
+                .thenReturn(object);
+    }
+
+    private DataFeedSplitterManager newManager(final ManifestCheck check) {
+        return newManager(check, new SplitterConfig());
+    }
+
+    private DataFeedSplitterManager newManager(final ManifestCheck check, final SplitterConfig config) {
+        config.setManifestCheck(check);
+        return new DataFeedSplitterManager(line -> { }, s3, config, record);
+    }
+
+    private List<String> deletedKeys() {
+        ArgumentCaptor<DeleteObjectsRequest> deletes = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        Mockito.verify(s3, Mockito.atLeast(0)).deleteObjects(deletes.capture());
+        List<String> keys = new ArrayList<String>();
+        for (DeleteObjectsRequest delete : deletes.getAllValues()) {
+            for (DeleteObjectsRequest.KeyVersion key : delete.getKeys()) {
+                keys.add(key.getKey());
+            }
+        }
+        return keys;
+    }
+
+    @org.junit.Test
+    public void verifiedRunReplacesEarlierObjects() throws Exception {
+        deliverManifest(3);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.FAIL);
+
+        assertTrue(manager.processAllEntries());
+        assertFalse(manager.isQuarantined());
+        ArgumentCaptor<String> staged = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<String> published = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(s3).copyObject(ArgumentMatchers.eq("delivery-bucket"), staged.capture(),
+                ArgumentMatchers.eq("delivery-bucket"), published.capture());
+        assertTrue(staged.getValue().matches(".*/dt=2018-02-02/_hit_data\\.tsv\\.[0-9a-z]+-00000\\.gz"));
+        assertEquals(staged.getValue().replace("/_hit_data", "/hit_data"), published.getValue());
+        assertEquals(Arrays.asList(EARLIER_CHUNK, staged.getValue()), deletedKeys());
+    }
+
+    @org.junit.Test
+    public void verifiedRunRemovesObjectsOfStoppedRuns() throws Exception {
+        final String stopped = EARLIER_CHUNK.replace("/hit_data.tsv.", "/_hit_data.tsv.stopped-");
+        objects.add(stopped);
+        deliverManifest(3);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.FAIL);
+
+        assertTrue(manager.processAllEntries());
+        assertTrue(deletedKeys().contains(stopped));
+    }
+
+    @org.junit.Test
+    public void quarantinedRunKeepsEarlierObjects() throws Exception {
+        deliverManifest(4);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.QUARANTINE);
+
+        assertTrue(manager.processAllEntries());
+        assertTrue(manager.isQuarantined());
+        Mockito.verify(s3, Mockito.never()).listObjectsV2(ArgumentMatchers.any(ListObjectsV2Request.class));
+        List<String> deleted = deletedKeys();
+        assertEquals(1, deleted.size());
+        assertNotEquals(EARLIER_CHUNK, deleted.get(0));
+        assertTrue(deleted.get(0).matches(".*/dt=2018-02-02/_hit_data\\.tsv\\.[0-9a-z]+-00000\\.gz"));
+    }
+
+    @org.junit.Test
+    public void failedRunRemovesItsOwnObjects() throws Exception {
+        deliverManifest(4);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.FAIL);
+
+        try {
+            manager.processAllEntries();
+            fail("A delivery that does not match its manifest should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("has 3 hit_data records"));
+        }
+        Mockito.verify(s3, Mockito.never()).listObjectsV2(ArgumentMatchers.any(ListObjectsV2Request.class));
+        List<String> deleted = deletedKeys();
+        assertEquals(1, deleted.size());
+        assertNotEquals(EARLIER_CHUNK, deleted.get(0));
+    }
+
+    @org.junit.Test
+    public void countsRowsOfCopiedEntry() throws Exception {
+        deliverManifest(4);
+        SplitterConfig config = new SplitterConfig();
+        // A single object per day lets the deflated hit_data entry be copied as is
+        config.setHitDataChunkSize(0);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.FAIL, config);
+
+        try {
+            manager.processAllEntries();
+            fail("A copied entry with fewer records than the manifest lists should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("has 3 hit_data records"));
+        }
+    }
+
+    @org.junit.Test
+    public void leavesNoEmptyChunkAfterLastRow() throws Exception {
+        deliverManifest(3);
+        SplitterConfig config = new SplitterConfig();
+        // Every chunk is full after its first row, and the last row ends the entry
+        config.setHitDataChunkSize(1);
+        DataFeedSplitterManager manager = newManager(ManifestCheck.FAIL, config);
+
+        assertTrue(manager.processAllEntries());
+        ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+        Mockito.verify(s3, Mockito.atLeast(0)).putObject(puts.capture());
+        List<String> chunks = new ArrayList<String>();
+        for (PutObjectRequest put : puts.getAllValues()) {
+            if (put.getKey().contains("/_hit_data.tsv.")) {
+                chunks.add(put.getKey());
+            }
+        }
+        assertEquals(3, chunks.size());
+    }
+
+    @org.junit.Test
+    public void triggersCatalogOnceForChangedColumns() throws Exception {
+        final Map<String, byte[]> stored = new TreeMap<String, byte[]>();
+        AmazonS3 dst = Mockito.mock(AmazonS3.class);
+        Mockito.when(dst.getObject(ArgumentMatchers.anyString(), ArgumentMatchers.anyString()))
+                .thenAnswer(invocation -> {
+                    byte[] contents = stored.get(invocation.<String>getArgument(1));
+                    if (contents == null) {
+                        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+                        notFound.setStatusCode(404);
+                        throw notFound;
+                    }
+                    S3Object object = new S3Object();
+                    object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(contents), null));
+                    return object;
+                });
+        Mockito.when(dst.listObjectsV2(ArgumentMatchers.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Result listing = new ListObjectsV2Result();
+            for (String key : stored.keySet()) {
+                if (key.startsWith(invocation.<ListObjectsV2Request>getArgument(0).getPrefix())) {
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setKey(key);
+                    listing.getObjectSummaries().add(summary);
+                }
+            }
+            return listing;
+        });
+
+        final String hourlyEvent = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource("/s3_hourly_event.json").getFile())),
+                StandardCharsets.UTF_8
+        );
+        // The columns change at the second hour and change back at the fourth
+        final String[][] hours = {{"12", "pagename"}, {"13", "page_name"}, {"14", "page_name"}, {"15", "pagename"}};
+        final List<String> triggered = new ArrayList<String>();
+        for (String[] hour : hours) {
+            S3EventNotification.S3EventNotificationRecord hourly = S3EventNotification.parseJson(
+                    hourlyEvent.replace("-130000.txt", "-" + hour[0] + "0000.txt")).getRecords().get(0);
+            DataFeedSplitterManager manager =
+                    new DataFeedSplitterManager(line -> { }, dst, new SplitterConfig(), hourly);
+            CatalogManagerInput input = new CatalogManagerInput();
+            Map<String, String> column = new LinkedHashMap<String, String>();
+            column.put("Name", hour[1]);
+            column.put("Type", "string");
+            input.setHitDataColumns(Collections.singletonList(column));
+
+            byte[] registration = manager.registerHour(input);
+            if (registration != null) {
+                triggered.add(hour[0]);
+                stored.put(DataFeedRecord.newFromRecord(hourly).getCatalogRegistrationKey(), registration);
+            }
+        }
+        assertEquals(Arrays.asList("12", "13", "15"), triggered);
+    }
+}
@@ -0,0 +1,76 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DataFeedWorkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void addJob(final String resource, final String name) throws IOException {
+        Files.copy(Paths.get(this.getClass().getResource(resource).getFile()),
+                new File(folder.getRoot(), name).toPath());
+    }
+
+    private void waitFor(final File file) throws InterruptedException {
+        for (int i = 0; i < 200 && !file.exists(); i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @org.junit.Test
+    public void acknowledgesJobsByOutcome() throws Exception {
+        // A data file event has nothing to convert, the metadata file events fail on S3
+        addJob("/s3_archive_event.json", "1.json");
+        addJob("/s3_event.json", "2.json");
+        addJob("/s3_small_archive_event.json", "3.json");
+        AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+        Mockito.when(s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString()))
+                .thenThrow(new AmazonS3Exception("Access Denied"));
+        SplitterConfig config = new SplitterConfig();
+        config.setCompressionThreads(1);
+        config.setManifestCheck(ManifestCheck.OFF);
+        List<String> lines = new ArrayList<String>();
+        DataFeedWorker worker = new DataFeedWorker(new DirectoryJobQueue(folder.getRoot()), s3, config, line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        });
+
+        Thread runner = new Thread(() -> {
+            try {
+                worker.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        runner.start();
+        waitFor(new File(folder.getRoot(), "2.json.failed"));
+        waitFor(new File(folder.getRoot(), "3.json.failed"));
+        worker.stop();
+        // Stopping cuts the wait for more jobs short
+        runner.join(5000);
+
+        assertFalse(runner.isAlive());
+        assertFalse(new File(folder.getRoot(), "1.json").exists());
+        assertFalse(new File(folder.getRoot(), "1.json.taken").exists());
+        assertTrue(new File(folder.getRoot(), "2.json.failed").exists());
+        assertTrue(new File(folder.getRoot(), "3.json.failed").exists());
+        Mockito.verify(s3, Mockito.times(2))
+                .getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+    }
+}
@@ -0,0 +1,73 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DirectoryJobQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void addJob(final String name) throws IOException {
+        Files.copy(Paths.get(this.getClass().getResource("/s3_event.json").getFile()),
+                new File(folder.getRoot(), name).toPath());
+    }
+
+    @org.junit.Test
+    public void takesEachJobOnce() throws Exception {
+        addJob("1.json");
+        addJob("2.json");
+        DirectoryJobQueue queue = new DirectoryJobQueue(folder.getRoot());
+        DirectoryJobQueue other = new DirectoryJobQueue(folder.getRoot());
+
+        List<JobQueue.Job> jobs = queue.receive(1, 0);
+        assertEquals(1, jobs.size());
+        assertEquals("1.json", jobs.get(0).getId());
+        assertEquals("adobe/daily/awsamazonallprod1_2018-02-02.txt",
+                jobs.get(0).getEvent().getRecords().get(0).getS3().getObject().getKey());
+
+        assertEquals("2.json", other.receive(10, 0).get(0).getId());
+        assertTrue(queue.receive(10, 0).isEmpty());
+
+        queue.complete(jobs.get(0));
+        assertFalse(new File(folder.getRoot(), "1.json.taken").exists());
+    }
+
+    @org.junit.Test
+    public void releasesAndFailsJobs() throws Exception {
+        addJob("1.json");
+        DirectoryJobQueue queue = new DirectoryJobQueue(folder.getRoot());
+
+        queue.release(queue.receive(1, 0).get(0));
+        JobQueue.Job again = queue.receive(1, 0).get(0);
+        assertEquals("1.json", again.getId());
+
+        queue.fail(again);
+        assertTrue(new File(folder.getRoot(), "1.json.failed").exists());
+        assertTrue(queue.receive(1, 0).isEmpty());
+    }
+
+    @org.junit.Test
+    public void waitsForJobs() throws Exception {
+        DirectoryJobQueue queue = new DirectoryJobQueue(folder.getRoot());
+        Thread adder = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                addJob("late.json");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        adder.start();
+        assertEquals(1, queue.receive(1, 10000).size());
+        adder.join();
+    }
+}
@@ -0,0 +1,50 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import static org.junit.Assert.*;
+
+public class FairSchedulerTest {
+
+    @org.junit.Test
+    public void alternatesBetweenSuites() {
+        FairScheduler<String> scheduler = new FairScheduler<String>();
+        scheduler.add("big", "big-1");
+        scheduler.add("big", "big-2");
+        scheduler.add("big", "big-3");
+        scheduler.add("small", "small-1");
+        assertEquals(4, scheduler.size());
+
+        // The suite with a backlog does not hold up the other one
+        assertEquals("big-1", scheduler.next());
+        assertEquals("small-1", scheduler.next());
+        assertEquals("big-2", scheduler.next());
+        assertEquals("big-3", scheduler.next());
+        assertNull(scheduler.next());
+    }
+
+    @org.junit.Test
+    public void prefersSuitesWithFewerRunning() {
+        FairScheduler<String> scheduler = new FairScheduler<String>();
+        scheduler.add("a", "a-1");
+        scheduler.add("a", "a-2");
+        assertEquals("a-1", scheduler.next());
+        scheduler.add("b", "b-1");
+        scheduler.add("b", "b-2");
+
+        // a has one running, b none
+        assertEquals("b-1", scheduler.next());
+        scheduler.done("a");
+        assertEquals("a-2", scheduler.next());
+        assertEquals("b-2", scheduler.next());
+        assertEquals(0, scheduler.size());
+    }
+
+    @org.junit.Test
+    public void drainsWaitingTasks() {
+        FairScheduler<String> scheduler = new FairScheduler<String>();
+        scheduler.add("a", "a-1");
+        scheduler.add("b", "b-1");
+        assertEquals(2, scheduler.drain().size());
+        assertEquals(0, scheduler.size());
+        assertNull(scheduler.next());
+    }
+}
@@ -0,0 +1,120 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GzipIndexTest {
+
+    private byte[] sampleData() {
+        // Words from a small vocabulary, so the data compresses like text
+        Random random = new Random(9);
+        byte[] data = new byte[700000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private byte[] gzip(final byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private byte[] readAll(final IndexingGzipInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[10000];
+        int count;
+        while ((count = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @org.junit.Test
+    public void indexesGzipStream() throws IOException {
+        byte[] data = sampleData();
+        IndexingGzipInputStream in = new IndexingGzipInputStream(new ByteArrayInputStream(gzip(data)), 50000);
+
+        assertArrayEquals(data, readAll(in));
+        assertTrue(in.isComplete());
+        assertEquals(data.length, in.getUncompressedLength());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals((int) crc.getValue(), in.getCrc());
+        // The deflate stream starts after the 10 byte header GZIPOutputStream writes
+        assertEquals(80, in.getAccessPoints().get(0).getBitOffset());
+    }
+
+    @org.junit.Test
+    public void readsFollowingMembersWithoutIndex() throws IOException {
+        byte[] data = sampleData();
+        byte[] first = gzip(Arrays.copyOf(data, 1000));
+        byte[] second = gzip(Arrays.copyOfRange(data, 1000, data.length));
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+
+        IndexingGzipInputStream in = new IndexingGzipInputStream(new ByteArrayInputStream(both), 50000);
+        assertArrayEquals(data, readAll(in));
+        assertFalse(in.isComplete());
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void failsOnCorruptTrailer() throws IOException {
+        byte[] compressed = gzip(sampleData());
+        compressed[compressed.length - 8] ^= 1;
+        readAll(new IndexingGzipInputStream(new ByteArrayInputStream(compressed), 50000));
+    }
+
+    @org.junit.Test
+    public void roundTrips() throws IOException {
+        byte[] data = sampleData();
+        IndexingGzipInputStream in = new IndexingGzipInputStream(new ByteArrayInputStream(gzip(data)), 50000);
+        readAll(in);
+        GzipIndex index = new GzipIndex("etag", 1234, data.length, in.getCrc(), in.getAccessPoints(),
+                Arrays.asList(new GzipIndex.Entry("hit_data.tsv", 512, 1000), new GzipIndex.Entry("os.tsv", 2048, 3)));
+
+        GzipIndex parsed = GzipIndex.parse(index.toByteArray());
+        assertEquals("etag", parsed.getSourceETag());
+        assertEquals(1234, parsed.getCompressedLength());
+        assertEquals(data.length, parsed.getUncompressedLength());
+        assertEquals(in.getCrc(), parsed.getCrc());
+        assertEquals(index.getAccessPoints().size(), parsed.getAccessPoints().size());
+        for (int i = 0; i < index.getAccessPoints().size(); i++) {
+            ResumableInflater.AccessPoint expected = index.getAccessPoints().get(i);
+            ResumableInflater.AccessPoint actual = parsed.getAccessPoints().get(i);
+            assertEquals(expected.getBitOffset(), actual.getBitOffset());
+            assertEquals(expected.getOutOffset(), actual.getOutOffset());
+            assertArrayEquals(expected.getWindow(), actual.getWindow());
+        }
+        assertEquals("os.tsv", parsed.getEntries().get(1).getName());
+        assertEquals(2048, parsed.getEntries().get(1).getDataOffset());
+        assertEquals(3, parsed.getEntries().get(1).getSize());
+        assertNull(GzipIndex.parse(null));
+    }
+
+    @org.junit.Test
+    public void findsAccessPointBefore() throws IOException {
+        IndexingGzipInputStream in = new IndexingGzipInputStream(new ByteArrayInputStream(gzip(sampleData())), 50000);
+        readAll(in);
+        GzipIndex index = new GzipIndex("etag", 0, in.getUncompressedLength(), in.getCrc(), in.getAccessPoints(),
+                Arrays.<GzipIndex.Entry>asList());
+
+        assertEquals(0, index.accessPointBefore(0));
+        for (int i = 1; i < index.getAccessPoints().size(); i++) {
+            final long offset = index.getAccessPoints().get(i).getOutOffset();
+            assertEquals(i, index.accessPointBefore(offset));
+            assertEquals(i - 1, index.accessPointBefore(offset - 1));
+        }
+        assertEquals(index.getAccessPoints().size() - 1, index.accessPointBefore(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,50 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HourPartitionerTest {
+
+    private static List<String> hours(final HourPartitioner partitioner, final String tsv) throws IOException {
+        final List<String> hours = new ArrayList<String>();
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(row -> hours.add(partitioner.getHour(row)));
+        reader.write(data, 0, data.length);
+        reader.finish();
+        return hours;
+    }
+
+    @org.junit.Test
+    public void readsHourOfDateTime() throws IOException {
+        HourPartitioner partitioner = new HourPartitioner(
+                new DataFeedSchema(Arrays.asList("hit_time_gmt", "date_time", "page_url")));
+        assertEquals(
+                Arrays.asList("00", "13", "23", HourPartitioner.UNKNOWN_HOUR, HourPartitioner.UNKNOWN_HOUR),
+                hours(partitioner, "1\t2018-02-02 00:00:00\ta\n"
+                        + "1\t2018-02-02 13:59:59\tb\n"
+                        + "1\t2018-02-02 23:10:00\n"
+                        + "1\t2018-02-02\tc\n"
+                        + "1\n")
+        );
+    }
+
+    @org.junit.Test
+    public void fallsBackToHitTimeGmt() throws IOException {
+        HourPartitioner partitioner = new HourPartitioner(
+                new DataFeedSchema(Arrays.asList("hit_time_gmt", "page_url")));
+        assertEquals(
+                Arrays.asList("00", "01", "23", HourPartitioner.UNKNOWN_HOUR),
+                hours(partitioner, "1517529600\ta\n1517533200\tb\n1517615999\tc\n\td\n")
+        );
+    }
+
+    @org.junit.Test(expected = IllegalArgumentException.class)
+    public void requiresTimeColumn() {
+        new HourPartitioner(new DataFeedSchema(Arrays.asList("page_url")));
+    }
+}
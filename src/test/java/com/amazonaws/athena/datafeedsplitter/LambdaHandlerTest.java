@@ -0,0 +1,189 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LambdaHandlerTest {
+
+    private S3EventNotification.S3EventNotificationRecord readRecord(final String path) throws IOException {
+        final String json = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource(path).getFile())), StandardCharsets.UTF_8);
+        return S3EventNotification.parseJson(json).getRecords().get(0);
+    }
+
+    private Context context(final List<String> lines) {
+        Context context = Mockito.mock(Context.class);
+        LambdaLogger logger = line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        };
+        Mockito.when(context.getLogger()).thenReturn(logger);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(900000);
+        return context;
+    }
+
+    @org.junit.Test
+    public void skipsEventWithoutMetadataFiles() throws IOException {
+        // Nothing but the keys is looked at, so no S3 client is needed
+        List<String> lines = new ArrayList<String>();
+        S3Event event = new S3Event(Arrays.asList(readRecord("/s3_archive_event.json")));
+        assertEquals("SKIP", new LambdaHandler().handleRequest(event, context(lines)));
+    }
+
+    @org.junit.Test
+    public void processesEveryRecordBeforeFailing() throws IOException {
+        AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+        Mockito.when(s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString()))
+                .thenThrow(new AmazonS3Exception("Access Denied"));
+        List<S3EventNotification.S3EventNotificationRecord> records = Arrays.asList(
+                readRecord("/s3_event.json"), readRecord("/s3_small_archive_event.json"),
+                readRecord("/s3_test_archive_event.json"));
+        List<String> lines = new ArrayList<String>();
+        SplitterConfig config = new SplitterConfig();
+        config.setMaxConcurrentArchives(2);
+        config.setCompressionThreads(1);
+        config.setManifestCheck(ManifestCheck.OFF);
+
+        try {
+            new LambdaHandler().processRecords(records, context(lines), s3, config);
+            fail("Expected the failures to be reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof AmazonS3Exception);
+        }
+        // One failing archive does not stop the others
+        Mockito.verify(s3, Mockito.times(3))
+                .getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+        for (S3EventNotification.S3EventNotificationRecord record : records) {
+            final String key = record.getS3().getObject().getKey();
+            assertTrue(key, lines.stream().anyMatch(line -> line.startsWith("Error processing " + key)));
+        }
+    }
+
+    @org.junit.Test
+    public void retriesOnlyFailedRecords() throws IOException {
+        List<S3EventNotification.S3EventNotificationRecord> records = Arrays.asList(
+                readRecord("/s3_event.json"), readRecord("/s3_small_archive_event.json"),
+                readRecord("/s3_test_archive_event.json"));
+        final List<List<S3EventNotification.S3EventNotificationRecord>> invoked =
+                new ArrayList<List<S3EventNotification.S3EventNotificationRecord>>();
+        LambdaHandler handler = new LambdaHandler() {
+            @Override
+            Outcome processRecord(final S3EventNotification.S3EventNotificationRecord record,
+                                  final LambdaLogger logger, final Context context, final AmazonS3 s3,
+                                  final SplitterConfig config, final MemoryBudget budget) throws Exception {
+                if (record == records.get(0)) {
+                    throw new IOException("Truncated archive");
+                }
+                return record == records.get(1) ? Outcome.CONTINUED : Outcome.DONE;
+            }
+
+            @Override
+            void invokeAgain(final LambdaLogger logger,
+                             final List<S3EventNotification.S3EventNotificationRecord> again, final Context context) {
+                invoked.add(again);
+            }
+        };
+
+        List<String> lines = new ArrayList<String>();
+        assertEquals("RETRIED", handler.processRecords(records, context(lines), null, new SplitterConfig()));
+        // The continuation is not lost, and the record that was done is not converted again
+        assertEquals(Arrays.asList(Arrays.asList(records.get(1)), Arrays.asList(records.get(0))), invoked);
+    }
+
+    @org.junit.Test
+    public void failsWhenTimeoutLeavesNoMargin() {
+        List<String> lines = new ArrayList<String>();
+        Context context = context(lines);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(60000);
+
+        try {
+            new LambdaHandler().processRecords(new ArrayList<S3EventNotification.S3EventNotificationRecord>(),
+                    context, null, new SplitterConfig());
+            fail("A continuation would start with no time left as well");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("CHECKPOINT_MARGIN_SECONDS"));
+        }
+    }
+
+    @org.junit.Test
+    public void givesUpAfterStalledContinuations() throws IOException {
+        final List<S3EventNotification.S3EventNotificationRecord> invoked =
+                new ArrayList<S3EventNotification.S3EventNotificationRecord>();
+        LambdaHandler handler = new LambdaHandler() {
+            @Override
+            void invokeAgain(final LambdaLogger logger,
+                             final List<S3EventNotification.S3EventNotificationRecord> again, final Context context) {
+                // As the continuation would receive them
+                invoked.addAll(S3EventNotification.parseJson(new S3Event(again).toJson()).getRecords());
+            }
+        };
+        SplitterConfig config = new SplitterConfig();
+        config.setMaxStalledContinuations(2);
+        List<String> lines = new ArrayList<String>();
+        S3EventNotification.S3EventNotificationRecord record = readRecord("/s3_event.json");
+
+        for (int i = 1; i <= 2; i++) {
+            Context context = context(lines);
+            // The time left runs out between the start of the invocation and the start of the archive
+            Mockito.when(context.getRemainingTimeInMillis()).thenReturn(900000, 60000);
+            assertEquals("CONTINUED", handler.processRecords(Arrays.asList(record), context, null, config));
+            record = invoked.remove(0);
+            assertEquals(i, LambdaHandler.stalledContinuations(record));
+            assertEquals("adobe/daily/awsamazonallprod1_2018-02-02.txt", record.getS3().getObject().getKey());
+        }
+
+        Context context = context(lines);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(900000, 60000);
+        try {
+            handler.processRecords(Arrays.asList(record), context, null, config);
+            fail("A record handed on without progress too many times should fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("without progress"));
+        }
+        assertTrue(invoked.isEmpty());
+        // A continuation that made progress counts from zero again
+        assertEquals(0, LambdaHandler.stalledContinuations(LambdaHandler.withStalledContinuations(record, 0)));
+        assertEquals("event-type", LambdaHandler.withStalledContinuations(record, 0).getEventName());
+    }
+
+    @org.junit.Test
+    public void givesUpWaitingForMemoryAfterStalledContinuations() throws Exception {
+        SplitterConfig config = new SplitterConfig();
+        config.setMaxStalledContinuations(1);
+        MemoryBudget budget = new MemoryBudget(1000);
+        // Another archive holds the whole budget until the invocation ends
+        budget.reserve(1000);
+        List<String> lines = new ArrayList<String>();
+        Context context = context(lines);
+        Mockito.when(context.getRemainingTimeInMillis()).thenReturn(config.getCheckpointMarginSeconds() * 1000 + 50);
+        S3EventNotification.S3EventNotificationRecord record = readRecord("/s3_event.json");
+
+        assertEquals(LambdaHandler.Outcome.STALLED,
+                new LambdaHandler().processRecord(record, context.getLogger(), context, null, config, budget));
+        try {
+            new LambdaHandler().processRecord(LambdaHandler.withStalledContinuations(record, 1),
+                    context.getLogger(), context, null, config, budget);
+            fail("A record that never got its memory should fail in the end");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("No memory"));
+        }
+        assertEquals(1000, budget.getReserved());
+    }
+}
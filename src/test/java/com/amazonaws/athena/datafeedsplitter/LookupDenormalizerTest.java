@@ -0,0 +1,71 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LookupDenormalizerTest {
+
+    private static LookupMap lookup(final String tsv) {
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        return LookupMap.parse(data, data.length);
+    }
+
+    private static List<String> resolve(final LookupDenormalizer denormalizer, final String tsv) throws IOException {
+        final List<String> rows = new ArrayList<String>();
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(row -> {
+            denormalizer.resolve(row);
+            StringBuilder fields = new StringBuilder();
+            for (int i = 0; i < row.getFieldCount(); i++) {
+                fields.append(i == 0 ? "" : "|").append(row.getString(i));
+            }
+            rows.add(fields.toString());
+        });
+        reader.write(data, 0, data.length);
+        reader.finish();
+        return rows;
+    }
+
+    @org.junit.Test
+    public void parsesLookupFiles() {
+        LookupMap map = lookup("1\tChrome\n2\tFirefox\\\tESR\nx\tignored\n-3\tNegative\n");
+        assertEquals(3, map.size());
+        assertEquals("Firefox\tESR", new String(map.get(2), StandardCharsets.UTF_8));
+        assertEquals("Negative", new String(map.get(-3), StandardCharsets.UTF_8));
+        assertNull(map.get(4));
+    }
+
+    @org.junit.Test
+    public void growsPastInitialCapacity() {
+        LookupMap map = new LookupMap();
+        for (int i = 0; i < 100000; i++) {
+            map.put(i * 7, Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(100000, map.size());
+        assertEquals("12345", new String(map.get(12345 * 7), StandardCharsets.UTF_8));
+        assertNull(map.get(1));
+    }
+
+    @org.junit.Test
+    public void appendsNameColumns() throws IOException {
+        Map<String, LookupMap> lookups = new HashMap<String, LookupMap>();
+        lookups.put("browser.tsv", lookup("10\tChrome\n11\tSafari\n"));
+        DataFeedSchema headers = new DataFeedSchema(Arrays.asList("visit_num", "browser", "country", "page_url"));
+        LookupDenormalizer denormalizer = new LookupDenormalizer(headers, lookups);
+
+        assertEquals(Arrays.asList("visit_num", "browser", "country", "page_url", "browser_name", "country_name"),
+                denormalizer.getSchema().getColumnNames());
+        // Unknown ids and missing lookups give empty names, short rows are padded to the header columns
+        assertEquals(
+                Arrays.asList("1|10|5|a|Chrome|", "2|99|5|b||", "3|11|||Safari|"),
+                resolve(denormalizer, "1\t10\t5\ta\n2\t99\t5\tb\n3\t11\n")
+        );
+    }
+}
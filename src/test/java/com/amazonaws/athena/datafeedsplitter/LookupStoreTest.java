@@ -0,0 +1,32 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class LookupStoreTest {
+
+    @org.junit.Test
+    public void formatsManifest() {
+        Map<String, String> hashes = new TreeMap<String, String>();
+        hashes.put("browser.tsv", "aa");
+        hashes.put("country.tsv", "bb");
+
+        byte[] manifest = LookupStore.toManifest(hashes);
+        assertEquals("browser.tsv\taa\ncountry.tsv\tbb\n", new String(manifest, StandardCharsets.UTF_8));
+    }
+
+    @org.junit.Test
+    public void symlinkHoldsLatestHash() {
+        byte[] symlink = "s3://bucket/adobe/converted/lookup_store/browser/0a1b2c.tsv.gz\n"
+                .getBytes(StandardCharsets.UTF_8);
+        assertEquals("0a1b2c", LookupStore.parseSymlink(symlink));
+    }
+
+    @org.junit.Test
+    public void missingSymlinkHasNoHash() {
+        assertEquals("", LookupStore.parseSymlink(null));
+    }
+}
@@ -0,0 +1,76 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    @org.junit.Test
+    public void waitsUntilReservationFits() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000);
+        final long first = budget.reserve(600);
+        final CountDownLatch reserved = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            try {
+                budget.reserve(600);
+                reserved.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+
+        assertFalse(reserved.await(100, TimeUnit.MILLISECONDS));
+        budget.release(first);
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        assertEquals(600, budget.getReserved());
+    }
+
+    @org.junit.Test
+    public void grantsAtMostTheWholeBudget() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000);
+        assertEquals(1000, budget.reserve(5000));
+        budget.release(1000);
+        assertEquals(0, budget.getReserved());
+    }
+
+    @org.junit.Test
+    public void reserveGivesUpAfterTimeout() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000);
+        assertEquals(600, budget.reserve(600, 0));
+        assertEquals(0, budget.reserve(600, 50));
+        assertEquals(600, budget.getReserved());
+    }
+
+    @org.junit.Test
+    public void tryReserveDoesNotWait() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        assertEquals(600, budget.tryReserve(600));
+        assertEquals(0, budget.tryReserve(600));
+        budget.release(600);
+        assertEquals(600, budget.tryReserve(600));
+    }
+
+    @org.junit.Test
+    public void footprintGrowsWithBuffers() {
+        SplitterConfig config = new SplitterConfig();
+        final long footprint = MemoryBudget.archiveFootprint(config);
+        config.setMaxInMemoryPartBytes(config.getMaxInMemoryPartBytes() + 1000);
+        assertEquals(footprint + 1000, MemoryBudget.archiveFootprint(config));
+        config.setHitDataFormat(HitDataFormat.PARQUET);
+        assertEquals(footprint + 1000 + config.getParquetRowGroupSize(), MemoryBudget.archiveFootprint(config));
+    }
+
+    @org.junit.Test
+    public void footprintCountsSpeculativeOutput() {
+        SplitterConfig config = new SplitterConfig();
+        final long footprint = MemoryBudget.archiveFootprint(config);
+        config.setSpeculativeInflate(true);
+        // Every chunk queued and the one being read hold the whole output of their region
+        final long output = (config.getInflateThreads() + 1L) * config.getInflateChunkSize()
+                * MemoryBudget.SPECULATIVE_INFLATE_RATIO;
+        assertTrue(MemoryBudget.archiveFootprint(config) - footprint >= output);
+    }
+}
@@ -0,0 +1,203 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultipartUploadTest {
+
+    private static final int MAX_PENDING_PARTS = 4;
+
+    private AmazonS3 s3;
+    private MultipartUploadEngine engine;
+    private final List<Integer> sentParts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private MultipartUploadEngine newEngine(final int uploadThreads) {
+        SplitterConfig config = new SplitterConfig();
+        config.setUploadThreads(uploadThreads);
+        config.setMaxPendingParts(MAX_PENDING_PARTS);
+        return new MultipartUploadEngine(line -> { }, s3, config, new PipelineStats().stage(PipelineStats.UPLOAD));
+    }
+
+    @org.junit.Before
+    public void setUp() {
+        s3 = Mockito.mock(AmazonS3.class);
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("upload-1");
+        Mockito.when(s3.initiateMultipartUpload(ArgumentMatchers.any(InitiateMultipartUploadRequest.class)))
+                .thenReturn(initiated);
+    }
+
+    /**
+     * @param blocked The part number that waits for the latch before it is sent, or 0 for none
+     * @param failed  The part number that fails to upload, or 0 for none
+     */
+    private void answerParts(final int blocked, final CountDownLatch latch, final int failed) {
+        Mockito.when(s3.uploadPart(ArgumentMatchers.any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            if (request.getPartNumber() == blocked) {
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            }
+            if (request.getPartNumber() == failed) {
+                throw new RuntimeException("Part " + failed + " failed");
+            }
+            sentParts.add(request.getPartNumber());
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+    }
+
+    @org.junit.Test
+    public void completesWithPartsSortedByNumber() throws Exception {
+        final CountDownLatch lastPartSent = new CountDownLatch(1);
+        answerParts(1, lastPartSent, 0);
+        engine = newEngine(3);
+        MultipartUpload upload = engine.start("bucket", "key");
+        upload.uploadPart(new byte[10], 10, null);
+        upload.uploadPart(new byte[10], 10, null);
+        upload.uploadPart(new byte[10], 10, null);
+        // The first part is only sent once the others are
+        while (sentParts.size() < 2) {
+            Thread.sleep(10);
+        }
+        lastPartSent.countDown();
+        upload.complete();
+        engine.shutdown();
+
+        assertEquals(1, (int) sentParts.get(sentParts.size() - 1));
+        ArgumentCaptor<CompleteMultipartUploadRequest> completed =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(s3).completeMultipartUpload(completed.capture());
+        List<PartETag> etags = completed.getValue().getPartETags();
+        assertEquals(3, etags.size());
+        for (int i = 0; i < etags.size(); i++) {
+            assertEquals(i + 1, etags.get(i).getPartNumber());
+            assertEquals("etag-" + (i + 1), etags.get(i).getETag());
+        }
+        assertEquals(MAX_PENDING_PARTS, engine.getPendingParts().availablePermits());
+    }
+
+    @org.junit.Test
+    public void failedPartAbortsUpload() throws Exception {
+        answerParts(0, null, 2);
+        engine = newEngine(2);
+        MultipartUpload upload = engine.start("bucket", "key");
+        upload.uploadPart(new byte[10], 10, null);
+        upload.uploadPart(new byte[10], 10, null);
+        upload.uploadPart(new byte[10], 10, null);
+        try {
+            upload.complete();
+            fail("A failed part should fail the upload");
+        } catch (IOException e) {
+            assertEquals("Part 2 failed", e.getCause().getMessage());
+        }
+        engine.shutdown();
+
+        Mockito.verify(s3).abortMultipartUpload(ArgumentMatchers.any(AbortMultipartUploadRequest.class));
+        Mockito.verify(s3, Mockito.never())
+                .completeMultipartUpload(ArgumentMatchers.any(CompleteMultipartUploadRequest.class));
+        assertEquals(MAX_PENDING_PARTS, engine.getPendingParts().availablePermits());
+        assertTrue(engine.reserveMemory(Integer.MAX_VALUE - 1));
+    }
+
+    @org.junit.Test
+    public void abortCancelsQueuedParts() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        answerParts(1, released, 0);
+        // A single thread leaves parts 2 to 4 queued behind the first
+        engine = newEngine(1);
+        MultipartUpload upload = engine.start("bucket", "key");
+        for (int i = 0; i < MAX_PENDING_PARTS; i++) {
+            upload.uploadPart(new byte[10], 10, null);
+        }
+        assertEquals(0, engine.getPendingParts().availablePermits());
+        Mockito.verify(s3, Mockito.timeout(5000)).uploadPart(ArgumentMatchers.any(UploadPartRequest.class));
+
+        upload.abort();
+        upload.abort();
+        // The cancelled parts gave their permits back, the running one still holds its own
+        assertEquals(MAX_PENDING_PARTS - 1, engine.getPendingParts().availablePermits());
+        released.countDown();
+        engine.shutdown();
+
+        assertEquals(Collections.singletonList(1), sentParts);
+        Mockito.verify(s3, Mockito.times(1))
+                .abortMultipartUpload(ArgumentMatchers.any(AbortMultipartUploadRequest.class));
+        assertEquals(MAX_PENDING_PARTS, engine.getPendingParts().availablePermits());
+        assertTrue(engine.reserveMemory(Integer.MAX_VALUE - 1));
+    }
+
+    @org.junit.Test
+    public void uploadPartWaitsForRoom() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        answerParts(1, released, 0);
+        engine = newEngine(1);
+        final MultipartUpload upload = engine.start("bucket", "key");
+        for (int i = 0; i < MAX_PENDING_PARTS; i++) {
+            upload.uploadPart(new byte[10], 10, null);
+        }
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                upload.uploadPart(new byte[10], 10, null);
+                queued.countDown();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+
+        // The queue is full until the first part has been sent
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+        released.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        upload.complete();
+        engine.shutdown();
+
+        assertEquals(MAX_PENDING_PARTS + 1, sentParts.size());
+        assertEquals(MAX_PENDING_PARTS, engine.getPendingParts().availablePermits());
+    }
+
+    @org.junit.Test
+    public void uploadsObjectsConcurrently() throws Exception {
+        answerParts(0, null, 0);
+        engine = newEngine(3);
+        MultipartUpload first = engine.start("bucket", "first");
+        MultipartUpload second = engine.start("bucket", "second");
+        first.uploadPart(new byte[10], 10, null);
+        second.uploadPart(new byte[10], 10, null);
+        first.uploadPart(new byte[10], 10, null);
+        second.complete();
+        first.complete();
+        engine.shutdown();
+
+        // Each upload numbers its own parts
+        ArgumentCaptor<CompleteMultipartUploadRequest> completed =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(s3, Mockito.times(2)).completeMultipartUpload(completed.capture());
+        assertEquals("second", completed.getAllValues().get(0).getKey());
+        assertEquals(1, completed.getAllValues().get(0).getPartETags().size());
+        assertEquals("first", completed.getAllValues().get(1).getKey());
+        assertEquals(2, completed.getAllValues().get(1).getPartETags().size());
+        assertEquals(2, completed.getAllValues().get(1).getPartETags().get(1).getPartNumber());
+    }
+}
@@ -0,0 +1,57 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class OrcBloomFilterTest {
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long hash(final String s) {
+        byte[] data = bytes(s);
+        return OrcBloomFilter.hash64(data, 0, data.length);
+    }
+
+    @org.junit.Test
+    public void hashMatchesOrc() {
+        // Values produced by org.apache.orc.util.Murmur3.hash64
+        assertEquals(0x74a18dc8f20adb48L, hash(""));
+        assertEquals(0xddd9b0af19f61187L, hash("a"));
+        assertEquals(0xec219df59f58bc57L, hash("12345678"));
+        assertEquals(0xf868f37f0f21cb89L, hash("http://www.example.com/"));
+    }
+
+    @org.junit.Test
+    public void hashUsesOffset() {
+        byte[] data = bytes("xxhttp://www.example.com/yy");
+        assertEquals(hash("http://www.example.com/"), OrcBloomFilter.hash64(data, 2, data.length - 4));
+    }
+
+    @org.junit.Test
+    public void containsAddedValues() {
+        OrcBloomFilter filter = new OrcBloomFilter(10000, 0.05);
+        for (int i = 0; i < 10000; i++) {
+            byte[] value = bytes("page" + i);
+            filter.add(value, 0, value.length);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            byte[] value = bytes("page" + i);
+            assertTrue(filter.mightContain(value, 0, value.length));
+
+            byte[] other = bytes("other" + i);
+            if (filter.mightContain(other, 0, other.length)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 1000);
+
+        filter.clear();
+        byte[] value = bytes("page1");
+        assertFalse(filter.mightContain(value, 0, value.length));
+    }
+}
@@ -0,0 +1,71 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class OrcFileWriterTest {
+
+    private static final byte[] MAGIC = "ORC".getBytes(StandardCharsets.US_ASCII);
+
+    private final DataFeedSchema schema = new DataFeedSchema(Arrays.asList("hitid_high", "page_url"));
+
+    private static void writeRows(final OrcFileWriter writer, final String tsv) throws IOException {
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(writer::writeRow);
+        reader.write(data, 0, data.length);
+        reader.finish();
+    }
+
+    /**
+     * The file starts with the magic, and ends with the postscript, its length and the magic as its last field.
+     */
+    private static void assertLayout(final byte[] file) {
+        assertArrayEquals(MAGIC, Arrays.copyOfRange(file, 0, MAGIC.length));
+        int postscriptLength = file[file.length - 1] & 0xff;
+        assertTrue(postscriptLength < file.length - MAGIC.length);
+        assertArrayEquals(MAGIC, Arrays.copyOfRange(file, file.length - 1 - MAGIC.length, file.length - 1));
+    }
+
+    @org.junit.Test
+    public void emptyFileHasHeaderAndPostscript() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OrcFileWriter writer = new OrcFileWriter(out, schema, 1024 * 1024, 64 * 1024,
+                Collections.<String>emptyList());
+        writer.finish();
+
+        byte[] file = out.toByteArray();
+        assertLayout(file);
+        assertEquals(file.length, writer.getPosition());
+    }
+
+    @org.junit.Test
+    public void writesStripes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OrcFileWriter writer = new OrcFileWriter(out, schema, 1024 * 1024, 64 * 1024,
+                Collections.singletonList("page_url"));
+        writeRows(writer, "1\thttp://example.com/\n2\n3\thttp://example.com/a\\\tb\n");
+        assertEquals(3, writer.getBufferedRows());
+        writer.finish();
+
+        byte[] file = out.toByteArray();
+        assertEquals(0, writer.getBufferedRows());
+        assertLayout(file);
+        assertEquals(file.length, writer.getPosition());
+    }
+
+    @org.junit.Test
+    public void flushesStripeAtTargetSize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OrcFileWriter writer = new OrcFileWriter(out, schema, 64, 32, Collections.singletonList("page_url"));
+        for (int i = 0; i < 10; i++) {
+            writeRows(writer, i + "\thttp://example.com/page/" + i + "\n");
+        }
+        assertTrue(writer.getPosition() > MAGIC.length);
+        assertTrue(writer.getBufferedRows() < 10);
+    }
+}
@@ -0,0 +1,141 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelGzipOutputStreamTest {
+
+    private ExecutorService compressors;
+
+    @org.junit.Before
+    public void setUp() {
+        compressors = Executors.newFixedThreadPool(4);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        compressors.shutdownNow();
+    }
+
+    private byte[] sampleRows(final int rows) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            sb.append(i).append('\t')
+                    .append("http://www.example.com/page/").append(random.nextInt(500)).append('\t')
+                    .append(random.nextLong()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] compress(final byte[] data, final int writeSize) throws IOException {
+        return compress(data, writeSize, null);
+    }
+
+    private byte[] compress(final byte[] data, final int writeSize, final BufferPool pool) throws IOException {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+                byteOut, compressors, 64 * 1024, 3, Deflater.DEFAULT_COMPRESSION, new StageStats("compress"), pool);
+        for (int offset = 0; offset < data.length; offset += writeSize) {
+            out.write(data, offset, Math.min(writeSize, data.length - offset));
+        }
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private byte[] decompress(final byte[] data) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                result.write(buf, 0, count);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    @org.junit.Test
+    public void roundTripAcrossManyBlocks() throws IOException {
+        byte[] data = sampleRows(50000);
+        assertTrue(data.length > 10 * 64 * 1024);
+
+        assertArrayEquals(data, decompress(compress(data, 10000)));
+    }
+
+    @org.junit.Test
+    public void roundTripExactBlockMultiple() throws IOException {
+        byte[] data = new byte[4 * 64 * 1024];
+        new Random(7).nextBytes(data);
+
+        assertArrayEquals(data, decompress(compress(data, data.length)));
+    }
+
+    @org.junit.Test
+    public void reusesPooledBlocks() throws IOException {
+        byte[] data = sampleRows(50000);
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+
+        byte[] first = compress(data, 10000, pool);
+        long allocations = pool.getAllocations();
+        byte[] second = compress(data, 10000, pool);
+
+        assertArrayEquals(first, second);
+        assertArrayEquals(data, decompress(second));
+        // Blocks are recycled within a stream, and a later stream only needs more output arrays when its
+        // compressors happen to run further ahead than before
+        int blocks = data.length / (64 * 1024) + 1;
+        assertTrue(allocations < blocks);
+        assertTrue(pool.getAllocations() - allocations <= 4);
+    }
+
+    @org.junit.Test
+    public void emptyInput() throws IOException {
+        assertEquals(0, decompress(compress(new byte[0], 1)).length);
+    }
+
+    @org.junit.Test
+    public void compressionRatioCloseToSingleStream() throws IOException {
+        byte[] data = sampleRows(50000);
+
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            single.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+
+        // Priming every block with the previous 32KB keeps the overhead to a few percent
+        assertTrue(compress(data, 10000).length < single.size() * 1.05);
+    }
+
+    @org.junit.Test
+    public void combinedCrcMatchesWholeCrc() {
+        byte[] data = sampleRows(1000);
+        int split = data.length / 3;
+
+        CRC32 whole = new CRC32();
+        whole.update(data);
+        CRC32 first = new CRC32();
+        first.update(data, 0, split);
+        CRC32 second = new CRC32();
+        second.update(data, split, data.length - split);
+
+        assertEquals(whole.getValue(), Crc32Combine.combine(first.getValue(), second.getValue(), data.length - split));
+        assertEquals(first.getValue(), Crc32Combine.combine(first.getValue(), 0, 0));
+    }
+}
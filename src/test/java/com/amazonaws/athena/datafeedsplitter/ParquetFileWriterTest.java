@@ -0,0 +1,87 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ParquetFileWriterTest {
+
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+    private final DataFeedSchema schema = new DataFeedSchema(Arrays.asList("hitid_high", "page_url"));
+
+    private static void assertMagic(final byte[] file, final int offset) {
+        assertArrayEquals(MAGIC, Arrays.copyOfRange(file, offset, offset + MAGIC.length));
+    }
+
+    private static int footerLength(final byte[] file) {
+        int at = file.length - 8;
+        return (file[at] & 0xff) | (file[at + 1] & 0xff) << 8 | (file[at + 2] & 0xff) << 16
+                | (file[at + 3] & 0xff) << 24;
+    }
+
+    private static void writeRows(final ParquetFileWriter writer, final String tsv) throws IOException {
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(writer::writeRow);
+        reader.write(data, 0, data.length);
+        reader.finish();
+    }
+
+    @org.junit.Test
+    public void emptyFileHasHeaderAndFooter() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParquetFileWriter writer = new ParquetFileWriter(out, schema, 1024 * 1024, 64 * 1024);
+        writer.finish();
+
+        byte[] file = out.toByteArray();
+        assertMagic(file, 0);
+        assertMagic(file, file.length - 4);
+        assertEquals(file.length - 12, footerLength(file));
+        assertEquals(file.length, writer.getPosition());
+    }
+
+    @org.junit.Test
+    public void footerFollowsRowGroups() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParquetFileWriter writer = new ParquetFileWriter(out, schema, 1024 * 1024, 64 * 1024);
+        writeRows(writer, "1\thttp://example.com/\n2\n3\thttp://example.com/a\\\tb\n");
+        assertEquals(3, writer.getBufferedRows());
+        writer.finish();
+
+        byte[] file = out.toByteArray();
+        assertEquals(0, writer.getBufferedRows());
+        assertMagic(file, 0);
+        assertMagic(file, file.length - 4);
+        assertTrue(footerLength(file) < file.length - 12);
+        assertEquals(file.length, writer.getPosition());
+    }
+
+    @org.junit.Test
+    public void flushesRowGroupAtTargetSize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParquetFileWriter writer = new ParquetFileWriter(out, schema, 64, 32);
+        for (int i = 0; i < 10; i++) {
+            writeRows(writer, i + "\thttp://example.com/page/" + i + "\n");
+        }
+        assertTrue(writer.getPosition() > MAGIC.length);
+        assertTrue(writer.getBufferedRows() < 10);
+    }
+
+    @org.junit.Test
+    public void rejectsValuesThatDoNotFitIntegerColumns() throws IOException {
+        DataFeedSchema typed = new DataFeedSchema(
+                Arrays.asList("visit_num", "page_url"),
+                Arrays.asList(ColumnType.INT, ColumnType.STRING)
+        );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParquetFileWriter writer = new ParquetFileWriter(out, typed, 1024 * 1024, 64 * 1024);
+        writeRows(writer, "1\ta\nx\tb\n\tc\n3000000000\td\n-7\te\n");
+        writer.finish();
+
+        assertEquals(2, writer.getRejectedValues());
+        assertMagic(out.toByteArray(), 0);
+    }
+}
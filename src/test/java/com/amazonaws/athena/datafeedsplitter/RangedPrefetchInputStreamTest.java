@@ -0,0 +1,84 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RangedPrefetchInputStreamTest {
+
+    private final static String TEST_BUCKET = "test-delivery";
+    private final static String TEST_KEY = "adobe/daily/archive.tar.gz";
+
+    private final byte[] object = new byte[1000003];
+    private AmazonS3 s3;
+
+    @org.junit.Before
+    public void setUp() {
+        new Random(1).nextBytes(object);
+        s3 = Mockito.mock(AmazonS3.class);
+
+        // Serve the requested range of the object, as S3 would
+        Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            long[] range = request.getRange();
+            int start = (int) range[0];
+            int end = (int) Math.min(range[1], object.length - 1);
+            S3Object s3Object = new S3Object();
+            s3Object.setObjectContent(new S3ObjectInputStream(
+                    new ByteArrayInputStream(object, start, end - start + 1), null));
+            return s3Object;
+        });
+    }
+
+    private byte[] readAll(final RangedPrefetchInputStream in, final int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[bufferSize];
+        int count;
+        while ((count = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @org.junit.Test
+    public void readsWholeObjectInOrder() throws IOException {
+        RangedPrefetchInputStream in = new RangedPrefetchInputStream(
+                s3, TEST_BUCKET, TEST_KEY, object.length, 65536, 4, new StageStats("fetch"));
+
+        assertArrayEquals(object, readAll(in, 100000));
+        Mockito.verify(s3, Mockito.times(16)).getObject(ArgumentMatchers.any(GetObjectRequest.class));
+    }
+
+    @org.junit.Test
+    public void singleByteReads() throws IOException {
+        RangedPrefetchInputStream in = new RangedPrefetchInputStream(
+                s3, TEST_BUCKET, TEST_KEY, object.length, 300000, 2, new StageStats("fetch"));
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(object[i] & 0xff, in.read());
+        }
+        byte[] rest = readAll(in, 777);
+        assertEquals(object.length - 1000, rest.length);
+        assertEquals(object[object.length - 1], rest[rest.length - 1]);
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void failsWhenRangeIsShort() throws IOException {
+        // Claim the object is longer than it is, so the final window comes back short on every attempt
+        RangedPrefetchInputStream in = new RangedPrefetchInputStream(
+                s3, TEST_BUCKET, TEST_KEY, object.length + 10, 65536, 4, new StageStats("fetch"));
+
+        readAll(in, 100000);
+    }
+}
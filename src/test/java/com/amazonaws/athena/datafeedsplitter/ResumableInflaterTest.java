@@ -0,0 +1,180 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ResumableInflaterTest {
+
+    private static final int SPAN = 100000;
+
+    private byte[] sampleData(final int length) {
+        // Text with repeats near and far, and the odd random byte to make some blocks hard to compress
+        Random random = new Random(5);
+        String[] words = {"hit_data", "\t", "\n", "http://www.example.com/index.html", "Mozilla/5.0", "1521072000"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (out.size() < length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.UTF_8);
+            out.write(word, 0, word.length);
+            if (random.nextInt(20) == 0) {
+                out.write(random.nextInt(256));
+            }
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    private byte[] deflate(final byte[] data, final int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(level, true);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 4096)) {
+            out.write(data);
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    private byte[] readAll(final ResumableInflater inflater) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7777];
+        int count;
+        while ((count = inflater.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @org.junit.Test
+    public void inflatesLikeZlib() throws IOException {
+        byte[] data = sampleData(1500000);
+        for (int level : new int[]{0, 1, 6, 9}) {
+            ResumableInflater inflater = new ResumableInflater(
+                    new ByteArrayInputStream(deflate(data, level)), 0, 0, new byte[0], 0);
+            assertArrayEquals("level " + level, data, readAll(inflater));
+            assertTrue(inflater.isFinished());
+            assertEquals(data.length, inflater.getTotalOut());
+            assertTrue(inflater.getAccessPoints().isEmpty());
+        }
+    }
+
+    @org.junit.Test
+    public void inflatesFixedHuffmanBlocks() throws IOException {
+        // zlib uses the fixed code for input this short
+        byte[] data = "Hello, World! Hello, World!".getBytes(StandardCharsets.UTF_8);
+        ResumableInflater inflater = new ResumableInflater(
+                new ByteArrayInputStream(deflate(data, 6)), 0, 0, new byte[0], 0);
+        assertArrayEquals(data, readAll(inflater));
+    }
+
+    @org.junit.Test
+    public void resumesFromEveryAccessPoint() throws IOException {
+        byte[] data = sampleData(1500000);
+        for (int level : new int[]{0, 6}) {
+            // Offsets are counted from the start of the file, as if a 3 byte header came before the stream
+            byte[] deflated = deflate(data, level);
+            byte[] file = new byte[deflated.length + 3];
+            System.arraycopy(deflated, 0, file, 3, deflated.length);
+
+            ResumableInflater inflater = new ResumableInflater(
+                    new ByteArrayInputStream(file, 3, deflated.length), 24, 0, new byte[0], SPAN);
+            readAll(inflater);
+            assertTrue(inflater.getAccessPoints().size() > 2);
+            assertEquals(0, inflater.getAccessPoints().get(0).getOutOffset());
+
+            long previous = -SPAN;
+            for (ResumableInflater.AccessPoint point : inflater.getAccessPoints()) {
+                assertTrue(point.getOutOffset() >= previous + SPAN);
+                previous = point.getOutOffset();
+
+                final int from = (int) (point.getBitOffset() >>> 3);
+                ResumableInflater resumed = new ResumableInflater(
+                        new ByteArrayInputStream(file, from, file.length - from),
+                        point.getBitOffset(), point.getOutOffset(), point.getWindow(), 0);
+                assertArrayEquals("level " + level + " at " + point.getOutOffset(),
+                        Arrays.copyOfRange(data, (int) point.getOutOffset(), data.length), readAll(resumed));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void decodesSpeculativelyFromFoundBlockStart() throws IOException {
+        byte[] data = sampleData(1500000);
+        byte[] deflated = deflate(data, 6);
+        // A span of one byte records every block boundary
+        ResumableInflater inflater = new ResumableInflater(new ByteArrayInputStream(deflated), 0, 0, new byte[0], 1);
+        readAll(inflater);
+        Map<Long, ResumableInflater.AccessPoint> boundaries = new HashMap<Long, ResumableInflater.AccessPoint>();
+        for (ResumableInflater.AccessPoint point : inflater.getAccessPoints()) {
+            boundaries.put(point.getBitOffset(), point);
+        }
+
+        // Search from a quarter into the stream, as a worker does from the start of its region
+        final int from = deflated.length / 4;
+        ResumableInflater probe = ResumableInflater.speculative(deflated, from, deflated.length - from, from * 8L);
+        long found = -1;
+        for (long bit = from * 8L; found < 0 && bit < deflated.length * 8L; bit++) {
+            if (probe.probe(bit, 2)) {
+                found = bit;
+            }
+        }
+        ResumableInflater.AccessPoint point = boundaries.get(found);
+        assertNotNull("no block starts at " + found, point);
+
+        final int start = (int) (found >>> 3);
+        ResumableInflater speculative = ResumableInflater.speculative(
+                deflated, start, deflated.length - start, found);
+        assertTrue(speculative.isSymbolic());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        char[] symbols = new char[5000];
+        int count;
+        while ((count = speculative.readSymbols(symbols, 0, symbols.length)) > 0) {
+            for (int i = 0; i < count; i++) {
+                // Markers refer to the 32KB before the block, which the access point holds
+                out.write(symbols[i] < ResumableInflater.MARKER ? symbols[i]
+                        : point.getWindow()[symbols[i] - ResumableInflater.MARKER]);
+            }
+        }
+        if (!speculative.isSymbolic()) {
+            byte[] buf = new byte[7777];
+            while ((count = speculative.read(buf, 0, buf.length)) != -1) {
+                out.write(buf, 0, count);
+            }
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, (int) point.getOutOffset(), data.length), out.toByteArray());
+    }
+
+    @org.junit.Test
+    public void stopsAtStopBit() throws IOException {
+        byte[] data = sampleData(1500000);
+        byte[] deflated = deflate(data, 6);
+        ResumableInflater indexing = new ResumableInflater(new ByteArrayInputStream(deflated), 0, 0, new byte[0], 1);
+        readAll(indexing);
+        ResumableInflater.AccessPoint stop = indexing.getAccessPoints().get(indexing.getAccessPoints().size() / 2);
+
+        ResumableInflater inflater = new ResumableInflater(deflated, 0, deflated.length, 0, 0, new byte[0]);
+        inflater.setStopBit(stop.getBitOffset());
+        assertArrayEquals(Arrays.copyOf(data, (int) stop.getOutOffset()), readAll(inflater));
+        assertTrue(inflater.isStopped());
+        assertEquals(stop.getBitOffset(), inflater.getBitPosition());
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void failsOnTruncatedStream() throws IOException {
+        byte[] deflated = deflate(sampleData(100000), 6);
+        readAll(new ResumableInflater(
+                new ByteArrayInputStream(deflated, 0, deflated.length / 2), 0, 0, new byte[0], 0));
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void failsOnReservedBlockType() throws IOException {
+        readAll(new ResumableInflater(new ByteArrayInputStream(new byte[]{0x07, 0, 0}), 0, 0, new byte[0], 0));
+    }
+}
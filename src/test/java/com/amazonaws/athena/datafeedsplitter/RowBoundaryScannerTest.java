@@ -0,0 +1,82 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RowBoundaryScannerTest {
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @org.junit.Test
+    public void findsUnescapedNewline() {
+        byte[] data = bytes("a\tb\nc\td\n");
+        RowBoundaryScanner scanner = new RowBoundaryScanner();
+
+        assertEquals(4, scanner.findRowEnd(data, 0, data.length));
+        assertEquals(8, scanner.findRowEnd(data, 4, data.length));
+        assertEquals(-1, scanner.findRowEnd(data, 8, data.length));
+    }
+
+    @org.junit.Test
+    public void skipsEscapedNewline() {
+        byte[] data = bytes("a\\\nstill a\nb\n");
+        RowBoundaryScanner scanner = new RowBoundaryScanner();
+
+        assertEquals(11, scanner.findRowEnd(data, 0, data.length));
+    }
+
+    @org.junit.Test
+    public void escapedBackslashDoesNotEscapeNewline() {
+        byte[] data = bytes("a\\\\\nb\n");
+        RowBoundaryScanner scanner = new RowBoundaryScanner();
+
+        assertEquals(4, scanner.findRowEnd(data, 0, data.length));
+    }
+
+    @org.junit.Test
+    public void escapeCarriedAcrossBuffers() {
+        byte[] first = bytes("value\\");
+        byte[] second = bytes("\nrest\n");
+        RowBoundaryScanner scanner = new RowBoundaryScanner();
+
+        assertEquals(-1, scanner.findRowEnd(first, 0, first.length));
+        assertTrue(scanner.isEscaped());
+        assertEquals(6, scanner.findRowEnd(second, 0, second.length));
+    }
+
+    @org.junit.Test
+    public void skipTracksTrailingBackslashes() {
+        RowBoundaryScanner scanner = new RowBoundaryScanner();
+
+        byte[] odd = bytes("abc\\\\\\");
+        scanner.skip(odd, 0, odd.length);
+        assertTrue(scanner.isEscaped());
+
+        // A buffer made only of backslashes flips the state once per backslash
+        byte[] single = bytes("\\");
+        scanner.skip(single, 0, single.length);
+        assertFalse(scanner.isEscaped());
+        scanner.skip(single, 0, single.length);
+        assertTrue(scanner.isEscaped());
+
+        byte[] even = bytes("x\\\\");
+        scanner.skip(even, 0, even.length);
+        assertFalse(scanner.isEscaped());
+    }
+
+    @org.junit.Test
+    public void countsRowsAcrossBuffers() {
+        byte[] data = bytes("a\tb\\\nstill b\nc\td\ne");
+        RowCounter counter = new RowCounter();
+
+        counter.write(data, 0, 7);
+        assertEquals(1, counter.getRows());
+        counter.write(data, 7, data.length - 7);
+        assertEquals(3, counter.getRows());
+        counter.write(bytes("\n"), 0, 1);
+        assertEquals(3, counter.getRows());
+    }
+}
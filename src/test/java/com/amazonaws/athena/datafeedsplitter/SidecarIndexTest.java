@@ -0,0 +1,95 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SidecarIndexTest {
+
+    private final DataFeedSchema schema = new DataFeedSchema(
+            Arrays.asList("hit_time_gmt", "date_time", "post_visid_high", "page_url"));
+
+    private static void writeRows(final SidecarIndex index, final String tsv) throws IOException {
+        byte[] data = tsv.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(index);
+        reader.write(data, 0, data.length);
+        reader.finish();
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @org.junit.Test
+    public void summarizesRangesAndBloomFilters() throws IOException {
+        SidecarIndex index = new SidecarIndex(schema, Arrays.asList("hit_time_gmt", "date_time", "missing"),
+                Arrays.asList("post_visid_high"), 1000);
+        writeRows(index, "1517600000\t2018-02-02 19:33:20\t123\ta\n"
+                + "1517529600\t2018-02-02 00:00:00\t456\tb\n"
+                + "\t\t\tc\n"
+                + "1517615999\t2018-02-02 23:59:59\t789\n");
+        assertEquals(4, index.getRows());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertEquals("DFSI", new String(magic, StandardCharsets.US_ASCII));
+        assertEquals(1, in.readByte());
+        assertEquals(4, in.readLong());
+
+        assertEquals(2, in.readShort());
+        assertEquals("hit_time_gmt", in.readUTF());
+        assertEquals(1, in.readByte());
+        assertEquals(1517529600L, in.readLong());
+        assertEquals(1517615999L, in.readLong());
+        assertEquals("date_time", in.readUTF());
+        assertEquals(2, in.readByte());
+        assertEquals("2018-02-02 00:00:00", readString(in));
+        assertEquals("2018-02-02 23:59:59", readString(in));
+
+        assertEquals(1, in.readShort());
+        assertEquals("post_visid_high", in.readUTF());
+        int hashFunctions = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        assertEquals(-1, in.read());
+
+        // The filter matches one built directly with the ORC hashing
+        OrcBloomFilter expected = new OrcBloomFilter(1000, 0.05);
+        for (String value : new String[]{"123", "456", "789"}) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            expected.add(bytes, 0, bytes.length);
+        }
+        assertEquals(expected.getNumHashFunctions(), hashFunctions);
+        assertArrayEquals(expected.getBits(), bits);
+    }
+
+    @org.junit.Test
+    public void emptyObjectHasNoRange() throws IOException {
+        SidecarIndex index = new SidecarIndex(schema, Arrays.asList("date_time"),
+                Collections.<String>emptyList(), 1000);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.toByteArray()));
+        in.skipBytes(5);
+        assertEquals(0, in.readLong());
+        assertEquals(1, in.readShort());
+        assertEquals("date_time", in.readUTF());
+        assertEquals(0, in.readByte());
+        assertEquals(0, in.readShort());
+    }
+
+    @org.junit.Test
+    public void sidecarKeyStartsWithUnderscore() {
+        assertEquals("a/b/dt=2018-02-02/_hit_data.tsv.00001.gz.idx",
+                DataFeedRecord.getSidecarKey("a/b/dt=2018-02-02/hit_data.tsv.00001.gz"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpillBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] write(final SpillBuffer buffer, final int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(3).nextBytes(data);
+        for (int offset = 0; offset < length; offset += 1000) {
+            buffer.write(data, offset, Math.min(1000, length - offset));
+        }
+        return data;
+    }
+
+    @org.junit.Test
+    public void staysInMemoryWithinTheLimit() throws IOException {
+        SpillBuffer buffer = new SpillBuffer(folder.getRoot(), 64 * 1024);
+        byte[] data = write(buffer, 64 * 1024);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertFalse(buffer.isSpilled());
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @org.junit.Test
+    public void spillsPastTheLimitAndRemovesTheFile() throws IOException {
+        SpillBuffer buffer = new SpillBuffer(folder.getRoot(), 64 * 1024);
+        byte[] data = write(buffer, 200 * 1024);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertTrue(buffer.isSpilled());
+        assertEquals(data.length, buffer.size());
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(1, folder.getRoot().list().length);
+
+        buffer.delete();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,41 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SqsJobQueueTest {
+    private final static String QUEUE_URL = "https://sqs.us-east-1.amazonaws.com/123456789012/deliveries";
+
+    @org.junit.Test
+    public void backsOffFailedJobs() {
+        AmazonSQS sqs = Mockito.mock(AmazonSQS.class);
+        Message message = new Message()
+                .withMessageId("1")
+                .withReceiptHandle("receipt")
+                .withBody("{\"Records\":[]}")
+                .addAttributesEntry("ApproximateReceiveCount", "3");
+        Mockito.when(sqs.receiveMessage(ArgumentMatchers.any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(message));
+        SqsJobQueue queue = new SqsJobQueue(sqs, QUEUE_URL, 600);
+
+        List<JobQueue.Job> jobs = queue.receive(10, 0);
+        queue.fail(jobs.get(0));
+        // A job failed on its third delivery waits four times as long as on its first
+        Mockito.verify(sqs).changeMessageVisibility(QUEUE_URL, "receipt", 240);
+    }
+
+    @org.junit.Test
+    public void backoffStaysWithinSqsLimit() {
+        assertEquals(60, SqsJobQueue.failBackoffSeconds(1));
+        assertEquals(120, SqsJobQueue.failBackoffSeconds(2));
+        assertEquals(12 * 60 * 60, SqsJobQueue.failBackoffSeconds(1000));
+    }
+}
@@ -0,0 +1,111 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TsvRowReaderTest {
+
+    private final List<List<String>> rows = new ArrayList<List<String>>();
+    private final TsvRowReader reader = new TsvRowReader(row -> {
+        List<String> fields = new ArrayList<String>();
+        for (int i = 0; i < row.getFieldCount(); i++) {
+            fields.add(row.getString(i));
+        }
+        rows.add(fields);
+    });
+
+    private void write(final String s) throws IOException {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        reader.write(data, 0, data.length);
+    }
+
+    @org.junit.Test
+    public void splitsRowsAndFields() throws IOException {
+        write("a\tb\tc\n\tx\t\n");
+        reader.finish();
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("", "x", "")), rows);
+    }
+
+    @org.junit.Test
+    public void removesEscapes() throws IOException {
+        write("tab\\\there\tline\\\nbreak\tback\\\\slash\n");
+        reader.finish();
+
+        assertEquals(1, rows.size());
+        assertEquals(Arrays.asList("tab\there", "line\nbreak", "back\\slash"), rows.get(0));
+    }
+
+    @org.junit.Test
+    public void rowsSpanWrites() throws IOException {
+        write("fir");
+        write("st\tsec\\");
+        write("\nond\nlast");
+        assertEquals(1, rows.size());
+
+        reader.finish();
+        assertEquals(Arrays.asList(Arrays.asList("first", "sec\nond"), Arrays.asList("last")), rows);
+    }
+
+    @org.junit.Test
+    public void sameRowsWhereverWritesAreCut() throws IOException {
+        final String data = "plain\tfields\tonly\nwith\\\ttab\tand a longer value past one word\t\n"
+                + "\\\\\t\\\n\t\n\n12345678\t123456789\tlast";
+        write(data);
+        reader.finish();
+        final List<List<String>> expected = new ArrayList<List<String>>(rows);
+        assertEquals(5, expected.size());
+
+        final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        final Random random = new Random(42);
+        for (int attempt = 0; attempt < 200; attempt++) {
+            rows.clear();
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, random.nextInt(12));
+                reader.write(bytes, offset, length);
+                offset += length;
+            }
+            reader.finish();
+            assertEquals(expected, rows);
+        }
+    }
+
+    @org.junit.Test
+    public void doesNotAllocatePerRow() throws IOException {
+        final StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            data.append(i).append("\thttp://www.example.com/page/").append(i).append("\t\t")
+                    .append(i % 10 == 0 ? "escaped\\\tvalue" : "value").append('\n');
+        }
+        final byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
+        final long[] fields = new long[1];
+        final TsvRowReader counting = new TsvRowReader(row -> fields[0] += row.getFieldCount());
+
+        // Warm up so the buffers of the row have grown and the reader is compiled
+        for (int i = 0; i < 200; i++) {
+            counting.write(bytes, 0, bytes.length / 2);
+            counting.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        }
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100; i++) {
+            counting.write(bytes, 0, bytes.length / 2);
+            counting.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(300 * 1000 * 4, fields[0]);
+        assertTrue("allocated " + allocated + " bytes for 100000 rows", allocated < 100000);
+    }
+}
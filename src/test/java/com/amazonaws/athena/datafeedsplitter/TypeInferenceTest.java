@@ -0,0 +1,64 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TypeInferenceTest {
+
+    private final DataFeedSchema schema = new DataFeedSchema(
+            Arrays.asList("visit_num", "post_visid_high", "evar1", "code", "zip", "label")
+    );
+
+    private static void observeRows(final TypeInference inference, final String row, final int count)
+            throws IOException {
+        byte[] data = row.getBytes(StandardCharsets.UTF_8);
+        TsvRowReader reader = new TsvRowReader(inference::observe);
+        for (int i = 0; i < count; i++) {
+            reader.write(data, 0, data.length);
+        }
+        reader.finish();
+    }
+
+    @org.junit.Test
+    public void infersIntegersFromSample() throws IOException {
+        TypeInference inference = new TypeInference(schema, Collections.<String, ColumnType>emptyMap());
+        assertTrue(inference.needsSample());
+        observeRows(inference, "3\t12345678901234567890\t42\t-17\t01234\tabc\n", 200);
+
+        DataFeedSchema typed = inference.infer();
+        assertEquals(Arrays.asList(
+                ColumnType.INT, ColumnType.STRING, ColumnType.STRING,
+                ColumnType.INT, ColumnType.STRING, ColumnType.STRING
+        ), typed.getColumnTypes());
+    }
+
+    @org.junit.Test
+    public void smallSampleKeepsStrings() throws IOException {
+        TypeInference inference = new TypeInference(schema, Collections.<String, ColumnType>emptyMap());
+        observeRows(inference, "3\t1\t42\t-17\t5\t6\n", 10);
+
+        assertEquals(ColumnType.STRING, inference.infer().getColumnType(schema.indexOf("code")));
+    }
+
+    @org.junit.Test
+    public void storedTypesWin() {
+        Map<String, ColumnType> known = new HashMap<String, ColumnType>();
+        for (String name : schema.getColumnNames()) {
+            known.put(name, ColumnType.STRING);
+        }
+        known.put("code", ColumnType.BIGINT);
+        TypeInference inference = new TypeInference(schema, known);
+        assertFalse(inference.needsSample());
+
+        DataFeedSchema typed = inference.infer();
+        assertEquals(ColumnType.STRING, typed.getColumnType(schema.indexOf("visit_num")));
+        assertEquals(ColumnType.BIGINT, typed.getColumnType(schema.indexOf("code")));
+        assertEquals(known, DataFeedSchema.parseColumnTypesFile(typed.toColumnTypesFile()));
+    }
+}
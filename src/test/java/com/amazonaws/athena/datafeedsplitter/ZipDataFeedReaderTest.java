@@ -0,0 +1,198 @@
+package com.amazonaws.athena.datafeedsplitter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipDataFeedReaderTest {
+
+    private final byte[] hitData = new byte[200000];
+    private final DataFeedRecord record = new DataFeedRecord();
+    private byte[] archive;
+    private AmazonS3 s3;
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < hitData.length; i++) {
+            hitData[i] = (byte) (i % 100 == 99 ? '\n' : 'a' + random.nextInt(4));
+        }
+
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(zipped)) {
+            zip.putNextEntry(new ZipEntry("lookups/"));
+            zip.closeEntry();
+
+            byte[] headers = "hit_time_gmt\tdate_time\n".getBytes(StandardCharsets.UTF_8);
+            ZipEntry stored = new ZipEntry("column_headers.tsv");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(headers.length);
+            CRC32 crc = new CRC32();
+            crc.update(headers);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(headers);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("hit_data.tsv"));
+            zip.write(hitData);
+            zip.closeEntry();
+            zip.setComment("delivered by a test");
+        }
+        archive = zipped.toByteArray();
+
+        final String sampleS3ArchiveEvent = new String(
+                Files.readAllBytes(Paths.get(this.getClass().getResource("/s3_event.json").getFile())),
+                StandardCharsets.UTF_8
+        );
+        record.buildFromRecord(S3EventNotification.parseJson(sampleS3ArchiveEvent).getRecords().get(0));
+        record.setDataFile("awsamazonallprod1_2018-02-02.zip");
+
+        s3 = Mockito.mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(archive.length);
+        Mockito.when(s3.getObjectMetadata(record.getSrcBucket(), record.getSrcTarbell())).thenReturn(metadata);
+        // Serve the requested range of the archive, as S3 would
+        Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            long[] range = request.getRange();
+            int start = (int) range[0];
+            int end = (int) Math.min(range[1], archive.length - 1);
+            S3Object s3Object = new S3Object();
+            s3Object.setObjectContent(new S3ObjectInputStream(
+                    new ByteArrayInputStream(archive, start, end - start + 1), null));
+            return s3Object;
+        });
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7777];
+        int count;
+        while ((count = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @org.junit.Test
+    public void readsEntriesByTheirRange() throws IOException {
+        SplitterConfig config = new SplitterConfig();
+        // Small windows make hit_data stream over several ranged GETs
+        config.setReaderWindowSize(4096);
+        ZipDataFeedReader reader = new ZipDataFeedReader(s3, record, config, new PipelineStats());
+
+        List<ZipDataFeedReader.Entry> entries = reader.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("column_headers.tsv", entries.get(0).getName());
+        assertEquals("hit_data.tsv", entries.get(1).getName());
+        assertEquals(hitData.length, entries.get(1).getSize());
+
+        // Entries can be read in any order
+        assertArrayEquals(hitData, readAll(reader.openEntry(entries.get(1))));
+        assertEquals("hit_time_gmt\tdate_time\n",
+                new String(readAll(reader.openEntry(entries.get(0))), StandardCharsets.UTF_8));
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void failsOnCorruptEntry() throws IOException {
+        ZipDataFeedReader reader = new ZipDataFeedReader(s3, record, new SplitterConfig(), new PipelineStats());
+        ZipDataFeedReader.Entry entry = reader.getEntries().get(1);
+        ZipDataFeedReader.Entry corrupt = new ZipDataFeedReader.Entry(entry.getName(), entry.getMethod(),
+                entry.getCrc() ^ 1, entry.getCompressedSize(), entry.getSize(), entry.getLocalHeaderOffset());
+        readAll(reader.openEntry(corrupt));
+    }
+
+    @org.junit.Test
+    public void copiesDeflatedEntryAsGzip() throws IOException {
+        ZipDataFeedReader reader = new ZipDataFeedReader(s3, record, new SplitterConfig(), new PipelineStats());
+        ZipDataFeedReader.Entry entry = reader.getEntries().get(1);
+        assertTrue(entry.isDeflated());
+
+        DataFeedWriter writer = Mockito.mock(DataFeedWriter.class);
+        Mockito.when(writer.getBufferPool()).thenReturn(new BufferPool(0));
+        Mockito.when(writer.getLogger()).thenReturn(line -> { });
+        Mockito.when(writer.getS3()).thenReturn(s3);
+        Mockito.when(writer.getDstBucket()).thenReturn("test-output");
+
+        RowCounter rows = new RowCounter();
+        DeflatedObjectOutput output = new DeflatedObjectOutput(writer, "hit_data.tsv.gz", null, entry, rows);
+        output.write(readAll(reader.openCompressedEntry(entry)));
+        output.close();
+        assertEquals(hitData.length / 100, rows.getRows());
+
+        ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+        Mockito.verify(s3).putObject(put.capture());
+        assertEquals("hit_data.tsv.gz", put.getValue().getKey());
+        // GZIPInputStream checks the trailer against the data it inflates
+        assertArrayEquals(hitData, readAll(new GZIPInputStream(put.getValue().getInputStream())));
+    }
+
+    @org.junit.Test
+    public void refusesCorruptDeflatedEntry() throws IOException {
+        ZipDataFeedReader reader = new ZipDataFeedReader(s3, record, new SplitterConfig(), new PipelineStats());
+        ZipDataFeedReader.Entry entry = reader.getEntries().get(1);
+        ZipDataFeedReader.Entry corrupt = new ZipDataFeedReader.Entry(entry.getName(), entry.getMethod(),
+                entry.getCrc() ^ 1, entry.getCompressedSize(), entry.getSize(), entry.getLocalHeaderOffset());
+
+        DataFeedWriter writer = Mockito.mock(DataFeedWriter.class);
+        Mockito.when(writer.getBufferPool()).thenReturn(new BufferPool(0));
+        Mockito.when(writer.getLogger()).thenReturn(line -> { });
+        Mockito.when(writer.getS3()).thenReturn(s3);
+        Mockito.when(writer.getDstBucket()).thenReturn("test-output");
+
+        DeflatedObjectOutput output = new DeflatedObjectOutput(writer, "hit_data.tsv.gz", null, corrupt, null);
+        output.write(readAll(reader.openCompressedEntry(corrupt)));
+        try {
+            output.close();
+            fail("An entry that does not match its CRC32 should not be uploaded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("is corrupt"));
+        }
+        Mockito.verify(s3, Mockito.never()).putObject(ArgumentMatchers.any(PutObjectRequest.class));
+    }
+
+    @org.junit.Test
+    public void findsZip64CentralDirectory() throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate(56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+        final long tailStart = 6000000000L;
+        // ZIP64 end of central directory record
+        tail.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                .putLong(1).putLong(1).putLong(123).putLong(5000000000L);
+        // ZIP64 locator pointing at it
+        tail.putInt(0x07064b50).putInt(0).putLong(tailStart).putInt(1);
+        // End of central directory record deferring to the ZIP64 one
+        tail.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) -1).putShort((short) -1)
+                .putInt(-1).putInt(-1).putShort((short) 0);
+
+        long[] directory = ZipDataFeedReader.findCentralDirectory(tail.array(), tailStart);
+        assertEquals(5000000000L, directory[0]);
+        assertEquals(123, directory[1]);
+    }
+}
@@ -0,0 +1,125 @@
+"""Tests of the Glue Data Catalog updates made by the catalog manager"""
+import os
+import sys
+import unittest
+from unittest import mock
+
+sys.path.insert(0, os.path.join(os.path.dirname(__file__), "..", "..", "main", "python"))
+try:
+    import boto3  # noqa: F401
+except ImportError:
+    sys.modules['boto3'] = mock.MagicMock()
+
+import lambda_handler  # noqa: E402
+
+
+class EntityNotFoundException(Exception):
+    pass
+
+
+def glue_client_with(table):
+    """Return a mock Glue client holding the given hit_data table, or no table if it is None"""
+    glue_client = mock.MagicMock()
+    glue_client.exceptions.EntityNotFoundException = EntityNotFoundException
+    if table is None:
+        glue_client.get_table.side_effect = EntityNotFoundException()
+    else:
+        glue_client.get_table.return_value = {'Table': table}
+    return glue_client
+
+
+def tsv_table(columns, partition_keys):
+    """Return a hit_data table of strings as created by earlier versions of the catalog manager"""
+    return {
+        "Name": "hit_data",
+        "StorageDescriptor": lambda_handler.storage_descriptor(
+            [{"Type": "string", "Name": name} for name in columns],
+            's3://bucket/adobe/converted/suite/rawtsv/hit_data/'
+        ),
+        "PartitionKeys": partition_keys
+    }
+
+
+class CreateGlueTableTest(unittest.TestCase):
+    BASE = 's3://bucket/adobe/converted/suite'
+    DT_ONLY = [{"Name": "dt", "Type": "string"}]
+
+    def test_creates_missing_table(self):
+        glue_client = glue_client_with(None)
+        columns = [{"Name": "hit_time_gmt", "Type": "bigint"}]
+        lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "parquet", columns, None)
+        table_input = glue_client.create_table.call_args[1]['TableInput']
+        self.assertEqual(columns, table_input['StorageDescriptor']['Columns'])
+        self.assertEqual(self.DT_ONLY, table_input['PartitionKeys'])
+
+    def test_leaves_unchanged_table(self):
+        glue_client = glue_client_with(tsv_table(["hit_time_gmt"], self.DT_ONLY))
+        lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", None, None)
+        glue_client.create_table.assert_not_called()
+        glue_client.update_table.assert_not_called()
+
+    def test_updates_string_table_to_typed_parquet(self):
+        glue_client = glue_client_with(tsv_table(["hit_time_gmt", "pagename"], self.DT_ONLY))
+        columns = [{"Name": "hit_time_gmt", "Type": "bigint"}, {"Name": "pagename", "Type": "string"}]
+        lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "parquet", columns, None)
+        table_input = glue_client.update_table.call_args[1]['TableInput']
+        descriptor = table_input['StorageDescriptor']
+        self.assertEqual(columns, descriptor['Columns'])
+        self.assertEqual(self.BASE + '/parquet/hit_data/', descriptor['Location'])
+        self.assertEqual("org.apache.hadoop.hive.ql.io.parquet.MapredParquetInputFormat", descriptor['InputFormat'])
+        self.assertEqual(self.DT_ONLY, table_input['PartitionKeys'])
+
+    def test_rejects_hours_for_dt_only_table(self):
+        glue_client = glue_client_with(tsv_table(["hit_time_gmt"], self.DT_ONLY))
+        with self.assertRaises(ValueError) as raised:
+            lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", None,
+                                             ["00", "13"])
+        self.assertIn("PARTITION_BY_HOUR", str(raised.exception))
+        glue_client.update_table.assert_not_called()
+        glue_client.create_table.assert_not_called()
+
+    def test_accepts_hours_for_hour_partitioned_table(self):
+        keys = self.DT_ONLY + [{"Name": "hr", "Type": "string"}]
+        glue_client = glue_client_with(tsv_table(["hit_time_gmt"], keys))
+        lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", None, ["13"])
+        glue_client.update_table.assert_not_called()
+
+    def test_adds_denormalized_name_columns(self):
+        glue_client = glue_client_with(tsv_table(["browser"], self.DT_ONLY))
+        columns = [{"Name": "browser", "Type": "string"}, {"Name": "browser_name", "Type": "string"}]
+        lambda_handler.create_glue_table(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", columns, None)
+        descriptor = glue_client.update_table.call_args[1]['TableInput']['StorageDescriptor']
+        self.assertEqual(columns, descriptor['Columns'])
+        self.assertEqual(self.BASE + '/rawtsv/hit_data/', descriptor['Location'])
+
+
+class AddHitdataPartitionTest(unittest.TestCase):
+    BASE = 's3://bucket/adobe/converted/suite'
+
+    def test_updates_partition_converted_again_with_name_columns(self):
+        glue_client = glue_client_with(None)
+        glue_client.get_partition.return_value = {'Partition': {
+            "Values": ["2018-02-02"],
+            "StorageDescriptor": lambda_handler.storage_descriptor(
+                [{"Type": "string", "Name": "browser"}], self.BASE + '/rawtsv/hit_data/dt=2018-02-02/')
+        }}
+        columns = [{"Name": "browser", "Type": "string"}, {"Name": "browser_name", "Type": "string"}]
+        lambda_handler.add_hitdata_partition(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", columns, None)
+        glue_client.create_partition.assert_not_called()
+        update = glue_client.update_partition.call_args[1]
+        self.assertEqual(["2018-02-02"], update['PartitionValueList'])
+        self.assertEqual(columns, update['PartitionInput']['StorageDescriptor']['Columns'])
+
+    def test_creates_missing_partition(self):
+        glue_client = glue_client_with(None)
+        glue_client.get_partition.side_effect = EntityNotFoundException()
+        columns = [{"Name": "browser", "Type": "string"}]
+        lambda_handler.add_hitdata_partition(glue_client, "db", self.BASE, "2018-02-02", "rawtsv", columns, ["13"])
+        partition_input = glue_client.create_partition.call_args[1]['PartitionInput']
+        self.assertEqual(["2018-02-02", "13"], partition_input['Values'])
+        self.assertEqual(self.BASE + '/rawtsv/hit_data/dt=2018-02-02/hr=13/',
+                         partition_input['StorageDescriptor']['Location'])
+
+
+if __name__ == '__main__':
+    unittest.main()